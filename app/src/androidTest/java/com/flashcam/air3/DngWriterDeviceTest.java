@@ -0,0 +1,206 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.Manifest;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.DngCreator;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.SessionConfiguration;
+import android.media.ExifInterface;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Size;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Captures one RAW_SENSOR frame and writes it through both {@link DngWriter}
+ * (via {@link DngTags}) and the platform DngCreator, then compares the two
+ * files: the IFD0 + EXIF tag sets, every shared tag's count and values, and
+ * the sample data. Skipped on devices without a RAW-capable camera.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DngWriterDeviceTest {
+
+    private static final long TIMEOUT_S = 10;
+
+    /** Tags DngCreator writes and DngWriter deliberately leaves out. */
+    private static final Set<Integer> CREATOR_ONLY = new TreeSet<>(Arrays.asList(
+        0x011A, 0x011B, 0x0128,   // X/YResolution, ResolutionUnit: meaningless for a raw mosaic
+        0x8825,                   // GPS IFD: the app doesn't record location
+        0x9000,                   // ExifVersion
+        0xC741, 0xC74E));         // OpcodeList2/3: lens shading and distortion, see DngWriter
+
+    /** Tags both write whose values legitimately differ. */
+    private static final Set<Integer> VALUES_DIFFER = new TreeSet<>(Arrays.asList(
+        0x0111, 0x0116, 0x0117,   // Strip layout: DngWriter uses 1 MiB strips after a 4 KiB header
+        0x0131, 0x0132, 0x9003,   // Software and timestamps
+        0xC614));                 // UniqueCameraModel: DngCreator appends the brand
+
+    @Rule
+    public final GrantPermissionRule camera = GrantPermissionRule.grant(Manifest.permission.CAMERA);
+
+    private HandlerThread thread;
+    private Handler handler;
+    private CameraDevice device;
+    private ImageReader reader;
+    private Image image;
+
+    @Before
+    public void startThread() {
+        thread = new HandlerThread("DngWriterDeviceTest");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    @After
+    public void release() {
+        if (image != null) image.close();
+        if (device != null) device.close();
+        if (reader != null) reader.close();
+        thread.quitSafely();
+    }
+
+    @Test
+    public void matchesDngCreator() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        CameraManager manager = context.getSystemService(CameraManager.class);
+        String id = rawCamera(manager);
+        assumeTrue("no RAW-capable camera", id != null);
+        CameraCharacteristics chars = manager.getCameraCharacteristics(id);
+        Size size = Collections.max(Arrays.asList(chars.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP)
+            .getOutputSizes(ImageFormat.RAW_SENSOR)), (a, b) -> Long.compare(
+                (long) a.getWidth() * a.getHeight(), (long) b.getWidth() * b.getHeight()));
+        TotalCaptureResult result = capture(manager, id, size);
+
+        File ours = new File(context.getCacheDir(), "dngwriter.dng");
+        try (FileChannel ch = FileChannel.open(ours.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Image.Plane plane = image.getPlanes()[0];
+            DngTags.prepare(chars, result, size, false)
+                .orientation(ExifInterface.ORIENTATION_NORMAL)
+                .writeTo(ch, plane.getBuffer(), plane.getRowStride());
+        }
+        File theirs = new File(context.getCacheDir(), "dngcreator.dng");
+        try (DngCreator creator = new DngCreator(chars, result);
+                FileOutputStream out = new FileOutputStream(theirs)) {
+            creator.setOrientation(ExifInterface.ORIENTATION_NORMAL).writeImage(out, image);
+        }
+
+        TiffReader a = new TiffReader(ours.toPath());
+        TiffReader b = new TiffReader(theirs.toPath());
+
+        Set<Integer> missing = new TreeSet<>(a.fields.keySet());
+        missing.removeAll(b.fields.keySet());
+        assertTrue("DngWriter tags DngCreator doesn't write: " + hex(missing), missing.isEmpty());
+        Set<Integer> extra = new TreeSet<>(b.fields.keySet());
+        extra.removeAll(a.fields.keySet());
+        extra.removeAll(CREATOR_ONLY);
+        assertTrue("DngCreator tags DngWriter doesn't write: " + hex(extra), extra.isEmpty());
+
+        for (int tag : a.fields.keySet()) {
+            if (VALUES_DIFFER.contains(tag)) continue;
+            TiffReader.Field x = a.get(tag), y = b.get(tag);
+            String name = String.format("tag 0x%04X", tag);
+            assertEquals(name + " count", y.count, x.count);
+            if (x.type == TiffDirectory.ASCII) {
+                assertEquals(name, y.ascii(), x.ascii());
+                continue;
+            }
+            double[] u = x.doubles(), v = y.doubles();
+            for (int i = 0; i < u.length; i++) {
+                // Rationals are written with different denominators (e.g. exposure in us vs ns)
+                assertEquals(name + "[" + i + "]", v[i], u[i], Math.abs(v[i]) * 1e-3 + 1e-9);
+            }
+        }
+
+        assertArrayEquals("samples", b.stripSamples(), a.stripSamples());
+    }
+
+    private static String rawCamera(CameraManager manager) throws Exception {
+        for (String id : manager.getCameraIdList()) {
+            int[] caps = manager.getCameraCharacteristics(id).get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            if (caps == null) continue;
+            for (int c : caps) {
+                if (c == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW) return id;
+            }
+        }
+        return null;
+    }
+
+    /** Open the camera, take one still into a RAW_SENSOR reader and keep the image in {@link #image}. */
+    private TotalCaptureResult capture(CameraManager manager, String id, Size size) throws Exception {
+        CompletableFuture<CameraDevice> opened = new CompletableFuture<>();
+        manager.openCamera(id, handler::post, new CameraDevice.StateCallback() {
+            @Override public void onOpened(CameraDevice d) { opened.complete(d); }
+            @Override public void onDisconnected(CameraDevice d) { d.close(); opened.completeExceptionally(new IOException("disconnected")); }
+            @Override public void onError(CameraDevice d, int error) { d.close(); opened.completeExceptionally(new IOException("error " + error)); }
+        });
+        device = opened.get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        reader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.RAW_SENSOR, 2);
+        CompletableFuture<Image> frame = new CompletableFuture<>();
+        reader.setOnImageAvailableListener(r -> frame.complete(r.acquireNextImage()), handler);
+
+        CompletableFuture<CameraCaptureSession> configured = new CompletableFuture<>();
+        device.createCaptureSession(new SessionConfiguration(SessionConfiguration.SESSION_REGULAR,
+            Collections.singletonList(new OutputConfiguration(reader.getSurface())), handler::post,
+            new CameraCaptureSession.StateCallback() {
+                @Override public void onConfigured(CameraCaptureSession s) { configured.complete(s); }
+                @Override public void onConfigureFailed(CameraCaptureSession s) { configured.completeExceptionally(new IOException("configure failed")); }
+            }));
+        CameraCaptureSession session = configured.get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        CaptureRequest.Builder b = device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        b.addTarget(reader.getSurface());
+        CompletableFuture<TotalCaptureResult> done = new CompletableFuture<>();
+        session.capture(b.build(), new CameraCaptureSession.CaptureCallback() {
+            @Override public void onCaptureCompleted(CameraCaptureSession s, CaptureRequest r, TotalCaptureResult result) {
+                done.complete(result);
+            }
+        }, handler);
+        TotalCaptureResult result = done.get(TIMEOUT_S, TimeUnit.SECONDS);
+        image = frame.get(TIMEOUT_S, TimeUnit.SECONDS);
+        session.close();
+        return result;
+    }
+
+    private static String hex(Set<Integer> tags) {
+        StringBuilder sb = new StringBuilder();
+        for (int t : tags) sb.append(sb.length() > 0 ? ", " : "").append(String.format("0x%04X", t));
+        return sb.toString();
+    }
+}
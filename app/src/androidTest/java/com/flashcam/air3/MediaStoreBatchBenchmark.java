@@ -0,0 +1,147 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Saves a JPEG+DNG pair through the real MediaStore, once as a
+ * {@link MediaStoreWriter#writeBatch} and once as two {@link
+ * MediaStoreWriter#write} calls, and reports median / p90 wall time per
+ * pair and resolver round trips per pair for each. The round-trip counts
+ * are asserted (4 batched, 6 one by one); the timings are reported in the
+ * instrumentation status and logcat (tag FlashCam), since they depend on
+ * the device. Run with {@code ./gradlew :app:connectedAndroidTest
+ * -Pandroid.testInstrumentationRunnerArguments.class=com.flashcam.air3.MediaStoreBatchBenchmark}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaStoreBatchBenchmark {
+
+    private static final String TAG = "FlashCam";
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 20;
+    private static final int JPEG_BYTES = 2 << 20;
+    private static final int DNG_BYTES = 8 << 20;
+
+    private Context context;
+    private ContentResolver resolver;
+    private MediaStoreWriter writer;
+    private ExecutorService executor;
+    private ByteBuffer jpeg, dng;
+    private int seq;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        resolver = context.getContentResolver();
+        writer = new MediaStoreWriter(context);
+        executor = Executors.newFixedThreadPool(2);
+        jpeg = payload(JPEG_BYTES, 1);
+        dng = payload(DNG_BYTES, 2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void batchedPairVersusTwoWrites() {
+        for (int i = 0; i < WARMUP; i++) {
+            batched();
+            separate();
+        }
+        long[] batchNanos = new long[ITERATIONS], separateNanos = new long[ITERATIONS];
+        long batchCalls = 0, separateCalls = 0;
+        // Interleaved so thermal and storage drift hit both alike
+        for (int i = 0; i < ITERATIONS; i++) {
+            long c0 = writer.resolverCalls();
+            batchNanos[i] = batched();
+            long c1 = writer.resolverCalls();
+            separateNanos[i] = separate();
+            batchCalls += c1 - c0;
+            separateCalls += writer.resolverCalls() - c1;
+        }
+        assertEquals("fallbacks", 0, writer.fallbacks());
+
+        Bundle status = new Bundle();
+        report(status, "writeBatch", batchNanos, batchCalls);
+        report(status, "2x write", separateNanos, separateCalls);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+
+        assertEquals("round trips per batched pair", 4, batchCalls / ITERATIONS);
+        assertEquals("round trips per pair written one by one", 6, separateCalls / ITERATIONS);
+    }
+
+    /** One pair through writeBatch; nanoseconds, rows deleted afterwards. */
+    private long batched() {
+        MediaStoreWriter.Item a = new MediaStoreWriter.Item(name("jpg"), "image/jpeg", jpeg);
+        MediaStoreWriter.Item b = new MediaStoreWriter.Item(name("dng"), "image/x-adobe-dng", dng);
+        long t0 = System.nanoTime();
+        writer.writeBatch(executor, a, b);
+        long nanos = System.nanoTime() - t0;
+        delete(a.result);
+        delete(b.result);
+        return nanos;
+    }
+
+    /** The same pair as two write calls. */
+    private long separate() {
+        long t0 = System.nanoTime();
+        MediaStoreWriter.Result a = writer.write(name("jpg"), "image/jpeg", jpeg);
+        MediaStoreWriter.Result b = writer.write(name("dng"), "image/x-adobe-dng", dng);
+        long nanos = System.nanoTime() - t0;
+        delete(a);
+        delete(b);
+        return nanos;
+    }
+
+    private String name(String ext) {
+        return "bench_" + (seq++) + "." + ext;
+    }
+
+    private void delete(MediaStoreWriter.Result r) {
+        assertNotNull("save failed", r);
+        assertNotNull("not saved through MediaStore", r.uri);
+        resolver.delete(r.uri, null, null);
+    }
+
+    private static void report(Bundle status, String name, long[] nanos, long calls) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double p50 = sorted[sorted.length / 2] / 1e6;
+        double p90 = sorted[(int) Math.ceil(sorted.length * 0.9) - 1] / 1e6;
+        double perPair = (double) calls / nanos.length;
+        String line = String.format(Locale.US, "%-10s p50 %.1f ms, p90 %.1f ms, %.1f resolver calls/pair",
+            name, p50, p90, perPair);
+        Log.i(TAG, "MediaStoreBatchBenchmark: " + line);
+        status.putString(name, line);
+    }
+
+    private static ByteBuffer payload(int bytes, long seed) {
+        byte[] b = new byte[bytes];
+        new Random(seed).nextBytes(b);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes);
+        direct.put(b).flip();
+        return direct;
+    }
+}
@@ -0,0 +1,51 @@
+package com.flashcam.air3;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Small pool of mutable ARGB_8888 bitmaps for {@code inBitmap} reuse, so
+ * decoding strip after strip doesn't allocate (and later GC) a fresh
+ * multi-MB bitmap every time.
+ */
+final class BitmapPool {
+
+    private final ArrayDeque<Bitmap> free = new ArrayDeque<>();
+    private final int maxPooled;
+
+    BitmapPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /** A mutable bitmap of exactly w×h, reusing pooled memory when it fits. */
+    synchronized Bitmap acquire(int w, int h) {
+        long needed = (long) w * h * 4;
+        for (Iterator<Bitmap> it = free.iterator(); it.hasNext(); ) {
+            Bitmap b = it.next();
+            if (b.isRecycled()) { it.remove(); continue; }
+            if (b.getAllocationByteCount() >= needed) {
+                it.remove();
+                if (b.getWidth() != w || b.getHeight() != h) b.reconfigure(w, h, Bitmap.Config.ARGB_8888);
+                return b;
+            }
+        }
+        return Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+    }
+
+    synchronized void release(Bitmap b) {
+        if (b == null || b.isRecycled() || !b.isMutable()) return;
+        if (free.contains(b)) return;
+        if (free.size() >= maxPooled) {
+            b.recycle();
+            return;
+        }
+        free.add(b);
+    }
+
+    synchronized void clear() {
+        for (Bitmap b : free) b.recycle();
+        free.clear();
+    }
+}
@@ -0,0 +1,554 @@
+package com.flashcam.air3;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.SessionConfiguration;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+import android.util.Range;
+import android.util.Rational;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * {@link CameraBackend} on Camera2. Streams are ImageReaders; the preview
+ * output is one Surface over the TextureView's SurfaceTexture, made again
+ * only when the texture changes. Requests come from one cached builder per
+ * template (preview, still, max-res still) for the open device, whose
+ * targets and controls are updated in place. Max-res streams are tagged with
+ * setSensorPixelModeUsed and the pixel-mode request key, both by name, like
+ * the rest of the API 31 max-res path.
+ */
+final class Camera2Backend implements CameraBackend {
+
+    private static final String TAG = "FlashCam";
+    private static final CaptureRequest.Key<Integer> PIXEL_MODE_KEY =
+        new CaptureRequest.Key<>("android.sensor.pixelMode", Integer.class);
+
+    private static final int TEMPLATE_PREVIEW = 0, TEMPLATE_STILL = 1, TEMPLATE_STILL_MAX_RES = 2;
+
+    private final CameraManager manager;
+    private final Handler handler;
+    private final Supplier<SurfaceTexture> texture;
+    private CameraCharacteristics chars;
+    private String id;
+    private volatile CameraDevice device;
+    private CameraCaptureSession current;
+    private boolean availabilityRegistered;
+    private Runnable availability;
+
+    // ── Preview output ──
+    private SurfaceTexture previewTexture;
+    private Surface previewSurface;
+    private int previewW = 1440, previewH = 1080;
+
+    // ── Request templates (guarded by this) ──
+    private final Map<Integer, Template> templates = new HashMap<>();
+    private long templateBuilds;
+
+    /** A builder for one template of the open device and the outputs it currently targets. */
+    private static final class Template {
+        final CaptureRequest.Builder builder;
+        final List<Surface> targets = new ArrayList<>();
+
+        Template(CaptureRequest.Builder builder) {
+            this.builder = builder;
+        }
+    }
+
+    /** texture: the preview's SurfaceTexture, or null while the view has none. */
+    Camera2Backend(Context context, Handler handler, Supplier<SurfaceTexture> texture) {
+        this.manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        this.handler = handler;
+        this.texture = texture;
+    }
+
+    /** The CameraCharacteristics behind info, or null if another backend selected it. */
+    static CameraCharacteristics characteristics(Info info) {
+        return info != null && info.platform instanceof CameraCharacteristics
+            ? (CameraCharacteristics) info.platform : null;
+    }
+
+    /** The TotalCaptureResult behind r, or null for a result from another backend. */
+    static TotalCaptureResult captureResult(Result r) {
+        return r != null && r.platform() instanceof TotalCaptureResult ? (TotalCaptureResult) r.platform() : null;
+    }
+
+    @Override
+    public synchronized void setPreviewSize(int width, int height) {
+        if (width == previewW && height == previewH) return;
+        previewW = width;
+        previewH = height;
+        previewTexture = null;
+    }
+
+    @Override
+    public Info select() throws Exception {
+        String[] ids = manager.getCameraIdList();
+        id = null;
+        chars = null;
+        for (String candidate : ids) {
+            CameraCharacteristics cc = manager.getCameraCharacteristics(candidate);
+            Integer facing = cc.get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                id = candidate;
+                chars = cc;
+                break;
+            }
+        }
+        if (id == null && ids.length > 0) {
+            id = ids[0];
+            chars = manager.getCameraCharacteristics(id);
+        }
+        if (id == null) return null;
+
+        Info info = new Info();
+        info.id = id;
+        info.platform = chars;
+        Integer so = chars.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        info.sensorOrientation = so != null ? so : 0;
+        Integer source = chars.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        info.realtimeTimestamps = source != null
+            && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        Integer white = chars.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        info.whiteLevel = white != null ? white : 0;
+        Rect active = chars.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if (active != null) {
+            info.activeWidth = active.width();
+            info.activeHeight = active.height();
+        }
+        Range<Integer> ev = chars.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+        if (ev != null) {
+            info.evMin = ev.getLower();
+            info.evMax = ev.getUpper();
+        }
+        Rational step = chars.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+        if (step != null) {
+            info.evStepNum = step.getNumerator();
+            info.evStepDen = step.getDenominator();
+        }
+        return info;
+    }
+
+    @Override
+    public int[][] outputSizes(int format, int pixelMode) {
+        if (chars == null) return null;
+        Size[] sizes;
+        try {
+            StreamConfigurationMap map = chars.get(pixelMode == PIXEL_MODE_MAX_RES
+                ? CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP_MAXIMUM_RESOLUTION
+                : CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map == null) return null;
+            sizes = format == FORMAT_PREVIEW ? map.getOutputSizes(SurfaceTexture.class) : map.getOutputSizes(format);
+        } catch (IllegalArgumentException e) {
+            // Format not offered in this map
+            return null;
+        } catch (Exception e) {
+            Log.w(TAG, "Stream map not available: " + e.getMessage());
+            return null;
+        }
+        if (sizes == null || sizes.length == 0) return null;
+        int[][] out = new int[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) out[i] = new int[]{sizes[i].getWidth(), sizes[i].getHeight()};
+        return out;
+    }
+
+    // Callers check the CAMERA permission first
+    @SuppressLint("MissingPermission")
+    @Override
+    public void open(OpenListener l) throws Exception {
+        manager.openCamera(id, handler::post, new CameraDevice.StateCallback() {
+            @Override public void onOpened(@NonNull CameraDevice camera) {
+                synchronized (Camera2Backend.this) { templates.clear(); }
+                device = camera;
+                l.onOpened();
+            }
+            @Override public void onDisconnected(@NonNull CameraDevice camera) {
+                camera.close();
+                device = null;
+                l.onClosed(ERROR_DISCONNECTED);
+            }
+            @Override public void onError(@NonNull CameraDevice camera, int error) {
+                camera.close();
+                device = null;
+                l.onClosed(error);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void setAvailabilityListener(Runnable l) {
+        availability = l;
+        if (availabilityRegistered) return;
+        manager.registerAvailabilityCallback(new CameraManager.AvailabilityCallback() {
+            @Override public void onCameraAvailable(@NonNull String cameraId) {
+                Log.d(TAG, "Camera " + cameraId + " available");
+                Runnable r;
+                synchronized (Camera2Backend.this) { r = cameraId.equals(id) ? availability : null; }
+                if (r != null) r.run();
+            }
+            @Override public void onCameraUnavailable(@NonNull String cameraId) {
+                Log.d(TAG, "Camera " + cameraId + " unavailable");
+            }
+        }, handler);
+        availabilityRegistered = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return device != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (current != null) current.close();
+            if (device != null) device.close();
+        } catch (Exception ignored) {
+            // Already closed by the framework
+        }
+        current = null;
+        device = null;
+        templates.clear();
+    }
+
+    @Override
+    public synchronized long templateBuilds() {
+        return templateBuilds;
+    }
+
+    @Override
+    public Stream newStream(int width, int height, int format, int pixelMode, int maxImages) {
+        return new ReaderStream(ImageReader.newInstance(width, height, format, maxImages), pixelMode);
+    }
+
+    @Override
+    public boolean isSupported(SessionSpec spec) {
+        CameraDevice d = device;
+        SessionConfiguration config = d != null ? configuration(spec, null) : null;
+        if (config == null) return false;
+        try {
+            return d.isSessionConfigurationSupported(config);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // HAL can't answer the query; find out by trying
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void createSession(SessionSpec spec, SessionListener l) throws Exception {
+        CameraDevice d = device;
+        SessionConfiguration config = d != null ? configuration(spec, l) : null;
+        if (config == null) {
+            l.onConfigureFailed();
+            return;
+        }
+        d.createCaptureSession(config);
+    }
+
+    /** Outputs and session parameters for spec; null if a mixed-mode session can't be tagged. */
+    private SessionConfiguration configuration(SessionSpec spec, SessionListener l) {
+        boolean strict = spec.mixesPixelModes();
+        List<OutputConfiguration> outputs = new ArrayList<>();
+        try {
+            if (spec.preview) {
+                OutputConfiguration out = new OutputConfiguration(previewSurface());
+                if (strict && !setPixelModeUsed(out, PIXEL_MODE_DEFAULT)) return null;
+                outputs.add(out);
+            }
+            for (Stream s : spec.streams) {
+                OutputConfiguration out = new OutputConfiguration(((ReaderStream) s).reader.getSurface());
+                if (s.pixelMode() == PIXEL_MODE_MAX_RES || strict) {
+                    if (!setPixelModeUsed(out, s.pixelMode()) && strict) return null;
+                }
+                outputs.add(out);
+            }
+
+            SessionConfiguration config = new SessionConfiguration(
+                SessionConfiguration.SESSION_REGULAR, outputs, handler::post,
+                new CameraCaptureSession.StateCallback() {
+                    @Override public void onConfigured(@NonNull CameraCaptureSession session) {
+                        synchronized (Camera2Backend.this) { current = session; }
+                        if (l != null) l.onConfigured(new Camera2Session(session));
+                    }
+                    @Override public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                        if (l != null) l.onConfigureFailed();
+                    }
+                    @Override public void onSurfacePrepared(@NonNull CameraCaptureSession session,
+                            @NonNull Surface surface) {
+                        Log.d(TAG, "Output buffers prepared");
+                    }
+                });
+            if (spec.maxResParams) {
+                // Only the keys count as session parameters; the template's targets are ignored
+                synchronized (this) {
+                    config.setSessionParameters(template(device, TEMPLATE_STILL_MAX_RES).builder.build());
+                }
+            }
+            return config;
+        } catch (Exception e) {
+            Log.w(TAG, "Session configuration error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized Surface previewSurface() {
+        SurfaceTexture st = texture.get();
+        if (st == null) throw new IllegalStateException("preview texture not available");
+        if (st != previewTexture) {
+            st.setDefaultBufferSize(previewW, previewH);
+            if (previewSurface != null) previewSurface.release();
+            previewSurface = new Surface(st);
+            previewTexture = st;
+        }
+        return previewSurface;
+    }
+
+    /** OutputConfiguration.setSensorPixelModeUsed, looked up by name. */
+    private static boolean setPixelModeUsed(OutputConfiguration out, int mode) {
+        try {
+            out.getClass().getMethod("setSensorPixelModeUsed", int.class).invoke(out, mode);
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "setSensorPixelModeUsed(" + mode + ") failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void setPixelMode(CaptureRequest.Builder b, int mode) {
+        try {
+            b.set(PIXEL_MODE_KEY, mode);
+        } catch (Exception e) {
+            Log.w(TAG, "CaptureRequest pixelMode failed: " + e.getMessage());
+        }
+    }
+
+    /** Cached builder for kind on d, made from the device template on first use. Caller holds this. */
+    private Template template(CameraDevice d, int kind) throws Exception {
+        Template t = templates.get(kind);
+        if (t == null) {
+            CaptureRequest.Builder b = d.createCaptureRequest(
+                kind == TEMPLATE_PREVIEW ? CameraDevice.TEMPLATE_PREVIEW : CameraDevice.TEMPLATE_STILL_CAPTURE);
+            if (kind == TEMPLATE_STILL_MAX_RES) setPixelMode(b, PIXEL_MODE_MAX_RES);
+            b.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            if (kind != TEMPLATE_PREVIEW) b.set(CaptureRequest.JPEG_ORIENTATION, 0);
+            t = new Template(b);
+            templates.put(kind, t);
+            templateBuilds++;
+        }
+        return t;
+    }
+
+    /** Point t's builder at exactly want, touching only the outputs that changed. */
+    private static void retarget(Template t, List<Surface> want) {
+        for (int i = t.targets.size() - 1; i >= 0; i--) {
+            Surface s = t.targets.get(i);
+            if (!want.contains(s)) {
+                t.builder.removeTarget(s);
+                t.targets.remove(i);
+            }
+        }
+        for (Surface s : want) {
+            if (!t.targets.contains(s)) {
+                t.builder.addTarget(s);
+                t.targets.add(s);
+            }
+        }
+    }
+
+    // ── Session ──
+
+    private final class Camera2Session implements Session {
+        private final CameraCaptureSession session;
+
+        Camera2Session(CameraCaptureSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void setRepeating(Request r, CaptureListener l) throws Exception {
+            session.setRepeatingRequest(build(r), callback(l), handler);
+        }
+
+        @Override
+        public void capture(Request r, CaptureListener l) throws Exception {
+            session.capture(build(r), callback(l), handler);
+        }
+
+        @Override
+        public void prepare(Stream s) throws Exception {
+            session.prepare(((ReaderStream) s).reader.getSurface());
+        }
+
+        @Override
+        public void close() {
+            synchronized (Camera2Backend.this) {
+                if (current == session) current = null;
+            }
+            session.close();
+        }
+
+        /**
+         * Snapshot of the cached template for r. Every control a Request
+         * carries is set on each build, so nothing from the previous request
+         * on the same builder leaks into this one.
+         */
+        private CaptureRequest build(Request r) throws Exception {
+            List<Surface> targets = new ArrayList<>(Math.max(1, r.targets.size()));
+            if (r.still) {
+                for (Stream s : r.targets) targets.add(((ReaderStream) s).reader.getSurface());
+            } else {
+                targets.add(previewSurface());
+            }
+            int kind = !r.still ? TEMPLATE_PREVIEW
+                : r.pixelMode == PIXEL_MODE_MAX_RES ? TEMPLATE_STILL_MAX_RES : TEMPLATE_STILL;
+            synchronized (Camera2Backend.this) {
+                Template t = template(session.getDevice(), kind);
+                retarget(t, targets);
+                CaptureRequest.Builder b = t.builder;
+                if (r.afTrigger) {
+                    b.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
+                    b.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_START);
+                } else {
+                    b.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                    b.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+                }
+                MeteringRectangle[] regions = r.region == null ? null : new MeteringRectangle[]{
+                    new MeteringRectangle(r.region[0], r.region[1], r.region[2], r.region[3], 1000)
+                };
+                b.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+                b.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+                b.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, r.ev);
+                return b.build();
+            }
+        }
+
+        private CameraCaptureSession.CaptureCallback callback(CaptureListener l) {
+            if (l == null) return null;
+            return new CameraCaptureSession.CaptureCallback() {
+                @Override public void onCaptureCompleted(@NonNull CameraCaptureSession s,
+                        @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+                    l.onCompleted(new Camera2Result(result));
+                }
+                @Override public void onCaptureFailed(@NonNull CameraCaptureSession s,
+                        @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+                    l.onFailed();
+                }
+            };
+        }
+    }
+
+    // ── Streams and frames ──
+
+    private final class ReaderStream implements Stream {
+        final ImageReader reader;
+        private final int pixelMode;
+
+        ReaderStream(ImageReader reader, int pixelMode) {
+            this.reader = reader;
+            this.pixelMode = pixelMode;
+        }
+
+        @Override public int width() { return reader.getWidth(); }
+        @Override public int height() { return reader.getHeight(); }
+        @Override public int format() { return reader.getImageFormat(); }
+        @Override public int pixelMode() { return pixelMode; }
+        @Override public int maxImages() { return reader.getMaxImages(); }
+
+        @Override
+        public void setListener(FrameListener l) {
+            if (l == null) {
+                reader.setOnImageAvailableListener(null, null);
+                return;
+            }
+            reader.setOnImageAvailableListener(r -> {
+                Image img = r.acquireLatestImage();
+                if (img != null) l.onFrame(new ImageFrame(img));
+            }, handler);
+        }
+
+        @Override
+        public void drain() {
+            try {
+                for (Image img; (img = reader.acquireNextImage()) != null; ) img.close();
+            } catch (IllegalStateException e) {
+                // maxImages still held by a consumer; those buffers stay until it closes them
+            }
+        }
+
+        @Override
+        public void discardFreeBuffers() {
+            reader.discardFreeBuffers();
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+
+    private static final class ImageFrame implements Frame {
+        private final Image image;
+        private final Image.Plane[] planes;
+
+        ImageFrame(Image image) {
+            this.image = image;
+            this.planes = image.getPlanes();
+        }
+
+        @Override public int format() { return image.getFormat(); }
+        @Override public int width() { return image.getWidth(); }
+        @Override public int height() { return image.getHeight(); }
+        @Override public long timestamp() { return image.getTimestamp(); }
+        @Override public ByteBuffer buffer(int plane) { return planes[plane].getBuffer(); }
+        @Override public int rowStride(int plane) { return planes[plane].getRowStride(); }
+        @Override public int pixelStride(int plane) { return planes[plane].getPixelStride(); }
+        @Override public void close() { image.close(); }
+    }
+
+    private static final class Camera2Result implements Result {
+        private final TotalCaptureResult r;
+
+        Camera2Result(TotalCaptureResult r) {
+            this.r = r;
+        }
+
+        @Override public Long sensorTimestamp() { return r.get(CaptureResult.SENSOR_TIMESTAMP); }
+        @Override public Integer afState() { return r.get(CaptureResult.CONTROL_AF_STATE); }
+        @Override public Integer aeState() { return r.get(CaptureResult.CONTROL_AE_STATE); }
+        @Override public Integer awbState() { return r.get(CaptureResult.CONTROL_AWB_STATE); }
+        @Override public Integer iso() { return r.get(CaptureResult.SENSOR_SENSITIVITY); }
+        @Override public Long exposureTime() { return r.get(CaptureResult.SENSOR_EXPOSURE_TIME); }
+        @Override public Long frameDuration() { return r.get(CaptureResult.SENSOR_FRAME_DURATION); }
+        @Override public Float focusDistance() { return r.get(CaptureResult.LENS_FOCUS_DISTANCE); }
+        @Override public Float aperture() { return r.get(CaptureResult.LENS_APERTURE); }
+        @Override public Float focalLength() { return r.get(CaptureResult.LENS_FOCAL_LENGTH); }
+        @Override public Object platform() { return r; }
+    }
+}
@@ -0,0 +1,150 @@
+package com.flashcam.air3;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.os.Build;
+import android.util.Pair;
+import android.util.Rational;
+import android.util.Size;
+
+/**
+ * Fills a {@link DngWriter} IFD from CameraCharacteristics and the
+ * TotalCaptureResult. This is the only Camera2-aware part of the DNG path;
+ * the writer itself lives in the plain-Java core module.
+ *
+ * {@link #prepare} throws IllegalArgumentException for anything it can't
+ * describe (non-Bayer CFA, missing color matrix); callers fall back to
+ * DngCreator.
+ */
+final class DngTags {
+
+    private DngTags() {}
+
+    /**
+     * Build the IFD for a 16-bit RAW_SENSOR frame of the given size. maxRes
+     * selects the maximum-resolution pixel array and active area keys.
+     */
+    static DngWriter prepare(CameraCharacteristics chars, CaptureResult result, Size size, boolean maxRes) {
+        int w = size.getWidth(), h = size.getHeight();
+
+        Integer cfa = chars.get(CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+        byte[] pattern = cfaPattern(cfa);
+        if (pattern == null) throw new IllegalArgumentException("CFA arrangement " + cfa + " not supported");
+        ColorSpaceTransform color1 = chars.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM1);
+        Integer illuminant1 = chars.get(CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT1);
+        if (color1 == null || illuminant1 == null) throw new IllegalArgumentException("No color matrix");
+
+        DngWriter d = DngWriter.bayer(w, h, pattern).camera(Build.MANUFACTURER, Build.MODEL);
+
+        // Black and white levels: per-frame dynamic values win over the static ones
+        float[] dynBlack = result.get(CaptureResult.SENSOR_DYNAMIC_BLACK_LEVEL);
+        long[] black = new long[8];
+        if (dynBlack != null && dynBlack.length >= 4) {
+            for (int i = 0; i < 4; i++) { black[2 * i] = Math.round(dynBlack[i] * 100); black[2 * i + 1] = 100; }
+        } else {
+            BlackLevelPattern blp = chars.get(CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+            int[] b = new int[4];
+            if (blp != null) blp.copyTo(b, 0);
+            for (int i = 0; i < 4; i++) { black[2 * i] = b[i]; black[2 * i + 1] = 1; }
+        }
+        d.blackLevel(black);
+        Integer white = result.get(CaptureResult.SENSOR_DYNAMIC_WHITE_LEVEL);
+        if (white == null) white = chars.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        if (white != null) d.whiteLevel(white);
+
+        // Color: matrices and illuminants come from the static calibration
+        d.color(1, matrix(color1), illuminant1,
+            matrix(chars.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX1)),
+            matrix(chars.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM1)));
+        ColorSpaceTransform color2 = chars.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM2);
+        Byte illuminant2 = chars.get(CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT2);
+        if (color2 != null && illuminant2 != null) {
+            d.color(2, matrix(color2), illuminant2,
+                matrix(chars.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX2)),
+                matrix(chars.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM2)));
+        }
+        Rational[] neutral = result.get(CaptureResult.SENSOR_NEUTRAL_COLOR_POINT);
+        if (neutral != null && neutral.length == 3) {
+            long[] v = new long[6];
+            for (int i = 0; i < 3; i++) { v[2 * i] = neutral[i].getNumerator(); v[2 * i + 1] = neutral[i].getDenominator(); }
+            d.asShotNeutral(v);
+        }
+
+        // NoiseProfile is per color plane; take the first CFA channel of each color
+        Pair<Double, Double>[] noise = result.get(CaptureResult.SENSOR_NOISE_PROFILE);
+        if (noise != null && noise.length == 4) {
+            double[] v = new double[6];
+            for (int c = 0; c < 3; c++) {
+                for (int i = 0; i < 4; i++) {
+                    if (pattern[i] == c) {
+                        v[2 * c] = noise[i].first;
+                        v[2 * c + 1] = noise[i].second;
+                        break;
+                    }
+                }
+            }
+            d.noiseProfile(v);
+        }
+
+        // Exposure
+        Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        Float aperture = result.get(CaptureResult.LENS_APERTURE);
+        Float focal = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+        if (exposure != null) d.exposureTime(exposure);
+        if (iso != null) d.iso(iso);
+        if (aperture != null) d.fNumber(aperture);
+        if (focal != null) d.focalLength(focal);
+        float[] focals = chars.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        float[] apertures = chars.get(CameraCharacteristics.LENS_INFO_AVAILABLE_APERTURES);
+        if (focals != null && focals.length > 0 && apertures != null && apertures.length > 0) {
+            d.lensInfo(min(focals), max(focals), min(apertures), max(apertures));
+        }
+
+        // Crop: the pre-correction active area when the buffer is the full pixel array
+        Size pixelArray = maxRes ? chars.get(CameraCharacteristics.SENSOR_INFO_PIXEL_ARRAY_SIZE_MAXIMUM_RESOLUTION) : null;
+        if (pixelArray == null) pixelArray = chars.get(CameraCharacteristics.SENSOR_INFO_PIXEL_ARRAY_SIZE);
+        Rect active = maxRes ? chars.get(CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE_MAXIMUM_RESOLUTION) : null;
+        if (active == null) active = chars.get(CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE);
+        if (active != null && pixelArray != null && pixelArray.getWidth() == w && pixelArray.getHeight() == h
+                && (active.width() != w || active.height() != h)) {
+            d.activeArea(active.left, active.top, active.right, active.bottom);
+        }
+        return d;
+    }
+
+    private static byte[] cfaPattern(Integer arrangement) {
+        if (arrangement == null) return null;
+        switch (arrangement) {
+            case CameraMetadata.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_RGGB: return new byte[]{0, 1, 1, 2};
+            case CameraMetadata.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GRBG: return new byte[]{1, 0, 2, 1};
+            case CameraMetadata.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GBRG: return new byte[]{1, 2, 0, 1};
+            case CameraMetadata.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_BGGR: return new byte[]{2, 1, 1, 0};
+            default: return null;
+        }
+    }
+
+    /** Nine numerator/denominator pairs; null stays null. */
+    private static int[] matrix(ColorSpaceTransform t) {
+        if (t == null) return null;
+        int[] v = new int[18];
+        t.copyElements(v, 0);
+        return v;
+    }
+
+    private static float min(float[] v) {
+        float m = v[0];
+        for (float f : v) m = Math.min(m, f);
+        return m;
+    }
+
+    private static float max(float[] v) {
+        float m = v[0];
+        for (float f : v) m = Math.max(m, f);
+        return m;
+    }
+}
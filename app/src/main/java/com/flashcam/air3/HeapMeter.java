@@ -0,0 +1,64 @@
+package com.flashcam.air3;
+
+import android.os.Debug;
+
+import java.util.Locale;
+
+/**
+ * Per-capture Java heap accounting for the debug receipt: peak used heap
+ * (sampled at pipeline checkpoints), bytes allocated and GCs run since
+ * {@link #start()}. Allocation and GC figures come from ART's runtime stats
+ * and read as "n/a" where the runtime doesn't provide them. Pipeline stages
+ * sample from their own threads, so a window can span several shots.
+ */
+final class HeapMeter {
+
+    private final Runtime rt = Runtime.getRuntime();
+    private long startUsed, peakUsed;
+    private long startAllocated, startGcs;
+
+    synchronized void start() {
+        startUsed = used();
+        peakUsed = startUsed;
+        startAllocated = runtimeStat("art.gc.bytes-allocated");
+        startGcs = runtimeStat("art.gc.gc-count");
+    }
+
+    synchronized void sample() {
+        long u = used();
+        if (u > peakUsed) peakUsed = u;
+    }
+
+    synchronized long peakBytes() {
+        return peakUsed;
+    }
+
+    long allocatedBytes() {
+        long now = runtimeStat("art.gc.bytes-allocated");
+        return now >= 0 && startAllocated >= 0 ? now - startAllocated : -1;
+    }
+
+    /** One-line summary, e.g. "peak 212.4 MB (+38.1), alloc 41.0 MB, 2 GC". */
+    synchronized String summary() {
+        sample();
+        long alloc = allocatedBytes();
+        long gcs = runtimeStat("art.gc.gc-count");
+        return String.format(Locale.US, "peak %.1f MB (+%.1f), alloc %s, %s GC",
+            peakUsed / 1048576.0, (peakUsed - startUsed) / 1048576.0,
+            alloc >= 0 ? String.format(Locale.US, "%.1f MB", alloc / 1048576.0) : "n/a",
+            gcs >= 0 && startGcs >= 0 ? String.valueOf(gcs - startGcs) : "n/a");
+    }
+
+    private long used() {
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static long runtimeStat(String name) {
+        try {
+            String v = Debug.getRuntimeStat(name);
+            return v != null ? Long.parseLong(v) : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.flashcam.air3;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Index of the checksums computed while saving, plus a low-priority
+ * verifier that re-hashes the stored files through read-only mappings and
+ * flags any that no longer match.
+ *
+ * The index is an append-only text file: "F key name bytes crc32c sha256"
+ * when a file is saved, "V key time ok|bad|gone" when it is checked. The key
+ * is the MediaStore Uri, or the path for direct-file saves. It is compacted
+ * on load; files that are gone are dropped.
+ */
+final class IntegrityVerifier {
+
+    private static final String TAG = "FlashCam";
+    /** Files are checked once after saving and then again after this long. */
+    private static final long RECHECK_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final long MAP_CHUNK = 64L << 20;
+
+    private static final class Record {
+        final String key, name;
+        final long bytes;
+        final int crc32c;
+        final String sha256;
+        long checkedAt;
+        boolean bad;
+
+        Record(String key, String name, long bytes, int crc32c, String sha256) {
+            this.key = key;
+            this.name = name;
+            this.bytes = bytes;
+            this.crc32c = crc32c;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final Map<String, Record> records = new LinkedHashMap<>();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        r.run();
+    }, "Verifier"));
+    private final List<String> mismatches = new ArrayList<>();
+    private FileOutputStream out;
+    private volatile boolean stopped;
+    private int verified, missing;
+    private long verifiedBytes, verifyNanos;
+
+    IntegrityVerifier(ContentResolver resolver, File file) {
+        this.resolver = resolver;
+        if (file.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t");
+                    try {
+                        if (f[0].equals("F") && f.length == 6) {
+                            records.put(f[1], new Record(f[1], f[2], Long.parseLong(f[3]),
+                                (int) Long.parseLong(f[4], 16), f[5].equals("-") ? null : f[5]));
+                        } else if (f[0].equals("V") && f.length == 4) {
+                            Record r = records.get(f[1]);
+                            if (r == null) continue;
+                            if (f[3].equals("gone")) {
+                                records.remove(f[1]);
+                            } else {
+                                r.checkedAt = Long.parseLong(f[2]);
+                                r.bad = f[3].equals("bad");
+                            }
+                        }
+                    } catch (NumberFormatException torn) {
+                        // Last line cut short by a crash
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Integrity index unreadable: " + e.getMessage());
+            }
+        }
+        try {
+            out = new FileOutputStream(file, false);
+            for (Record r : records.values()) {
+                append(saveLine(r));
+                if (r.checkedAt > 0) append(checkLine(r.key, r.checkedAt, r.bad ? "bad" : "ok"));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Integrity index unavailable: " + e.getMessage());
+            out = null;
+        }
+    }
+
+    /** Remember the checksum a save computed on the way out. */
+    void record(String key, String name, long bytes, int crc32c, byte[] sha256) {
+        Record r = new Record(key, name, bytes, crc32c, sha256 != null ? hex(sha256) : null);
+        synchronized (records) { records.put(key, r); }
+        append(saveLine(r));
+    }
+
+    /** Re-hash every file that is unchecked or due, on the low-priority worker. */
+    void verifyInBackground() {
+        worker.execute(this::verifyDue);
+    }
+
+    void shutdown() {
+        stopped = true;
+        worker.shutdown();
+    }
+
+    private void verifyDue() {
+        List<Record> due = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (records) {
+            for (Record r : records.values()) {
+                if (now - r.checkedAt >= RECHECK_MS) due.add(r);
+            }
+        }
+        for (Record r : due) {
+            if (stopped) return;
+            String status;
+            try {
+                status = matches(r) ? "ok" : "bad";
+            } catch (FileNotFoundException e) {
+                status = "gone";
+            } catch (Exception e) {
+                Log.w(TAG, "Verify of " + r.name + " failed: " + e.getMessage());
+                continue;
+            }
+            r.checkedAt = System.currentTimeMillis();
+            r.bad = status.equals("bad");
+            synchronized (this) {
+                if (status.equals("gone")) missing++;
+                else verified++;
+                if (r.bad) {
+                    mismatches.add(r.name);
+                    Log.e(TAG, "Checksum mismatch: " + r.name);
+                }
+            }
+            if (status.equals("gone")) {
+                synchronized (records) { records.remove(r.key); }
+            }
+            append(checkLine(r.key, r.checkedAt, status));
+        }
+    }
+
+    /** Whether the stored file still has the recorded size and checksums. */
+    private boolean matches(Record r) throws Exception {
+        long t0 = System.nanoTime();
+        ParcelFileDescriptor pfd = null;
+        FileInputStream in;
+        if (r.key.startsWith("content:")) {
+            pfd = resolver.openFileDescriptor(Uri.parse(r.key), "r");
+            if (pfd == null) throw new FileNotFoundException(r.key);
+            in = new FileInputStream(pfd.getFileDescriptor());
+        } else {
+            in = new FileInputStream(r.key);
+        }
+        try (FileChannel ch = in.getChannel()) {
+            long size = ch.size();
+            if (size != r.bytes) return false;
+            MessageDigest sha = r.sha256 != null ? MessageDigest.getInstance("SHA-256") : null;
+            int crc = 0;
+            for (long p = 0; p < size; p += MAP_CHUNK) {
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, p, Math.min(MAP_CHUNK, size - p));
+                crc = Crc32c.update(crc, map);
+                if (sha != null) sha.update(map);
+            }
+            synchronized (this) {
+                verifiedBytes += size;
+                verifyNanos += System.nanoTime() - t0;
+            }
+            return crc == r.crc32c && (sha == null || hex(sha.digest()).equals(r.sha256));
+        } finally {
+            in.close();
+            if (pfd != null) pfd.close();
+        }
+    }
+
+    synchronized String stats() {
+        double s = verifyNanos / 1e9;
+        String out = String.format(Locale.US, "%d indexed, %d verified (%.1f MB/s), %d gone, %d mismatched",
+            records.size(), verified, s > 0 ? verifiedBytes / 1048576.0 / s : 0, missing, mismatches.size());
+        if (!mismatches.isEmpty()) out += " " + mismatches;
+        return out;
+    }
+
+    private static String saveLine(Record r) {
+        return String.format(Locale.US, "F\t%s\t%s\t%d\t%08x\t%s", r.key, r.name, r.bytes, r.crc32c,
+            r.sha256 != null ? r.sha256 : "-");
+    }
+
+    private static String checkLine(String key, long at, String status) {
+        return "V\t" + key + "\t" + at + "\t" + status;
+    }
+
+    private synchronized void append(String line) {
+        if (out == null) return;
+        try {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Integrity index write failed: " + e.getMessage());
+        }
+    }
+
+    static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b) sb.append(String.format(Locale.US, "%02x", x));
+        return sb.toString();
+    }
+}
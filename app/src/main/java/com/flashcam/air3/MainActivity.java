@@ -3,36 +3,30 @@ package com.flashcam.air3;
 import android.Manifest;
 import android.content.ClipData;
 import android.content.ClipboardManager;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
-import android.hardware.camera2.*;
-import android.hardware.camera2.params.MeteringRectangle;
-import android.hardware.camera2.params.OutputConfiguration;
-import android.hardware.camera2.params.SessionConfiguration;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.DngCreator;
 import android.media.ExifInterface;
-import android.media.Image;
-import android.media.ImageReader;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
-import android.provider.MediaStore;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
-import android.view.Surface;
+import android.view.Choreographer;
 import android.view.TextureView;
 import android.view.View;
 import android.widget.Button;
@@ -48,20 +42,29 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -69,31 +72,176 @@ public class MainActivity extends AppCompatActivity {
     private static final int PERM_CODE = 100;
     private static final int COLOR_ORANGE = 0xFFFF6600;
     private static final String APP_VERSION = "1.6.1";
+    private static final int YUV_JPEG_QUALITY = 100;
+    private static final YuvJpegEncoder.Subsampling YUV_JPEG_SUBSAMPLING = YuvJpegEncoder.Subsampling.YUV420;
+    private static final int STILL_MAX_IMAGES = 2;
+    private static final int READER_POOL_IDLE = 4;
+    private static final int SESSION_CACHE_SIZE = 3;
+    private static final int PIPELINE_DEPTH = 3;
+    private static final boolean EXIF_THUMBNAIL = true;
+    private static final int EXIF_THUMBNAIL_EDGE = 160;
+    /** SHA-256 next to the CRC-32C computed while saving; costs roughly a second pass of CPU. */
+    private static final boolean CHECKSUM_SHA256 = false;
+    /** Run on {@link SimulatedBackend} instead of the camera (emulators, timing the pipeline). */
+    private static final boolean SIMULATED_CAMERA = false;
 
     // ── Enums ──
     enum MpMode { MP8, MP12, MP16 }
-    enum CamState { INIT, OPENING, PREVIEW, CAPTURING, ERROR }
+
+    /** Still-capture stream layout for the current MP / DNG / YUV settings. */
+    static final class CapturePlan {
+        final boolean maxRes;
+        final int format;
+        final Size jpegSize;
+        final Size rawSize;
+        final int rawFormat;
+
+        CapturePlan(boolean maxRes, int format, Size jpegSize, Size rawSize, int rawFormat) {
+            this.maxRes = maxRes;
+            this.format = format;
+            this.jpegSize = jpegSize;
+            this.rawSize = rawSize;
+            this.rawFormat = rawFormat;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof CapturePlan)) return false;
+            CapturePlan p = (CapturePlan) o;
+            return maxRes == p.maxRes && format == p.format && rawFormat == p.rawFormat
+                && jpegSize.equals(p.jpegSize) && Objects.equals(rawSize, p.rawSize);
+        }
+
+        @Override public int hashCode() {
+            return Objects.hash(maxRes, format, jpegSize, rawSize, rawFormat);
+        }
+    }
+
+    /**
+     * One shutter press, from the request to the hand-off. Frames arrive
+     * from camera-thread callbacks; everything else is set on the worker
+     * thread as the capture's futures complete there.
+     */
+    static final class Shot {
+        final CapturePlan plan;
+        final long pressedAt;
+        final boolean needRaw;
+        /** Settings as they were when the shutter fired; later changes don't reach queued shots. */
+        final JpegWriter.Mode entropyMode;
+        final boolean dngLossless;
+        /** Keep the HAL JPEG as a frame (no heap copy) because it will be saved untouched. */
+        boolean keepJpegImage;
+        byte[] jpegData;
+        CameraBackend.Frame jpegImage;
+        CameraBackend.Frame yuvImage;
+        CameraBackend.Frame rawImage;
+        final int[][] dims = {{0, 0}, {0, 0}};
+        /** Completes once the main image, and the RAW frame when needed, is in. */
+        final CompletableFuture<Void> images = new CompletableFuture<>();
+
+        // Worker thread only
+        boolean combined;
+        SessionCache.Entry dedicated;
+        CameraBackend.Session session;
+        CameraBackend.Stream jpegReader, rawReader;
+        CameraBackend.Result result;
+        long sessionStart, sessionMs, firedAt;
+        final Map<String, Long> lap = new LinkedHashMap<>();
+
+        Shot(CapturePlan plan, long pressedAt, JpegWriter.Mode entropyMode, boolean dngLossless) {
+            this.plan = plan;
+            this.pressedAt = pressedAt;
+            this.needRaw = plan.rawSize != null;
+            this.entropyMode = entropyMode;
+            this.dngLossless = dngLossless;
+        }
+
+        synchronized void onImage(CameraBackend.Frame img, boolean raw) {
+            if (raw) {
+                if (rawImage != null) { img.close(); return; }
+                rawImage = img;
+                dims[1][0] = img.width();
+                dims[1][1] = img.height();
+            } else {
+                if (jpegData != null || jpegImage != null || yuvImage != null) { img.close(); return; }
+                dims[0][0] = img.width();
+                dims[0][1] = img.height();
+                if (img.format() == ImageFormat.YUV_420_888) {
+                    // Keep the planes; rotation + encode happen on the worker thread
+                    yuvImage = img;
+                } else if (keepJpegImage) {
+                    jpegImage = img;
+                } else {
+                    ByteBuffer buf = img.buffer(0);
+                    jpegData = new byte[buf.remaining()];
+                    buf.get(jpegData);
+                    img.close();
+                }
+            }
+            boolean main = jpegData != null || jpegImage != null || yuvImage != null;
+            if (main && (!needRaw || rawImage != null)) images.complete(null);
+        }
+
+        /** Close any frame still held (late frames after a timeout or error). */
+        synchronized void release() {
+            if (jpegImage != null) { jpegImage.close(); jpegImage = null; }
+            if (yuvImage != null) { yuvImage.close(); yuvImage = null; }
+            if (rawImage != null) { rawImage.close(); rawImage = null; }
+        }
+    }
 
     // ── State ──
     private MpMode currentMp = MpMode.MP16;
-    private boolean dngEnabled = false;
+    // Set on the UI thread, read by the worker when a shot is planned
+    private volatile boolean dngEnabled = false;
     private boolean debugEnabled = false;
-    private boolean capturing = false;
+    private volatile JpegWriter.Mode jpegEntropyMode = JpegWriter.Mode.STANDARD;
+    private volatile boolean yuvCaptureEnabled = false;
+    private volatile boolean dngLossless = false;
+    private volatile boolean capturing = false;
     private int currentEv = 0;
 
     // ── Camera ──
-    private CameraManager camManager;
-    private CameraDevice cameraDevice;
-    private CameraCharacteristics camChars;
-    private CameraCaptureSession previewSession;
-    private String cameraId;
+    private CameraBackend backend;
+    private CameraBackend.Info camInfo;
+    private volatile CameraBackend.Session previewSession;
     private int sensorOrientation = 0;
+    private final CameraBackend.CaptureListener previewListener = new CameraBackend.CaptureListener() {
+        @Override public void onCompleted(CameraBackend.Result result) {
+            controls.onFrame();
+            previewFrames.write(result);
+        }
+        @Override public void onFailed() { }
+    };
+    /** EV and tap-to-focus changes, sent at most once per preview frame. */
+    private ControlCoalescer controls;
+    /** Preview metadata from the camera thread, read by the UI once per display frame. */
+    private final FrameRing previewFrames = new FrameRing(64);
+    private int shownAf = FrameRing.UNKNOWN - 1, shownAe = FrameRing.UNKNOWN - 1;
+    private final Choreographer.FrameCallback frameTick = new Choreographer.FrameCallback() {
+        @Override public void doFrame(long frameTimeNanos) {
+            if (previewFrames.drain()) updateFocusIndicator();
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    // ── Combined preview + still session ──
+    private CapturePlan combinedPlan;
+    private CameraBackend.Stream combinedJpegReader, combinedRawReader;
+    private final Set<CapturePlan> combinedRejected = new HashSet<>();
+    private volatile Shot pendingShot;
+    private ReaderPool readerPool;
+    private SessionCache sessionCache;
+    private MediaStoreWriter mediaWriter;
 
     // ── Sizes ──
     private Size previewSize;
     private Size[] defaultJpegSizes;
     private Size[] maxResJpegSizes;
     private Size[] maxResRawSizes;
+    private int maxResRawFormat = ImageFormat.RAW_SENSOR;
+    private String rawFormatChoice = "RAW_SENSOR";
+    private Size[] defaultYuvSizes;
+    private Size[] maxResYuvSizes;
     private boolean hasMaxRes = false;
 
     // ── Threads ──
@@ -101,6 +249,14 @@ public class MainActivity extends AppCompatActivity {
     private Handler camHandler;
     private HandlerThread workerThread;
     private Handler workerHandler;
+    /** workerHandler as an Executor; every camera state change and future continuation runs here. */
+    private Executor worker;
+    private ExecutorService encodePool;
+    private ForkJoinPool tilePool;
+    private RawSpool rawSpool;
+    private JpegSpool jpegSpool;
+    private CaptureStages<MediaStoreWriter.Result> stages;
+    private CapturePipeline<CaptureJob<MediaStoreWriter.Result>> capturePipeline;
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     // ── UI ──
@@ -110,19 +266,46 @@ public class MainActivity extends AppCompatActivity {
     private TextView tvStatus, tvMode, tvFocusIndicator, tvEv;
     private TextView tvReceipt;
     private ImageButton btnShutter;
-    private Button btnMode, btnDng, btnDebug, btnCredits;
+    private Button btnMode, btnDng, btnDebug, btnOptions, btnCredits;
     private Button btnEvPlus, btnEvMinus;
     private Button btnCopyReceipt, btnExportLog, btnDismiss;
     private LinearLayout receiptPanel;
 
     // ── State machine ──
-    private CamState camState = CamState.INIT;
+    private CameraStateMachine camera;
+    /** Bumped by every preview start and by close; a start that is no longer current backs out. */
+    private int previewAttempt;
     private long lastStatusUpdate = 0;
+    /** Latest status text; one reusable Runnable shows it, posted only when none is pending. */
+    private volatile String statusText;
+    private final AtomicBoolean statusPosted = new AtomicBoolean();
+    private final Runnable statusUpdate = () -> {
+        statusPosted.set(false);
+        String text = statusText;
+        if (text != null && !text.contentEquals(tvStatus.getText())) tvStatus.setText(text);
+    };
     private static final long STATUS_THROTTLE_MS = 300;
 
     // ── Receipt log ──
     private String lastReceipt = "";
-    private final List<String> receiptLog = new ArrayList<>();
+    private CaptureJournal journal;
+    private volatile boolean exporting = false;
+
+    // ── Latency ──
+    private final LatencyStats latencyStats = new LatencyStats();
+    /** Shutter touch-down on the elapsedRealtime clock, for shutter lag against SENSOR_TIMESTAMP. */
+    private volatile long shutterDownNanos;
+
+    // ── Metrics ──
+    private static final String M_CAPTURES = "flashcam_captures_total";
+    private static final String M_FAILURES = "flashcam_capture_failures_total";
+    private final Metrics metrics = new Metrics();
+    private MetricsServer metricsServer;
+
+    // ── Capture memory ──
+    private final HeapMeter heapMeter = new HeapMeter();
+    private final BitmapPool bitmapPool = new BitmapPool(2);
+    private int[] stripPixels, stripRotated;
 
     // ================================================================
     // LIFECYCLE
@@ -143,8 +326,62 @@ public class MainActivity extends AppCompatActivity {
         workerThread = new HandlerThread("WorkerThread");
         workerThread.start();
         workerHandler = new Handler(workerThread.getLooper());
-
-        camManager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
+        worker = workerHandler::post;
+
+        encodePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        tilePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        capturePipeline = new CapturePipeline<>(PIPELINE_DEPTH,
+                new CapturePipeline.Listener<CaptureJob<MediaStoreWriter.Result>>() {
+            @Override public void onStageError(CaptureJob<MediaStoreWriter.Result> job, String stage, Throwable e) {
+                Log.w(TAG, "Pipeline " + stage + " failed: " + e.getMessage());
+                job.notes.append(stage).append(" error: ").append(e.getMessage()).append("\n");
+            }
+            @Override public void onJobDone(CaptureJob<MediaStoreWriter.Result> job) {
+                updateShutterEnabled();
+            }
+        })
+            .stage("encode", timed("encode", this::encodeStage))
+            .stage("persist", timed("persist", this::persistStage))
+            .stage("metadata", timed("metadata", this::metadataStage));
+
+        backend = SIMULATED_CAMERA ? new SimulatedBackend(new SimulatedBackend.Config())
+            : new Camera2Backend(this, camHandler, textureView::getSurfaceTexture);
+        camera = new CameraStateMachine(backend, worker, new CameraStateMachine.Listener() {
+            @Override public void onState(CameraStateMachine.CamState state, String detail) {
+                onCameraState(state, detail);
+            }
+            @Override public void onOpened() {
+                startPreview();
+            }
+        });
+        controls = new ControlCoalescer(worker, this::applyControls, latencyStats);
+        readerPool = new ReaderPool(backend, READER_POOL_IDLE);
+        sessionCache = new SessionCache(SESSION_CACHE_SIZE, readerPool);
+        mediaWriter = new MediaStoreWriter(this);
+        mediaWriter.setSha256(CHECKSUM_SHA256);
+        jpegSpool = new JpegSpool(new File(getNoBackupFilesDir(), "jpeg-spool"));
+        stages = new CaptureStages<>(stagesConfig(), new CaptureStages.Platform<MediaStoreWriter.Result>() {
+            @Override public byte[] rotateStrips(byte[] jpeg, int degrees) throws IOException {
+                return rotateJpegStrips(jpeg, degrees);
+            }
+            @Override public byte[] thumbnail(byte[] jpeg) {
+                return exifThumbnail(jpeg);
+            }
+            @Override public void save(CaptureJob<MediaStoreWriter.Result> job, String jname, ByteBuffer[] parts) {
+                saveShot(job, jname, parts);
+            }
+        }, encodePool, jpegSpool);
+        registerMetrics();
+        workerHandler.post(() -> {
+            mediaWriter.reconcile();
+            // After reconcile, so a JPEG whose row it just published is found instead of saved twice
+            jpegSpool.replay(this::saveSpooledJpeg);
+        });
+        mediaWriter.verifier().verifyInBackground();
+        journal = new CaptureJournal(new File(getNoBackupFilesDir(), "journal"));
+        rawSpool = new RawSpool(new File(getNoBackupFilesDir(), "raw-spool"),
+            this::convertSpooled, this::onSpoolConverted);
+        rawSpool.recover();
 
         checkPermissions();
     }
@@ -152,7 +389,8 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
-        if (textureView.isAvailable() && cameraDevice == null) {
+        Choreographer.getInstance().postFrameCallback(frameTick);
+        if (textureView.isAvailable() && !backend.isOpen()) {
             workerHandler.post(this::initCamera);
         }
     }
@@ -160,7 +398,9 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        closeCamera();
+        Choreographer.getInstance().removeFrameCallback(frameTick);
+        workerHandler.post(this::closeCamera);
+        bitmapPool.clear();
     }
 
     @Override
@@ -168,6 +408,21 @@ public class MainActivity extends AppCompatActivity {
         super.onDestroy();
         if (camThread != null) { camThread.quitSafely(); }
         if (workerThread != null) { workerThread.quitSafely(); }
+        // Shots in flight still encode on encodePool and save through the spools: drain them first
+        if (capturePipeline != null) { capturePipeline.shutdown(this::shutdownSavePools); }
+        else { shutdownSavePools(); }
+        if (metricsServer != null) { metricsServer.stop(); }
+        if (backend instanceof SimulatedBackend) { ((SimulatedBackend) backend).shutdown(); }
+    }
+
+    /** After the pipeline has drained: the pools and writers its stages used. */
+    private void shutdownSavePools() {
+        if (encodePool != null) { encodePool.shutdown(); }
+        if (rawSpool != null) {
+            // Queued frames stay spooled for the next launch; the one converting still needs tilePool
+            rawSpool.shutdown(tilePool::shutdown);
+        } else if (tilePool != null) { tilePool.shutdown(); }
+        if (mediaWriter != null) { mediaWriter.verifier().shutdown(); }
     }
 
     // ================================================================
@@ -186,6 +441,7 @@ public class MainActivity extends AppCompatActivity {
         btnMode = findViewById(R.id.btnMode);
         btnDng = findViewById(R.id.btnDng);
         btnDebug = findViewById(R.id.btnDebug);
+        btnOptions = findViewById(R.id.btnOptions);
         btnCredits = findViewById(R.id.btnCredits);
         btnEvPlus = findViewById(R.id.btnEvPlus);
         btnEvMinus = findViewById(R.id.btnEvMinus);
@@ -199,7 +455,7 @@ public class MainActivity extends AppCompatActivity {
         textureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
             @Override public void onSurfaceTextureAvailable(@NonNull SurfaceTexture st, int w, int h) {
                 configurePreviewTransform(w, h);
-                if (cameraDevice == null) workerHandler.post(() -> initCamera());
+                if (!backend.isOpen()) workerHandler.post(() -> initCamera());
             }
             @Override public void onSurfaceTextureSizeChanged(@NonNull SurfaceTexture st, int w, int h) {
                 configurePreviewTransform(w, h);
@@ -216,12 +472,21 @@ public class MainActivity extends AppCompatActivity {
             return true;
         });
 
+        btnShutter.setOnTouchListener((v, event) -> {
+            if (event.getAction() == android.view.MotionEvent.ACTION_DOWN) {
+                // Event time is on the uptime clock; SENSOR_TIMESTAMP (REALTIME source) is not
+                shutterDownNanos = event.getEventTime() * 1_000_000L
+                    + SystemClock.elapsedRealtimeNanos() - SystemClock.uptimeMillis() * 1_000_000L;
+            }
+            return false;
+        });
         btnShutter.setOnClickListener(v -> {
-            if (!capturing) {
+            if (!capturing && capturePipeline.hasCapacity()) {
                 capturing = true;
                 btnShutter.setEnabled(false);
                 triggerShutterFlash();
-                workerHandler.post(this::doCapture);
+                long pressedAt = shutterDownNanos;
+                workerHandler.post(() -> doCapture(pressedAt));
             }
         });
 
@@ -233,6 +498,7 @@ public class MainActivity extends AppCompatActivity {
                 case MP16: currentMp = MpMode.MP8;  break;
             }
             updateModeDisplay();
+            reconfigureSession();
         });
 
         btnDng.setOnClickListener(v -> {
@@ -240,6 +506,7 @@ public class MainActivity extends AppCompatActivity {
             btnDng.setText(dngEnabled ? "DNG:ON" : "DNG:OFF");
             btnDng.setBackgroundTintList(android.content.res.ColorStateList.valueOf(
                 dngEnabled ? COLOR_ORANGE : 0xFF333333));
+            reconfigureSession();
         });
 
         btnEvPlus.setOnClickListener(v -> adjustEv(1));
@@ -251,6 +518,8 @@ public class MainActivity extends AppCompatActivity {
             if (!debugEnabled) receiptPanel.setVisibility(View.GONE);
         });
 
+        btnOptions.setOnClickListener(v -> showOptionsDialog());
+
         btnCredits.setOnClickListener(v -> {
             new AlertDialog.Builder(this)
                 .setTitle("FlashCam Air3 v" + APP_VERSION)
@@ -270,6 +539,43 @@ public class MainActivity extends AppCompatActivity {
         btnDismiss.setOnClickListener(v -> receiptPanel.setVisibility(View.GONE));
     }
 
+    /**
+     * Capture options that are too niche for a dedicated button. Settings are
+     * kept for the lifetime of the activity, like the DNG and DBG toggles.
+     */
+    private void showOptionsDialog() {
+        String[] labels = {
+            "Optimized Huffman tables (lossless, ~10% smaller JPEG)",
+            "Progressive JPEG (implies optimized tables)",
+            "YUV capture + in-app multi-core JPEG encoder",
+            "Lossless-compressed DNG (tiled LJ92, ~half the size)",
+            "Metrics endpoint on localhost:" + MetricsServer.DEFAULT_PORT + " (adb forward)"
+        };
+        boolean[] checked = {
+            jpegEntropyMode != JpegWriter.Mode.STANDARD,
+            jpegEntropyMode == JpegWriter.Mode.PROGRESSIVE,
+            yuvCaptureEnabled,
+            dngLossless,
+            metricsServer != null && metricsServer.isRunning()
+        };
+        new AlertDialog.Builder(this)
+            .setTitle("Capture options")
+            .setMultiChoiceItems(labels, checked, (d, which, isChecked) -> checked[which] = isChecked)
+            .setPositiveButton("OK", (d, w) -> {
+                if (checked[1]) jpegEntropyMode = JpegWriter.Mode.PROGRESSIVE;
+                else if (checked[0]) jpegEntropyMode = JpegWriter.Mode.OPTIMIZED;
+                else jpegEntropyMode = JpegWriter.Mode.STANDARD;
+                dngLossless = checked[3];
+                if (checked[4] != (metricsServer != null && metricsServer.isRunning())) setMetricsEndpoint(checked[4]);
+                if (yuvCaptureEnabled != checked[2]) {
+                    yuvCaptureEnabled = checked[2];
+                    reconfigureSession();
+                }
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
+
     // ================================================================
     // PERMISSIONS
     // ================================================================
@@ -308,47 +614,23 @@ public class MainActivity extends AppCompatActivity {
     // ================================================================
     private void initCamera() {
         try {
-            transitionState(CamState.INIT);
-            String[] ids = camManager.getCameraIdList();
-            cameraId = null;
-
-            for (String id : ids) {
-                CameraCharacteristics cc = camManager.getCameraCharacteristics(id);
-                Integer facing = cc.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
-                    cameraId = id;
-                    camChars = cc;
-                    break;
-                }
-            }
-            if (cameraId == null && ids.length > 0) {
-                cameraId = ids[0];
-                camChars = camManager.getCameraCharacteristics(cameraId);
-            }
-            if (cameraId == null) { setStatusForced("No camera found"); return; }
-
-            Integer so = camChars.get(CameraCharacteristics.SENSOR_ORIENTATION);
-            sensorOrientation = (so != null) ? so : 0;
+            setStatusForced("Initializing...");
+            camInfo = backend.select();
+            if (camInfo == null) { setStatusForced("No camera found"); return; }
+            sensorOrientation = camInfo.sensorOrientation;
 
             // Default stream map
-            StreamConfigurationMap defaultMap = camChars.get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (defaultMap != null) {
-                defaultJpegSizes = defaultMap.getOutputSizes(ImageFormat.JPEG);
-                previewSize = findBest43Preview(defaultMap.getOutputSizes(SurfaceTexture.class));
-            }
+            defaultJpegSizes = sizes(backend.outputSizes(ImageFormat.JPEG, CameraBackend.PIXEL_MODE_DEFAULT));
+            defaultYuvSizes = sizes(backend.outputSizes(ImageFormat.YUV_420_888, CameraBackend.PIXEL_MODE_DEFAULT));
+            Size[] previewSizes = sizes(backend.outputSizes(CameraBackend.FORMAT_PREVIEW, CameraBackend.PIXEL_MODE_DEFAULT));
+            if (previewSizes != null) previewSize = findBest43Preview(previewSizes);
 
             // Max-res stream map (API 31+)
-            try {
-                StreamConfigurationMap maxResMap = camChars.get(
-                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP_MAXIMUM_RESOLUTION);
-                if (maxResMap != null) {
-                    maxResJpegSizes = maxResMap.getOutputSizes(ImageFormat.JPEG);
-                    maxResRawSizes = maxResMap.getOutputSizes(ImageFormat.RAW_SENSOR);
-                    hasMaxRes = (maxResJpegSizes != null && maxResJpegSizes.length > 0);
-                }
-            } catch (Exception e) {
-                Log.w(TAG, "Max-res map not available: " + e.getMessage());
+            maxResJpegSizes = sizes(backend.outputSizes(ImageFormat.JPEG, CameraBackend.PIXEL_MODE_MAX_RES));
+            if (maxResJpegSizes != null) {
+                chooseRawFormat();
+                maxResYuvSizes = sizes(backend.outputSizes(ImageFormat.YUV_420_888, CameraBackend.PIXEL_MODE_MAX_RES));
+                hasMaxRes = true;
             }
 
             openCamera();
@@ -358,146 +640,260 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void openCamera() {
-        transitionState(CamState.OPENING);
+    /** Backend {width, height} pairs as Sizes; null stays null. */
+    private static Size[] sizes(int[][] wh) {
+        if (wh == null) return null;
+        Size[] out = new Size[wh.length];
+        for (int i = 0; i < wh.length; i++) out[i] = new Size(wh[i][0], wh[i][1]);
+        return out;
+    }
 
-        // Register availability callback
-        camManager.registerAvailabilityCallback(new CameraManager.AvailabilityCallback() {
-            @Override public void onCameraAvailable(@NonNull String id) {
-                Log.d(TAG, "Camera " + id + " available");
-            }
-            @Override public void onCameraUnavailable(@NonNull String id) {
-                Log.d(TAG, "Camera " + id + " unavailable");
+    /**
+     * Prefer a packed RAW format from the max-res map when its bit depth
+     * holds the sensor's white level: RAW10 is 37.5% and RAW12 25% smaller
+     * than 16-bit RAW_SENSOR in buffers and on the bus.
+     */
+    private void chooseRawFormat() {
+        int white = camInfo.whiteLevel;
+        int bits = white > 0 ? 32 - Integer.numberOfLeadingZeros(white) : 16;
+        StringBuilder offered = new StringBuilder();
+        maxResRawFormat = ImageFormat.RAW_SENSOR;
+        maxResRawSizes = sizes(backend.outputSizes(ImageFormat.RAW_SENSOR, CameraBackend.PIXEL_MODE_MAX_RES));
+        for (int format : new int[]{ImageFormat.RAW12, ImageFormat.RAW10}) {
+            Size[] sizes = sizes(backend.outputSizes(format, CameraBackend.PIXEL_MODE_MAX_RES));
+            if (sizes == null) continue;
+            offered.append(offered.length() > 0 ? ", " : "").append(rawFormatName(format));
+            if (bits <= RawUnpacker.bitsPerSample(format)) {
+                maxResRawFormat = format;
+                maxResRawSizes = sizes;
             }
-        }, camHandler);
-
-        // Retry logic
-        for (int attempt = 1; attempt <= 3; attempt++) {
-            try {
-                if (ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
-                        != PackageManager.PERMISSION_GRANTED) {
-                    setStatusForced("Camera permission not granted");
-                    return;
-                }
-
-                final Object openLock = new Object();
-                final int[] openResult = {-999};
-
-                Executor camExec = camHandler::post;
-                camManager.openCamera(cameraId, camExec, new CameraDevice.StateCallback() {
-                    @Override public void onOpened(@NonNull CameraDevice camera) {
-                        cameraDevice = camera;
-                        synchronized (openLock) { openResult[0] = 0; openLock.notifyAll(); }
-                    }
-                    @Override public void onDisconnected(@NonNull CameraDevice camera) {
-                        camera.close(); cameraDevice = null;
-                        synchronized (openLock) { openResult[0] = -2; openLock.notifyAll(); }
-                    }
-                    @Override public void onError(@NonNull CameraDevice camera, int error) {
-                        camera.close(); cameraDevice = null;
-                        synchronized (openLock) { openResult[0] = error; openLock.notifyAll(); }
-                    }
-                });
-
-                synchronized (openLock) {
-                    if (openResult[0] == -999) openLock.wait(60_000);
-                }
-
-                if (openResult[0] == 0) {
-                    startPreview();
-                    return;
-                }
-
-                Log.w(TAG, "Camera open attempt " + attempt + " failed: " + openResult[0]);
-                Thread.sleep(2000);
+        }
+        rawFormatChoice = rawFormatName(maxResRawFormat) + " (white level " + (white > 0 ? white : "null")
+            + (offered.length() > 0 ? "; packed offered: " + offered : "; no packed formats") + ")";
+    }
 
-            } catch (Exception e) {
-                Log.w(TAG, "Camera open attempt " + attempt + " exception: " + e.getMessage());
-                try { Thread.sleep(2000); } catch (InterruptedException ignored) {}
-            }
+    static String rawFormatName(int format) {
+        switch (format) {
+            case ImageFormat.RAW10: return "RAW10";
+            case ImageFormat.RAW12: return "RAW12";
+            default: return "RAW_SENSOR";
         }
+    }
 
-        transitionState(CamState.ERROR);
-        setStatusForced("Camera open failed after 3 attempts");
+    /** Hand the open to the state machine; the preview starts from its onOpened. */
+    private void openCamera() {
+        if (!SIMULATED_CAMERA && ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
+                != PackageManager.PERMISSION_GRANTED) {
+            setStatusForced("Camera permission not granted");
+            return;
+        }
+        camera.open();
     }
 
+    /** On the worker thread. */
     private void closeCamera() {
-        try {
-            if (previewSession != null) { previewSession.close(); previewSession = null; }
-            if (cameraDevice != null) { cameraDevice.close(); cameraDevice = null; }
-        } catch (Exception ignored) {}
+        previewAttempt++;
+        previewSession = null;
+        camera.close();
+        closeCombinedReaders();
+        sessionCache.clear();
+        readerPool.closeAll();
     }
 
     // ================================================================
     // PREVIEW
     // ================================================================
-    private void startPreview() {
-        if (cameraDevice == null || !textureView.isAvailable()) return;
 
+    /**
+     * (Re)build the preview session, on the worker thread. Each step
+     * continues on the worker when the HAL answers. A start that is overtaken
+     * by another start, a shot or closeCamera closes whatever it built and
+     * completes false; it never waits on the HAL itself.
+     */
+    private CompletableFuture<Boolean> startPreview() {
+        if (!backend.isOpen() || !textureView.isAvailable()) return CompletableFuture.completedFuture(false);
+        int attempt = ++previewAttempt;
+
+        CapturePlan plan;
+        boolean tryCombined;
+        CompletableFuture<Boolean> combined;
         try {
             if (previewSession != null) { previewSession.close(); previewSession = null; }
+            closeCombinedReaders();
 
-            SurfaceTexture st = textureView.getSurfaceTexture();
             Size ps = previewSize != null ? previewSize : new Size(1440, 1080);
-            st.setDefaultBufferSize(ps.getWidth(), ps.getHeight());
-            Surface previewSurface = new Surface(st);
-
-            CaptureRequest.Builder previewBuilder =
-                cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            previewBuilder.addTarget(previewSurface);
-            previewBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            previewBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                CaptureRequest.CONTROL_AE_MODE_ON);
-            previewBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, currentEv);
-
-            List<OutputConfiguration> outputs = Arrays.asList(new OutputConfiguration(previewSurface));
-            Executor prevExec = camHandler::post;
-
-            final Object sessLock = new Object();
-            final int[] sessResult = {-999};
-
-            SessionConfiguration sessConfig = new SessionConfiguration(
-                SessionConfiguration.SESSION_REGULAR, outputs, prevExec,
-                new CameraCaptureSession.StateCallback() {
-                    @Override public void onConfigured(@NonNull CameraCaptureSession session) {
-                        previewSession = session;
-                        synchronized (sessLock) { sessResult[0] = 0; sessLock.notifyAll(); }
-                    }
-                    @Override public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                        synchronized (sessLock) { sessResult[0] = -1; sessLock.notifyAll(); }
-                    }
-                });
-
-            cameraDevice.createCaptureSession(sessConfig);
-            synchronized (sessLock) {
-                if (sessResult[0] == -999) sessLock.wait(30_000);
+            backend.setPreviewSize(ps.getWidth(), ps.getHeight());
+
+            // Preferred: preview and still outputs in one long-lived session
+            plan = planCapture();
+            tryCombined = plan != null && !combinedRejected.contains(plan);
+            combined = tryCombined ? createCombinedSession(plan, attempt) : CompletableFuture.completedFuture(false);
+        } catch (Exception e) {
+            camera.fail("Preview error: " + e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return combined.thenComposeAsync(ok -> {
+            if (attempt != previewAttempt) return CompletableFuture.<CameraBackend.Session>completedFuture(null);
+            if (tryCombined && !ok) {
+                Log.w(TAG, "Combined session rejected for " + fmtSize(plan.jpegSize)
+                    + (plan.maxRes ? " max-res" : "") + "; shutter will reconfigure");
+                combinedRejected.add(plan);
             }
+            if (plan != null && combinedPlan == null) {
+                // Speculatively build the dedicated still configuration now, off the shutter path
+                try {
+                    prewarmDedicated(plan);
+                } catch (Exception e) {
+                    Log.w(TAG, "Prewarm failed: " + e.getMessage());
+                }
+            }
+            if (previewSession != null) return CompletableFuture.completedFuture(previewSession);
+            return camera.createSession(new CameraBackend.SessionSpec(true, Collections.emptyList(), false));
+        }, worker).handleAsync((session, error) -> runPreview(attempt, session, error), worker);
+    }
 
-            if (sessResult[0] != 0) {
-                transitionState(CamState.ERROR);
-                return;
+    /** Last step of startPreview: start the repeating request on session and move to PREVIEW. */
+    private boolean runPreview(int attempt, CameraBackend.Session session, Throwable error) {
+        if (attempt != previewAttempt || !backend.isOpen()) {
+            if (session != null && session != previewSession) session.close();
+            return false;
+        }
+        if (session == null) {
+            previewSession = null;
+            camera.fail(error != null ? "Preview error: " + rootMessage(error) : "Preview session rejected");
+            return false;
+        }
+        previewSession = session;
+        try {
+            session.setRepeating(controls.previewRequest(), previewListener);
+        } catch (Exception e) {
+            camera.fail("Preview error: " + e.getMessage());
+            return false;
+        }
+
+        camera.moveTo(CameraStateMachine.CamState.PREVIEW);
+        mainHandler.post(() -> {
+            btnShutter.setEnabled(!capturing && capturePipeline.hasCapacity());
+            configurePreviewTransform(textureView.getWidth(), textureView.getHeight());
+            updateModeDisplay();
+        });
+        return true;
+    }
+
+    /**
+     * Build the preview session with the still readers for plan attached, so a
+     * shot is a single capture() with no teardown. Preview runs in default
+     * pixel mode and the still outputs in max-res mode where the plan needs
+     * it. Completes false (and leaves previewSession null) when the HAL
+     * rejects the stream combination or the start was overtaken.
+     */
+    private CompletableFuture<Boolean> createCombinedSession(CapturePlan plan, int attempt) {
+        // Return the dedicated readers first so the same streams can be reused here
+        sessionCache.clear();
+        CameraBackend.Stream jr = null, rr = null;
+        CameraBackend.SessionSpec spec;
+        try {
+            int pixelMode = plan.maxRes ? CameraBackend.PIXEL_MODE_MAX_RES : CameraBackend.PIXEL_MODE_DEFAULT;
+            jr = readerPool.acquire(plan.jpegSize.getWidth(), plan.jpegSize.getHeight(),
+                plan.format, pixelMode, STILL_MAX_IMAGES);
+            if (plan.rawSize != null) {
+                rr = readerPool.acquire(plan.rawSize.getWidth(), plan.rawSize.getHeight(),
+                    plan.rawFormat, pixelMode, STILL_MAX_IMAGES);
             }
 
-            previewSession.setRepeatingRequest(previewBuilder.build(),
-                new CameraCaptureSession.CaptureCallback() {
-                    @Override public void onCaptureCompleted(@NonNull CameraCaptureSession s,
-                            @NonNull CaptureRequest r, @NonNull TotalCaptureResult result) {
-                        updateFocusIndicator(result);
-                    }
-                }, camHandler);
-
-            transitionState(CamState.PREVIEW);
-            mainHandler.post(() -> {
-                btnShutter.setEnabled(true);
-                configurePreviewTransform(textureView.getWidth(), textureView.getHeight());
-                updateModeDisplay();
-            });
+            List<CameraBackend.Stream> streams = new ArrayList<>();
+            streams.add(jr);
+            if (rr != null) streams.add(rr);
+            spec = new CameraBackend.SessionSpec(true, streams, false);
+            if (!backend.isSupported(spec)) {
+                readerPool.release(jr);
+                readerPool.release(rr);
+                return CompletableFuture.completedFuture(false);
+            }
 
+            jr.setListener(f -> deliverImage(f, pendingShot, false));
+            if (rr != null) rr.setListener(f -> deliverImage(f, pendingShot, true));
         } catch (Exception e) {
-            setStatusForced("Preview error: " + e.getMessage());
-            transitionState(CamState.ERROR);
+            Log.w(TAG, "Combined session error: " + e.getMessage());
+            readerPool.release(jr);
+            readerPool.release(rr);
+            return CompletableFuture.completedFuture(false);
         }
+
+        CameraBackend.Stream jpeg = jr, raw = rr;
+        return camera.createSession(spec).handleAsync((session, error) -> {
+            if (session == null || attempt != previewAttempt) {
+                if (error != null) Log.w(TAG, "Combined session error: " + rootMessage(error));
+                if (session != null) session.close();
+                readerPool.release(jpeg);
+                readerPool.release(raw);
+                return false;
+            }
+            previewSession = session;
+            combinedPlan = plan;
+            combinedJpegReader = jpeg;
+            combinedRawReader = raw;
+
+            // Allocate the still buffers now rather than on the first shot
+            try {
+                session.prepare(jpeg);
+                if (raw != null) session.prepare(raw);
+            } catch (Exception e) {
+                Log.w(TAG, "Still buffer prepare failed: " + e.getMessage());
+            }
+            return true;
+        }, worker);
+    }
+
+    /**
+     * Cached dedicated-session configuration for plan, built on a miss: the
+     * still readers with delivery wired to the entry's shot, and a session
+     * spec with the max-res session parameters. Other entries drop their
+     * buffers.
+     */
+    private SessionCache.Entry prewarmDedicated(CapturePlan plan) {
+        SessionCache.Entry cached = sessionCache.get(plan);
+        if (cached != null) return cached;
+
+        int pixelMode = plan.maxRes ? CameraBackend.PIXEL_MODE_MAX_RES : CameraBackend.PIXEL_MODE_DEFAULT;
+        CameraBackend.Stream jr = readerPool.acquire(
+            plan.jpegSize.getWidth(), plan.jpegSize.getHeight(), plan.format, pixelMode, STILL_MAX_IMAGES);
+        CameraBackend.Stream rr = (plan.rawSize != null) ?
+            readerPool.acquire(plan.rawSize.getWidth(), plan.rawSize.getHeight(),
+                plan.rawFormat, pixelMode, STILL_MAX_IMAGES) : null;
+
+        List<CameraBackend.Stream> streams = new ArrayList<>();
+        streams.add(jr);
+        if (rr != null) streams.add(rr);
+
+        SessionCache.Entry entry = new SessionCache.Entry(plan, jr, rr,
+            new CameraBackend.SessionSpec(false, streams, plan.maxRes));
+        jr.setListener(f -> deliverImage(f, entry.shot, false));
+        if (rr != null) rr.setListener(f -> deliverImage(f, entry.shot, true));
+        sessionCache.put(entry);
+        sessionCache.trimExcept(plan);
+        return entry;
+    }
+
+    private void closeCombinedReaders() {
+        combinedPlan = null;
+        readerPool.release(combinedJpegReader);
+        readerPool.release(combinedRawReader);
+        combinedJpegReader = null;
+        combinedRawReader = null;
+    }
+
+    /** Re-create the session so the combined still outputs follow a settings change. */
+    private void reconfigureSession() {
+        if (backend.isOpen()) workerHandler.post(() -> { if (!capturing) startPreview(); });
+    }
+
+    /** Hand a frame to the shot waiting for it; stray frames are dropped. */
+    private void deliverImage(CameraBackend.Frame frame, Shot shot, boolean raw) {
+        readerPool.noteAcquired();
+        if (shot == null) { frame.close(); return; }
+        shot.onImage(frame, raw);
     }
 
     // ================================================================
@@ -573,7 +969,7 @@ public class MainActivity extends AppCompatActivity {
     // TAP-TO-FOCUS
     // ================================================================
     private void handleTapToFocus(float tx, float ty) {
-        if (previewSession == null || cameraDevice == null || camChars == null) return;
+        if (previewSession == null || camInfo == null) return;
 
         // Show focus ring
         mainHandler.post(() -> {
@@ -594,12 +990,10 @@ public class MainActivity extends AppCompatActivity {
         float ny = ty / vh;
 
         // Map to sensor active array
-        android.graphics.Rect activeArray = camChars.get(
-            CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-        if (activeArray == null) return;
+        int aw = camInfo.activeWidth;
+        int ah = camInfo.activeHeight;
+        if (aw == 0 || ah == 0) return;
 
-        int aw = activeArray.width();
-        int ah = activeArray.height();
         int regionSize = (int) (Math.max(aw, ah) * 0.1f);
         int cx = (int) (nx * aw);
         int cy = (int) (ny * ah);
@@ -609,27 +1003,20 @@ public class MainActivity extends AppCompatActivity {
         int right = Math.min(aw, left + regionSize);
         int bottom = Math.min(ah, top + regionSize);
 
-        MeteringRectangle[] regions = new MeteringRectangle[]{
-            new MeteringRectangle(left, top, right - left, bottom - top, 1000)
-        };
+        controls.focus(new int[]{left, top, right - left, bottom - top});
+    }
 
+    /** ControlCoalescer sink, on the worker thread. */
+    private boolean applyControls(CameraBackend.Request repeating, CameraBackend.Request trigger) {
+        CameraBackend.Session session = previewSession;
+        if (session == null || capturing || !backend.isOpen()) return false;
         try {
-            CaptureRequest.Builder afBuilder =
-                cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            SurfaceTexture st = textureView.getSurfaceTexture();
-            if (st == null) return;
-            Size ps = previewSize != null ? previewSize : new Size(1440, 1080);
-            st.setDefaultBufferSize(ps.getWidth(), ps.getHeight());
-            afBuilder.addTarget(new Surface(st));
-            afBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
-            afBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_START);
-            afBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
-            afBuilder.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
-            afBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, currentEv);
-
-            previewSession.capture(afBuilder.build(), null, camHandler);
+            session.setRepeating(repeating, previewListener);
+            if (trigger != null) session.capture(trigger, null);
+            return true;
         } catch (Exception e) {
-            Log.w(TAG, "Tap-to-focus error: " + e.getMessage());
+            Log.w(TAG, "Control update error: " + e.getMessage());
+            return false;
         }
     }
 
@@ -638,475 +1025,882 @@ public class MainActivity extends AppCompatActivity {
     // ================================================================
 
     /**
-     * Rotate a JPEG byte array by the given degrees (must be 0, 90, 180, 270).
-     * Returns the re-encoded JPEG at quality 100.
+     * Memory-bounded fallback rotation. The output is produced top to bottom in
+     * strips of StreamingJpegEncoder.STRIP_ROWS rows; each strip is decoded
+     * from the matching source region (a column band for 90/270) into a pooled
+     * bitmap, rotated into a reused pixel buffer and streamed into the encoder.
+     * Peak memory is a few strips, independent of sensor size.
+     */
+    private byte[] rotateJpegStrips(byte[] jpegData, int degrees) throws IOException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(jpegData, 0, jpegData.length);
+        try {
+            int w = decoder.getWidth(), h = decoder.getHeight();
+            boolean swap = degrees == 90 || degrees == 270;
+            int outW = swap ? h : w, outH = swap ? w : h;
+            int strip = StreamingJpegEncoder.STRIP_ROWS;
+            int bufLen = strip * Math.max(w, h);
+            if (stripPixels == null || stripPixels.length < bufLen) {
+                stripPixels = new int[bufLen];
+                stripRotated = new int[bufLen];
+            }
+
+            StreamingJpegEncoder enc = new StreamingJpegEncoder(outW, outH, 100);
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            opts.inMutable = true;
+
+            for (int r0 = 0; r0 < outH; r0 += strip) {
+                int rows = Math.min(strip, outH - r0);
+                Rect region;
+                switch (degrees) {
+                    case 90:  region = new Rect(r0, 0, r0 + rows, h); break;
+                    case 270: region = new Rect(w - r0 - rows, 0, w - r0, h); break;
+                    default:  region = new Rect(0, h - r0 - rows, w, h - r0); break;
+                }
+                int rw = region.width(), rh = region.height();
+                Bitmap buf = bitmapPool.acquire(rw, rh);
+                opts.inBitmap = buf;
+                Bitmap decoded = decoder.decodeRegion(region, opts);
+                if (decoded == null) {
+                    bitmapPool.release(buf);
+                    throw new IOException("decodeRegion failed at row " + r0);
+                }
+                decoded.getPixels(stripPixels, 0, rw, 0, 0, rw, rh);
+                if (decoded != buf) bitmapPool.release(buf);
+                bitmapPool.release(decoded);
+
+                StreamingJpegEncoder.rotateArgb(stripPixels, rw, rh, degrees, stripRotated);
+                enc.writeStrip(stripRotated, outW, rows);
+                heapMeter.sample();
+            }
+            return enc.finish();
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Spool the RAW plane for background DNG conversion and close the frame,
+     * so the frame is on disk before the pipeline sees the job. Frames only
+     * DngCreator can describe, or that the spool can't take, are copied into
+     * the job for the persist stage instead.
      */
-    private byte[] rotateJpegPixels(byte[] jpegData, int degrees) {
-        if (degrees == 0) return jpegData;
-        Bitmap src = BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length);
-        if (src == null) return jpegData;
-        Matrix m = new Matrix();
-        m.postRotate(degrees);
-        Bitmap rotated = Bitmap.createBitmap(src, 0, 0, src.getWidth(), src.getHeight(), m, true);
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        rotated.compress(Bitmap.CompressFormat.JPEG, 100, bos);
-        src.recycle();
-        rotated.recycle();
-        return bos.toByteArray();
+    private void handOffRaw(CameraBackend.Frame img, CaptureJob<MediaStoreWriter.Result> job) {
+        if (rawSpool != null && dngMetadata(job)) {
+            try {
+                int w = img.width(), h = img.height();
+                int format = img.format();
+                Size size = new Size(w, h);
+                DngWriter writer = prepareDng(job, size);
+                RawSpool.Entry spooled = rawSpool.spool(dngName(job), job.dngLossless, writer, format, w, h,
+                    RawUnpacker.rowBytes(format, w), img.buffer(0), img.rowStride(0));
+                job.rawSpooled = true;
+                job.spoolNanos = spooled.spoolNanos;
+                job.rawW = w;
+                job.rawH = h;
+                job.rawFormat = format;
+                job.rawPackedBytes = spooled.dataLength;
+                img.close();
+                return;
+            } catch (IllegalArgumentException | IOException e) {
+                job.notes.append("RAW spool skipped: ").append(e.getMessage()).append("\n");
+            }
+        }
+        CaptureStages.extractRaw(img, job);
     }
 
     // ================================================================
     // CAPTURE
     // ================================================================
-    private void doCapture() {
-        if (cameraDevice == null) { finishCapture("No camera"); return; }
 
-        transitionState(CamState.CAPTURING);
+    /** Still stream sizes and format for the current settings, or null if none. */
+    private CapturePlan planCapture() {
+        boolean maxRes = (currentMp == MpMode.MP16 || currentMp == MpMode.MP12) && hasMaxRes;
+        Size[] maxResSizes = maxResJpegSizes;
+        Size[] defaultSizes = defaultJpegSizes;
+        boolean useYuv = yuvCaptureEnabled
+            && (maxRes ? maxResYuvSizes != null && maxResYuvSizes.length > 0
+                       : defaultYuvSizes != null && defaultYuvSizes.length > 0);
+        if (useYuv) {
+            maxResSizes = maxResYuvSizes;
+            defaultSizes = defaultYuvSizes;
+        }
+        Size jpegSize;
+        Size rawSize = null;
+
+        if (maxRes && maxResSizes != null && maxResSizes.length > 0) {
+            jpegSize = findBestForMp(maxResSizes, currentMp);
+        } else if (defaultSizes != null && defaultSizes.length > 0) {
+            jpegSize = findBestForMp(defaultSizes, currentMp);
+            maxRes = false;
+        } else {
+            return null;
+        }
+
+        if (dngEnabled && maxRes && maxResRawSizes != null && maxResRawSizes.length > 0) {
+            rawSize = findLargest(maxResRawSizes);
+        }
+        return new CapturePlan(maxRes, useYuv ? ImageFormat.YUV_420_888 : ImageFormat.JPEG, jpegSize, rawSize,
+            rawSize != null ? maxResRawFormat : ImageFormat.RAW_SENSOR);
+    }
+
+    /**
+     * Start a shot, on the worker thread. pressedAt: shutter touch-down
+     * (elapsedRealtime nanos), 0 if unknown. The shot then moves through
+     * fireCapture, onCaptureResult and handOff as the session, the result and
+     * the frames arrive; nothing here blocks the worker.
+     */
+    private void doCapture(long pressedAt) {
+        if (!backend.isOpen()) { countFailure("no_camera"); finishCapture("No camera"); return; }
+
+        if (!capturePipeline.tryReserve()) {
+            countFailure("queue_full");
+            setStatusForced("Queue full");
+            capturing = false;
+            updateShutterEnabled();
+            return;
+        }
+        if (!camera.moveTo(CameraStateMachine.CamState.CAPTURING)) {
+            // Still opening, or the preview hasn't come back from the last shot
+            capturePipeline.cancelReservation();
+            countFailure("busy");
+            setStatusForced("Camera busy");
+            capturing = false;
+            updateShutterEnabled();
+            return;
+        }
+        // A preview start still in flight (settings change) must not take over the session
+        previewAttempt++;
+
         setStatusForced("Hold still...");
+        if (capturePipeline.inFlight() == 1) heapMeter.start();
 
+        CapturePlan plan = planCapture();
+        if (plan == null) {
+            abortCapture(null, "no_sizes", "No JPEG sizes available");
+            return;
+        }
+        Shot shot = new Shot(plan, pressedAt, jpegEntropyMode, dngLossless);
+        CompletableFuture<CameraBackend.Session> session;
         try {
-            // Close preview session first
-            if (previewSession != null) {
-                previewSession.close();
-                previewSession = null;
-                Thread.sleep(200);
-            }
+            shot.combined = previewSession != null && plan.equals(combinedPlan);
+            if (shot.combined) {
+                // Still outputs are already part of the running session
+                shot.jpegReader = combinedJpegReader;
+                shot.rawReader = combinedRawReader;
+                pendingShot = shot;
+                session = CompletableFuture.completedFuture(previewSession);
+            } else {
+                // Dedicated session: the HAL finishes closing preview before it configures the new one
+                if (previewSession != null) {
+                    long t0 = SystemClock.elapsedRealtimeNanos();
+                    previewSession.close();
+                    previewSession = null;
+                    shot.lap.put("preview close", SystemClock.elapsedRealtimeNanos() - t0);
+                }
+                closeCombinedReaders();
 
-            // Determine capture size
-            boolean maxRes = (currentMp == MpMode.MP16 || currentMp == MpMode.MP12) && hasMaxRes;
-            Size jpegSize;
-            Size rawSize = null;
+                // Readers, outputs and session params normally come prewarmed from the cache
+                shot.dedicated = prewarmDedicated(plan);
+                shot.dedicated.shot = shot;
+                shot.jpegReader = shot.dedicated.jpegReader;
+                shot.rawReader = shot.dedicated.rawReader;
 
-            if (maxRes && maxResJpegSizes != null && maxResJpegSizes.length > 0) {
-                jpegSize = findBestForMp(maxResJpegSizes, currentMp);
-            } else if (defaultJpegSizes != null && defaultJpegSizes.length > 0) {
-                jpegSize = findBestForMp(defaultJpegSizes, currentMp);
-                maxRes = false;
-            } else {
-                finishCapture("No JPEG sizes available");
-                return;
+                shot.sessionStart = SystemClock.elapsedRealtimeNanos();
+                session = camera.createSession(shot.dedicated.spec);
             }
+        } catch (Exception e) {
+            abortCapture(shot, "exception", "Error: " + e.getMessage());
+            return;
+        }
+        session.whenCompleteAsync((s, error) -> fireCapture(shot, s, error), worker);
+    }
 
-            if (dngEnabled && maxRes && maxResRawSizes != null && maxResRawSizes.length > 0) {
-                rawSize = findLargest(maxResRawSizes);
-            }
+    /** The still session is ready (or not): send the capture request. */
+    private void fireCapture(Shot shot, CameraBackend.Session session, Throwable error) {
+        if (!shot.combined) {
+            long sessionNanos = SystemClock.elapsedRealtimeNanos() - shot.sessionStart;
+            shot.sessionMs = sessionNanos / 1_000_000;
+            shot.lap.put("session create", sessionNanos);
+        }
+        if (session == null) {
+            abortCapture(shot, "session_config",
+                error != null ? "Session config " + rootMessage(error) : "Session config failed");
+            return;
+        }
+        if (camera.state() != CameraStateMachine.CamState.CAPTURING) {
+            // Closed while the session was being configured
+            if (!shot.combined) session.close();
+            abortCapture(shot, "no_camera", "No camera");
+            return;
+        }
+        shot.session = session;
+        if (!shot.combined) previewSession = session;
 
-            // Create ImageReaders
-            ImageReader jpegReader = ImageReader.newInstance(
-                jpegSize.getWidth(), jpegSize.getHeight(), ImageFormat.JPEG, 1);
-            ImageReader rawReader = (rawSize != null) ?
-                ImageReader.newInstance(rawSize.getWidth(), rawSize.getHeight(),
-                    ImageFormat.RAW_SENSOR, 1) : null;
-
-            final byte[][] jpegData = {null};
-            final Image[] rawImage = {null};
-            final Object imgLock = new Object();
-            final int[][] dims = {{0, 0}, {0, 0}};
-
-            jpegReader.setOnImageAvailableListener(reader -> {
-                Image img = reader.acquireLatestImage();
-                if (img != null) {
-                    ByteBuffer buf = img.getPlanes()[0].getBuffer();
-                    jpegData[0] = new byte[buf.remaining()];
-                    buf.get(jpegData[0]);
-                    dims[0][0] = img.getWidth();
-                    dims[0][1] = img.getHeight();
-                    img.close();
-                    synchronized (imgLock) { imgLock.notifyAll(); }
-                }
-            }, camHandler);
-
-            if (rawReader != null) {
-                rawReader.setOnImageAvailableListener(reader -> {
-                    rawImage[0] = reader.acquireLatestImage();
-                    if (rawImage[0] != null) {
-                        dims[1][0] = rawImage[0].getWidth();
-                        dims[1][1] = rawImage[0].getHeight();
-                        synchronized (imgLock) { imgLock.notifyAll(); }
-                    }
-                }, camHandler);
+        try {
+            setStatusForced("Capturing...");
+
+            // Build capture request (JPEG_ORIENTATION 0 — we do pixel rotation in software)
+            List<CameraBackend.Stream> targets = new ArrayList<>();
+            targets.add(shot.jpegReader);
+            if (shot.rawReader != null) targets.add(shot.rawReader);
+            CameraBackend.Request request = CameraBackend.Request.still(targets, currentEv,
+                shot.plan.maxRes ? CameraBackend.PIXEL_MODE_MAX_RES : CameraBackend.PIXEL_MODE_DEFAULT);
+
+            // A JPEG that needs no rotation or re-entropy is saved straight from the frame plane
+            shot.keepJpegImage = shot.plan.format == ImageFormat.JPEG && getJpegRotationDegrees() == 0
+                && shot.entropyMode == JpegWriter.Mode.STANDARD;
+
+            shot.firedAt = SystemClock.elapsedRealtimeNanos();
+            camera.capture(session, request)
+                .whenCompleteAsync((result, e) -> onCaptureResult(shot, result, e), worker);
+        } catch (Exception e) {
+            session.close();
+            previewSession = null;
+            abortCapture(shot, "exception", "Error: " + e.getMessage());
+        }
+    }
+
+    /** Capture result is in; wait (without blocking) for the frames, at most 15 s. */
+    private void onCaptureResult(Shot shot, CameraBackend.Result result, Throwable error) {
+        long resultAt = SystemClock.elapsedRealtimeNanos();
+        shot.lap.put("capture→result", resultAt - shot.firedAt);
+
+        setStatusForced("Captured! Processing...");
+
+        if (result == null) {
+            if (shot.combined) {
+                // The HAL took the session but can't serve max-res stills from it
+                combinedRejected.add(shot.plan);
             }
+            shot.session.close();
+            previewSession = null;
+            abortCapture(shot, "capture", error != null ? "Capture " + rootMessage(error) : "Capture failed");
+            return;
+        }
+        shot.result = result;
+        shot.images.completeOnTimeout(null, 15_000, TimeUnit.MILLISECONDS)
+            .whenCompleteAsync((v, e) -> handOff(shot, resultAt), worker);
+    }
+
+    /** Copy the frames into a job for the pipeline and re-arm the shutter. */
+    private void handOff(Shot shot, long resultAt) {
+        long imagesAt = SystemClock.elapsedRealtimeNanos();
+        Map<String, Long> lap = shot.lap;
+        lap.put("result→images", imagesAt - resultAt);
+        pendingShot = null;
+        if (shot.dedicated != null) shot.dedicated.shot = null;
 
-            // Build output configurations
-            List<OutputConfiguration> outputs = new ArrayList<>();
-            OutputConfiguration jpegOutput = new OutputConfiguration(jpegReader.getSurface());
-            if (maxRes) {
-                try { jpegOutput.getClass().getMethod("setSensorPixelModeUsed", int.class)
-                        .invoke(jpegOutput, 1); }
-                catch (Exception e) { Log.w(TAG, "setSensorPixelModeUsed JPEG failed: " + e.getMessage()); }
+        CapturePlan plan = shot.plan;
+        String latencyKey;
+        try {
+            if (!shot.combined) {
+                shot.session.close();
+                previewSession = null;
             }
-            outputs.add(jpegOutput);
-
-            OutputConfiguration rawOutput = null;
-            if (rawReader != null) {
-                rawOutput = new OutputConfiguration(rawReader.getSurface());
-                if (maxRes) {
-                    try { rawOutput.getClass().getMethod("setSensorPixelModeUsed", int.class)
-                            .invoke(rawOutput, 1); }
-                    catch (Exception e) { Log.w(TAG, "setSensorPixelModeUsed RAW failed: " + e.getMessage()); }
-                }
-                outputs.add(rawOutput);
+            heapMeter.sample();
+
+            // ── Hand off: copy out of the Images so the readers are free for the next shot ──
+            CaptureJob<MediaStoreWriter.Result> job = new CaptureJob<>();
+            job.maxRes = plan.maxRes;
+            job.combined = shot.combined;
+            job.sessionMs = shot.sessionMs;
+            job.ev = currentEv;
+            job.dngLossless = shot.dngLossless;
+            job.entropyMode = shot.entropyMode;
+            job.rotation = getJpegRotationDegrees();
+            if (camInfo != null) {
+                job.evStepNum = camInfo.evStepNum;
+                job.evStepDen = camInfo.evStepDen;
             }
-
-            // Create capture session
-            Executor capExec = camHandler::post;
-            final Object sessLock = new Object();
-            final int[] sessResult = {-999};
-
-            SessionConfiguration sessConfig = new SessionConfiguration(
-                SessionConfiguration.SESSION_REGULAR, outputs, capExec,
-                new CameraCaptureSession.StateCallback() {
-                    @Override public void onConfigured(@NonNull CameraCaptureSession session) {
-                        synchronized (sessLock) { sessResult[0] = 0; sessLock.notifyAll(); }
-                        previewSession = session;
-                    }
-                    @Override public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                        synchronized (sessLock) { sessResult[0] = -1; sessLock.notifyAll(); }
-                    }
-                });
-
-            // Set session parameters for max-res
-            if (maxRes) {
-                try {
-                    CaptureRequest.Builder sessParamBuilder =
-                        cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-                    CaptureRequest.Key<Integer> pixelModeKey =
-                        new CaptureRequest.Key<>("android.sensor.pixelMode", Integer.class);
-                    sessParamBuilder.set(pixelModeKey, 1);
-                    sessConfig.setSessionParameters(sessParamBuilder.build());
-                } catch (Exception e) {
-                    Log.w(TAG, "Session params pixelMode failed: " + e.getMessage());
-                }
+            job.ts = CaptureStages.shotId(System.currentTimeMillis());
+            switch (currentMp) {
+                case MP8:  job.mpLabel = "8MP"; break;
+                case MP12: job.mpLabel = "12MP"; break;
+                default:   job.mpLabel = "16MP"; break;
             }
-
-            cameraDevice.createCaptureSession(sessConfig);
-            synchronized (sessLock) {
-                if (sessResult[0] == -999) sessLock.wait(30_000);
+            job.dims = shot.dims;
+            job.result = shot.result;
+            job.captureWallMs = exposureWallTime(shot.result);
+            job.halJpeg = shot.jpegData;
+            synchronized (shot) {
+                job.jpegImage = shot.jpegImage;
+                shot.jpegImage = null;
+                if (shot.yuvImage != null) { CaptureStages.extractYuv(shot.yuvImage, job.rotation, job); shot.yuvImage = null; }
+                if (shot.rawImage != null) { handOffRaw(shot.rawImage, job); shot.rawImage = null; }
             }
+            if (job.halJpeg != null) job.halBytes = job.halJpeg.length;
+            if (job.jpegImage != null) job.halBytes = job.jpegImage.buffer(0).remaining();
+            job.handoffAt = SystemClock.elapsedRealtime();
+            lap.put("hand-off", SystemClock.elapsedRealtimeNanos() - imagesAt);
+            long lag = shutterLag(shot.pressedAt, shot.result);
+            if (lag > 0) lap.put("shutter lag", lag);
+            if (shot.pressedAt > 0) lap.put("touch→hand-off", SystemClock.elapsedRealtimeNanos() - shot.pressedAt);
+            job.latencyKey = latencyKey = job.mpLabel + (plan.rawSize != null ? " +DNG" : "");
+            for (Map.Entry<String, Long> e : lap.entrySet()) latencyStats.record(latencyKey, e.getKey(), e.getValue());
+            job.latency = lap;
+            metrics.inc(M_CAPTURES, "mode=\"" + job.mpLabel + "\",dng=\"" + (plan.rawSize != null) + "\"");
+            capturePipeline.submit(job);
+        } catch (Exception e) {
+            abortCapture(shot, "exception", "Error: " + e.getMessage());
+            return;
+        } finally {
+            // Readers outlive the shot in readerPool: lent to sessionCache or the combined session
+            shot.release();
+        }
 
-            CameraCaptureSession session = previewSession;
-            if (sessResult[0] != 0 || session == null) {
-                finishCapture("Session config failed");
-                return;
+        // Re-arm as soon as the frame is out of the reader; processing continues in the pipeline
+        if (shot.combined) {
+            capturing = false;
+            camera.moveTo(CameraStateMachine.CamState.PREVIEW);
+            // EV or focus changed during the shot
+            controls.flush();
+            updateShutterEnabled();
+        } else {
+            long t0 = SystemClock.elapsedRealtimeNanos();
+            startPreview().whenComplete((ok, e) -> {
+                // The job is already in the pipeline, so this only feeds the session histograms
+                latencyStats.record(latencyKey, "preview restart", SystemClock.elapsedRealtimeNanos() - t0);
+                capturing = false;
+                updateShutterEnabled();
+            });
+        }
+    }
+
+    /** Give up on a shot before hand-off: drop its frames and reservation, then restart preview. */
+    private void abortCapture(Shot shot, String cause, String msg) {
+        if (shot != null) {
+            pendingShot = null;
+            if (shot.dedicated != null) shot.dedicated.shot = null;
+            shot.release();
+        }
+        capturePipeline.cancelReservation();
+        countFailure(cause);
+        finishCapture(msg);
+    }
+
+    /**
+     * Touch-down to start of exposure, or 0 when either end is unknown or
+     * SENSOR_TIMESTAMP is not on the elapsedRealtime clock.
+     */
+    private long shutterLag(long pressedAt, CameraBackend.Result result) {
+        Long sensorTs = result != null ? result.sensorTimestamp() : null;
+        if (pressedAt <= 0 || sensorTs == null || camInfo == null || !camInfo.realtimeTimestamps) {
+            return 0;
+        }
+        long lag = sensorTs - pressedAt;
+        return lag > 0 && lag < 60_000_000_000L ? lag : 0;
+    }
+
+    /** Pipeline step that also feeds its duration into the job's latency and the session histograms. */
+    private CapturePipeline.Step<CaptureJob<MediaStoreWriter.Result>> timed(String stage,
+            CapturePipeline.Step<CaptureJob<MediaStoreWriter.Result>> step) {
+        return job -> {
+            long t0 = SystemClock.elapsedRealtimeNanos();
+            try {
+                step.run(job);
+            } finally {
+                long nanos = SystemClock.elapsedRealtimeNanos() - t0;
+                if (job.latencyKey != null) {
+                    job.latency.put(stage, nanos);
+                    latencyStats.record(job.latencyKey, stage, nanos);
+                }
             }
+        };
+    }
 
-            setStatusForced("Capturing...");
+    /**
+     * Wall-clock time of the exposure. SENSOR_TIMESTAMP is on the
+     * elapsedRealtime clock when the source is REALTIME; otherwise (or if the
+     * result is missing) the hand-off time is close enough.
+     */
+    private long exposureWallTime(CameraBackend.Result result) {
+        long now = System.currentTimeMillis();
+        Long sensorTs = result != null ? result.sensorTimestamp() : null;
+        if (sensorTs == null || camInfo == null || !camInfo.realtimeTimestamps) {
+            return now;
+        }
+        long agoMs = (SystemClock.elapsedRealtimeNanos() - sensorTs) / 1_000_000;
+        return agoMs >= 0 && agoMs < 60_000 ? now - agoMs : now;
+    }
 
-            // Build capture request
-            CaptureRequest.Builder capBuilder =
-                cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            capBuilder.addTarget(jpegReader.getSurface());
-            if (rawReader != null) capBuilder.addTarget(rawReader.getSurface());
+    /** Show msg and bring the preview back; the shutter re-arms once it is running (or has failed). */
+    private void finishCapture(String msg) {
+        setStatusForced(msg);
+        CompletableFuture<Boolean> restart = backend.isOpen() ? startPreview() : CompletableFuture.completedFuture(false);
+        restart.whenComplete((ok, e) -> {
+            capturing = false;
+            updateShutterEnabled();
+        });
+    }
 
-            capBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
-            capBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            capBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, currentEv);
+    private void countFailure(String cause) {
+        metrics.inc(M_FAILURES, "cause=\"" + cause + "\"");
+    }
 
-            // CRITICAL: Set JPEG_ORIENTATION to 0 — we do pixel rotation in software
-            capBuilder.set(CaptureRequest.JPEG_ORIENTATION, 0);
+    /** Message of a failed future, unwrapped from CompletionException; timeouts say so. */
+    private static String rootMessage(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        return t instanceof TimeoutException ? "timed out" : "failed: " + t.getMessage();
+    }
+
+    /** Everything the optional metrics endpoint serves; counters cost a LongAdder add. */
+    private void registerMetrics() {
+        PowerManager power = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        metrics.counter(M_CAPTURES, "Shots handed to the pipeline, by MP mode and DNG setting.")
+            .counter(M_FAILURES, "Shots or saves that failed, by cause.")
+            .counter("flashcam_save_fallbacks_total", "Saves that fell back to a direct file write.",
+                () -> mediaWriter.fallbacks())
+            .counter("flashcam_written_files_total", "Files saved.", () -> mediaWriter.filesWritten())
+            .counter("flashcam_written_bytes_total", "Bytes saved.", () -> mediaWriter.bytesWritten())
+            .counter("flashcam_request_template_builds_total",
+                "Capture request builders made from a device template (cached per template otherwise).",
+                () -> backend.templateBuilds())
+            .counter("flashcam_control_changes_total", "EV and tap-to-focus changes requested.",
+                () -> controls.changes())
+            .counter("flashcam_control_updates_total", "Repeating-request updates sent for control changes.",
+                () -> controls.updates())
+            .counter("flashcam_preview_frames_total", "Preview frames read from the metadata ring.",
+                () -> previewFrames.frames())
+            .counter("flashcam_preview_dropped_frames_total", "Preview frames the sensor skipped (SENSOR_TIMESTAMP gaps).",
+                () -> previewFrames.dropped())
+            .counter("flashcam_preview_overrun_frames_total", "Preview frames the UI fell too far behind to read.",
+                () -> previewFrames.overrun())
+            .gauge("flashcam_preview_jitter_microseconds", "Smoothed preview frame-interval jitter.",
+                () -> previewFrames.jitterNanos() / 1000)
+            .gauge("flashcam_pipeline_in_flight", "Shots in the capture pipeline.", () -> capturePipeline.inFlight())
+            .gauge("flashcam_pipeline_depth", "Capture pipeline slots.", () -> PIPELINE_DEPTH)
+            .gauge("flashcam_spool_pending", "RAW frames waiting for DNG conversion.",
+                () -> rawSpool != null ? rawSpool.pending() : 0)
+            .gauge("flashcam_jpeg_spool_pending", "Encoded JPEGs spooled and not yet saved.",
+                () -> jpegSpool != null ? jpegSpool.pending() : 0)
+            .gauge("flashcam_native_heap_bytes", "Native heap allocated (image buffers, direct buffers).",
+                Debug::getNativeHeapAllocatedSize)
+            .gauge("flashcam_java_heap_bytes", "Java heap in use.",
+                () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())
+            .gauge("flashcam_thermal_status", "PowerManager thermal status (0 none .. 6 shutdown).",
+                () -> power != null ? power.getCurrentThermalStatus() : -1)
+            .latency("flashcam_stage_latency_seconds", latencyStats);
+    }
 
-            if (maxRes) {
+    /** Start or stop the localhost metrics endpoint (off until enabled in the options). */
+    private void setMetricsEndpoint(boolean on) {
+        workerHandler.post(() -> {
+            if (on) {
+                if (metricsServer == null) metricsServer = new MetricsServer(metrics, MetricsServer.DEFAULT_PORT);
                 try {
-                    CaptureRequest.Key<Integer> pixelModeKey =
-                        new CaptureRequest.Key<>("android.sensor.pixelMode", Integer.class);
-                    capBuilder.set(pixelModeKey, 1);
-                } catch (Exception e) {
-                    Log.w(TAG, "CaptureRequest pixelMode failed: " + e.getMessage());
+                    metricsServer.start();
+                    setStatusForced("Metrics on localhost:" + metricsServer.port());
+                } catch (IOException e) {
+                    setStatusForced("Metrics endpoint failed: " + e.getMessage());
                 }
+            } else if (metricsServer != null) {
+                metricsServer.stop();
             }
+        });
+    }
 
-            // Fire capture
-            final Object capLock = new Object();
-            final boolean[] capOk = {false};
-            final TotalCaptureResult[] capResultHolder = {null};
-
-            session.capture(capBuilder.build(), new CameraCaptureSession.CaptureCallback() {
-                @Override public void onCaptureCompleted(@NonNull CameraCaptureSession s,
-                        @NonNull CaptureRequest r, @NonNull TotalCaptureResult result) {
-                    capResultHolder[0] = result;
-                    capOk[0] = true;
-                    synchronized (capLock) { capLock.notifyAll(); }
-                }
-                @Override public void onCaptureFailed(@NonNull CameraCaptureSession s,
-                        @NonNull CaptureRequest r,
-                        @NonNull android.hardware.camera2.CaptureFailure failure) {
-                    synchronized (capLock) { capLock.notifyAll(); }
-                }
-            }, camHandler);
+    /** Shutter is live when no shot is being taken and the pipeline has a free slot. */
+    private void updateShutterEnabled() {
+        mainHandler.post(() -> btnShutter.setEnabled(!capturing && capturePipeline.hasCapacity()));
+    }
 
-            synchronized (capLock) {
-                if (!capOk[0]) capLock.wait(30_000);
-            }
+    // ================================================================
+    // CAPTURE PIPELINE STAGES
+    // ================================================================
 
-            setStatusForced("Captured! Processing...");
+    /** Rotate (or YUV-encode) and entropy-optimize the JPEG; see CaptureStages.encode. */
+    private void encodeStage(CaptureJob<MediaStoreWriter.Result> job) throws Exception {
+        boolean work = job.needsEncode();
+        if (work) setStatusForced("Processing JPEG...");
+        stages.encode(job);
+        if (work) heapMeter.sample();
+    }
 
-            if (!capOk[0]) { session.close(); previewSession = null; finishCapture("Capture failed"); return; }
+    /**
+     * IFD1 thumbnail: a DCT-scaled decode (inSampleSize keeps it to a few
+     * hundred pixels) squeezed to EXIF_THUMBNAIL_EDGE. Null if it fails.
+     */
+    private static byte[] exifThumbnail(byte[] jpeg) {
+        try {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
+            int edge = Math.max(opts.outWidth, opts.outHeight);
+            if (edge <= 0) return null;
+            opts.inJustDecodeBounds = false;
+            opts.inSampleSize = Math.max(1, Math.min(8, Integer.highestOneBit(edge / EXIF_THUMBNAIL_EDGE)));
+            Bitmap small = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
+            if (small == null) return null;
+            float scale = (float) EXIF_THUMBNAIL_EDGE / Math.max(small.getWidth(), small.getHeight());
+            Bitmap thumb = scale < 1f ? Bitmap.createScaledBitmap(small,
+                Math.round(small.getWidth() * scale), Math.round(small.getHeight() * scale), true) : small;
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream(16 * 1024);
+            thumb.compress(Bitmap.CompressFormat.JPEG, 80, out);
+            if (thumb != small) thumb.recycle();
+            small.recycle();
+            return out.toByteArray();
+        } catch (Exception e) {
+            Log.w(TAG, "EXIF thumbnail failed: " + e.getMessage());
+            return null;
+        }
+    }
 
-            synchronized (imgLock) { if (jpegData[0] == null) imgLock.wait(15_000); }
-            if (rawReader != null && rawImage[0] == null) {
-                synchronized (imgLock) { if (rawImage[0] == null) imgLock.wait(15_000); }
-            }
+    /** EXIF, JPEG spool and save (see CaptureStages.persist), then the failure accounting. */
+    private void persistStage(CaptureJob<MediaStoreWriter.Result> job) throws Exception {
+        boolean rawPending = job.raw != null && dngMetadata(job);
+        stages.persist(job);
+        if ((job.halBytes > 0 || job.jpeg != null) && job.jpegSave == null) {
+            countFailure("jpeg_save");
+            setStatusForced("Save error");
+        }
+        if (rawPending) {
+            job.raw = null;
+            if (job.dngError != null || job.dngSave == null) countFailure("dng_save");
+            if (job.dngError == null && job.dngSave == null) setStatusForced("DNG save error");
+        }
+        heapMeter.sample();
+    }
 
-            session.close();
-            previewSession = null;
+    /**
+     * CaptureStages.Platform.save: write the JPEG and the DNG to MediaStore,
+     * as one batch when the app writes both.
+     */
+    private void saveShot(CaptureJob<MediaStoreWriter.Result> job, String jname, ByteBuffer[] jpegParts) {
+        List<MediaStoreWriter.Item> batch = new ArrayList<>();
+        MediaStoreWriter.Item jpegItem = null;
+        if (jpegParts != null) {
+            jpegItem = new MediaStoreWriter.Item(jname, "image/jpeg", jpegParts);
+            batch.add(jpegItem);
+        }
 
-            // ── Process and save ──
-            String ts = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-            String mpLabel;
-            switch (currentMp) {
-                case MP8:  mpLabel = "8MP"; break;
-                case MP12: mpLabel = "12MP"; break;
-                default:   mpLabel = "16MP"; break;
+        boolean rawPending = job.raw != null && dngMetadata(job);
+        String dname = dngName(job);
+        Size rawSize = job.hasRaw() ? new Size(job.rawW, job.rawH) : null;
+        DngWriter writer = null;
+        MediaStoreWriter.Item dngItem = null;
+        String unsupported = null;
+        if (rawPending) {
+            setStatusForced("Processing DNG...");
+            job.dngOrientation = dngOrientation();
+            job.rawPackedBytes = job.raw.remaining();
+            if (RawUnpacker.isPacked(job.rawFormat)) {
+                long t0 = SystemClock.elapsedRealtime();
+                job.raw = RawUnpacker.unpack(job.raw, job.rawFormat, job.rawW, job.rawH,
+                    RawUnpacker.rowBytes(job.rawFormat, job.rawW));
+                job.unpackMs = SystemClock.elapsedRealtime() - t0;
             }
+            try {
+                writer = prepareDng(job, rawSize);
+                dngItem = new MediaStoreWriter.Item(dname, "image/x-adobe-dng",
+                    dngBody(writer, job.raw, rawSize, job.dngLossless));
+                batch.add(dngItem);
+            } catch (IllegalArgumentException e) {
+                // Metadata the in-app writer can't describe: let DngCreator have it
+                unsupported = e.getMessage();
+            } catch (Exception dngErr) {
+                job.dngError = dngErr.getMessage();
+            }
+        }
 
-            int jpegRotDeg = getJpegRotationDegrees();
-
-            StringBuilder receipt = new StringBuilder();
-            receipt.append("\u2550\u2550\u2550 CAPTURE RECEIPT \u2550\u2550\u2550\n");
-            receipt.append("Time: ").append(
-                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date())).append("\n");
-            receipt.append("Mode: ").append(mpLabel).append(maxRes ? " (MAX-RES)" : " (DEFAULT)").append("\n");
-            receipt.append("sensorOrientation: ").append(sensorOrientation).append("\u00B0\n");
-            receipt.append("JPEG pixel rotation: ").append(jpegRotDeg).append("\u00B0\n");
-            receipt.append("JPEG_ORIENTATION sent: 0\u00B0 (pixel rotation in software)\n");
-            receipt.append("EV: ").append((currentEv >= 0 ? "+" : "")).append(currentEv).append("\n");
-
-            // Save JPEG
-            if (jpegData[0] != null) {
-                setStatusForced("Processing JPEG...");
-
-                // Rotate pixels to upright using sensorOrientation
-                byte[] finalJpeg = rotateJpegPixels(jpegData[0], jpegRotDeg);
-
-                // Decode final dimensions
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(finalJpeg, 0, finalJpeg.length, opts);
-                int dw = opts.outWidth, dh = opts.outHeight;
-                double mp = (long) dw * dh / 1e6;
-
-                // Sanity check: for a landscape-locked device, W should be >= H
-                boolean orientCorrect = (dw >= dh);
-                if (!orientCorrect) {
-                    receipt.append("NOTE: W<H after rotation (").append(dw).append("x").append(dh)
-                        .append("). Sensor may have unusual orientation.\n");
-                }
-
-                String jname = "FlashCam_" + ts + "_" + mpLabel + "_full.jpg";
-                File savedFile = saveToMediaStore(finalJpeg, jname, "image/jpeg");
-
-                receipt.append("\u2500\u2500 JPEG \u2500\u2500\n");
-                receipt.append("Sensor raw: ").append(dims[0][0]).append("x").append(dims[0][1]).append("\n");
-                receipt.append("Rotation applied: ").append(jpegRotDeg).append("\u00B0\n");
-                receipt.append("Saved: ").append(dw).append("x").append(dh)
-                    .append(" (").append(String.format(Locale.US, "%.1f", mp)).append(" MP)\n");
-                receipt.append("File: ").append(savedFile != null ? savedFile.getAbsolutePath() : "SAVE FAILED").append("\n");
-                receipt.append("Size: ").append(savedFile != null ?
-                    String.format(Locale.US, "%,d bytes (%.2f MB)", savedFile.length(),
-                        savedFile.length() / 1048576.0) : "?").append("\n");
-
-                // Write EXIF — always ORIENTATION_NORMAL since pixels are already rotated
-                if (savedFile != null) {
-                    try {
-                        ExifInterface exif = new ExifInterface(savedFile.getAbsolutePath());
-                        exif.setAttribute(ExifInterface.TAG_ORIENTATION,
-                            String.valueOf(ExifInterface.ORIENTATION_NORMAL));
-                        exif.setAttribute(ExifInterface.TAG_SOFTWARE,
-                            "FlashCam-Air3 v" + APP_VERSION);
-                        exif.saveAttributes();
-                    } catch (Exception exifErr) {
-                        receipt.append("EXIF write error: ").append(exifErr.getMessage()).append("\n");
-                    }
-                }
+        if (!batch.isEmpty()) mediaWriter.writeBatch(encodePool, batch.toArray(new MediaStoreWriter.Item[0]));
+        if (jpegItem != null) job.jpegSave = jpegItem.result;
 
-                if (maxRes && mp >= 11.5) {
-                    receipt.append("VERDICT: FULL-RES CAPTURE CONFIRMED!\n");
-                } else if (orientCorrect) {
-                    receipt.append("VERDICT: Capture OK\n");
-                } else {
-                    receipt.append("VERDICT: Check orientation in Gallery\n");
-                }
-            } else {
-                receipt.append("\u2500\u2500 JPEG: NO DATA \u2500\u2500\n");
+        if (dngItem != null) {
+            job.dngSave = dngItem.result;
+            job.dngWriter = dngWriterSummary(writer, rawSize, job.dngLossless, job.dngSave);
+        } else if (unsupported != null) {
+            job.dngWriter = "DngCreator (" + unsupported + ")";
+            ByteBuffer raw = job.raw;
+            DngCreator dngCreator = null;
+            try {
+                DngCreator dng = dngCreator = new DngCreator(Camera2Backend.characteristics(camInfo),
+                    Camera2Backend.captureResult(job.result));
+                dngCreator.setDescription(dngDescription());
+                dngCreator.setOrientation(job.dngOrientation);
+                job.dngSave = mediaWriter.write(dname, "image/x-adobe-dng",
+                    out -> dng.writeByteBuffer(out, rawSize, raw, 0));
+            } catch (Exception dngErr) {
+                job.dngError = dngErr.getMessage();
+            } finally {
+                if (dngCreator != null) dngCreator.close();
             }
+        }
+    }
 
-            // Save DNG
-            if (rawImage[0] != null && capResultHolder[0] != null && camChars != null) {
-                setStatusForced("Processing DNG...");
-                String dname = "FlashCam_" + ts + "_" + mpLabel + ".dng";
-                try {
-                    DngCreator dngCreator = new DngCreator(camChars, capResultHolder[0]);
-                    dngCreator.setDescription("FlashCam-Air3 v" + APP_VERSION + " Max-Res");
-
-                    // DNG stores raw sensor data — set orientation tag so viewers know how to rotate
-                    int dngExifOrientation;
-                    switch (sensorOrientation) {
-                        case 90:  dngExifOrientation = ExifInterface.ORIENTATION_ROTATE_90; break;
-                        case 180: dngExifOrientation = ExifInterface.ORIENTATION_ROTATE_180; break;
-                        case 270: dngExifOrientation = ExifInterface.ORIENTATION_ROTATE_270; break;
-                        default:  dngExifOrientation = ExifInterface.ORIENTATION_NORMAL; break;
-                    }
-                    dngCreator.setOrientation(dngExifOrientation);
-
-                    File dngFile = saveDngToMediaStore(dngCreator, rawImage[0], dname);
-
-                    receipt.append("\u2500\u2500 DNG \u2500\u2500\n");
-                    receipt.append("Actual: ").append(dims[1][0]).append("x").append(dims[1][1]).append("\n");
-                    receipt.append("File: ").append(dngFile != null ? dngFile.getAbsolutePath() : "SAVE FAILED").append("\n");
-                    receipt.append("Size: ").append(dngFile != null ?
-                        String.format(Locale.US, "%,d bytes (%.2f MB)", dngFile.length(),
-                            dngFile.length() / 1048576.0) : "?").append("\n");
-                    receipt.append("DNG orientation tag: ").append(dngExifOrientation).append("\n");
-
-                    dngCreator.close();
-                } catch (Exception dngErr) {
-                    receipt.append("\u2500\u2500 DNG ERROR: ").append(dngErr.getMessage()).append(" \u2500\u2500\n");
-                } finally {
-                    rawImage[0].close();
-                }
-            } else if (rawImage[0] != null) {
-                rawImage[0].close();
-            }
+    private String dngName(CaptureJob<MediaStoreWriter.Result> job) {
+        return "FlashCam_" + job.ts + "_" + job.mpLabel + ".dng";
+    }
 
-            receipt.append("\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\n");
+    /** Encoder and EXIF settings for CaptureStages. */
+    private static CaptureStages.Config stagesConfig() {
+        CaptureStages.Config c = new CaptureStages.Config();
+        c.yuvQuality = YUV_JPEG_QUALITY;
+        c.yuvSubsampling = YUV_JPEG_SUBSAMPLING;
+        c.exifThumbnail = EXIF_THUMBNAIL;
+        c.software = "FlashCam-Air3 v" + APP_VERSION;
+        c.make = Build.MANUFACTURER;
+        c.model = Build.MODEL;
+        return c;
+    }
 
-            lastReceipt = receipt.toString();
-            synchronized (receiptLog) {
-                receiptLog.add(lastReceipt);
-                while (receiptLog.size() > 50) receiptLog.remove(0);
-            }
+    private static String dngDescription() {
+        return "FlashCam-Air3 v" + APP_VERSION + " Max-Res";
+    }
 
-            final boolean showReceipt = debugEnabled;
-            mainHandler.post(() -> {
-                if (showReceipt) {
-                    tvReceipt.setText(lastReceipt);
-                    receiptPanel.setVisibility(View.VISIBLE);
-                }
-            });
+    /** DNG stores raw sensor data — the orientation tag tells viewers how to rotate it. */
+    private int dngOrientation() {
+        switch (sensorOrientation) {
+            case 90:  return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180: return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270: return ExifInterface.ORIENTATION_ROTATE_270;
+            default:  return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
 
-            setStatusForced("Saved! " + mpLabel);
+    /** DNG tags need the Camera2 characteristics and result, which synthetic captures don't have. */
+    private boolean dngMetadata(CaptureJob<MediaStoreWriter.Result> job) {
+        return Camera2Backend.characteristics(camInfo) != null && Camera2Backend.captureResult(job.result) != null;
+    }
 
-        } catch (Exception e) {
-            finishCapture("Error: " + e.getMessage());
-            return;
-        } finally {
-            // ImageReaders are closed when they go out of scope via GC
+    /** In-app DNG tags for the job's RAW frame; IllegalArgumentException if only DngCreator can describe it. */
+    private DngWriter prepareDng(CaptureJob<MediaStoreWriter.Result> job, Size rawSize) {
+        job.dngOrientation = dngOrientation();
+        return DngTags.prepare(Camera2Backend.characteristics(camInfo), Camera2Backend.captureResult(job.result),
+                rawSize, job.maxRes)
+            .orientation(job.dngOrientation)
+            .description(dngDescription())
+            .software("FlashCam-Air3 v" + APP_VERSION)
+            .captureTime(job.captureWallMs);
+    }
+
+    /** Unpadded 16-bit samples through writer, as tiled LJ92 or uncompressed strips. */
+    private MediaStoreWriter.ChannelBody dngBody(DngWriter writer, ByteBuffer raw, Size rawSize, boolean lossless) {
+        int rowStride = rawSize.getWidth() * 2;
+        if (lossless) return ch -> writer.writeTiledTo(ch, raw, rowStride, tilePool);
+        return ch -> writer.writeTo(ch, raw, rowStride);
+    }
+
+    private String dngWriterSummary(DngWriter writer, Size rawSize, boolean lossless, MediaStoreWriter.Result saved) {
+        if (lossless) {
+            long uncompressed = (long) rawSize.getWidth() * rawSize.getHeight() * 2;
+            return String.format(Locale.US, "in-app LJ92 (%d tiles of %d\u00B2 on %d workers, %.0f%% of uncompressed)",
+                writer.tiles(), DngWriter.TILE_SIZE, tilePool.getParallelism(),
+                saved != null ? saved.bytes * 100.0 / uncompressed : 0);
         }
+        return String.format(Locale.US, "in-app NIO (%,d-byte header, %d strips)",
+            writer.headerBytes(), writer.strips());
+    }
 
-        capturing = false;
-        try { Thread.sleep(300); } catch (InterruptedException ignored) {}
-        startPreview();
-        mainHandler.post(() -> btnShutter.setEnabled(true));
+    /** JpegSpool replay, on the worker at launch: a JPEG an earlier run spooled but never saved. */
+    private boolean saveSpooledJpeg(String name, String mimeType, ByteBuffer data) {
+        if (mediaWriter.isSaved(name, data.remaining())) return true;
+        MediaStoreWriter.Result saved = mediaWriter.write(name, mimeType, data);
+        if (saved == null) return false;
+        Log.i(TAG, "Recovered " + name + " from the JPEG spool: " + saved.summary());
+        return true;
     }
 
-    private void finishCapture(String msg) {
-        setStatusForced(msg);
-        capturing = false;
-        try { Thread.sleep(300); } catch (InterruptedException ignored) {}
-        if (cameraDevice != null) startPreview();
-        mainHandler.post(() -> btnShutter.setEnabled(true));
+    /** RawSpool converter, on the spool worker: unpack if needed and write the prepared DNG. */
+    private MediaStoreWriter.Result convertSpooled(RawSpool.Entry e, ByteBuffer data) {
+        long t0 = SystemClock.elapsedRealtimeNanos();
+        ByteBuffer raw = RawUnpacker.isPacked(e.format)
+            ? RawUnpacker.unpack(data, e.format, e.width, e.height, e.rowBytes) : data;
+        MediaStoreWriter.Result saved = mediaWriter.writeChannel(e.name, "image/x-adobe-dng",
+            dngBody(e.writer, raw, new Size(e.width, e.height), e.lossless));
+        // Name ends in _<MP>.dng, which gives the configuration the shot was taken in
+        String mp = e.name.substring(e.name.lastIndexOf('_') + 1, e.name.length() - ".dng".length());
+        latencyStats.record(mp + " +DNG", "DNG convert", SystemClock.elapsedRealtimeNanos() - t0);
+        return saved;
     }
 
-    // ================================================================
-    // MEDIASTORE SAVING (scoped storage safe)
-    // ================================================================
-    private File saveToMediaStore(byte[] data, String filename, String mimeType) {
-        if (Build.VERSION.SDK_INT >= 29) {
-            try {
-                ContentValues values = new ContentValues();
-                values.put(MediaStore.Images.Media.DISPLAY_NAME, filename);
-                values.put(MediaStore.Images.Media.MIME_TYPE, mimeType);
-                values.put(MediaStore.Images.Media.RELATIVE_PATH,
-                    Environment.DIRECTORY_PICTURES + "/FlashCam-Air3");
-                values.put(MediaStore.Images.Media.IS_PENDING, 1);
-
-                Uri uri = getContentResolver().insert(
-                    MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-                if (uri != null) {
-                    OutputStream out = getContentResolver().openOutputStream(uri);
-                    if (out != null) {
-                        out.write(data);
-                        out.close();
-                    }
-                    values.clear();
-                    values.put(MediaStore.Images.Media.IS_PENDING, 0);
-                    getContentResolver().update(uri, values, null, null);
-
-                    File dir = new File(Environment.getExternalStoragePublicDirectory(
-                        Environment.DIRECTORY_PICTURES), "FlashCam-Air3");
-                    return new File(dir, filename);
-                }
-            } catch (Exception e) {
-                Log.w(TAG, "MediaStore save failed, falling back: " + e.getMessage());
-            }
+    /** Short receipt for a DNG the spool finished after the capture receipt went out. */
+    private void onSpoolConverted(RawSpool.Entry e, MediaStoreWriter.Result saved, Exception error) {
+        StringBuilder receipt = new StringBuilder();
+        receipt.append("\u2550\u2550\u2550 DNG RECEIPT \u2550\u2550\u2550\n");
+        receipt.append("Time: ").append(
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date())).append("\n");
+        receipt.append("Name: ").append(e.name).append(e.recovered ? " (recovered from spool)" : "").append("\n");
+        if (error != null) {
+            receipt.append("\u2500\u2500 DNG ERROR: ").append(error.getMessage()).append(" \u2500\u2500\n");
+        } else {
+            receipt.append("File: ").append(saved.file.getAbsolutePath()).append("\n");
+            receipt.append(String.format(Locale.US, "Size: %,d bytes (%.2f MB)\n", saved.bytes, saved.bytes / 1048576.0));
+            receipt.append("Write: ").append(saved.summary()).append("\n");
+            receipt.append("Checksum: ").append(saved.checksum()).append("\n");
+            receipt.append("Writer: ").append(dngWriterSummary(e.writer, new Size(e.width, e.height), e.lossless, saved))
+                .append("\n");
         }
-
-        // Fallback: direct file write
-        try {
-            File dir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_PICTURES), "FlashCam-Air3");
-            if (!dir.exists()) dir.mkdirs();
-            File file = new File(dir, filename);
-            FileOutputStream fos = new FileOutputStream(file);
-            fos.write(data);
-            fos.close();
-            MediaScannerConnection.scanFile(this,
-                new String[]{file.getAbsolutePath()}, new String[]{mimeType}, null);
-            return file;
-        } catch (Exception e) {
-            setStatusForced("Save error: " + e.getMessage());
-            return null;
+        receipt.append("Spool: ").append(rawSpool.stats()).append("\n");
+        receipt.append("\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\n");
+        CaptureJournal.Record rec = new CaptureJournal.Record();
+        rec.kind = CaptureJournal.KIND_DNG;
+        rec.wallMs = System.currentTimeMillis();
+        rec.dng = true;
+        rec.lossless = e.lossless;
+        rec.rawW = e.width;
+        rec.rawH = e.height;
+        if (saved != null) {
+            rec.dngBytes = saved.bytes;
+            rec.dngCrcValid = saved.checksummed;
+            rec.dngCrc = saved.crc32c;
+            if (saved.uri != null) rec.dngUri = saved.uri.toString();
         }
+        rec.note = e.name + (e.recovered ? " (recovered from spool)" : "")
+            + (error != null ? " error: " + error.getMessage() : "");
+        journal.append(rec);
+        if (error != null) countFailure("dng_save");
+        setStatusForced(error == null ? "DNG saved" : "DNG save error");
     }
 
-    private File saveDngToMediaStore(DngCreator dngCreator, Image rawImage, String filename) {
-        if (Build.VERSION.SDK_INT >= 29) {
-            try {
-                ContentValues values = new ContentValues();
-                values.put(MediaStore.Images.Media.DISPLAY_NAME, filename);
-                values.put(MediaStore.Images.Media.MIME_TYPE, "image/x-adobe-dng");
-                values.put(MediaStore.Images.Media.RELATIVE_PATH,
-                    Environment.DIRECTORY_PICTURES + "/FlashCam-Air3");
-                values.put(MediaStore.Images.Media.IS_PENDING, 1);
-
-                Uri uri = getContentResolver().insert(
-                    MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-                if (uri != null) {
-                    OutputStream out = getContentResolver().openOutputStream(uri);
-                    if (out != null) {
-                        dngCreator.writeImage(out, rawImage);
-                        out.close();
-                    }
-                    values.clear();
-                    values.put(MediaStore.Images.Media.IS_PENDING, 0);
-                    getContentResolver().update(uri, values, null, null);
-
-                    File dir = new File(Environment.getExternalStoragePublicDirectory(
-                        Environment.DIRECTORY_PICTURES), "FlashCam-Air3");
-                    return new File(dir, filename);
+    /** Capture receipt, journal record and UI; EXIF was already written by the persist stage. */
+    private void metadataStage(CaptureJob<MediaStoreWriter.Result> job) {
+        boolean maxRes = job.maxRes;
+        StringBuilder receipt = new StringBuilder();
+        receipt.append("\u2550\u2550\u2550 CAPTURE RECEIPT \u2550\u2550\u2550\n");
+        receipt.append("Time: ").append(
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date())).append("\n");
+        receipt.append("Mode: ").append(job.mpLabel).append(maxRes ? " (MAX-RES)" : " (DEFAULT)").append("\n");
+        receipt.append("sensorOrientation: ").append(sensorOrientation).append("\u00B0\n");
+        receipt.append("JPEG pixel rotation: ").append(job.rotation).append("\u00B0\n");
+        receipt.append("JPEG_ORIENTATION sent: 0\u00B0 (pixel rotation in software)\n");
+        receipt.append("EV: ").append((job.ev >= 0 ? "+" : "")).append(job.ev).append("\n");
+        receipt.append("Session: ").append(job.combined
+            ? "combined (preview kept running)" : "dedicated (preview restarted)").append("\n");
+        if (!job.combined) {
+            receipt.append("Session create: ").append(job.sessionMs).append(" ms (")
+                .append(sessionCache.stats()).append(")\n");
+        }
+
+        if (job.jpeg != null || job.halBytes > 0 && job.halJpeg == null) {
+            // Final dimensions, read from the SOF header by the persist stage
+            int dw = job.outW > 0 ? job.outW : job.dims[0][0];
+            int dh = job.outH > 0 ? job.outH : job.dims[0][1];
+            double mp = (long) dw * dh / 1e6;
+
+            // Sanity check: for a landscape-locked device, W should be >= H
+            boolean orientCorrect = (dw >= dh);
+            if (!orientCorrect) {
+                receipt.append("NOTE: W<H after rotation (").append(dw).append("x").append(dh)
+                    .append("). Sensor may have unusual orientation.\n");
+            }
+
+            MediaStoreWriter.Result saved = job.jpegSave;
+            File savedFile = saved != null ? saved.file : null;
+            receipt.append("\u2500\u2500 JPEG \u2500\u2500\n");
+            receipt.append("Sensor raw: ").append(job.dims[0][0]).append("x").append(job.dims[0][1]).append("\n");
+            receipt.append("Rotation applied: ").append(job.rotation).append("\u00B0 ")
+                .append(job.rotateMethod).append("\n");
+            if (job.halBytes > 0) {
+                receipt.append("Entropy: ").append(job.entropyMode)
+                    .append(String.format(Locale.US, " (HAL %,d \u2192 %,d bytes)",
+                        job.halBytes, saved != null ? saved.bytes : 0)).append("\n");
+            } else {
+                receipt.append("Entropy: ").append(job.entropyMode).append(" (YUV Q")
+                    .append(YUV_JPEG_QUALITY).append(" ").append(YUV_JPEG_SUBSAMPLING).append(")\n");
+            }
+            receipt.append("Saved: ").append(dw).append("x").append(dh)
+                .append(" (").append(String.format(Locale.US, "%.1f", mp)).append(" MP)\n");
+            receipt.append("File: ").append(savedFile != null ? savedFile.getAbsolutePath() : "SAVE FAILED").append("\n");
+            receipt.append("Size: ").append(saved != null ?
+                String.format(Locale.US, "%,d bytes (%.2f MB)", saved.bytes,
+                    saved.bytes / 1048576.0) : "?").append("\n");
+            if (saved != null) {
+                receipt.append("Write: ").append(saved.summary()).append("\n");
+                receipt.append("Checksum: ").append(saved.checksum()).append("\n");
+            }
+            if (job.exifBytes > 0) {
+                receipt.append(String.format(Locale.US, "EXIF: %,d bytes spliced in on write (orientation 1%s)",
+                    job.exifBytes, job.exifThumbnail ? ", thumbnail" : "")).append("\n");
+            }
+
+            if (maxRes && mp >= 11.5) {
+                receipt.append("VERDICT: FULL-RES CAPTURE CONFIRMED!\n");
+            } else if (orientCorrect) {
+                receipt.append("VERDICT: Capture OK\n");
+            } else {
+                receipt.append("VERDICT: Check orientation in Gallery\n");
+            }
+        } else {
+            receipt.append("\u2500\u2500 JPEG: NO DATA \u2500\u2500\n");
+        }
+
+        if (job.dngError != null) {
+            receipt.append("\u2500\u2500 DNG ERROR: ").append(job.dngError).append(" \u2500\u2500\n");
+        } else if (job.hasRaw()) {
+            MediaStoreWriter.Result dngSaved = job.dngSave;
+            receipt.append("\u2500\u2500 DNG \u2500\u2500\n");
+            receipt.append("Actual: ").append(job.dims[1][0]).append("x").append(job.dims[1][1]).append("\n");
+            receipt.append("Format: ").append(rawFormatChoice).append("\n");
+            long sensorBytes = (long) job.rawW * job.rawH * 2;
+            receipt.append(String.format(Locale.US, "Buffer: %,d bytes %s (RAW_SENSOR %,d)",
+                job.rawPackedBytes, rawFormatName(job.rawFormat), sensorBytes));
+            if (RawUnpacker.isPacked(job.rawFormat) && !job.rawSpooled) receipt.append(", unpacked in ").append(job.unpackMs).append(" ms");
+            receipt.append("\n");
+            if (job.rawSpooled) {
+                receipt.append(String.format(Locale.US,
+                    "Spooled: %,d bytes in %d ms \u2192 DNG converting in background\n",
+                    job.rawPackedBytes, job.spoolNanos / 1_000_000));
+                receipt.append("Spool: ").append(rawSpool.stats()).append("\n");
+            } else {
+                receipt.append("File: ").append(dngSaved != null ? dngSaved.file.getAbsolutePath() : "SAVE FAILED").append("\n");
+                receipt.append("Size: ").append(dngSaved != null ?
+                    String.format(Locale.US, "%,d bytes (%.2f MB)", dngSaved.bytes,
+                        dngSaved.bytes / 1048576.0) : "?").append("\n");
+                if (dngSaved != null) {
+                    receipt.append("Write: ").append(dngSaved.summary()).append("\n");
+                    receipt.append("Checksum: ").append(dngSaved.checksum()).append("\n");
                 }
-            } catch (Exception e) {
-                Log.w(TAG, "MediaStore DNG save failed, falling back: " + e.getMessage());
+                receipt.append("Writer: ").append(job.dngWriter).append("\n");
             }
+            receipt.append("DNG orientation tag: ").append(job.dngOrientation).append("\n");
         }
 
-        // Fallback
-        try {
-            File dir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_PICTURES), "FlashCam-Air3");
-            if (!dir.exists()) dir.mkdirs();
-            File file = new File(dir, filename);
-            OutputStream out = new FileOutputStream(file);
-            dngCreator.writeImage(out, rawImage);
-            out.close();
-            MediaScannerConnection.scanFile(this,
-                new String[]{file.getAbsolutePath()}, new String[]{"image/x-adobe-dng"}, null);
-            return file;
-        } catch (Exception e) {
-            setStatusForced("DNG save error: " + e.getMessage());
-            return null;
+        receipt.append(job.notes);
+        receipt.append("Pipeline: ").append(capturePipeline.stats()).append("\n");
+        receipt.append("Storage: ").append(mediaWriter.stats()).append("\n");
+        receipt.append("JPEG spool: ").append(jpegSpool.stats()).append("\n");
+        receipt.append("Integrity: ").append(mediaWriter.verifier().stats()).append("\n");
+        receipt.append("Readers: ").append(readerPool.stats()).append("\n");
+        receipt.append(String.format(Locale.US, "Hand-off \u2192 done: %d ms\n",
+            SystemClock.elapsedRealtime() - job.handoffAt));
+        receipt.append("Heap: ").append(heapMeter.summary()).append("\n");
+        receipt.append("\u2500\u2500 Latency: ").append(job.latencyKey).append(" (this shot, session) \u2500\u2500\n");
+        receipt.append(latencyStats.report(job.latencyKey, job.latency));
+        receipt.append("\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\u2550\n");
+
+        String text = receipt.toString();
+        lastReceipt = text;
+        journal.append(journalRecord(job));
+
+        final boolean showReceipt = debugEnabled;
+        mainHandler.post(() -> {
+            if (showReceipt) {
+                tvReceipt.setText(text);
+                receiptPanel.setVisibility(View.VISIBLE);
+            }
+        });
+
+        setStatusForced("Saved! " + job.mpLabel);
+    }
+
+    /** The shot as a fixed-size journal record; strings beyond their slot are cut. */
+    private static CaptureJournal.Record journalRecord(CaptureJob<MediaStoreWriter.Result> job) {
+        CaptureJournal.Record r = CaptureStages.journalRecord(job);
+        MediaStoreWriter.Result jpeg = job.jpegSave, dng = job.dngSave;
+        if (jpeg != null) {
+            r.jpegBytes = jpeg.bytes;
+            r.jpegCrcValid = jpeg.checksummed;
+            r.jpegCrc = jpeg.crc32c;
+            if (jpeg.uri != null) r.jpegUri = jpeg.uri.toString();
+        }
+        if (dng != null) {
+            r.dngBytes = dng.bytes;
+            r.dngCrcValid = dng.checksummed;
+            r.dngCrc = dng.crc32c;
+            if (dng.uri != null) r.dngUri = dng.uri.toString();
         }
+        return r;
     }
 
     // ================================================================
@@ -1126,33 +1920,11 @@ public class MainActivity extends AppCompatActivity {
     private void adjustEv(int delta) {
         currentEv += delta;
         // Clamp to range
-        if (camChars != null) {
-            android.util.Range<Integer> evRange = camChars.get(
-                CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
-            if (evRange != null) {
-                currentEv = Math.max(evRange.getLower(), Math.min(evRange.getUpper(), currentEv));
-            }
+        if (camInfo != null && camInfo.evMin < camInfo.evMax) {
+            currentEv = Math.max(camInfo.evMin, Math.min(camInfo.evMax, currentEv));
         }
         tvEv.setText((currentEv >= 0 ? "+" : "") + currentEv + " EV");
-
-        // Apply to current preview
-        if (previewSession != null && cameraDevice != null && !capturing) {
-            try {
-                CaptureRequest.Builder b = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-                SurfaceTexture st = textureView.getSurfaceTexture();
-                if (st != null) {
-                    Size ps = previewSize != null ? previewSize : new Size(1440, 1080);
-                    st.setDefaultBufferSize(ps.getWidth(), ps.getHeight());
-                    b.addTarget(new Surface(st));
-                    b.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                    b.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
-                    b.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, currentEv);
-                    previewSession.setRepeatingRequest(b.build(), null, camHandler);
-                }
-            } catch (Exception e) {
-                Log.w(TAG, "EV adjust error: " + e.getMessage());
-            }
-        }
+        controls.setEv(currentEv);
     }
 
     private void triggerShutterFlash() {
@@ -1169,58 +1941,68 @@ public class MainActivity extends AppCompatActivity {
             .start();
     }
 
-    private void updateFocusIndicator(TotalCaptureResult result) {
-        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-
-        String afText = "AF:--";
-        if (afState != null) {
-            switch (afState) {
-                case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED: afText = "AF:LOCK"; break;
-                case CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED: afText = "AF:FAIL"; break;
-                case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED: afText = "AF:OK"; break;
-                case CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN: afText = "AF:SCAN"; break;
-                case CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN: afText = "AF:SCAN"; break;
-                default: afText = "AF:" + afState; break;
-            }
+    /** UI thread, after previewFrames.drain(): redraw only when the AF or AE state changed. */
+    private void updateFocusIndicator() {
+        int afState = previewFrames.lastAf;
+        int aeState = previewFrames.lastAe;
+        if (afState == shownAf && aeState == shownAe) return;
+        shownAf = afState;
+        shownAe = aeState;
+
+        String afText;
+        switch (afState) {
+            case FrameRing.UNKNOWN: afText = "AF:--"; break;
+            case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED: afText = "AF:LOCK"; break;
+            case CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED: afText = "AF:FAIL"; break;
+            case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED: afText = "AF:OK"; break;
+            case CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN: afText = "AF:SCAN"; break;
+            case CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN: afText = "AF:SCAN"; break;
+            default: afText = "AF:" + afState; break;
         }
 
-        String aeText = "AE:--";
-        if (aeState != null) {
-            switch (aeState) {
-                case CaptureResult.CONTROL_AE_STATE_CONVERGED: aeText = "AE:OK"; break;
-                case CaptureResult.CONTROL_AE_STATE_SEARCHING: aeText = "AE:SCAN"; break;
-                case CaptureResult.CONTROL_AE_STATE_LOCKED: aeText = "AE:LOCK"; break;
-                case CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED: aeText = "AE:FLASH"; break;
-                default: aeText = "AE:" + aeState; break;
-            }
+        String aeText;
+        switch (aeState) {
+            case FrameRing.UNKNOWN: aeText = "AE:--"; break;
+            case CaptureResult.CONTROL_AE_STATE_CONVERGED: aeText = "AE:OK"; break;
+            case CaptureResult.CONTROL_AE_STATE_SEARCHING: aeText = "AE:SCAN"; break;
+            case CaptureResult.CONTROL_AE_STATE_LOCKED: aeText = "AE:LOCK"; break;
+            case CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED: aeText = "AE:FLASH"; break;
+            default: aeText = "AE:" + aeState; break;
         }
 
-        final String text = afText + " | " + aeText;
-        mainHandler.post(() -> tvFocusIndicator.setText(text));
+        tvFocusIndicator.setText(afText + " | " + aeText);
     }
 
     // ================================================================
     // STATE MACHINE (throttled status updates)
     // ================================================================
-    private void transitionState(CamState newState) {
-        camState = newState;
+    /** CameraStateMachine listener, on the worker thread. */
+    private void onCameraState(CameraStateMachine.CamState state, String detail) {
         String text;
-        switch (newState) {
+        switch (state) {
             case INIT:      text = "Initializing..."; break;
-            case OPENING:   text = "Opening camera..."; break;
+            case OPENING:   text = detail != null ? "Opening camera (" + detail + ")..." : "Opening camera..."; break;
             case PREVIEW:   text = "Ready"; break;
             case CAPTURING: text = "Capturing..."; break;
-            case ERROR:     text = "Error"; break;
+            case ERROR:     text = detail != null ? detail : "Error"; break;
             default:        text = ""; break;
         }
+        if (state == CameraStateMachine.CamState.ERROR && !backend.isOpen()) {
+            // Device gone: sessions and the combined readers went with it
+            previewAttempt++;
+            previewSession = null;
+            closeCombinedReaders();
+            sessionCache.clear();
+        }
         setStatusForced(text);
     }
 
     private void setStatusForced(String text) {
         long now = System.currentTimeMillis();
         lastStatusUpdate = now;
-        mainHandler.post(() -> tvStatus.setText(text));
+        statusText = text;
+        // Cleared by statusUpdate before it reads the text, so the last text set is always shown
+        if (statusPosted.compareAndSet(false, true)) mainHandler.post(statusUpdate);
     }
 
     // ================================================================
@@ -1238,30 +2020,42 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Stream the capture journal to CSV and JSON in the app's logs folder on
+     * a background thread, with progress in the status line.
+     */
     private void exportLog() {
-        synchronized (receiptLog) {
-            if (receiptLog.isEmpty()) {
-                Toast.makeText(this, "No captures yet", Toast.LENGTH_SHORT).show();
-                return;
-            }
+        if (exporting) {
+            Toast.makeText(this, "Export already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        exporting = true;
+        Thread t = new Thread(() -> {
             try {
-                File dir = new File(Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_PICTURES), "FlashCam-Air3");
+                if (journal.size() == 0) {
+                    mainHandler.post(() -> Toast.makeText(this, "No captures yet", Toast.LENGTH_SHORT).show());
+                    return;
+                }
+                // Scoped storage only takes media in Pictures, so the log goes to app-specific storage
+                File dir = getExternalFilesDir("logs");
+                if (dir == null) throw new IOException("external storage unavailable");
                 if (!dir.exists()) dir.mkdirs();
-                File f = new File(dir, "flashcam_log.txt");
-                FileWriter w = new FileWriter(f, false);
-                w.write("FlashCam-Air3 v" + APP_VERSION + " Log \u2014 " + receiptLog.size() + " captures\n");
-                w.write("Exported: " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss",
-                    Locale.US).format(new Date()) + "\n\n");
-                for (String r : receiptLog) { w.write(r); w.write("\n"); }
-                w.close();
-                Toast.makeText(this, "Log saved: " + f.getAbsolutePath(),
-                    Toast.LENGTH_LONG).show();
+                String stamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+                File csv = new File(dir, "flashcam_log_" + stamp + ".csv");
+                File json = new File(dir, "flashcam_log_" + stamp + ".json");
+                journal.export(csv, json, (done, total) ->
+                    setStatusForced(String.format(Locale.US, "Exporting log %,d / %,d", done, total)));
+                mainHandler.post(() -> Toast.makeText(this, "Log saved: " + csv.getAbsolutePath()
+                    + " (+ .json)", Toast.LENGTH_LONG).show());
             } catch (IOException e) {
-                Toast.makeText(this, "Export failed: " + e.getMessage(),
-                    Toast.LENGTH_LONG).show();
+                mainHandler.post(() -> Toast.makeText(this, "Export failed: " + e.getMessage(),
+                    Toast.LENGTH_LONG).show());
+            } finally {
+                exporting = false;
             }
-        }
+        }, "LogExport");
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
     }
 
     // ================================================================
@@ -1272,13 +2066,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private Size findLargest(Size[] sizes) {
-        Size best = sizes[0];
-        long bestPx = (long) best.getWidth() * best.getHeight();
-        for (Size s : sizes) {
-            long px = (long) s.getWidth() * s.getHeight();
-            if (px > bestPx) { best = s; bestPx = px; }
-        }
-        return best;
+        return sizes[SizeSelector.largest(dims(sizes))];
     }
 
     private Size findBestForMp(Size[] sizes, MpMode mp) {
@@ -1288,30 +2076,17 @@ public class MainActivity extends AppCompatActivity {
             case MP12: targetPx = 12_000_000L; break;
             default:   targetPx = 16_000_000L; break;
         }
-
-        Size best = sizes[0];
-        long bestDiff = Math.abs((long) best.getWidth() * best.getHeight() - targetPx);
-        for (Size s : sizes) {
-            long px = (long) s.getWidth() * s.getHeight();
-            long diff = Math.abs(px - targetPx);
-            if (diff < bestDiff) { best = s; bestDiff = diff; }
-        }
-        return best;
+        return sizes[SizeSelector.closestTo(dims(sizes), targetPx)];
     }
 
     private Size findBest43Preview(Size[] sizes) {
-        Size best43 = null;
-        long best43Px = 0;
-        Size bestAny = null;
-        long bestAnyPx = 0;
-        for (Size s : sizes) {
-            int w = s.getWidth(), h = s.getHeight();
-            long px = (long) w * h;
-            float ratio = (float) w / h;
-            boolean is43 = Math.abs(ratio - 4f / 3f) < 0.02f;
-            if (is43 && px <= 1920L * 1440 && px > best43Px) { best43 = s; best43Px = px; }
-            if (px <= 1920L * 1440 && px > bestAnyPx) { bestAny = s; bestAnyPx = px; }
-        }
-        return best43 != null ? best43 : (bestAny != null ? bestAny : sizes[0]);
+        return sizes[SizeSelector.preview43(dims(sizes))];
+    }
+
+    /** Sizes back to the {width, height} pairs SizeSelector works on. */
+    private static int[][] dims(Size[] sizes) {
+        int[][] wh = new int[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) wh[i] = new int[]{sizes[i].getWidth(), sizes[i].getHeight()};
+        return wh;
     }
 }
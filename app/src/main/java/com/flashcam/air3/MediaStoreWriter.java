@@ -0,0 +1,566 @@
+package com.flashcam.air3;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes capture files into Pictures/FlashCam-Air3 through MediaStore. The
+ * row's Uri is opened as a ParcelFileDescriptor and the payload goes out
+ * through a FileChannel: direct buffers (an Image plane) are written without
+ * touching the Java heap, and multi-part payloads (header + body) use one
+ * gathering write instead of being concatenated first.
+ *
+ * The state of every save's row is journaled ({@link SaveJournal}) from
+ * insert to publish and a failed MediaStore attempt is retried with
+ * backoff; only when every attempt fails is the file written directly and
+ * scanned, as before. Rows a crash left at IS_PENDING=1 are published or
+ * deleted by {@link #reconcile} on the next launch. The journal holds no
+ * payloads: JPEGs are kept until saved by {@link JpegSpool}, RAW frames by
+ * {@link RawSpool}.
+ *
+ * Files saved together ({@link #writeBatch}) share one applyBatch insert
+ * and one applyBatch publish, so a JPEG+DNG pair costs two Binder round
+ * trips for its rows instead of four.
+ *
+ * Every payload goes out through a {@link HashingChannel}, so each saved
+ * file's CRC-32C (and SHA-256 if enabled) comes from the write itself and
+ * is kept in an {@link IntegrityVerifier} index for later re-checks.
+ */
+final class MediaStoreWriter {
+
+    static final String DIRECTORY = "FlashCam-Air3";
+    private static final String TAG = "FlashCam";
+    private static final String RELATIVE_PATH = Environment.DIRECTORY_PICTURES + "/" + DIRECTORY;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_MS = 50;
+
+    /** Streams a payload that is not available as buffers (DngCreator). */
+    interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /** Writes straight to the file's channel, for writers that manage their own chunking. */
+    interface ChannelBody {
+        void writeTo(FileChannel ch) throws IOException;
+    }
+
+    /** Outcome of one save, with its throughput for the receipt. */
+    static final class Result {
+        File file;
+        Uri uri;
+        long bytes;
+        long nanos;
+        int attempts;
+        boolean batched, fallback;
+        boolean checksummed;
+        int crc32c;
+        byte[] sha256;
+        long hashNanos;
+
+        double millis() {
+            return nanos / 1e6;
+        }
+
+        String checksum() {
+            if (!checksummed) return "none (written out of order)";
+            String sha = sha256 != null ? IntegrityVerifier.hex(sha256) : null;
+            return String.format(Locale.US, "CRC32C %08x%s (%.1f ms hashing)", crc32c,
+                sha != null ? ", SHA-256 " + sha.substring(0, 16) + "\u2026" : "", hashNanos / 1e6);
+        }
+
+        String summary() {
+            double ms = millis();
+            return String.format(Locale.US, "%,d bytes in %.1f ms (%.1f MB/s%s%s)", bytes, ms,
+                ms > 0 ? bytes / 1048576.0 / (ms / 1000.0) : 0,
+                batched ? ", batched" : attempts > 1 ? ", attempt " + attempts : "", fallback ? ", direct file" : "");
+        }
+    }
+
+    private final Context context;
+    private final ContentResolver resolver;
+    private final SaveJournal journal;
+    private final IntegrityVerifier verifier;
+    private volatile boolean sha256;
+    /** Rows this process is writing right now; reconcile must not touch them. */
+    private final Set<String> inFlight = new HashSet<>();
+
+    // ── Throughput ──
+    private int files, retries, fallbacks, published, discarded, resolverCalls;
+    private long bytes, busyNanos, firstStart, lastEnd;
+
+    MediaStoreWriter(Context context) {
+        this.context = context;
+        this.resolver = context.getContentResolver();
+        this.journal = new SaveJournal(new File(context.getNoBackupFilesDir(), "save-journal"));
+        this.verifier = new IntegrityVerifier(resolver, new File(context.getNoBackupFilesDir(), "integrity-index"));
+    }
+
+    /** Also compute SHA-256 on write (CRC-32C is always on). */
+    void setSha256(boolean enabled) {
+        sha256 = enabled;
+    }
+
+    IntegrityVerifier verifier() {
+        return verifier;
+    }
+
+    /** One file of a {@link #writeBatch}; result is filled in like {@link #write}'s return value. */
+    static final class Item {
+        final String filename, mimeType;
+        final ChannelBody body;
+        Result result;
+
+        Item(String filename, String mimeType, ChannelBody body) {
+            this.filename = filename;
+            this.mimeType = mimeType;
+            this.body = body;
+        }
+
+        Item(String filename, String mimeType, ByteBuffer... parts) {
+            this(filename, mimeType, buffers(parts));
+        }
+    }
+
+    /** Save the concatenation of parts. Buffer positions are left alone. Returns null on failure. */
+    Result write(String filename, String mimeType, ByteBuffer... parts) {
+        return save(filename, mimeType, buffers(parts));
+    }
+
+    /** Save whatever body streams. Returns null on failure. */
+    Result write(String filename, String mimeType, Body body) {
+        return save(filename, mimeType, ch -> {
+            OutputStream out = Channels.newOutputStream(ch);
+            body.writeTo(out);
+            out.flush();
+        });
+    }
+
+    /** Save whatever body writes to the channel. Returns null on failure. */
+    Result writeChannel(String filename, String mimeType, ChannelBody body) {
+        return save(filename, mimeType, body);
+    }
+
+    private Result save(String filename, String mimeType, ChannelBody payload) {
+        Result r = new Result();
+        long t0 = System.nanoTime();
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            r.attempts = attempt;
+            if (attempt > 1) {
+                SystemClock.sleep(BACKOFF_MS << (2 * (attempt - 2)));
+                synchronized (this) { retries++; }
+            }
+            if (saveOnce(filename, mimeType, payload, r)) {
+                r.nanos = System.nanoTime() - t0;
+                account(r, t0);
+                return r;
+            }
+        }
+
+        // Fallback: direct file write
+        try {
+            File dir = publicDir();
+            if (!dir.exists()) dir.mkdirs();
+            File file = new File(dir, filename);
+            FileChannel created = null;
+            for (int n = 1; created == null; n++) {
+                try {
+                    created = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                } catch (FileAlreadyExistsException taken) {
+                    // Never overwrite an earlier photo; MediaStore renames the same way
+                    file = new File(dir, numbered(filename, n));
+                }
+            }
+            try (FileChannel ch = created) {
+                writeHashed(ch, payload, r);
+            }
+            MediaScannerConnection.scanFile(context,
+                new String[]{file.getAbsolutePath()}, new String[]{mimeType}, null);
+            r.file = file;
+            r.fallback = true;
+            r.nanos = System.nanoTime() - t0;
+            synchronized (this) { fallbacks++; }
+            account(r, t0);
+            recordChecksum(file.getAbsolutePath(), filename, r);
+            return r;
+        } catch (Exception e) {
+            Log.w(TAG, "Direct save failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** "name (n).ext" for name.ext. */
+    private static String numbered(String filename, int n) {
+        int dot = filename.lastIndexOf('.');
+        return dot < 0 ? filename + " (" + n + ")"
+            : filename.substring(0, dot) + " (" + n + ")" + filename.substring(dot);
+    }
+
+    /** One journaled MediaStore attempt; a failed row is deleted so the next attempt starts clean. */
+    private boolean saveOnce(String filename, String mimeType, ChannelBody payload, Result r) {
+        Uri uri = null;
+        String key = null;
+        try {
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Images.Media.DISPLAY_NAME, filename);
+            values.put(MediaStore.Images.Media.MIME_TYPE, mimeType);
+            values.put(MediaStore.Images.Media.RELATIVE_PATH, RELATIVE_PATH);
+            values.put(MediaStore.Images.Media.IS_PENDING, 1);
+
+            uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+            synchronized (this) { resolverCalls++; }
+            if (uri == null) return false;
+            key = uri.toString();
+            synchronized (inFlight) { inFlight.add(key); }
+            journal.begin(key, filename);
+            writePayload(uri, payload, r);
+            journal.written(key, r.bytes);
+            values.clear();
+            values.put(MediaStore.Images.Media.IS_PENDING, 0);
+            resolver.update(uri, values, null, null);
+            synchronized (this) { resolverCalls++; }
+            journal.done(key);
+
+            r.uri = uri;
+            r.file = new File(publicDir(), filename);
+            recordChecksum(key, filename, r);
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "MediaStore save attempt " + r.attempts + " failed: " + e.getMessage());
+            if (uri != null) discard(uri);
+            return false;
+        } finally {
+            if (key != null) {
+                synchronized (inFlight) { inFlight.remove(key); }
+            }
+        }
+    }
+
+    /**
+     * Save items with one batched insert, concurrent writes on executor and
+     * one batched IS_PENDING flip. An item the batch can't finish has its
+     * row deleted and goes through the per-file path (retries, then direct
+     * file) on its own; its result is null only if that fails too.
+     */
+    void writeBatch(Executor executor, Item... items) {
+        if (items.length == 1) {
+            items[0].result = save(items[0].filename, items[0].mimeType, items[0].body);
+            return;
+        }
+        long t0 = System.nanoTime();
+        Uri[] uris = new Uri[items.length];
+        try {
+            ArrayList<ContentProviderOperation> inserts = new ArrayList<>();
+            for (Item it : items) {
+                ContentValues values = new ContentValues();
+                values.put(MediaStore.Images.Media.DISPLAY_NAME, it.filename);
+                values.put(MediaStore.Images.Media.MIME_TYPE, it.mimeType);
+                values.put(MediaStore.Images.Media.RELATIVE_PATH, RELATIVE_PATH);
+                values.put(MediaStore.Images.Media.IS_PENDING, 1);
+                inserts.add(ContentProviderOperation.newInsert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(values).build());
+            }
+            ContentProviderResult[] inserted = resolver.applyBatch(MediaStore.AUTHORITY, inserts);
+            synchronized (this) { resolverCalls++; }
+            for (int i = 0; i < items.length; i++) uris[i] = inserted[i].uri;
+        } catch (Exception e) {
+            Log.w(TAG, "Batched insert failed, saving one by one: " + e.getMessage());
+            for (Item it : items) it.result = save(it.filename, it.mimeType, it.body);
+            return;
+        }
+
+        Result[] results = new Result[items.length];
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[items.length];
+        for (int i = 0; i < items.length; i++) {
+            Uri uri = uris[i];
+            if (uri == null) continue;
+            String key = uri.toString();
+            synchronized (inFlight) { inFlight.add(key); }
+            journal.begin(key, items[i].filename);
+            Result r = results[i] = new Result();
+            ChannelBody body = items[i].body;
+            writes[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    writePayload(uri, body, r);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                journal.written(key, r.bytes);
+            }, executor);
+        }
+        ArrayList<ContentProviderOperation> flips = new ArrayList<>();
+        for (int i = 0; i < items.length; i++) {
+            if (writes[i] == null) continue;
+            try {
+                writes[i].join();
+                flips.add(ContentProviderOperation.newUpdate(uris[i])
+                    .withValue(MediaStore.Images.Media.IS_PENDING, 0).build());
+            } catch (CompletionException e) {
+                Log.w(TAG, "Batched write of " + items[i].filename + " failed: " + e.getCause().getMessage());
+                results[i] = null;
+            }
+        }
+        boolean flipped = false;
+        try {
+            if (!flips.isEmpty()) {
+                resolver.applyBatch(MediaStore.AUTHORITY, flips);
+                synchronized (this) { resolverCalls++; }
+                flipped = true;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Batched publish failed: " + e.getMessage());
+        }
+
+        long nanos = System.nanoTime() - t0;
+        long total = 0;
+        int saved = 0;
+        for (int i = 0; i < items.length; i++) {
+            Result r = results[i];
+            if (uris[i] == null) continue;
+            String key = uris[i].toString();
+            if (r != null && flipped) {
+                journal.done(key);
+                r.uri = uris[i];
+                r.file = new File(publicDir(), items[i].filename);
+                r.attempts = 1;
+                r.batched = true;
+                r.nanos = nanos;
+                items[i].result = r;
+                recordChecksum(key, items[i].filename, r);
+                total += r.bytes;
+                saved++;
+            } else {
+                discard(uris[i]);
+            }
+            synchronized (inFlight) { inFlight.remove(key); }
+        }
+        account(saved, total, t0, nanos);
+        for (Item it : items) {
+            if (it.result == null) it.result = save(it.filename, it.mimeType, it.body);
+        }
+    }
+
+    /** Open uri for writing and let body fill it; bytes and checksums go into r. */
+    private void writePayload(Uri uri, ChannelBody body, Result r) throws IOException {
+        synchronized (this) { resolverCalls++; }
+        try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "w");
+             FileOutputStream fos = new FileOutputStream(pfd.getFileDescriptor());
+             FileChannel ch = fos.getChannel()) {
+            writeHashed(ch, body, r);
+        }
+    }
+
+    /** Run body against ch through a HashingChannel and keep what it measured. */
+    private void writeHashed(FileChannel ch, ChannelBody body, Result r) throws IOException {
+        MessageDigest sha = null;
+        if (sha256) {
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                Log.w(TAG, "SHA-256 unavailable: " + e.getMessage());
+            }
+        }
+        HashingChannel hashed = new HashingChannel(ch, sha);
+        body.writeTo(hashed);
+        r.bytes = ch.position();
+        r.checksummed = hashed.valid();
+        if (r.checksummed) {
+            r.crc32c = hashed.crc32c();
+            r.sha256 = hashed.sha256();
+        }
+        r.hashNanos = hashed.hashNanos();
+    }
+
+    private void recordChecksum(String key, String filename, Result r) {
+        if (r.checksummed) verifier.record(key, filename, r.bytes, r.crc32c, r.sha256);
+    }
+
+    /** Delete a row that won't be finished; if even that fails, reconcile gets it next launch. */
+    private void discard(Uri uri) {
+        try {
+            resolver.delete(uri, null, null);
+            journal.done(uri.toString());
+        } catch (Exception e) {
+            Log.w(TAG, "Could not delete unfinished row: " + e.getMessage());
+        }
+    }
+
+    private void account(Result r, long t0) {
+        account(1, r.bytes, t0, r.nanos);
+    }
+
+    private synchronized void account(int n, long total, long t0, long nanos) {
+        if (n == 0) return;
+        files += n;
+        bytes += total;
+        busyNanos += nanos;
+        if (firstStart == 0) firstStart = t0;
+        lastEnd = t0 + nanos;
+    }
+
+    /**
+     * Settle saves a previous run left open. A journaled row whose payload
+     * was fully written (its size matches the journal) is published; any
+     * other pending row of ours in the FlashCam folder is deleted, since
+     * nothing can finish it. Runs off the main thread.
+     */
+    void reconcile() {
+        Set<String> settled = new HashSet<>();
+        for (SaveJournal.Open o : journal.leftovers()) {
+            try {
+                Uri uri = Uri.parse(o.uri);
+                long size = pendingSize(uri);
+                if (size >= 0 && o.bytes >= 0 && size == o.bytes) {
+                    ContentValues values = new ContentValues();
+                    values.put(MediaStore.Images.Media.IS_PENDING, 0);
+                    resolver.update(uri, values, null, null);
+                    synchronized (this) { published++; }
+                    Log.i(TAG, "Reconcile: published " + o.name);
+                } else if (size >= 0) {
+                    resolver.delete(uri, null, null);
+                    synchronized (this) { discarded++; }
+                    Log.i(TAG, "Reconcile: deleted partial " + o.name);
+                }
+                journal.done(o.uri);
+                settled.add(o.uri);
+            } catch (Exception e) {
+                Log.w(TAG, "Reconcile failed for " + o.name + ": " + e.getMessage());
+            }
+        }
+
+        // Pending rows the journal never saw (written before it existed, or its line was lost)
+        Bundle query = new Bundle();
+        query.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_ONLY);
+        query.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, MediaStore.MediaColumns.RELATIVE_PATH + "=?");
+        query.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, new String[]{RELATIVE_PATH + "/"});
+        try (Cursor c = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DISPLAY_NAME}, query, null)) {
+            if (c == null) return;
+            while (c.moveToNext()) {
+                Uri uri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, c.getLong(0));
+                String key = uri.toString();
+                if (settled.contains(key)) continue;
+                synchronized (inFlight) {
+                    if (inFlight.contains(key)) continue;
+                }
+                resolver.delete(uri, null, null);
+                synchronized (this) { discarded++; }
+                Log.i(TAG, "Reconcile: deleted orphaned " + c.getString(1));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Pending-row scan failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * True if a published row named filename with exactly bytes bytes is
+     * already in the FlashCam folder, e.g. one {@link #reconcile} just
+     * finished, so a spooled copy doesn't need saving again.
+     */
+    boolean isSaved(String filename, long bytes) {
+        Bundle query = new Bundle();
+        query.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, MediaStore.MediaColumns.DISPLAY_NAME + "=? AND "
+            + MediaStore.MediaColumns.RELATIVE_PATH + "=? AND " + MediaStore.MediaColumns.SIZE + "=?");
+        query.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
+            new String[]{filename, RELATIVE_PATH + "/", Long.toString(bytes)});
+        try (Cursor c = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.MediaColumns._ID}, query, null)) {
+            return c != null && c.moveToNext();
+        } catch (Exception e) {
+            Log.w(TAG, "Saved-file lookup failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Size of uri if it is still an IS_PENDING row, or -1 if it is gone or already published. */
+    private long pendingSize(Uri uri) {
+        Bundle query = new Bundle();
+        query.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
+        try (Cursor c = resolver.query(uri, new String[]{MediaStore.MediaColumns.SIZE,
+                MediaStore.MediaColumns.IS_PENDING}, query, null)) {
+            if (c == null || !c.moveToNext() || c.getInt(1) == 0) return -1;
+            return c.getLong(0);
+        }
+    }
+
+    synchronized long filesWritten() {
+        return files;
+    }
+
+    synchronized long bytesWritten() {
+        return bytes;
+    }
+
+    synchronized long fallbacks() {
+        return fallbacks;
+    }
+
+    /** ContentResolver round trips (insert, update, applyBatch, openFileDescriptor) made by saves. */
+    synchronized long resolverCalls() {
+        return resolverCalls;
+    }
+
+    /** Files and bytes saved so far, with rates over write time and over the session. */
+    synchronized String stats() {
+        double busyS = busyNanos / 1e9;
+        double spanS = (lastEnd - firstStart) / 1e9;
+        return String.format(Locale.US,
+            "%d files, %.1f MB: %.1f MB/s and %.1f files/s writing, %.2f files/s overall, %.1f resolver calls/file;"
+                + " %d retries, %d direct, %d reconciled (%d deleted)",
+            files, bytes / 1048576.0, busyS > 0 ? bytes / 1048576.0 / busyS : 0, busyS > 0 ? files / busyS : 0,
+            spanS > 0 ? files / spanS : 0, files > 0 ? (double) resolverCalls / files : 0,
+            retries, fallbacks, published + discarded, discarded);
+    }
+
+    /** Body writing parts from their current positions without consuming them, so it can be replayed. */
+    private static ChannelBody buffers(ByteBuffer... parts) {
+        return ch -> {
+            ByteBuffer[] views = new ByteBuffer[parts.length];
+            for (int i = 0; i < parts.length; i++) views[i] = parts[i].duplicate();
+            writeFully(ch, views);
+        };
+    }
+
+    /** Gathering write until every part is drained. */
+    static void writeFully(FileChannel ch, ByteBuffer... parts) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer b : parts) remaining += b.remaining();
+        while (remaining > 0) remaining -= ch.write(parts);
+    }
+
+    static File publicDir() {
+        return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), DIRECTORY);
+    }
+}
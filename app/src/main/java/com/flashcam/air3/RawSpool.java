@@ -0,0 +1,301 @@
+package com.flashcam.air3;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * App-private spool for RAW frames waiting to become gallery DNGs. At
+ * hand-off the plane is copied into a memory-mapped file next to a
+ * serialized snapshot of the prepared DNG tags, so the frame is safe on
+ * disk as soon as the copy returns (dirty pages survive a process crash)
+ * and the capture pipeline never waits on DNG persistence. A single
+ * background worker converts entries in order and deletes each one once its
+ * DNG is saved; whatever is left after a crash or kill is picked up by
+ * {@link #recover} on the next launch.
+ *
+ * File layout: a 4 KiB header (magic, version, complete flag, attempts,
+ * header length, data length, then the header fields) followed by the
+ * rows without padding. The complete flag is set last; files without it
+ * were cut short mid-copy and are dropped.
+ */
+final class RawSpool {
+
+    private static final String TAG = "FlashCam";
+    private static final int MAGIC = 0x46435253; // "FCRS"
+    private static final int VERSION = 1;
+    private static final int OFF_COMPLETE = 8;
+    private static final int OFF_ATTEMPTS = 9;
+    private static final int OFF_HEADER_LEN = 12;
+    private static final int OFF_DATA_LEN = 16;
+    private static final int FIXED_HEADER = 20;
+    private static final int DATA_ALIGN = 4096;
+    private static final int MAX_ATTEMPTS = 3;
+    static final String SUFFIX = ".spool";
+
+    /** Files being converted by any RawSpool in this process, so a second instance can't replay them. */
+    private static final Set<String> claimed = new HashSet<>();
+
+    /** One spooled frame: where it is, what it becomes and how to lay it out. */
+    static final class Entry {
+        final File file;
+        String name;
+        boolean lossless;
+        int format, width, height, rowBytes;
+        DngWriter writer;
+        long dataLength;
+        long spoolNanos;
+        boolean recovered;
+
+        Entry(File file) {
+            this.file = file;
+        }
+    }
+
+    /** Turns a spooled frame (rows of rowBytes from data's position) into a saved DNG. */
+    interface Converter {
+        MediaStoreWriter.Result convert(Entry e, ByteBuffer data) throws Exception;
+    }
+
+    interface Listener {
+        void onConverted(Entry e, MediaStoreWriter.Result saved, Exception error);
+    }
+
+    private final File dir;
+    private final Converter converter;
+    private final Listener listener;
+    private final ExecutorService worker =
+        Executors.newSingleThreadExecutor(r -> new Thread(r, "RawSpool"));
+    private volatile boolean stopped;
+    private int pending, converted, recovered, failed;
+    private long spooledBytes;
+
+    RawSpool(File dir, Converter converter, Listener listener) {
+        this.dir = dir;
+        this.converter = converter;
+        this.listener = listener;
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    /**
+     * Copy height rows of rowBytes (rowStride apart, from plane's position)
+     * into a new spool file and queue it for conversion. writer holds the
+     * tags; name is the DNG's display name.
+     */
+    Entry spool(String name, boolean lossless, DngWriter writer, int format, int width, int height,
+            int rowBytes, ByteBuffer plane, int rowStride) throws IOException {
+        long t0 = System.nanoTime();
+        Entry e = new Entry(new File(dir, name + SUFFIX));
+        e.name = name;
+        e.lossless = lossless;
+        e.format = format;
+        e.width = width;
+        e.height = height;
+        e.rowBytes = rowBytes;
+        e.writer = writer;
+        e.dataLength = (long) rowBytes * height;
+
+        byte[] header = encodeHeader(e);
+        int dataStart = align(FIXED_HEADER + header.length, DATA_ALIGN);
+        // CREATE_NEW: truncating a file still queued (or mapped by the converter) loses it and can SIGBUS the reader
+        FileChannel ch = FileChannel.open(e.file.toPath(), StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try (ch) {
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, dataStart + e.dataLength);
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(OFF_HEADER_LEN, header.length);
+            map.putInt(OFF_DATA_LEN, (int) e.dataLength);
+            map.position(FIXED_HEADER);
+            map.put(header);
+
+            ByteBuffer src = plane.duplicate();
+            int base = src.position();
+            map.position(dataStart);
+            if (rowStride == rowBytes) {
+                src.limit(base + (int) e.dataLength);
+                map.put(src);
+            } else {
+                for (int r = 0; r < height; r++) {
+                    src.limit(base + r * rowStride + rowBytes).position(base + r * rowStride);
+                    map.put(src);
+                }
+            }
+            map.put(OFF_COMPLETE, (byte) 1);
+        } catch (IOException | RuntimeException err) {
+            e.file.delete();
+            throw err;
+        }
+        e.spoolNanos = System.nanoTime() - t0;
+        synchronized (this) { spooledBytes += e.dataLength; }
+        submit(e);
+        return e;
+    }
+
+    /** Queue every complete spool file left from an earlier run; drop torn ones. */
+    void recover() {
+        File[] files = dir.listFiles((d, n) -> n.endsWith(SUFFIX));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File f : files) {
+            synchronized (claimed) {
+                if (claimed.contains(f.getAbsolutePath())) continue;
+            }
+            try {
+                Entry e = readHeader(f);
+                if (e == null) {
+                    Log.w(TAG, "Dropping incomplete spool file " + f.getName());
+                    f.delete();
+                    continue;
+                }
+                e.recovered = true;
+                synchronized (this) { recovered++; }
+                submit(e);
+            } catch (IOException err) {
+                Log.w(TAG, "Unreadable spool file " + f.getName() + ": " + err.getMessage());
+            }
+        }
+    }
+
+    private void submit(Entry e) {
+        synchronized (claimed) { claimed.add(e.file.getAbsolutePath()); }
+        synchronized (this) { pending++; }
+        worker.execute(() -> convert(e));
+    }
+
+    private void convert(Entry e) {
+        if (stopped) {
+            // Left on disk untouched for the next launch
+            synchronized (this) { pending--; }
+            synchronized (claimed) { claimed.remove(e.file.getAbsolutePath()); }
+            return;
+        }
+        MediaStoreWriter.Result saved = null;
+        Exception error = null;
+        try (FileChannel ch = FileChannel.open(e.file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            int headerLen = readHeaderLength(ch);
+            int dataStart = align(FIXED_HEADER + headerLen, DATA_ALIGN);
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, dataStart + e.dataLength);
+            int attempts = map.get(OFF_ATTEMPTS) + 1;
+            map.put(OFF_ATTEMPTS, (byte) attempts);
+            map.position(dataStart);
+            saved = converter.convert(e, map.slice());
+            if (saved == null) throw new IOException("DNG save failed");
+        } catch (Exception err) {
+            error = err;
+        }
+
+        synchronized (this) { pending--; }
+        if (error == null) {
+            e.file.delete();
+            synchronized (this) { converted++; }
+        } else {
+            Log.w(TAG, "Spool conversion failed for " + e.name + ": " + error.getMessage());
+            synchronized (this) { failed++; }
+            // Stays on disk for the next launch; park it after repeated failures so it can't loop
+            if (attemptsOf(e.file) >= MAX_ATTEMPTS) {
+                e.file.renameTo(new File(dir, e.file.getName() + ".failed"));
+            }
+        }
+        synchronized (claimed) { claimed.remove(e.file.getAbsolutePath()); }
+        listener.onConverted(e, saved, error);
+    }
+
+    synchronized int pending() {
+        return pending;
+    }
+
+    synchronized String stats() {
+        return String.format(Locale.US, "%d pending, %d converted, %d recovered, %d failed, %.1f MB spooled",
+            pending, converted, recovered, failed, spooledBytes / 1048576.0);
+    }
+
+    /**
+     * Stop converting: the entry in progress finishes, queued ones stay on
+     * disk for the next launch. then runs on the worker once it is idle.
+     */
+    void shutdown(Runnable then) {
+        stopped = true;
+        worker.execute(then);
+        worker.shutdown();
+    }
+
+    // ── Header ──
+
+    private static byte[] encodeHeader(Entry e) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(e.name);
+        out.writeBoolean(e.lossless);
+        out.writeInt(e.format);
+        out.writeInt(e.width);
+        out.writeInt(e.height);
+        out.writeInt(e.rowBytes);
+        e.writer.snapshot(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Entry for a complete spool file, or null if it was never finished. */
+    private static Entry readHeader(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() < FIXED_HEADER) return null;
+            ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER);
+            while (fixed.hasRemaining() && ch.read(fixed) >= 0) { }
+            fixed.flip();
+            if (fixed.getInt(0) != MAGIC || fixed.getInt(4) != VERSION || fixed.get(OFF_COMPLETE) != 1) return null;
+            int headerLen = fixed.getInt(OFF_HEADER_LEN);
+            long dataLen = fixed.getInt(OFF_DATA_LEN) & 0xFFFFFFFFL;
+            if (ch.size() < align(FIXED_HEADER + headerLen, DATA_ALIGN) + dataLen) return null;
+            ByteBuffer hb = ByteBuffer.allocate(headerLen);
+            while (hb.hasRemaining() && ch.read(hb) >= 0) { }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(hb.array()));
+            Entry e = new Entry(f);
+            e.name = in.readUTF();
+            e.lossless = in.readBoolean();
+            e.format = in.readInt();
+            e.width = in.readInt();
+            e.height = in.readInt();
+            e.rowBytes = in.readInt();
+            e.writer = DngWriter.restore(in);
+            e.dataLength = dataLen;
+            return e;
+        }
+    }
+
+    private static int readHeaderLength(FileChannel ch) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        while (b.hasRemaining() && ch.read(b, OFF_HEADER_LEN + b.position()) >= 0) { }
+        return b.getInt(0);
+    }
+
+    private static int attemptsOf(File f) {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, OFF_ATTEMPTS);
+            return b.get(0);
+        } catch (IOException e) {
+            return MAX_ATTEMPTS;
+        }
+    }
+
+    private static int align(int n, int a) {
+        return (n + a - 1) / a * a;
+    }
+}
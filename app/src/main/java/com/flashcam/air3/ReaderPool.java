@@ -0,0 +1,140 @@
+package com.flashcam.air3;
+
+import android.graphics.ImageFormat;
+import android.os.Debug;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Owner of every still-capture stream (an ImageReader on Camera2), made by
+ * the {@link CameraBackend}. Readers are keyed by (size, format, pixel mode,
+ * maxImages); a reader handed back with {@link #release} is drained, has its
+ * free buffers returned to gralloc and is kept for the next session that
+ * needs the same stream. Nothing is left for the GC: {@link #closeAll}
+ * closes everything on pause.
+ *
+ * A reader is only ever lent to one owner at a time, since its Surface can
+ * only be attached to one session.
+ */
+final class ReaderPool {
+
+    static final class Key {
+        final int width, height, format, pixelMode, maxImages;
+
+        Key(int width, int height, int format, int pixelMode, int maxImages) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.pixelMode = pixelMode;
+            this.maxImages = maxImages;
+        }
+
+        /** Upper bound on one buffer of this stream, in bytes. */
+        long frameBytes() {
+            int bpp = ImageFormat.getBitsPerPixel(format);
+            // JPEG blobs have no fixed bpp; the HAL sizes them close to w*h
+            return bpp > 0 ? (long) width * height * bpp / 8 : (long) width * height;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return width == k.width && height == k.height && format == k.format
+                && pixelMode == k.pixelMode && maxImages == k.maxImages;
+        }
+
+        @Override public int hashCode() {
+            return Objects.hash(width, height, format, pixelMode, maxImages);
+        }
+    }
+
+    private final CameraBackend backend;
+    private final int maxIdle;
+    private final Map<CameraBackend.Stream, Key> lent = new HashMap<>();
+    private final List<CameraBackend.Stream> idle = new ArrayList<>();
+    private final Map<CameraBackend.Stream, Key> idleKeys = new HashMap<>();
+    private long created, reused, closed, imagesAcquired;
+    private final long nativeHeapAtStart = Debug.getNativeHeapAllocatedSize();
+
+    ReaderPool(CameraBackend backend, int maxIdle) {
+        this.backend = backend;
+        this.maxIdle = maxIdle;
+    }
+
+    /** Lend a reader for the stream, reusing an idle one when the key matches. */
+    synchronized CameraBackend.Stream acquire(int width, int height, int format, int pixelMode, int maxImages) {
+        Key key = new Key(width, height, format, pixelMode, maxImages);
+        for (Iterator<CameraBackend.Stream> it = idle.iterator(); it.hasNext(); ) {
+            CameraBackend.Stream r = it.next();
+            if (key.equals(idleKeys.get(r))) {
+                it.remove();
+                idleKeys.remove(r);
+                lent.put(r, key);
+                reused++;
+                return r;
+            }
+        }
+        CameraBackend.Stream r = backend.newStream(width, height, format, pixelMode, maxImages);
+        lent.put(r, key);
+        created++;
+        return r;
+    }
+
+    /** Count a frame taken from a pooled reader (for the usage counters). */
+    synchronized void noteAcquired() {
+        imagesAcquired++;
+    }
+
+    /**
+     * Take a reader back. Pending images are dropped, free buffers are
+     * discarded and the oldest idle readers are closed beyond maxIdle.
+     */
+    synchronized void release(CameraBackend.Stream r) {
+        if (r == null) return;
+        Key key = lent.remove(r);
+        if (key == null) return;
+        r.setListener(null);
+        r.drain();
+        r.discardFreeBuffers();
+        idle.add(r);
+        idleKeys.put(r, key);
+        while (idle.size() > maxIdle) {
+            CameraBackend.Stream old = idle.remove(0);
+            idleKeys.remove(old);
+            old.close();
+            closed++;
+        }
+    }
+
+    /** Close every reader, lent or idle. Lent readers become unusable. */
+    synchronized void closeAll() {
+        for (CameraBackend.Stream r : idle) r.close();
+        for (CameraBackend.Stream r : lent.keySet()) r.close();
+        closed += idle.size() + lent.size();
+        idle.clear();
+        idleKeys.clear();
+        lent.clear();
+    }
+
+    /** Worst-case buffer memory the open readers may hold: sum of maxImages × frame size. */
+    synchronized long reservedBytes() {
+        long total = 0;
+        for (Key k : lent.values()) total += k.maxImages * k.frameBytes();
+        for (Key k : idleKeys.values()) total += k.maxImages * k.frameBytes();
+        return total;
+    }
+
+    synchronized String stats() {
+        return String.format(Locale.US,
+            "%d lent, %d idle, %d created / %d reused / %d closed, %d images, ~%.1f MB buffers, native heap %+.1f MB",
+            lent.size(), idle.size(), created, reused, closed, imagesAcquired,
+            reservedBytes() / 1048576.0,
+            (Debug.getNativeHeapAllocatedSize() - nativeHeapAtStart) / 1048576.0);
+    }
+}
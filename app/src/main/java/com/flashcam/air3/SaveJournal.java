@@ -0,0 +1,115 @@
+package com.flashcam.air3;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of MediaStore saves, one line per step:
+ *
+ *   B uri name     row inserted with IS_PENDING=1, payload about to be written
+ *   W uri bytes    payload fully written and the file closed
+ *   D uri          row published (or discarded); nothing left to do
+ *
+ * Each line goes out in a single write(), so it survives a process crash.
+ * Saves that were begun but never finished are handed to
+ * {@link MediaStoreWriter#reconcile} on the next launch. Only row states
+ * are recorded, not payloads, so this is not a queue: reconcile can finish
+ * or remove a row, but a payload that never reached one is replayed from
+ * {@link JpegSpool} or {@link RawSpool}.
+ */
+final class SaveJournal {
+
+    private static final String TAG = "FlashCam";
+
+    /** A save the previous run began but never finished. */
+    static final class Open {
+        final String uri, name;
+        long bytes = -1;
+
+        Open(String uri, String name) {
+            this.uri = uri;
+            this.name = name;
+        }
+    }
+
+    private final List<Open> leftovers = new ArrayList<>();
+    private FileOutputStream out;
+
+    /** Read what the previous run left open, then start a compacted journal holding just that. */
+    SaveJournal(File file) {
+        Map<String, Open> open = new LinkedHashMap<>();
+        if (file.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", 3);
+                    if (f.length < 2) continue;  // torn last line
+                    switch (f[0]) {
+                        case "B": if (f.length == 3) open.put(f[1], new Open(f[1], f[2])); break;
+                        case "W":
+                            Open o = open.get(f[1]);
+                            if (o != null && f.length == 3) o.bytes = parseLong(f[2]);
+                            break;
+                        case "D": open.remove(f[1]); break;
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Save journal unreadable: " + e.getMessage());
+            }
+        }
+        leftovers.addAll(open.values());
+        try {
+            out = new FileOutputStream(file, false);
+            for (Open o : leftovers) {
+                append("B\t" + o.uri + "\t" + o.name);
+                if (o.bytes >= 0) append("W\t" + o.uri + "\t" + o.bytes);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Save journal unavailable: " + e.getMessage());
+            out = null;
+        }
+    }
+
+    List<Open> leftovers() {
+        return leftovers;
+    }
+
+    void begin(String uri, String name) {
+        append("B\t" + uri + "\t" + name);
+    }
+
+    void written(String uri, long bytes) {
+        append("W\t" + uri + "\t" + bytes);
+    }
+
+    void done(String uri) {
+        append("D\t" + uri);
+    }
+
+    private synchronized void append(String line) {
+        if (out == null) return;
+        try {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Save journal write failed: " + e.getMessage());
+        }
+    }
+
+    private static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.flashcam.air3;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Small LRU of ready-to-use dedicated capture configurations, keyed by
+ * {@link MainActivity.CapturePlan} (which follows MP mode, DNG and YUV).
+ *
+ * A camera device can only run one session at a time, so what is cached is
+ * everything except the session itself: the still readers, with frame
+ * delivery already wired, and the {@link CameraBackend.SessionSpec} over them.
+ * The shutter then only has to close preview and create the session.
+ * Readers are borrowed from a {@link ReaderPool} and handed back on eviction.
+ */
+final class SessionCache {
+
+    static final class Entry {
+        final MainActivity.CapturePlan plan;
+        final CameraBackend.Stream jpegReader;
+        final CameraBackend.Stream rawReader;
+        final CameraBackend.SessionSpec spec;
+        /** Shot currently waiting on these readers; null between shots. */
+        volatile MainActivity.Shot shot;
+
+        Entry(MainActivity.CapturePlan plan, CameraBackend.Stream jpegReader, CameraBackend.Stream rawReader,
+                CameraBackend.SessionSpec spec) {
+            this.plan = plan;
+            this.jpegReader = jpegReader;
+            this.rawReader = rawReader;
+            this.spec = spec;
+        }
+
+        /** Give buffers back to gralloc but keep the reader (and its Surface) valid. */
+        void trim() {
+            jpegReader.discardFreeBuffers();
+            if (rawReader != null) rawReader.discardFreeBuffers();
+        }
+
+        void release(ReaderPool pool) {
+            pool.release(jpegReader);
+            pool.release(rawReader);
+        }
+    }
+
+    private final int capacity;
+    private final ReaderPool readers;
+    private final LinkedHashMap<MainActivity.CapturePlan, Entry> entries =
+        new LinkedHashMap<>(8, 0.75f, true);
+    private int hits, misses;
+
+    SessionCache(int capacity, ReaderPool readers) {
+        this.capacity = capacity;
+        this.readers = readers;
+    }
+
+    /** Cached entry for plan (marking it most recently used), or null. */
+    synchronized Entry get(MainActivity.CapturePlan plan) {
+        Entry e = entries.get(plan);
+        if (e != null) hits++; else misses++;
+        return e;
+    }
+
+    /** Insert e, handing the least recently used entries beyond capacity back to the pool. */
+    synchronized void put(Entry e) {
+        Entry old = entries.put(e.plan, e);
+        if (old != null && old != e) old.release(readers);
+        for (Iterator<Map.Entry<MainActivity.CapturePlan, Entry>> it = entries.entrySet().iterator();
+                entries.size() > capacity && it.hasNext(); ) {
+            it.next().getValue().release(readers);
+            it.remove();
+        }
+    }
+
+    /** Release buffers held by every entry except the one for keep. */
+    synchronized void trimExcept(MainActivity.CapturePlan keep) {
+        for (Entry e : entries.values()) {
+            if (!e.plan.equals(keep)) e.trim();
+        }
+    }
+
+    synchronized void clear() {
+        for (Entry e : entries.values()) e.release(readers);
+        entries.clear();
+    }
+
+    synchronized String stats() {
+        return String.format(Locale.US, "%d cached, %d hit / %d miss", entries.size(), hits, misses);
+    }
+}
@@ -0,0 +1,75 @@
+package com.flashcam.air3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DNG writing for the 16MP RAW fixture: uncompressed strips and tiled LJ92,
+ * into a temp file that is truncated before each write. Strip numbers are
+ * mostly the file system's; LJ92 numbers are mostly the encoder's. MB/s is
+ * of 16-bit sensor data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DngBenchmark {
+
+    @Param({"false", "true"})
+    public boolean lossless;
+
+    private ByteBuffer raw;
+    private Path file;
+    private FileChannel ch;
+    private ForkJoinPool tilePool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        raw = Fixtures.raw();
+        file = Files.createTempFile("flashcam-bench", ".dng");
+        ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        tilePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tilePool.shutdown();
+        ch.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long write(ByteCounter counter) throws IOException {
+        ch.truncate(0).position(0);
+        DngWriter writer = Fixtures.dngWriter();
+        int rowStride = Fixtures.RAW_W * 2;
+        if (lossless) writer.writeTiledTo(ch, raw, rowStride, tilePool);
+        else writer.writeTo(ch, raw, rowStride);
+        counter.bytes += raw.remaining();
+        return ch.position();
+    }
+
+    /** Building the IFD alone, which happens on the capture path before the frame is spooled. */
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public DngWriter prepareTags() {
+        return Fixtures.dngWriter();
+    }
+}
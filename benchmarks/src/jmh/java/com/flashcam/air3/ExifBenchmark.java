@@ -0,0 +1,66 @@
+package com.flashcam.air3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EXIF assembly as the save path does it: build the APP1 segment from the
+ * capture values, optionally with a thumbnail, and splice it in front of a
+ * 16MP JPEG. The splice only slices, so allocation per op should stay a few
+ * hundred bytes plus the header whatever the image size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExifBenchmark {
+
+    @Param({"false", "true"})
+    public boolean thumbnail;
+
+    private ByteBuffer jpeg;
+    private byte[] thumb;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        jpeg = ByteBuffer.wrap(Fixtures.jpeg());
+        // About the size of the 160 px thumbnail the app embeds
+        thumb = new byte[12 * 1024];
+        thumb[0] = (byte) 0xFF;
+        thumb[1] = (byte) 0xD8;
+    }
+
+    @Benchmark
+    public ByteBuffer buildHeader() {
+        return segment().buildHeader();
+    }
+
+    @Benchmark
+    public ByteBuffer[] buildAndSplice() {
+        return ExifSegment.splice(jpeg, segment().buildHeader());
+    }
+
+    private ExifSegment segment() {
+        ExifSegment s = new ExifSegment()
+            .orientation(1)
+            .software("FlashCam-Air3 bench")
+            .device("INMO", "IMA301")
+            .captureTime(1_700_000_000_000L)
+            .exposureTimeNanos(16_666_666L)
+            .iso(400)
+            .fNumber(2.2f)
+            .focalLength(2.6f)
+            .exposureBias(1, 3)
+            .pixelSize(Fixtures.JPEG_W, Fixtures.JPEG_H);
+        return thumbnail ? s.thumbnail(thumb) : s;
+    }
+}
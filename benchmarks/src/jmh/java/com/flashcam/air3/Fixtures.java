@@ -0,0 +1,114 @@
+package com.flashcam.air3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Deterministic 16MP test frames, built once per JVM. The Air3's max-res
+ * JPEG is 4608×3456 and its RAW 4656×3496; the content is smooth gradients
+ * plus seeded noise so the entropy coder sees something close to a real
+ * photo rather than flat color.
+ */
+final class Fixtures {
+
+    static final int JPEG_W = 4608, JPEG_H = 3456;
+    static final int RAW_W = 4656, RAW_H = 3496;
+    static final long SEED = 0x464C4153L;
+
+    private static byte[] y, cb, cr;
+    private static byte[] jpeg;
+    private static ByteBuffer raw;
+
+    private Fixtures() {}
+
+    /** Packed YUV 4:2:0 planes {y, cb, cr} of JPEG_W × JPEG_H. */
+    static synchronized byte[][] yuv() {
+        if (y == null) {
+            Random rnd = new Random(SEED);
+            y = new byte[JPEG_W * JPEG_H];
+            for (int r = 0; r < JPEG_H; r++) {
+                for (int c = 0; c < JPEG_W; c++) {
+                    int v = (r * 255 / JPEG_H + c * 255 / JPEG_W) / 2 + rnd.nextInt(24) - 12;
+                    y[r * JPEG_W + c] = (byte) Math.max(0, Math.min(255, v));
+                }
+            }
+            int cw = (JPEG_W + 1) / 2, ch = (JPEG_H + 1) / 2;
+            cb = new byte[cw * ch];
+            cr = new byte[cw * ch];
+            for (int r = 0; r < ch; r++) {
+                for (int c = 0; c < cw; c++) {
+                    cb[r * cw + c] = (byte) (96 + c * 64 / cw + rnd.nextInt(8));
+                    cr[r * cw + c] = (byte) (160 - r * 64 / ch + rnd.nextInt(8));
+                }
+            }
+        }
+        return new byte[][]{y, cb, cr};
+    }
+
+    /** The YUV fixture as a Q95 baseline JPEG, as the YUV capture path would save it. */
+    static synchronized byte[] jpeg() throws Exception {
+        if (jpeg == null) {
+            byte[][] p = yuv();
+            ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                jpeg = new YuvJpegEncoder(p[0], p[1], p[2], JPEG_W, JPEG_H, 95, YuvJpegEncoder.Subsampling.YUV420)
+                    .encode(pool);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return jpeg;
+    }
+
+    /** RAW_W × RAW_H 10-bit RGGB samples, 16-bit little-endian in a direct buffer. */
+    static synchronized ByteBuffer raw() {
+        if (raw == null) {
+            Random rnd = new Random(SEED);
+            raw = ByteBuffer.allocateDirect(RAW_W * RAW_H * 2).order(ByteOrder.LITTLE_ENDIAN);
+            for (int r = 0; r < RAW_H; r++) {
+                for (int c = 0; c < RAW_W; c++) {
+                    int base = 64 + (r * 700 / RAW_H) + (c * 200 / RAW_W) + ((r & 1) == (c & 1) ? 80 : 0);
+                    raw.putShort((short) Math.min(1023, base + rnd.nextInt(16)));
+                }
+            }
+            raw.flip();
+        }
+        return raw.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Tags for the RAW fixture, roughly what DngTags produces on the Air3. */
+    static DngWriter dngWriter() {
+        int[] identity = {1, 1, 0, 1, 0, 1, 0, 1, 1, 1, 0, 1, 0, 1, 0, 1, 1, 1};
+        return DngWriter.bayer(RAW_W, RAW_H, new byte[]{0, 1, 1, 2})
+            .camera("INMO", "IMA301")
+            .blackLevel(64, 1, 64, 1, 64, 1, 64, 1)
+            .whiteLevel(1023)
+            .color(1, identity, 21, identity, identity)
+            .color(2, identity, 17, identity, identity)
+            .asShotNeutral(1, 2, 1, 1, 2, 3)
+            .noiseProfile(1e-5, 1e-7, 1e-5, 1e-7, 1e-5, 1e-7)
+            .exposureTime(16_666_666L)
+            .iso(400)
+            .fNumber(2.2f)
+            .focalLength(2.6f)
+            .lensInfo(2.6f, 2.6f, 2.2f, 2.2f)
+            .activeArea(24, 20, RAW_W - 24, RAW_H - 20)
+            .orientation(6)
+            .description("FlashCam benchmark")
+            .software("FlashCam-Air3 bench")
+            .captureTime(1_700_000_000_000L);
+    }
+
+    /** Stream sizes as the Air3 reports them: max-res map followed by the default map. */
+    static int[][] streamSizes() {
+        return new int[][]{
+            {4608, 3456}, {4656, 3496}, {4000, 3000}, {4000, 2250}, {3840, 2160}, {3264, 2448},
+            {3200, 2400}, {2592, 1944}, {2560, 1920}, {2048, 1536}, {1920, 1440}, {1920, 1080},
+            {1600, 1200}, {1440, 1080}, {1280, 960}, {1280, 720}, {1024, 768}, {800, 600},
+            {720, 480}, {640, 480}, {352, 288}, {320, 240}, {176, 144}
+        };
+    }
+}
@@ -0,0 +1,130 @@
+package com.flashcam.air3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The capture journal behind the receipts: appending a full record, and
+ * exporting a few thousand of them to CSV and JSON (the receipt formatting
+ * the EXPORT LOG button runs).
+ */
+public class JournalBenchmark {
+
+    /** Records in the export fixture. */
+    static final int EXPORT_RECORDS = 2000;
+
+    /** Appends per measured op; a segment holds 8192, so a batch never rolls over. */
+    static final int APPEND_BATCH = 4096;
+
+    @State(Scope.Thread)
+    public static class Appending {
+        File dir;
+        CaptureJournal journal;
+        CaptureJournal.Record record;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("flashcam-journal").toFile();
+            journal = new CaptureJournal(dir);
+            record = record(0);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            delete(dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Exporting {
+        File dir, csv, json;
+        CaptureJournal journal;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("flashcam-journal").toFile();
+            journal = new CaptureJournal(dir);
+            for (int i = 0; i < EXPORT_RECORDS; i++) journal.append(record(i));
+            csv = new File(dir, "export.csv");
+            json = new File(dir, "export.json");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            delete(dir);
+        }
+    }
+
+    /** One op is {@link #APPEND_BATCH} appends; divide the score for the cost of one. */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(batchSize = APPEND_BATCH)
+    @Measurement(batchSize = APPEND_BATCH)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void append(Appending s) {
+        s.record.wallMs++;
+        s.journal.append(s.record);
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long export(Exporting s, ByteCounter counter) throws IOException {
+        s.journal.export(s.csv, s.json, null);
+        long written = s.csv.length() + s.json.length();
+        counter.bytes += written;
+        return written;
+    }
+
+    /** A fully populated capture record, all stages timed and both files saved. */
+    static CaptureJournal.Record record(int i) {
+        CaptureJournal.Record r = new CaptureJournal.Record();
+        r.wallMs = 1_700_000_000_000L + i * 1000L;
+        r.mode = "16MP";
+        r.maxRes = true;
+        r.dng = true;
+        r.lossless = (i & 1) == 0;
+        r.ev = 1;
+        r.rotation = 270;
+        r.jpegW = Fixtures.JPEG_W;
+        r.jpegH = Fixtures.JPEG_H;
+        r.rawW = Fixtures.RAW_W;
+        r.rawH = Fixtures.RAW_H;
+        r.jpegBytes = 6_400_000 + i;
+        r.dngBytes = 17_000_000 + i;
+        r.jpegCrcValid = r.dngCrcValid = true;
+        r.jpegCrc = 0x1234_5678 + i;
+        r.dngCrc = 0x0BAD_F00D + i;
+        r.aeState = 2;
+        r.afState = 4;
+        r.awbState = 2;
+        r.iso = 400;
+        r.exposureNs = 16_666_666L;
+        r.focusDiopters = 0.5f;
+        for (String stage : CaptureJournal.STAGES) r.stage(stage, 1_000_000L + i);
+        r.jpegUri = "content://media/external/images/media/" + (100_000 + i);
+        r.dngUri = "content://media/external/images/media/" + (200_000 + i);
+        r.note = "Session create: 41 ms, \"cached\"";
+        return r;
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+}
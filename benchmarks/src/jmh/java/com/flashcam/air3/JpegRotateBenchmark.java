@@ -0,0 +1,46 @@
+package com.flashcam.air3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DCT-domain rotation of a saved 16MP JPEG, once per entropy mode.
+ * Throughput gives MB/s of input through {@link ByteCounter}; sample time
+ * gives the latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JpegRotateBenchmark {
+
+    @Param({"90", "180", "270"})
+    public int degrees;
+
+    /** A {@link JpegWriter.Mode} name; the enum itself is package-private. */
+    @Param({"STANDARD", "OPTIMIZED", "PROGRESSIVE"})
+    public String mode;
+
+    private byte[] jpeg;
+    private JpegWriter.Mode entropy;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        jpeg = Fixtures.jpeg();
+        entropy = JpegWriter.Mode.valueOf(mode);
+    }
+
+    @Benchmark
+    public byte[] rotate(ByteCounter counter) throws Exception {
+        counter.bytes += jpeg.length;
+        return JpegTransform.rotate(jpeg, degrees, entropy);
+    }
+}
@@ -0,0 +1,39 @@
+package com.flashcam.air3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/** Output size choice over the Air3's stream list, as run on every capture plan and preview start. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SizeSelectionBenchmark {
+
+    private final int[][] sizes = Fixtures.streamSizes();
+
+    @Benchmark
+    public int closestTo16Mp() {
+        return SizeSelector.closestTo(sizes, 16_000_000L);
+    }
+
+    @Benchmark
+    public int closestTo8Mp() {
+        return SizeSelector.closestTo(sizes, 8_000_000L);
+    }
+
+    @Benchmark
+    public int preview43() {
+        return SizeSelector.preview43(sizes);
+    }
+
+    @Benchmark
+    public int largest() {
+        return SizeSelector.largest(sizes);
+    }
+}
@@ -0,0 +1,51 @@
+package com.flashcam.air3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The striped YUV encoder of the max-res YUV path on a 16MP frame, single
+ * worker and all cores. MB/s is of YUV input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class YuvEncodeBenchmark {
+
+    /** 0 means one worker per core. */
+    @Param({"1", "0"})
+    public int workers;
+
+    private byte[][] yuv;
+    private ExecutorService pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        yuv = Fixtures.yuv();
+        pool = Executors.newFixedThreadPool(workers > 0 ? workers : Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] encode(ByteCounter counter) throws Exception {
+        counter.bytes += yuv[0].length + yuv[1].length + yuv[2].length;
+        return new YuvJpegEncoder(yuv[0], yuv[1], yuv[2], Fixtures.JPEG_W, Fixtures.JPEG_H, 100,
+            YuvJpegEncoder.Subsampling.YUV420).encode(pool);
+    }
+}
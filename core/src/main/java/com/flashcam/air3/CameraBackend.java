@@ -0,0 +1,264 @@
+package com.flashcam.air3;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The camera as the capture code sees it: select and open a device, build
+ * sessions out of the preview and still {@link Stream}s, send repeating and
+ * one-shot {@link Request}s, and get {@link Frame}s and {@link Result}s back.
+ * Camera2Backend (in :app) drives the HAL; {@link SimulatedBackend} makes
+ * up 16MP frames on a plain JVM, with configurable latencies, failures and
+ * HAL quirks.
+ *
+ * Calls return at once and report through listeners, which all run on the
+ * backend's callback thread. Format and error codes are the
+ * android.graphics.ImageFormat and CameraDevice.StateCallback values, kept
+ * here as plain ints so nothing on this side needs the framework.
+ */
+interface CameraBackend {
+
+    int PIXEL_MODE_DEFAULT = 0;
+    int PIXEL_MODE_MAX_RES = 1;
+    /** Format code for the preview output (ImageFormat.PRIVATE). */
+    int FORMAT_PREVIEW = 0x22;
+    int FORMAT_JPEG = 0x100;
+    int FORMAT_YUV_420_888 = 0x23;
+    int FORMAT_RAW_SENSOR = RawUnpacker.RAW_SENSOR;
+    int FORMAT_RAW10 = RawUnpacker.RAW10;
+    int FORMAT_RAW12 = RawUnpacker.RAW12;
+    /** {@link OpenListener#onClosed} code for a fatal device error (CameraDevice.StateCallback). */
+    int ERROR_CAMERA_DEVICE = 4;
+    /** {@link OpenListener#onClosed} code for a device taken away after opening. */
+    int ERROR_DISCONNECTED = -2;
+
+    /** What the capture code needs to know about the selected camera. */
+    final class Info {
+        String id;
+        int sensorOrientation;
+        /** SENSOR_TIMESTAMP is on the elapsedRealtime clock. */
+        boolean realtimeTimestamps;
+        /** Sensor white level, 0 if unknown. */
+        int whiteLevel;
+        int activeWidth, activeHeight;
+        int evMin, evMax;
+        /** EV step as a fraction; 0/1 when unknown. */
+        int evStepNum, evStepDen = 1;
+        /** The CameraCharacteristics on Camera2, for DNG tags; null on other backends. */
+        Object platform;
+    }
+
+    interface OpenListener {
+        void onOpened();
+
+        /** Open failed, or the device went away later: a CameraDevice error or {@link #ERROR_DISCONNECTED}. */
+        void onClosed(int error);
+    }
+
+    interface SessionListener {
+        void onConfigured(Session session);
+
+        void onConfigureFailed();
+    }
+
+    interface CaptureListener {
+        void onCompleted(Result result);
+
+        void onFailed();
+    }
+
+    /** Gets each new frame and must close it. */
+    interface FrameListener {
+        void onFrame(Frame frame);
+    }
+
+    /** A still output, an ImageReader on Camera2. Holds at most maxImages unclosed frames. */
+    interface Stream {
+        int width();
+
+        int height();
+
+        int format();
+
+        int pixelMode();
+
+        int maxImages();
+
+        /** Deliver the latest frame to l as each arrives; null stops delivery. */
+        void setListener(FrameListener l);
+
+        /** Close frames that arrived but were not delivered. */
+        void drain();
+
+        /** Give free buffers back but keep the stream usable. */
+        void discardFreeBuffers();
+
+        void close();
+    }
+
+    /** One image from a stream. Plane data is only valid until {@link #close}. */
+    interface Frame {
+        int format();
+
+        int width();
+
+        int height();
+
+        /** Sensor timestamp, in the clock of {@link Result#sensorTimestamp}. */
+        long timestamp();
+
+        ByteBuffer buffer(int plane);
+
+        int rowStride(int plane);
+
+        int pixelStride(int plane);
+
+        void close();
+    }
+
+    /** Metadata of a finished capture; null where the device did not report a value. */
+    interface Result {
+        Long sensorTimestamp();
+
+        Integer afState();
+
+        Integer aeState();
+
+        Integer awbState();
+
+        Integer iso();
+
+        Long exposureTime();
+
+        Long frameDuration();
+
+        Float focusDistance();
+
+        Float aperture();
+
+        Float focalLength();
+
+        /** The TotalCaptureResult on Camera2, for DNG tags; null on other backends. */
+        Object platform();
+    }
+
+    /**
+     * Outputs of one session: optionally the preview, plus still streams in
+     * their own pixel modes. A session that mixes pixel modes needs every
+     * output tagged with its mode, and fails to configure if the HAL rejects
+     * the tagging; otherwise tagging is best effort.
+     */
+    final class SessionSpec {
+        final boolean preview;
+        final List<Stream> streams;
+        /** Session parameters put the sensor in max-res mode (dedicated still sessions). */
+        final boolean maxResParams;
+
+        SessionSpec(boolean preview, List<Stream> streams, boolean maxResParams) {
+            this.preview = preview;
+            this.streams = Collections.unmodifiableList(streams);
+            this.maxResParams = maxResParams;
+        }
+
+        boolean mixesPixelModes() {
+            int modes = preview ? 1 << PIXEL_MODE_DEFAULT : 0;
+            for (Stream s : streams) modes |= 1 << s.pixelMode();
+            return Integer.bitCount(modes) > 1;
+        }
+    }
+
+    /**
+     * Controls for one request. Preview requests go to the preview output
+     * with continuous AF; stills go to their streams with JPEG_ORIENTATION 0,
+     * since rotation is done in software.
+     */
+    final class Request {
+        final boolean still;
+        final List<Stream> targets;
+        final int ev;
+        final int pixelMode;
+        /** One-shot AF (AF_MODE_AUTO + trigger) instead of continuous. */
+        boolean afTrigger;
+        /** AF/AE region {left, top, width, height} in active-array pixels, or null. */
+        int[] region;
+
+        private Request(boolean still, List<Stream> targets, int ev, int pixelMode) {
+            this.still = still;
+            this.targets = targets;
+            this.ev = ev;
+            this.pixelMode = pixelMode;
+        }
+
+        static Request preview(int ev) {
+            return new Request(false, Collections.emptyList(), ev, PIXEL_MODE_DEFAULT);
+        }
+
+        /** Preview request metering AF/AE on region (null for the whole frame). */
+        static Request preview(int ev, int[] region) {
+            Request r = preview(ev);
+            r.region = region;
+            return r;
+        }
+
+        /** Preview request that starts AF on region. */
+        static Request focus(int ev, int[] region) {
+            Request r = preview(ev);
+            r.afTrigger = true;
+            r.region = region;
+            return r;
+        }
+
+        static Request still(List<Stream> targets, int ev, int pixelMode) {
+            return new Request(true, Collections.unmodifiableList(targets), ev, pixelMode);
+        }
+    }
+
+    interface Session {
+        void setRepeating(Request r, CaptureListener l) throws Exception;
+
+        void capture(Request r, CaptureListener l) throws Exception;
+
+        /** Allocate s's buffers now rather than on the first capture. */
+        void prepare(Stream s) throws Exception;
+
+        void close();
+    }
+
+    /** Pick the back camera (else the first) and describe it; null if there is none. */
+    Info select() throws Exception;
+
+    /** {width, height} pairs the selected camera offers for format in pixelMode, or null if none. */
+    int[][] outputSizes(int format, int pixelMode);
+
+    void open(OpenListener l) throws Exception;
+
+    /**
+     * l runs (on the callback thread) whenever the selected camera becomes
+     * free to open, e.g. after another client or a failed open let go of it.
+     */
+    void setAvailabilityListener(Runnable l);
+
+    boolean isOpen();
+
+    /** Close the device and its session; streams stay valid. */
+    void close();
+
+    /** Buffer size of the preview output for the next session. */
+    void setPreviewSize(int width, int height);
+
+    Stream newStream(int width, int height, int format, int pixelMode, int maxImages);
+
+    /** False only when the backend can tell up front that spec won't configure. */
+    boolean isSupported(SessionSpec spec);
+
+    /** Replaces the running session, if any. */
+    void createSession(SessionSpec spec, SessionListener l) throws Exception;
+
+    /**
+     * Request builders made from a device template since startup. Requests
+     * reuse a cached builder per template, so this grows with opens, not
+     * with requests.
+     */
+    long templateBuilds();
+}
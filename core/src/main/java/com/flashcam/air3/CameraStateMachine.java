@@ -0,0 +1,263 @@
+package com.flashcam.air3;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * The camera lifecycle as a single-threaded state machine over
+ * {@link CameraBackend}. Every transition runs on one executor (the worker
+ * thread in the app, any serial executor in a test); backend callbacks are
+ * turned into CompletableFutures and continued on that executor, so nothing
+ * here is shared between threads except {@link #state()} and nothing ever
+ * blocks waiting for the HAL. Each asynchronous step has an explicit
+ * timeout, run by a {@link Scheduler} so tests can drive the clock.
+ *
+ * Opens are numbered. {@link #close} (or the next open) bumps the number and
+ * callbacks for an older open are ignored, closing the device they bring
+ * back, so a close racing an open in flight can't leave a camera behind. A
+ * failed open is retried when the backend reports the camera available
+ * again, or after {@link #REOPEN_WAIT_MS} if it never does, up to
+ * {@link #MAX_OPEN_ATTEMPTS} times. A device lost while running starts the
+ * same cycle with a fresh attempt count.
+ */
+final class CameraStateMachine {
+
+    private static final Logger LOG = Logger.getLogger("FlashCam");
+
+    enum CamState { INIT, OPENING, PREVIEW, CAPTURING, ERROR }
+
+    /** Called on the executor. */
+    interface Listener {
+        /** After every transition; detail says why for OPENING retries and ERROR, else null. */
+        void onState(CamState state, String detail);
+
+        /** The device is open. The listener starts the preview, which moves to PREVIEW. */
+        void onOpened();
+    }
+
+    /** Runs task on the executor once delayMs have passed. */
+    interface Scheduler {
+        void schedule(Runnable task, long delayMs);
+    }
+
+    static final int MAX_OPEN_ATTEMPTS = 3;
+    static final long OPEN_TIMEOUT_MS = 60_000;
+    static final long SESSION_TIMEOUT_MS = 30_000;
+    static final long CAPTURE_TIMEOUT_MS = 30_000;
+    /** Reopen after a failure even if no availability callback has come by then. */
+    static final long REOPEN_WAIT_MS = 5_000;
+
+    private static final int OPENED = 0;
+
+    private final CameraBackend backend;
+    private final Executor executor;
+    private final Listener listener;
+    private final Scheduler scheduler;
+    private volatile CamState state = CamState.INIT;
+    private int generation;
+    private int attempts;
+    private boolean awaitingAvailability;
+
+    CameraStateMachine(CameraBackend backend, Executor executor, Listener listener) {
+        this(backend, executor, listener,
+            (task, delayMs) -> CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, executor).execute(task));
+    }
+
+    CameraStateMachine(CameraBackend backend, Executor executor, Listener listener, Scheduler scheduler) {
+        this.backend = backend;
+        this.executor = executor;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        backend.setAvailabilityListener(() -> executor.execute(this::onAvailable));
+    }
+
+    /** Readable from any thread. */
+    CamState state() {
+        return state;
+    }
+
+    /** Start opening from INIT or ERROR; ignored while opening or open. */
+    void open() {
+        if (state != CamState.INIT && state != CamState.ERROR) return;
+        attempts = 0;
+        attemptOpen();
+    }
+
+    /** Close the device and forget any open or reopen in flight. */
+    void close() {
+        generation++;
+        awaitingAvailability = false;
+        backend.close();
+        move(CamState.INIT, null);
+    }
+
+    /**
+     * PREVIEW once the preview runs (from OPENING, CAPTURING, PREVIEW, or
+     * ERROR after {@link #fail} with the device still open) and CAPTURING for
+     * a shot (from PREVIEW only). False, with no change, if the current state
+     * doesn't allow it, e.g. a preview that finished starting after the
+     * camera was closed.
+     */
+    boolean moveTo(CamState to) {
+        boolean ok;
+        switch (to) {
+            case PREVIEW:
+                ok = state == CamState.OPENING || state == CamState.CAPTURING || state == CamState.PREVIEW
+                    || (state == CamState.ERROR && !awaitingAvailability && backend.isOpen());
+                break;
+            case CAPTURING:
+                ok = state == CamState.PREVIEW;
+                break;
+            default:
+                throw new IllegalArgumentException("Use open(), close() or fail() for " + to);
+        }
+        if (ok) move(to, null);
+        return ok;
+    }
+
+    /** ERROR with the device left as it is, for a preview that can't start. */
+    void fail(String why) {
+        if (state != CamState.INIT) move(CamState.ERROR, why);
+    }
+
+    /**
+     * Configured session for spec, or null if the HAL rejects it. Completes
+     * exceptionally on timeout; a session that turns up later is closed.
+     */
+    CompletableFuture<CameraBackend.Session> createSession(CameraBackend.SessionSpec spec) {
+        CompletableFuture<CameraBackend.Session> f = new CompletableFuture<>();
+        try {
+            backend.createSession(spec, new CameraBackend.SessionListener() {
+                @Override public void onConfigured(CameraBackend.Session session) {
+                    if (!f.complete(session)) session.close();
+                }
+                @Override public void onConfigureFailed() {
+                    f.complete(null);
+                }
+            });
+        } catch (Exception e) {
+            f.completeExceptionally(e);
+        }
+        return timeout(f, SESSION_TIMEOUT_MS);
+    }
+
+    /** Result of a one-shot request, or null if the capture failed. Completes exceptionally on timeout. */
+    CompletableFuture<CameraBackend.Result> capture(CameraBackend.Session session, CameraBackend.Request request) {
+        CompletableFuture<CameraBackend.Result> f = new CompletableFuture<>();
+        try {
+            session.capture(request, new CameraBackend.CaptureListener() {
+                @Override public void onCompleted(CameraBackend.Result result) {
+                    f.complete(result);
+                }
+                @Override public void onFailed() {
+                    f.complete(null);
+                }
+            });
+        } catch (Exception e) {
+            f.completeExceptionally(e);
+        }
+        return timeout(f, CAPTURE_TIMEOUT_MS);
+    }
+
+    // ── Opening ──
+
+    private void attemptOpen() {
+        int gen = ++generation;
+        awaitingAvailability = false;
+        attempts++;
+        move(CamState.OPENING, attempts > 1 ? "attempt " + attempts + " of " + MAX_OPEN_ATTEMPTS : null);
+        CompletableFuture<Integer> opened = new CompletableFuture<>();
+        try {
+            backend.open(new CameraBackend.OpenListener() {
+                @Override public void onOpened() {
+                    if (!opened.complete(OPENED)) executor.execute(() -> onLateOpen(gen));
+                }
+                @Override public void onClosed(int error) {
+                    if (!opened.complete(error)) executor.execute(() -> onDeviceLost(gen, error));
+                }
+            });
+        } catch (Exception e) {
+            opened.completeExceptionally(e);
+        }
+        timeout(opened, OPEN_TIMEOUT_MS)
+            .whenCompleteAsync((code, error) -> onOpenResult(gen, code, error), executor);
+    }
+
+    private void onOpenResult(int gen, Integer code, Throwable error) {
+        boolean ok = error == null && code == OPENED;
+        if (gen != generation) {
+            // Closed (or reopened) while this open was in flight
+            if (ok && state == CamState.INIT) backend.close();
+            return;
+        }
+        if (ok) {
+            attempts = 0;
+            listener.onOpened();
+            return;
+        }
+        String why = error != null ? "open " + describe(error) : "open error " + code;
+        LOG.warning("Camera open attempt " + attempts + " failed: " + why);
+        awaitReopen(why);
+    }
+
+    /**
+     * The device came up after its open had timed out: adopt it if that open
+     * is still the current one, whether a retry was pending or it was the
+     * last attempt and the machine had given up.
+     */
+    private void onLateOpen(int gen) {
+        if (gen == generation && state == CamState.ERROR) {
+            awaitingAvailability = false;
+            attempts = 0;
+            move(CamState.OPENING, null);
+            listener.onOpened();
+        } else if (gen != generation && state == CamState.INIT) {
+            backend.close();
+        }
+    }
+
+    /** Disconnected or errored after opening. */
+    private void onDeviceLost(int gen, int error) {
+        if (gen != generation || state == CamState.INIT) return;
+        LOG.warning("Camera lost: " + error);
+        attempts = 0;
+        awaitReopen(error == CameraBackend.ERROR_DISCONNECTED ? "camera disconnected" : "camera error " + error);
+    }
+
+    private void awaitReopen(String why) {
+        if (attempts >= MAX_OPEN_ATTEMPTS) {
+            move(CamState.ERROR, "Camera open failed after " + attempts + " attempts (" + why + ")");
+            return;
+        }
+        awaitingAvailability = true;
+        move(CamState.ERROR, why + "; waiting for camera");
+        int gen = generation;
+        scheduler.schedule(() -> {
+            if (gen == generation && awaitingAvailability) attemptOpen();
+        }, REOPEN_WAIT_MS);
+    }
+
+    private void onAvailable() {
+        if (awaitingAvailability) attemptOpen();
+    }
+
+    private void move(CamState to, String detail) {
+        state = to;
+        listener.onState(to, detail);
+    }
+
+    /** f, failed with a TimeoutException if it hasn't completed after ms. */
+    private <T> CompletableFuture<T> timeout(CompletableFuture<T> f, long ms) {
+        scheduler.schedule(() -> f.completeExceptionally(new TimeoutException()), ms);
+        return f;
+    }
+
+    private static String describe(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        return t instanceof TimeoutException ? "timed out" : "failed: " + t.getMessage();
+    }
+}
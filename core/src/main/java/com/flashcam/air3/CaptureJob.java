@@ -0,0 +1,67 @@
+package com.flashcam.air3;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * One shot travelling through the capture pipeline. Holds copies only, so
+ * its frames are back in their streams by the time the job exists. The
+ * exception is an untouched HAL JPEG, which is kept as the frame and
+ * written straight from its plane by the persist stage. R is what a save
+ * returns (MediaStoreWriter.Result in the app).
+ */
+final class CaptureJob<R> {
+    // Set at hand-off
+    boolean maxRes;
+    String ts, mpLabel;
+    boolean combined;
+    long sessionMs;
+    int ev, rotation;
+    /** EV step of the camera that took the shot, for the EXIF exposure bias; 0/1 when unknown. */
+    int evStepNum, evStepDen = 1;
+    int[][] dims;
+    CameraBackend.Result result;
+    byte[] halJpeg;
+    CameraBackend.Frame jpegImage;
+    int halBytes;
+    byte[] yuvY, yuvCb, yuvCr;
+    int yuvW, yuvH;
+    ByteBuffer raw;
+    /** RAW frame size; 0x0 when the shot has none. */
+    int rawW, rawH;
+    int rawFormat;
+    long rawPackedBytes, unpackMs;
+    /** The RAW frame went to the RAW spool at hand-off instead of riding in {@link #raw}. */
+    boolean rawSpooled;
+    long spoolNanos;
+    long captureWallMs;
+    long handoffAt;
+    String latencyKey;
+    Map<String, Long> latency;
+    /** Snapshotted at the shutter; later changes don't reach queued shots. */
+    JpegWriter.Mode entropyMode;
+    boolean dngLossless;
+
+    // Filled in by the stages
+    byte[] jpeg;
+    byte[] thumbnail;
+    int outW, outH;
+    int exifBytes;
+    boolean exifThumbnail;
+    String rotateMethod = "none";
+    /** The lossless rotation already wrote with entropyMode, so there is nothing left to re-encode. */
+    boolean entropyApplied;
+    R jpegSave, dngSave;
+    int dngOrientation;
+    String dngWriter, dngError;
+    final StringBuilder notes = new StringBuilder();
+
+    boolean hasRaw() {
+        return rawW > 0;
+    }
+
+    /** The encode stage has pixels to work on: a HAL JPEG to rotate or YUV planes to encode. */
+    boolean needsEncode() {
+        return jpegImage == null && (halJpeg != null || yuvY != null);
+    }
+}
@@ -0,0 +1,442 @@
+package com.flashcam.air3;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of every capture (and every background DNG conversion) as
+ * fixed-size binary records in memory-mapped files, one rolling segment per
+ * day. Appending is a copy into the mapping, with no syscall or flush, so
+ * it costs the pipeline next to nothing and the record survives a process
+ * crash as soon as the call returns. A record counts once its commit marker,
+ * written last, is in place; a torn tail is simply not there on reopen.
+ *
+ * Segment: a 64-byte header, then {@link #SEGMENT_RECORDS} slots of
+ * {@link #RECORD_SIZE} bytes (the file is sparse until used). A full segment
+ * rolls over to the same day's next one.
+ */
+final class CaptureJournal {
+
+    private static final Logger LOG = Logger.getLogger("FlashCam");
+    static final int RECORD_SIZE = 1024;
+    static final int HEADER = 64;
+    static final int SEGMENT_RECORDS = 8192;
+    private static final int MAGIC = 0x46434A31;   // "FCJ1"
+    private static final int COMMIT = 0x52454321;  // "REC!"
+    private static final String PREFIX = "captures-";
+    private static final String SUFFIX = ".fcj";
+
+    static final byte KIND_CAPTURE = 1;
+    static final byte KIND_DNG = 2;
+
+    /** Fixed stage slots; timings for any other name are dropped. */
+    static final String[] STAGES = {
+        "preview close", "session create", "capture\u2192result", "result\u2192images", "hand-off",
+        "shutter lag", "touch\u2192hand-off", "encode", "persist", "metadata", "DNG convert"
+    };
+
+    // ── Record layout ──
+    private static final int O_COMMIT = 0;
+    private static final int O_KIND = 4;
+    private static final int O_FLAGS = 5;
+    private static final int O_EV = 6;
+    private static final int O_WALL = 8;
+    private static final int O_MODE = 16;       // 8 ASCII bytes
+    private static final int O_ROTATION = 24;
+    private static final int O_JPEG_W = 28;
+    private static final int O_JPEG_H = 32;
+    private static final int O_RAW_W = 36;
+    private static final int O_RAW_H = 40;
+    private static final int O_JPEG_BYTES = 44;
+    private static final int O_DNG_BYTES = 52;
+    private static final int O_JPEG_CRC = 60;
+    private static final int O_DNG_CRC = 64;
+    private static final int O_AE = 68;
+    private static final int O_AF = 72;
+    private static final int O_AWB = 76;
+    private static final int O_ISO = 80;
+    private static final int O_EXPOSURE = 84;
+    private static final int O_FOCUS = 92;
+    private static final int O_STAGES = 96;     // 16 int slots, microseconds
+    private static final int STAGE_SLOTS = 16;
+    private static final int O_JPEG_URI = 160;  // 2 + 254
+    private static final int O_DNG_URI = 416;   // 2 + 254
+    private static final int O_NOTE = 672;      // 2 + 350
+    private static final int URI_MAX = 254;
+    private static final int NOTE_MAX = 350;
+
+    private static final int F_MAX_RES = 1, F_DNG = 2, F_COMBINED = 4, F_LOSSLESS = 8,
+        F_JPEG_CRC = 16, F_DNG_CRC = 32;
+
+    /** One capture or conversion. Unknown numbers stay -1, unknown strings "". */
+    static final class Record {
+        byte kind = KIND_CAPTURE;
+        long wallMs;
+        String mode = "";
+        boolean maxRes, dng, combined, lossless;
+        int ev, rotation;
+        int jpegW = -1, jpegH = -1, rawW = -1, rawH = -1;
+        long jpegBytes = -1, dngBytes = -1;
+        boolean jpegCrcValid, dngCrcValid;
+        int jpegCrc, dngCrc;
+        int aeState = -1, afState = -1, awbState = -1, iso = -1;
+        long exposureNs = -1;
+        float focusDiopters = -1;
+        final int[] stageMicros = new int[STAGES.length];
+        String jpegUri = "", dngUri = "", note = "";
+
+        Record() {
+            Arrays.fill(stageMicros, -1);
+        }
+
+        void stage(String name, long nanos) {
+            for (int i = 0; i < STAGES.length; i++) {
+                if (STAGES[i].equals(name)) {
+                    stageMicros[i] = (int) Math.min(Integer.MAX_VALUE, nanos / 1000);
+                    return;
+                }
+            }
+        }
+    }
+
+    interface Progress {
+        void onProgress(int done, int total);
+    }
+
+    private final File dir;
+    private String day;
+    private long dayStart, dayEnd;
+    private int part;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int count;
+
+    CaptureJournal(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    /** Copy r into the current segment; rolls to a new one per day or when full. */
+    synchronized void append(Record r) {
+        try {
+            if (map == null || r.wallMs < dayStart || r.wallMs >= dayEnd || count == SEGMENT_RECORDS) {
+                open(r.wallMs);
+            }
+            int at = HEADER + count * RECORD_SIZE;
+            ByteBuffer b = map.duplicate();
+            b.position(at).limit(at + RECORD_SIZE);
+            encode(b.slice(), r);
+            map.putInt(at + O_COMMIT, COMMIT);
+            count++;
+        } catch (IOException e) {
+            LOG.warning("Journal append failed: " + e.getMessage());
+        }
+    }
+
+    /** Records in all segments. */
+    synchronized int size() {
+        int n = 0;
+        for (File f : segments()) {
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                n += committed(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            } catch (IOException e) {
+                LOG.warning("Journal segment unreadable: " + f.getName());
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Stream every record, oldest first, into csv and json (either may be
+     * null). Runs on the caller's thread; progress is reported every 256
+     * records and at the end.
+     */
+    void export(File csv, File json, Progress progress) throws IOException {
+        int total = size();
+        int done = 0;
+        try (Writer c = csv != null ? open(csv) : null; Writer j = json != null ? open(json) : null) {
+            if (c != null) {
+                c.write("kind,time,mode,max_res,dng,combined,lossless,ev,rotation,jpeg_w,jpeg_h,raw_w,raw_h,"
+                    + "jpeg_bytes,dng_bytes,jpeg_crc32c,dng_crc32c,ae_state,af_state,awb_state,iso,exposure_ns,"
+                    + "focus_diopters");
+                for (String s : STAGES) c.write("," + csvName(s) + "_us");
+                c.write(",jpeg_uri,dng_uri,note\n");
+            }
+            if (j != null) j.write("[\n");
+            Record r = new Record();
+            for (File f : segments()) {
+                MappedByteBuffer seg;
+                try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                    seg = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                }
+                int n = committed(seg);
+                for (int i = 0; i < n; i++) {
+                    ByteBuffer b = seg.duplicate();
+                    b.position(HEADER + i * RECORD_SIZE).limit(HEADER + (i + 1) * RECORD_SIZE);
+                    decode(b.slice(), r);
+                    if (c != null) writeCsv(c, r);
+                    if (j != null) writeJson(j, r, done == 0);
+                    done++;
+                    if (progress != null && (done & 255) == 0) progress.onProgress(done, total);
+                }
+            }
+            if (j != null) j.write("\n]\n");
+        }
+        if (progress != null) progress.onProgress(done, total);
+    }
+
+    // ── Segments ──
+
+    private void open(long wallMs) throws IOException {
+        if (channel != null) channel.close();
+        String today = new SimpleDateFormat("yyyyMMdd", Locale.US).format(new Date(wallMs));
+        if (!today.equals(day)) {
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(wallMs);
+            c.set(Calendar.HOUR_OF_DAY, 0);
+            c.set(Calendar.MINUTE, 0);
+            c.set(Calendar.SECOND, 0);
+            c.set(Calendar.MILLISECOND, 0);
+            dayStart = c.getTimeInMillis();
+            c.add(Calendar.DAY_OF_MONTH, 1);
+            dayEnd = c.getTimeInMillis();
+            day = today;
+            part = 0;
+        } else if (count == SEGMENT_RECORDS) {
+            part++;
+        }
+        while (true) {
+            File f = new File(dir, PREFIX + day + (part > 0 ? "-" + part : "") + SUFFIX);
+            channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) SEGMENT_RECORDS * RECORD_SIZE);
+            if (map.getInt(0) != MAGIC) {
+                map.putInt(4, RECORD_SIZE);
+                map.putInt(8, SEGMENT_RECORDS);
+                map.putInt(0, MAGIC);
+            }
+            count = committed(map);
+            if (count < SEGMENT_RECORDS) return;
+            channel.close();
+            part++;
+        }
+    }
+
+    /** Segment files, oldest first. */
+    File[] segments() {
+        File[] files = dir.listFiles((d, n) -> n.startsWith(PREFIX) && n.endsWith(SUFFIX));
+        if (files == null) return new File[0];
+        // captures-YYYYMMDD[-part]: sort by day, then numerically by part
+        Arrays.sort(files, (a, b) -> {
+            String da = a.getName().substring(PREFIX.length(), PREFIX.length() + 8);
+            String db = b.getName().substring(PREFIX.length(), PREFIX.length() + 8);
+            int cmp = da.compareTo(db);
+            return cmp != 0 ? cmp : Integer.compare(partOf(a.getName()), partOf(b.getName()));
+        });
+        return files;
+    }
+
+    private static int partOf(String name) {
+        int dash = name.indexOf('-', PREFIX.length());
+        if (dash < 0) return 0;
+        try {
+            return Integer.parseInt(name.substring(dash + 1, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Leading run of committed slots. */
+    private static int committed(ByteBuffer seg) {
+        if (seg.limit() < HEADER || seg.getInt(0) != MAGIC) return 0;
+        int n = 0;
+        while (HEADER + (long) (n + 1) * RECORD_SIZE <= seg.limit()
+                && seg.getInt(HEADER + n * RECORD_SIZE + O_COMMIT) == COMMIT) {
+            n++;
+        }
+        return n;
+    }
+
+    // ── Encoding ──
+
+    static void encode(ByteBuffer b, Record r) {
+        b.put(O_KIND, r.kind);
+        int flags = (r.maxRes ? F_MAX_RES : 0) | (r.dng ? F_DNG : 0) | (r.combined ? F_COMBINED : 0)
+            | (r.lossless ? F_LOSSLESS : 0) | (r.jpegCrcValid ? F_JPEG_CRC : 0) | (r.dngCrcValid ? F_DNG_CRC : 0);
+        b.put(O_FLAGS, (byte) flags);
+        b.putShort(O_EV, (short) r.ev);
+        b.putLong(O_WALL, r.wallMs);
+        byte[] mode = r.mode.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < 8; i++) b.put(O_MODE + i, i < mode.length ? mode[i] : 0);
+        b.putShort(O_ROTATION, (short) r.rotation);
+        b.putInt(O_JPEG_W, r.jpegW).putInt(O_JPEG_H, r.jpegH).putInt(O_RAW_W, r.rawW).putInt(O_RAW_H, r.rawH);
+        b.putLong(O_JPEG_BYTES, r.jpegBytes).putLong(O_DNG_BYTES, r.dngBytes);
+        b.putInt(O_JPEG_CRC, r.jpegCrc).putInt(O_DNG_CRC, r.dngCrc);
+        b.putInt(O_AE, r.aeState).putInt(O_AF, r.afState).putInt(O_AWB, r.awbState).putInt(O_ISO, r.iso);
+        b.putLong(O_EXPOSURE, r.exposureNs);
+        b.putFloat(O_FOCUS, r.focusDiopters);
+        for (int i = 0; i < STAGE_SLOTS; i++) {
+            b.putInt(O_STAGES + i * 4, i < r.stageMicros.length ? r.stageMicros[i] : -1);
+        }
+        putString(b, O_JPEG_URI, URI_MAX, r.jpegUri);
+        putString(b, O_DNG_URI, URI_MAX, r.dngUri);
+        putString(b, O_NOTE, NOTE_MAX, r.note);
+    }
+
+    static void decode(ByteBuffer b, Record r) {
+        r.kind = b.get(O_KIND);
+        int flags = b.get(O_FLAGS);
+        r.maxRes = (flags & F_MAX_RES) != 0;
+        r.dng = (flags & F_DNG) != 0;
+        r.combined = (flags & F_COMBINED) != 0;
+        r.lossless = (flags & F_LOSSLESS) != 0;
+        r.jpegCrcValid = (flags & F_JPEG_CRC) != 0;
+        r.dngCrcValid = (flags & F_DNG_CRC) != 0;
+        r.ev = b.getShort(O_EV);
+        r.wallMs = b.getLong(O_WALL);
+        int n = 0;
+        while (n < 8 && b.get(O_MODE + n) != 0) n++;
+        byte[] mode = new byte[n];
+        for (int i = 0; i < n; i++) mode[i] = b.get(O_MODE + i);
+        r.mode = new String(mode, StandardCharsets.US_ASCII);
+        r.rotation = b.getShort(O_ROTATION);
+        r.jpegW = b.getInt(O_JPEG_W);
+        r.jpegH = b.getInt(O_JPEG_H);
+        r.rawW = b.getInt(O_RAW_W);
+        r.rawH = b.getInt(O_RAW_H);
+        r.jpegBytes = b.getLong(O_JPEG_BYTES);
+        r.dngBytes = b.getLong(O_DNG_BYTES);
+        r.jpegCrc = b.getInt(O_JPEG_CRC);
+        r.dngCrc = b.getInt(O_DNG_CRC);
+        r.aeState = b.getInt(O_AE);
+        r.afState = b.getInt(O_AF);
+        r.awbState = b.getInt(O_AWB);
+        r.iso = b.getInt(O_ISO);
+        r.exposureNs = b.getLong(O_EXPOSURE);
+        r.focusDiopters = b.getFloat(O_FOCUS);
+        for (int i = 0; i < r.stageMicros.length; i++) r.stageMicros[i] = b.getInt(O_STAGES + i * 4);
+        r.jpegUri = getString(b, O_JPEG_URI);
+        r.dngUri = getString(b, O_DNG_URI);
+        r.note = getString(b, O_NOTE);
+    }
+
+    /** Length-prefixed UTF-8, cut to max bytes on a character boundary. */
+    private static void putString(ByteBuffer b, int at, int max, String s) {
+        byte[] bytes = s != null ? s.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int n = Math.min(bytes.length, max);
+        while (n > 0 && n < bytes.length && (bytes[n] & 0xC0) == 0x80) n--;
+        b.putShort(at, (short) n);
+        for (int i = 0; i < n; i++) b.put(at + 2 + i, bytes[i]);
+    }
+
+    private static String getString(ByteBuffer b, int at) {
+        int n = b.getShort(at) & 0xFFFF;
+        byte[] bytes = new byte[n];
+        for (int i = 0; i < n; i++) bytes[i] = b.get(at + 2 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ── Export ──
+
+    private static Writer open(File f) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private static String kindName(byte kind) {
+        return kind == KIND_DNG ? "dng" : "capture";
+    }
+
+    private static String timeOf(long wallMs) {
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.US).format(new Date(wallMs));
+    }
+
+    private static String csvName(String stage) {
+        return stage.replace("\u2192", "_to_").replace(' ', '_').replace('-', '_');
+    }
+
+    private static void writeCsv(Writer w, Record r) throws IOException {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(kindName(r.kind)).append(',').append(timeOf(r.wallMs)).append(',').append(r.mode)
+            .append(',').append(r.maxRes).append(',').append(r.dng).append(',').append(r.combined)
+            .append(',').append(r.lossless).append(',').append(r.ev).append(',').append(r.rotation)
+            .append(',').append(r.jpegW).append(',').append(r.jpegH).append(',').append(r.rawW)
+            .append(',').append(r.rawH).append(',').append(r.jpegBytes).append(',').append(r.dngBytes)
+            .append(',').append(r.jpegCrcValid ? String.format(Locale.US, "%08x", r.jpegCrc) : "")
+            .append(',').append(r.dngCrcValid ? String.format(Locale.US, "%08x", r.dngCrc) : "")
+            .append(',').append(r.aeState).append(',').append(r.afState).append(',').append(r.awbState)
+            .append(',').append(r.iso).append(',').append(r.exposureNs).append(',').append(r.focusDiopters);
+        for (int us : r.stageMicros) sb.append(',').append(us >= 0 ? Integer.toString(us) : "");
+        sb.append(',').append(csvQuote(r.jpegUri)).append(',').append(csvQuote(r.dngUri))
+            .append(',').append(csvQuote(r.note)).append('\n');
+        w.write(sb.toString());
+    }
+
+    private static String csvQuote(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    private static void writeJson(Writer w, Record r, boolean first) throws IOException {
+        StringBuilder sb = new StringBuilder(768);
+        if (!first) sb.append(",\n");
+        sb.append("{\"kind\":\"").append(kindName(r.kind)).append("\",\"time\":\"").append(timeOf(r.wallMs))
+            .append("\",\"mode\":").append(jsonString(r.mode))
+            .append(",\"maxRes\":").append(r.maxRes).append(",\"dng\":").append(r.dng)
+            .append(",\"combined\":").append(r.combined).append(",\"lossless\":").append(r.lossless)
+            .append(",\"ev\":").append(r.ev).append(",\"rotation\":").append(r.rotation)
+            .append(",\"jpeg\":{\"w\":").append(r.jpegW).append(",\"h\":").append(r.jpegH)
+            .append(",\"bytes\":").append(r.jpegBytes)
+            .append(",\"crc32c\":").append(r.jpegCrcValid ? jsonString(String.format(Locale.US, "%08x", r.jpegCrc)) : "null")
+            .append(",\"uri\":").append(jsonString(r.jpegUri))
+            .append("},\"raw\":{\"w\":").append(r.rawW).append(",\"h\":").append(r.rawH)
+            .append(",\"dngBytes\":").append(r.dngBytes)
+            .append(",\"crc32c\":").append(r.dngCrcValid ? jsonString(String.format(Locale.US, "%08x", r.dngCrc)) : "null")
+            .append(",\"uri\":").append(jsonString(r.dngUri))
+            .append("},\"3a\":{\"ae\":").append(r.aeState).append(",\"af\":").append(r.afState)
+            .append(",\"awb\":").append(r.awbState).append(",\"iso\":").append(r.iso)
+            .append(",\"exposureNs\":").append(r.exposureNs).append(",\"focusDiopters\":").append(r.focusDiopters)
+            .append("},\"stagesUs\":{");
+        boolean any = false;
+        for (int i = 0; i < STAGES.length; i++) {
+            if (r.stageMicros[i] < 0) continue;
+            if (any) sb.append(',');
+            sb.append(jsonString(STAGES[i])).append(':').append(r.stageMicros[i]);
+            any = true;
+        }
+        sb.append("},\"note\":").append(jsonString(r.note)).append('}');
+        w.write(sb.toString());
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (ch < 0x20) sb.append(String.format(Locale.US, "\\u%04x", (int) ch));
+                    else sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,162 @@
+package com.flashcam.air3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fixed chain of stages, each on its own single-thread executor, with a
+ * bounded number of jobs in flight. The camera side reserves a slot before
+ * taking a shot and hands the job over once the frame is out of the
+ * ImageReader; the slot is returned when the last stage finishes, so
+ * backpressure only reaches the shutter when every slot is busy.
+ *
+ * A stage that throws (an Error such as OutOfMemoryError included) is
+ * reported to the error handler and the job still moves on, so later stages
+ * (e.g. DNG after a failed JPEG) get their chance and the slot comes back.
+ */
+final class CapturePipeline<T> {
+
+    interface Step<T> {
+        void run(T job) throws Exception;
+    }
+
+    interface Listener<T> {
+        void onStageError(T job, String stage, Throwable e);
+        void onJobDone(T job);
+    }
+
+    private static final class Stage<T> {
+        final String name;
+        final Step<T> step;
+        final ExecutorService executor;
+        int queued;
+        long jobs, busyNanos;
+
+        Stage(String name, Step<T> step) {
+            this.name = name;
+            this.step = step;
+            this.executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "Pipe-" + name));
+        }
+    }
+
+    private final int depth;
+    private final Semaphore slots;
+    private final Listener<T> listener;
+    private final List<Stage<T>> stages = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+    private long completed;
+    private boolean shuttingDown;
+    private Runnable onDrained;
+
+    CapturePipeline(int depth, Listener<T> listener) {
+        this.depth = depth;
+        this.slots = new Semaphore(depth);
+        this.listener = listener;
+    }
+
+    /** Append a stage; call before the first submit. */
+    CapturePipeline<T> stage(String name, Step<T> step) {
+        stages.add(new Stage<>(name, step));
+        return this;
+    }
+
+    /** Take a slot for a new job without blocking; false when the queue is full or shutting down. */
+    boolean tryReserve() {
+        synchronized (this) {
+            if (shuttingDown) return false;
+        }
+        return slots.tryAcquire();
+    }
+
+    /** Give back a reserved slot that never became a job. */
+    void cancelReservation() {
+        slots.release();
+        finishIfDrained();
+    }
+
+    boolean hasCapacity() {
+        return slots.availablePermits() > 0;
+    }
+
+    int inFlight() {
+        return depth - slots.availablePermits();
+    }
+
+    /** Start a job in a slot taken with {@link #tryReserve()}. */
+    void submit(T job) {
+        dispatch(job, 0);
+    }
+
+    private void dispatch(T job, int index) {
+        if (index == stages.size()) {
+            synchronized (this) { completed++; }
+            slots.release();
+            listener.onJobDone(job);
+            finishIfDrained();
+            return;
+        }
+        Stage<T> s = stages.get(index);
+        synchronized (this) { s.queued++; }
+        s.executor.execute(() -> {
+            long t0 = System.nanoTime();
+            try {
+                s.step.run(job);
+            } catch (Throwable e) {
+                listener.onStageError(job, s.name, e);
+            } finally {
+                synchronized (this) {
+                    s.queued--;
+                    s.jobs++;
+                    s.busyNanos += System.nanoTime() - t0;
+                }
+                dispatch(job, index + 1);
+            }
+        });
+    }
+
+    /** Queue depth and per-stage throughput, one line. */
+    synchronized String stats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%d/%d in flight", inFlight(), depth));
+        for (Stage<T> s : stages) {
+            double avgMs = s.jobs > 0 ? s.busyNanos / 1e6 / s.jobs : 0;
+            sb.append(String.format(Locale.US, ", %s %d queued %.0f ms avg", s.name, s.queued, avgMs));
+        }
+        double minutes = (System.nanoTime() - startNanos) / 6e10;
+        sb.append(String.format(Locale.US, ", %d done (%.1f/min)", completed, minutes > 0 ? completed / minutes : 0));
+        return sb.toString();
+    }
+
+    void shutdown() {
+        shutdown(() -> { });
+    }
+
+    /**
+     * Take no new shots, let the jobs in flight run through every stage,
+     * then stop the stage threads and run onDrained (on the thread that
+     * freed the last slot, or this one if none is busy). Executors the
+     * stages use can be shut down from onDrained.
+     */
+    void shutdown(Runnable onDrained) {
+        synchronized (this) {
+            shuttingDown = true;
+            this.onDrained = onDrained;
+        }
+        finishIfDrained();
+    }
+
+    private void finishIfDrained() {
+        Runnable r;
+        synchronized (this) {
+            if (!shuttingDown || onDrained == null || slots.availablePermits() < depth) return;
+            r = onDrained;
+            onDrained = null;
+        }
+        for (Stage<T> s : stages) s.executor.shutdown();
+        r.run();
+    }
+}
@@ -0,0 +1,347 @@
+package com.flashcam.air3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The capture pipeline's work without the platform: the hand-off copies out
+ * of backend frames, the encode stage (YUV encode, lossless rotation,
+ * entropy re-optimization), the persist stage's EXIF splice and JPEG spool,
+ * and the metadata stage's journal record. What needs Android comes in
+ * through {@link Platform}: the decode-based rotation fallback, the EXIF
+ * thumbnail and the save itself. The app runs these behind Camera2; tests
+ * run them behind {@link SimulatedBackend}.
+ */
+final class CaptureStages<R> {
+
+    private static final Logger LOG = Logger.getLogger("FlashCam");
+    /** EXIF orientation 1: the pixels are already upright. */
+    private static final int ORIENTATION_NORMAL = 1;
+    private static final AtomicInteger shotSeq = new AtomicInteger();
+
+    /** Encoder and EXIF settings. Change before the first shot. */
+    static final class Config {
+        int yuvQuality = 100;
+        YuvJpegEncoder.Subsampling yuvSubsampling = YuvJpegEncoder.Subsampling.YUV420;
+        /** Put an IFD1 thumbnail in the EXIF (when the platform can make one). */
+        boolean exifThumbnail = true;
+        String software = "FlashCam-Air3";
+        String make = "", model = "";
+    }
+
+    interface Platform<R> {
+        /** Decode, rotate and re-encode at Q100: the fallback when the lossless rotation fails. */
+        byte[] rotateStrips(byte[] jpeg, int degrees) throws IOException;
+
+        /** IFD1 thumbnail for jpeg, or null. */
+        byte[] thumbnail(byte[] jpeg);
+
+        /**
+         * Save the shot: jpegParts (one gathering write; null when there is no
+         * JPEG) as jpegName, plus anything else the job carries, setting
+         * job.jpegSave and job.dngSave. jpegSave stays null if the JPEG wasn't saved.
+         */
+        void save(CaptureJob<R> job, String jpegName, ByteBuffer[] jpegParts) throws Exception;
+    }
+
+    private final Config config;
+    private final Platform<R> platform;
+    private final ExecutorService encodePool;
+    private final JpegSpool spool;
+
+    /** spool may be null, in which case a JPEG that fails to save is gone. */
+    CaptureStages(Config config, Platform<R> platform, ExecutorService encodePool, JpegSpool spool) {
+        this.config = config;
+        this.platform = platform;
+        this.encodePool = encodePool;
+        this.spool = spool;
+    }
+
+    // ── Hand-off ──
+
+    /**
+     * YUV capture path, hand-off half: rotate the three planes by degrees
+     * with a tiled transpose straight out of the frame (the rotation is the
+     * copy), then close it. Encoding happens in the pipeline.
+     */
+    static void extractYuv(CameraBackend.Frame img, int degrees, CaptureJob<?> job) {
+        int w = img.width(), h = img.height();
+        int cw = (w + 1) / 2, ch = (h + 1) / 2;
+        boolean swap = degrees == 90 || degrees == 270;
+        byte[] y = new byte[w * h];
+        byte[] cb = new byte[cw * ch];
+        byte[] cr = new byte[cw * ch];
+        try {
+            YuvRotator.rotatePlane(img.buffer(0), w, h, img.rowStride(0), img.pixelStride(0), degrees, y);
+            YuvRotator.rotatePlane(img.buffer(1), cw, ch, img.rowStride(1), img.pixelStride(1), degrees, cb);
+            YuvRotator.rotatePlane(img.buffer(2), cw, ch, img.rowStride(2), img.pixelStride(2), degrees, cr);
+        } finally {
+            img.close();
+        }
+        job.yuvY = y;
+        job.yuvCb = cb;
+        job.yuvCr = cr;
+        job.yuvW = swap ? h : w;
+        job.yuvH = swap ? w : h;
+    }
+
+    /**
+     * Copy the RAW plane into a direct buffer without row padding and close
+     * the frame. RAW_SENSOR ends up in the layout DngCreator.writeByteBuffer
+     * expects; RAW10/RAW12 stay packed until the persist stage.
+     */
+    static void extractRaw(CameraBackend.Frame img, CaptureJob<?> job) {
+        try {
+            int w = img.width(), h = img.height();
+            int format = img.format();
+            ByteBuffer src = img.buffer(0).duplicate();
+            int rowStride = img.rowStride(0);
+            int rowBytes = RawUnpacker.rowBytes(format, w);
+            ByteBuffer dst = ByteBuffer.allocateDirect(rowBytes * h);
+            if (rowStride == rowBytes) {
+                src.limit(src.position() + rowBytes * h);
+                dst.put(src);
+            } else {
+                int base = src.position();
+                for (int r = 0; r < h; r++) {
+                    src.limit(base + r * rowStride + rowBytes).position(base + r * rowStride);
+                    dst.put(src);
+                }
+            }
+            dst.flip();
+            job.raw = dst;
+            job.rawW = w;
+            job.rawH = h;
+            job.rawFormat = format;
+        } finally {
+            img.close();
+        }
+    }
+
+    // ── Encode ──
+
+    /** Rotate (or YUV-encode) and entropy-optimize the JPEG, and make its thumbnail. */
+    void encode(CaptureJob<R> job) throws Exception {
+        if (job.jpegImage != null) {
+            // Only kept when the shot's mode was STANDARD, so job.entropyMode already says so
+            job.rotateMethod = "none (HAL JPEG passthrough)";
+            return;
+        }
+        if (!job.needsEncode()) return;
+
+        // Rotate pixels to upright using sensorOrientation
+        byte[] jpeg;
+        if (job.yuvY != null) {
+            job.rotateMethod = "fused YUV plane rotation";
+            jpeg = new YuvJpegEncoder(job.yuvY, job.yuvCb, job.yuvCr, job.yuvW, job.yuvH,
+                config.yuvQuality, config.yuvSubsampling).encode(encodePool);
+            job.yuvY = job.yuvCb = job.yuvCr = null;
+        } else {
+            jpeg = rotate(job, job.halJpeg);
+        }
+        job.jpeg = optimizeEntropy(job, jpeg);
+        if (config.exifThumbnail) job.thumbnail = platform.thumbnail(job.jpeg);
+    }
+
+    /**
+     * Rotate a JPEG byte array by job.rotation (0, 90, 180 or 270) in job.entropyMode.
+     *
+     * Tries a lossless DCT-domain rotation first (no decode, no second
+     * quantization). If the JPEG isn't baseline or the transcoder fails, falls
+     * back to the platform's strip-wise decode + rotate + re-encode. How it
+     * went is recorded in job.rotateMethod and job.entropyApplied.
+     */
+    private byte[] rotate(CaptureJob<R> job, byte[] jpegData) {
+        job.entropyApplied = false;
+        if (job.rotation == 0) { job.rotateMethod = "none"; return jpegData; }
+        try {
+            byte[] out = JpegTransform.rotate(jpegData, job.rotation, job.entropyMode);
+            job.rotateMethod = "lossless (DCT)";
+            job.entropyApplied = true;
+            return out;
+        } catch (Exception e) {
+            LOG.warning("Lossless rotation failed, re-encoding: " + e.getMessage());
+        }
+        try {
+            byte[] out = platform.rotateStrips(jpegData, job.rotation);
+            job.rotateMethod = "strip re-encode Q100";
+            return out;
+        } catch (Exception e) {
+            LOG.warning("Strip rotation failed: " + e.getMessage());
+            job.rotateMethod = "FAILED (unrotated)";
+            return jpegData;
+        }
+    }
+
+    /**
+     * Lossless entropy re-optimization between rotation and saving. Skipped
+     * when the lossless rotation already wrote with the selected mode.
+     * Returns the input unchanged on any error.
+     */
+    private static byte[] optimizeEntropy(CaptureJob<?> job, byte[] jpegData) {
+        if (job.entropyMode == JpegWriter.Mode.STANDARD || job.entropyApplied) return jpegData;
+        try {
+            return JpegTransform.reencode(jpegData, job.entropyMode);
+        } catch (Exception e) {
+            LOG.warning("Entropy optimization failed: " + e.getMessage());
+            return jpegData;
+        }
+    }
+
+    // ── Persist ──
+
+    /**
+     * CaptureJob.ts for a shot taken at wallMs: the time to the millisecond
+     * plus a per-process sequence number. The shutter re-arms at hand-off, so
+     * two shots can share a second (or a millisecond); the spools and saved
+     * files are named after this and must never collide.
+     */
+    static String shotId(long wallMs) {
+        return new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date(wallMs))
+            + "_" + shotSeq.incrementAndGet();
+    }
+
+    static String jpegName(CaptureJob<?> job) {
+        return "FlashCam_" + job.ts + "_" + job.mpLabel + "_full.jpg";
+    }
+
+    /**
+     * Splice the EXIF into the final JPEG, spool it, and hand it to the
+     * platform to save with the rest of the shot. The spooled copy is dropped
+     * once the JPEG is saved and kept for the next launch's replay if not.
+     * A kept HAL JPEG frame is closed here, once the save is done with it.
+     */
+    void persist(CaptureJob<R> job) throws Exception {
+        ByteBuffer[] jpegParts = null;
+        if (job.jpegImage != null) {
+            jpegParts = withExif(job, job.jpegImage.buffer(0));
+        } else if (job.jpeg != null) {
+            jpegParts = withExif(job, ByteBuffer.wrap(job.jpeg));
+            job.thumbnail = null;
+        }
+        String name = jpegName(job);
+        JpegSpool.Entry spooled = null;
+        if (jpegParts != null && spool != null) {
+            try {
+                spooled = spool.spool(name, "image/jpeg", jpegParts);
+            } catch (IOException e) {
+                job.notes.append("JPEG spool skipped: ").append(e.getMessage()).append("\n");
+            }
+        }
+        try {
+            platform.save(job, name, jpegParts);
+        } finally {
+            if (job.jpegImage != null) {
+                job.jpegImage.close();
+                job.jpegImage = null;
+            }
+            if (spooled != null) {
+                // An unsaved JPEG stays spooled and is saved again on the next launch
+                if (job.jpegSave != null) spool.done(spooled);
+                else spool.keep(spooled);
+            }
+        }
+    }
+
+    /** Final JPEG with EXIF spliced in, as buffers for one gathering write. */
+    private ByteBuffer[] withExif(CaptureJob<R> job, ByteBuffer jpeg) {
+        int[] wh = ExifSegment.frameSize(jpeg);
+        if (wh != null) {
+            job.outW = wh[0];
+            job.outH = wh[1];
+        } else {
+            job.outW = job.dims[0][0];
+            job.outH = job.dims[0][1];
+        }
+        try {
+            ExifSegment exif = exifSegment(job);
+            ByteBuffer header = exif.buildHeader();
+            job.exifBytes = header.remaining() - 2;
+            job.exifThumbnail = exif.hasThumbnail();
+            return ExifSegment.splice(jpeg, header);
+        } catch (Exception e) {
+            job.notes.append("EXIF skipped: ").append(e.getMessage()).append("\n");
+            return new ByteBuffer[]{jpeg};
+        }
+    }
+
+    /**
+     * SOI + APP1 for the final JPEG: orientation 1 (pixels are upright), the
+     * capture's exposure settings from its capture result, and timestamps.
+     */
+    private ExifSegment exifSegment(CaptureJob<R> job) {
+        ExifSegment exif = new ExifSegment()
+            .orientation(ORIENTATION_NORMAL)
+            .software(config.software)
+            .device(config.make, config.model)
+            .captureTime(job.captureWallMs)
+            .pixelSize(job.outW, job.outH)
+            .thumbnail(job.thumbnail);
+        CameraBackend.Result r = job.result;
+        if (r != null) {
+            Long exposure = r.exposureTime();
+            Integer iso = r.iso();
+            Float aperture = r.aperture();
+            Float focal = r.focalLength();
+            if (exposure != null) exif.exposureTimeNanos(exposure);
+            if (iso != null) exif.iso(iso);
+            if (aperture != null) exif.fNumber(aperture);
+            if (focal != null) exif.focalLength(focal);
+        }
+        if (job.evStepNum != 0) {
+            exif.exposureBias(job.ev * job.evStepNum, job.evStepDen);
+        }
+        return exif;
+    }
+
+    // ── Metadata ──
+
+    /**
+     * The shot as a fixed-size journal record, short of what only the saver
+     * knows (sizes, checksums and URIs of the saved files).
+     */
+    static CaptureJournal.Record journalRecord(CaptureJob<?> job) {
+        CaptureJournal.Record r = new CaptureJournal.Record();
+        r.wallMs = job.captureWallMs;
+        r.mode = job.mpLabel;
+        r.maxRes = job.maxRes;
+        r.dng = job.hasRaw();
+        r.combined = job.combined;
+        r.lossless = job.dngLossless;
+        r.ev = job.ev;
+        r.rotation = job.rotation;
+        r.jpegW = job.outW > 0 ? job.outW : job.dims[0][0];
+        r.jpegH = job.outH > 0 ? job.outH : job.dims[0][1];
+        if (job.hasRaw()) {
+            r.rawW = job.rawW;
+            r.rawH = job.rawH;
+        }
+        if (job.result != null) {
+            r.aeState = resultInt(job.result.aeState());
+            r.afState = resultInt(job.result.afState());
+            r.awbState = resultInt(job.result.awbState());
+            r.iso = resultInt(job.result.iso());
+            Long exposure = job.result.exposureTime();
+            if (exposure != null) r.exposureNs = exposure;
+            Float focus = job.result.focusDistance();
+            if (focus != null) r.focusDiopters = focus;
+        }
+        if (job.latency != null) {
+            for (Map.Entry<String, Long> e : job.latency.entrySet()) r.stage(e.getKey(), e.getValue());
+        }
+        if (job.dngError != null) r.note = "DNG error: " + job.dngError;
+        else if (job.rawSpooled) r.note = "DNG spooled for background conversion";
+        return r;
+    }
+
+    private static int resultInt(Integer v) {
+        return v != null ? v : -1;
+    }
+}
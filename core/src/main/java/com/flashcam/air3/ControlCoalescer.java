@@ -0,0 +1,124 @@
+package com.flashcam.air3;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Folds preview control changes (EV steps, AF/AE region taps) into at most
+ * one repeating-request update per preview frame. The first change after a
+ * quiet period goes out at once; changes that arrive before the next
+ * preview frame completes are merged and sent together on that frame, so a
+ * burst of EV presses costs one setRepeatingRequest per frame instead of
+ * one per press. A tap's one-shot AF trigger rides along with the update
+ * that carries its region.
+ *
+ * Changes and flushes run on the executor (the worker thread);
+ * {@link #onFrame} is called from the camera thread and only posts.
+ */
+final class ControlCoalescer {
+
+    /** Applies merged controls to the running preview. */
+    interface Sink {
+        /**
+         * Set repeating as the preview request and send trigger (if not null)
+         * once. False when there is no preview to update; the controls are
+         * then picked up by the next preview start instead.
+         */
+        boolean apply(CameraBackend.Request repeating, CameraBackend.Request trigger);
+    }
+
+    private final Executor executor;
+    private final Sink sink;
+    private final LatencyStats latency;
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+
+    // Executor only
+    private int ev;
+    private int[] region;
+    private boolean trigger;
+    private long firstChangeAt;
+
+    /** Changes not yet sent. */
+    private volatile boolean dirty;
+    /** An update went out and no preview frame has completed since. */
+    private volatile boolean awaitingFrame;
+
+    ControlCoalescer(Executor executor, Sink sink, LatencyStats latency) {
+        this.executor = executor;
+        this.sink = sink;
+        this.latency = latency;
+    }
+
+    /** Any thread. */
+    void setEv(int ev) {
+        executor.execute(() -> {
+            this.ev = ev;
+            changed();
+        });
+    }
+
+    /** Any thread. Meter on region ({left, top, width, height} in active-array pixels) and start AF there. */
+    void focus(int[] region) {
+        executor.execute(() -> {
+            this.region = region;
+            trigger = true;
+            changed();
+        });
+    }
+
+    /** Executor only. Preview request with the current controls, for a preview (re)start. */
+    CameraBackend.Request previewRequest() {
+        // A new session starts with these controls, so nothing is left to send
+        dirty = false;
+        trigger = false;
+        firstChangeAt = 0;
+        awaitingFrame = false;
+        return CameraBackend.Request.preview(ev, region);
+    }
+
+    /** Camera thread, on every completed preview frame. */
+    void onFrame() {
+        if (!awaitingFrame) return;
+        awaitingFrame = false;
+        if (dirty) executor.execute(this::flush);
+    }
+
+    /** Control changes requested. */
+    long changes() {
+        return changes.get();
+    }
+
+    /** Repeating-request updates actually sent. */
+    long updates() {
+        return updates.get();
+    }
+
+    /**
+     * Executor only. Send pending changes now unless the last update is
+     * still waiting for its frame; changes the sink can't take yet (no
+     * preview, shot in progress) stay pending for the next call.
+     */
+    void flush() {
+        if (!dirty || awaitingFrame) return;
+        CameraBackend.Request focus = trigger ? CameraBackend.Request.focus(ev, region) : null;
+        awaitingFrame = true;
+        if (!sink.apply(CameraBackend.Request.preview(ev, region), focus)) {
+            awaitingFrame = false;
+            return;
+        }
+        dirty = false;
+        trigger = false;
+        updates.incrementAndGet();
+        latency.record("Preview", "control update", System.nanoTime() - firstChangeAt);
+        firstChangeAt = 0;
+    }
+
+    private void changed() {
+        changes.incrementAndGet();
+        if (firstChangeAt == 0) firstChangeAt = System.nanoTime();
+        dirty = true;
+        // Checked after dirty is set, so either this or onFrame sees the other's write
+        if (!awaitingFrame) flush();
+    }
+}
@@ -0,0 +1,87 @@
+package com.flashcam.air3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * CRC-32C (Castagnoli), slicing-by-8 so hashing keeps up with the storage
+ * write it rides along with. Works on heap and direct buffers alike, and
+ * {@link #combine} joins the CRCs of two adjacent byte ranges, which lets a
+ * writer hash a region late (a header patched after the body) without a
+ * second pass over the body.
+ */
+final class Crc32c {
+
+    private static final int POLY = 0x82F63B78;  // reflected 0x1EDC6F41
+    private static final int[][] T = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            T[0][n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int k = 1; k < 8; k++) T[k][n] = (T[k - 1][n] >>> 8) ^ T[0][T[k - 1][n] & 0xFF];
+        }
+    }
+
+    private Crc32c() {}
+
+    /** crc (0 to start) continued over data's remaining bytes; data's position is left alone. */
+    static int update(int crc, ByteBuffer data) {
+        ByteBuffer b = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int c = ~crc;
+        while (b.remaining() >= 8) {
+            long v = b.getLong();
+            int lo = (int) v ^ c, hi = (int) (v >>> 32);
+            c = T[7][lo & 0xFF] ^ T[6][(lo >>> 8) & 0xFF] ^ T[5][(lo >>> 16) & 0xFF] ^ T[4][lo >>> 24]
+              ^ T[3][hi & 0xFF] ^ T[2][(hi >>> 8) & 0xFF] ^ T[1][(hi >>> 16) & 0xFF] ^ T[0][hi >>> 24];
+        }
+        while (b.hasRemaining()) c = (c >>> 8) ^ T[0][(c ^ b.get()) & 0xFF];
+        return ~c;
+    }
+
+    static int update(int crc, byte[] data, int off, int len) {
+        return update(crc, ByteBuffer.wrap(data, off, len));
+    }
+
+    /** CRC of A followed by B, from crc(A), crc(B) and B's length (zlib's crc32_combine). */
+    static int combine(int crc1, int crc2, long len2) {
+        if (len2 <= 0) return crc1;
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        // Operator for one zero bit
+        odd[0] = POLY;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);  // two zero bits
+        square(odd, even);  // four zero bits
+        // Apply len2 zero bytes to crc1
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0) crc1 = times(even, crc1);
+            len2 >>= 1;
+            if (len2 == 0) break;
+            square(odd, even);
+            if ((len2 & 1) != 0) crc1 = times(odd, crc1);
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static int times(int[] mat, int vec) {
+        int sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) sum ^= mat[i];
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] mat) {
+        for (int n = 0; n < 32; n++) square[n] = times(mat, mat[n]);
+    }
+}
@@ -0,0 +1,382 @@
+package com.flashcam.air3;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * In-app DNG writer for RAW_SENSOR frames. The IFD is built up front
+ * (CFA layout, black/white levels, color and forward matrices, calibration,
+ * neutral point, noise profile; {@link DngTags} fills these in from Camera2
+ * metadata); the file is then one header block padded to a 4 KiB boundary
+ * followed by the 16-bit samples, streamed from the plane buffer in large
+ * FileChannel writes. Little-endian TIFF, so samples go out byte-for-byte.
+ *
+ * {@link #writeTiledTo} writes lossless-JPEG (Compression=7) tiles instead,
+ * encoded in parallel and appended in order as they finish, with the IFD
+ * after the last tile so no offsets need to be known up front.
+ *
+ * Lens shading maps and the preview IFD are not written.
+ */
+final class DngWriter {
+
+    // TIFF / EXIF
+    private static final int TAG_NEW_SUBFILE_TYPE = 0x00FE;
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_LENGTH = 0x0101;
+    private static final int TAG_BITS_PER_SAMPLE = 0x0102;
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_PHOTOMETRIC = 0x0106;
+    private static final int TAG_IMAGE_DESCRIPTION = 0x010E;
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_STRIP_OFFSETS = 0x0111;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_SAMPLES_PER_PIXEL = 0x0115;
+    private static final int TAG_ROWS_PER_STRIP = 0x0116;
+    private static final int TAG_STRIP_BYTE_COUNTS = 0x0117;
+    private static final int TAG_PLANAR_CONFIG = 0x011C;
+    private static final int TAG_SOFTWARE = 0x0131;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_TILE_WIDTH = 0x0142;
+    private static final int TAG_TILE_LENGTH = 0x0143;
+    private static final int TAG_TILE_OFFSETS = 0x0144;
+    private static final int TAG_TILE_BYTE_COUNTS = 0x0145;
+    private static final int TAG_CFA_REPEAT_DIM = 0x828D;
+    private static final int TAG_CFA_PATTERN = 0x828E;
+    private static final int TAG_EXPOSURE_TIME = 0x829A;
+    private static final int TAG_F_NUMBER = 0x829D;
+    private static final int TAG_ISO = 0x8827;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_FOCAL_LENGTH = 0x920A;
+    // DNG
+    private static final int TAG_DNG_VERSION = 0xC612;
+    private static final int TAG_DNG_BACKWARD_VERSION = 0xC613;
+    private static final int TAG_UNIQUE_CAMERA_MODEL = 0xC614;
+    private static final int TAG_CFA_PLANE_COLOR = 0xC616;
+    private static final int TAG_CFA_LAYOUT = 0xC617;
+    private static final int TAG_BLACK_LEVEL_REPEAT_DIM = 0xC619;
+    private static final int TAG_BLACK_LEVEL = 0xC61A;
+    private static final int TAG_WHITE_LEVEL = 0xC61D;
+    private static final int TAG_DEFAULT_SCALE = 0xC61E;
+    private static final int TAG_DEFAULT_CROP_ORIGIN = 0xC61F;
+    private static final int TAG_DEFAULT_CROP_SIZE = 0xC620;
+    private static final int TAG_COLOR_MATRIX1 = 0xC621;
+    private static final int TAG_COLOR_MATRIX2 = 0xC622;
+    private static final int TAG_CAMERA_CALIBRATION1 = 0xC623;
+    private static final int TAG_CAMERA_CALIBRATION2 = 0xC624;
+    private static final int TAG_AS_SHOT_NEUTRAL = 0xC628;
+    private static final int TAG_LENS_INFO = 0xC630;
+    private static final int TAG_CALIBRATION_ILLUMINANT1 = 0xC65A;
+    private static final int TAG_CALIBRATION_ILLUMINANT2 = 0xC65B;
+    private static final int TAG_ACTIVE_AREA = 0xC68D;
+    private static final int TAG_FORWARD_MATRIX1 = 0xC714;
+    private static final int TAG_FORWARD_MATRIX2 = 0xC715;
+    private static final int TAG_NOISE_PROFILE = 0xC761;
+
+    private static final int DATA_ALIGN = 4096;
+    private static final int STRIP_BYTES = 1 << 20;
+    private static final int WRITE_CHUNK = 4 << 20;
+    private static final int CROP_MARGIN = 8;
+    static final int TILE_SIZE = 256;
+
+    private final int width, height, rowBytes, rowsPerStrip, strips;
+    private final TiffDirectory ifd;
+    private int dataStart, tiles;
+
+    private DngWriter(int width, int height, TiffDirectory ifd) {
+        this.width = width;
+        this.height = height;
+        this.ifd = ifd;
+        this.rowBytes = width * 2;
+        this.rowsPerStrip = Math.max(1, Math.min(height, STRIP_BYTES / rowBytes));
+        this.strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+    }
+
+    /**
+     * Tags every 16-bit Bayer DNG carries, for a width×height frame with the
+     * given 2×2 CFA pattern (0 = red, 1 = green, 2 = blue, in row order).
+     * The default crop covers the whole frame until {@link #activeArea}.
+     */
+    static DngWriter bayer(int width, int height, byte[] cfaPattern) {
+        DngWriter d = new DngWriter(width, height, new TiffDirectory());
+        d.ifd.longs(TAG_NEW_SUBFILE_TYPE, 0)
+            .longs(TAG_IMAGE_WIDTH, width)
+            .longs(TAG_IMAGE_LENGTH, height)
+            .shorts(TAG_BITS_PER_SAMPLE, 16)
+            .shorts(TAG_PHOTOMETRIC, 32803)
+            .shorts(TAG_ORIENTATION, 1)
+            .shorts(TAG_SAMPLES_PER_PIXEL, 1)
+            .shorts(TAG_PLANAR_CONFIG, 1)
+            .shorts(TAG_CFA_REPEAT_DIM, 2, 2)
+            .bytes(TAG_CFA_PATTERN, cfaPattern)
+            .bytes(TAG_DNG_VERSION, (byte) 1, (byte) 4, (byte) 0, (byte) 0)
+            .bytes(TAG_DNG_BACKWARD_VERSION, (byte) 1, (byte) 1, (byte) 0, (byte) 0)
+            .bytes(TAG_CFA_PLANE_COLOR, (byte) 0, (byte) 1, (byte) 2)
+            .shorts(TAG_CFA_LAYOUT, 1)
+            .rationals(TAG_DEFAULT_SCALE, 1, 1, 1, 1);
+        return d.crop(width, height);
+    }
+
+    DngWriter camera(String make, String model) {
+        if (!make.isEmpty()) ifd.ascii(TAG_MAKE, make);
+        if (!model.isEmpty()) ifd.ascii(TAG_MODEL, model);
+        ifd.ascii(TAG_UNIQUE_CAMERA_MODEL, (make + " " + model).trim());
+        return this;
+    }
+
+    /** Black level per CFA position, as four numerator/denominator pairs. */
+    DngWriter blackLevel(long... numDen) {
+        ifd.shorts(TAG_BLACK_LEVEL_REPEAT_DIM, 2, 2).rationals(TAG_BLACK_LEVEL, numDen);
+        return this;
+    }
+
+    DngWriter whiteLevel(int white) {
+        ifd.longs(TAG_WHITE_LEVEL, white);
+        return this;
+    }
+
+    /**
+     * Calibration set 1 or 2: the 3×3 color matrix (nine numerator/denominator
+     * pairs) under an EXIF illuminant. forward and calibration may be null.
+     */
+    DngWriter color(int set, int[] matrix, int illuminant, int[] forward, int[] calibration) {
+        boolean first = set == 1;
+        ifd.srationals(first ? TAG_COLOR_MATRIX1 : TAG_COLOR_MATRIX2, matrix)
+            .shorts(first ? TAG_CALIBRATION_ILLUMINANT1 : TAG_CALIBRATION_ILLUMINANT2, illuminant);
+        if (forward != null) ifd.srationals(first ? TAG_FORWARD_MATRIX1 : TAG_FORWARD_MATRIX2, forward);
+        if (calibration != null) {
+            ifd.srationals(first ? TAG_CAMERA_CALIBRATION1 : TAG_CAMERA_CALIBRATION2, calibration);
+        }
+        return this;
+    }
+
+    /** White balance as three numerator/denominator pairs. */
+    DngWriter asShotNeutral(long... numDen) {
+        ifd.rationals(TAG_AS_SHOT_NEUTRAL, numDen);
+        return this;
+    }
+
+    /** Scale/offset pairs for red, green and blue. */
+    DngWriter noiseProfile(double... scaleOffset) {
+        ifd.doubles(TAG_NOISE_PROFILE, scaleOffset);
+        return this;
+    }
+
+    DngWriter exposureTime(long nanos) {
+        ifd.rationals(TAG_EXPOSURE_TIME, nanos / 1000, 1_000_000);
+        return this;
+    }
+
+    DngWriter iso(int iso) {
+        ifd.shorts(TAG_ISO, Math.min(iso, 0xFFFF));
+        return this;
+    }
+
+    DngWriter fNumber(float f) {
+        ifd.rationals(TAG_F_NUMBER, Math.round(f * 100), 100);
+        return this;
+    }
+
+    DngWriter focalLength(float mm) {
+        ifd.rationals(TAG_FOCAL_LENGTH, Math.round(mm * 1000), 1000);
+        return this;
+    }
+
+    DngWriter lensInfo(float minFocal, float maxFocal, float minAperture, float maxAperture) {
+        ifd.rationals(TAG_LENS_INFO,
+            Math.round(minFocal * 1000), 1000, Math.round(maxFocal * 1000), 1000,
+            Math.round(minAperture * 100), 100, Math.round(maxAperture * 100), 100);
+        return this;
+    }
+
+    /** The light-sensitive part of the frame; the default crop moves inside it. */
+    DngWriter activeArea(int left, int top, int right, int bottom) {
+        ifd.longs(TAG_ACTIVE_AREA, top, left, bottom, right);
+        return crop(right - left, bottom - top);
+    }
+
+    private DngWriter crop(int aw, int ah) {
+        int margin = aw > 4 * CROP_MARGIN && ah > 4 * CROP_MARGIN ? CROP_MARGIN : 0;
+        ifd.longs(TAG_DEFAULT_CROP_ORIGIN, margin, margin)
+            .longs(TAG_DEFAULT_CROP_SIZE, aw - 2 * margin, ah - 2 * margin);
+        return this;
+    }
+
+    /**
+     * Save the prepared tags so the DNG can be written later without the
+     * CameraCharacteristics / CaptureResult it was built from.
+     */
+    void snapshot(DataOutput out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(height);
+        ifd.save(out);
+    }
+
+    static DngWriter restore(DataInput in) throws IOException {
+        int w = in.readInt(), h = in.readInt();
+        return new DngWriter(w, h, TiffDirectory.load(in));
+    }
+
+    /** EXIF orientation of the unrotated sensor data. */
+    DngWriter orientation(int orientation) {
+        ifd.shorts(TAG_ORIENTATION, orientation);
+        return this;
+    }
+
+    DngWriter description(String description) {
+        ifd.ascii(TAG_IMAGE_DESCRIPTION, description);
+        return this;
+    }
+
+    DngWriter software(String software) {
+        ifd.ascii(TAG_SOFTWARE, software);
+        return this;
+    }
+
+    DngWriter captureTime(long epochMillis) {
+        String stamp = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(new Date(epochMillis));
+        ifd.ascii(TAG_DATETIME, stamp).ascii(TAG_DATETIME_ORIGINAL, stamp);
+        return this;
+    }
+
+    int strips() {
+        return strips;
+    }
+
+    /** Tiles written by {@link #writeTiledTo}, 0 for a strip DNG. */
+    int tiles() {
+        return tiles;
+    }
+
+    /** Bytes before the first sample (header, IFD, padding). Valid after {@link #writeTo}. */
+    int headerBytes() {
+        return dataStart;
+    }
+
+    /**
+     * Write the file: the header block, then the samples in WRITE_CHUNK
+     * pieces. raw holds rows of rowStride bytes from its position; rows
+     * with padding are gathered without copying.
+     */
+    void writeTo(FileChannel ch, ByteBuffer raw, int rowStride) throws IOException {
+        // Offsets are known once every other tag is in and the IFD size is fixed
+        ifd.shorts(TAG_COMPRESSION, 1)
+            .longs(TAG_ROWS_PER_STRIP, rowsPerStrip)
+            .longs(TAG_STRIP_OFFSETS, new long[strips])
+            .longs(TAG_STRIP_BYTE_COUNTS, new long[strips]);
+        dataStart = align(8 + ifd.size(), DATA_ALIGN);
+        long[] offsets = new long[strips], counts = new long[strips];
+        for (int s = 0; s < strips; s++) {
+            int rows = Math.min(rowsPerStrip, height - s * rowsPerStrip);
+            offsets[s] = dataStart + (long) s * rowsPerStrip * rowBytes;
+            counts[s] = (long) rows * rowBytes;
+        }
+        ifd.longs(TAG_STRIP_OFFSETS, offsets).longs(TAG_STRIP_BYTE_COUNTS, counts);
+
+        ByteBuffer header = ByteBuffer.allocateDirect(dataStart).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        ifd.write(header, 0, 0);
+        header.position(0).limit(dataStart);
+        writeFully(ch, header);
+
+        ByteBuffer src = raw.duplicate();
+        int base = src.position();
+        if (rowStride == rowBytes) {
+            long end = base + (long) rowBytes * height;
+            for (long p = base; p < end; p += WRITE_CHUNK) {
+                src.limit((int) Math.min(end, p + WRITE_CHUNK)).position((int) p);
+                writeFully(ch, src);
+            }
+        } else {
+            List<ByteBuffer> batch = new ArrayList<>();
+            long batchBytes = 0;
+            for (int r = 0; r < height; r++) {
+                ByteBuffer row = raw.duplicate();
+                row.limit(base + r * rowStride + rowBytes).position(base + r * rowStride);
+                batch.add(row);
+                batchBytes += rowBytes;
+                if (batchBytes >= WRITE_CHUNK || r == height - 1) {
+                    writeFully(ch, batch.toArray(new ByteBuffer[0]));
+                    batch.clear();
+                    batchBytes = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a tiled, lossless-JPEG DNG. Tiles are encoded on pool with at
+     * most two per worker in flight and written in TIFF order as each one
+     * (and all before it) is done; the IFD goes last and the header is
+     * patched to point at it.
+     */
+    void writeTiledTo(FileChannel ch, ByteBuffer raw, int rowStride, ForkJoinPool pool) throws IOException {
+        int across = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int down = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int n = across * down;
+        long[] offsets = new long[n], counts = new long[n];
+        long start = ch.position();
+        writeFully(ch, ByteBuffer.allocate(8));
+
+        int window = Math.max(2, pool.getParallelism() * 2);
+        ArrayDeque<ForkJoinTask<byte[]>> inFlight = new ArrayDeque<>();
+        int next = 0;
+        try {
+            for (int t = 0; t < n; t++) {
+                while (next < n && next - t < window) {
+                    int x0 = (next % across) * TILE_SIZE, y0 = (next / across) * TILE_SIZE;
+                    inFlight.add(pool.submit(() ->
+                        Lj92Encoder.encodeTile(raw, rowStride, width, height, x0, y0, TILE_SIZE, TILE_SIZE)));
+                    next++;
+                }
+                byte[] tile = inFlight.remove().join();
+                offsets[t] = ch.position() - start;
+                counts[t] = tile.length;
+                writeFully(ch, ByteBuffer.wrap(tile));
+            }
+        } finally {
+            for (ForkJoinTask<byte[]> f : inFlight) f.cancel(true);
+        }
+        if (((ch.position() - start) & 1) != 0) writeFully(ch, ByteBuffer.allocate(1));
+
+        ifd.shorts(TAG_COMPRESSION, 7)
+            .longs(TAG_TILE_WIDTH, TILE_SIZE)
+            .longs(TAG_TILE_LENGTH, TILE_SIZE)
+            .longs(TAG_TILE_OFFSETS, offsets)
+            .longs(TAG_TILE_BYTE_COUNTS, counts);
+        int ifdAt = (int) (ch.position() - start);
+        ByteBuffer block = ByteBuffer.allocate(ifd.size()).order(ByteOrder.LITTLE_ENDIAN);
+        // Buffer position 0 is file offset ifdAt
+        ifd.write(block, -ifdAt, 0);
+        block.flip();
+        writeFully(ch, block);
+
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifdAt).flip();
+        while (header.hasRemaining()) ch.write(header, start + header.position());
+        dataStart = 8;
+        tiles = n;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer... parts) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer b : parts) remaining += b.remaining();
+        while (remaining > 0) remaining -= ch.write(parts);
+    }
+
+    private static int align(int n, int a) {
+        return (n + a - 1) / a * a;
+    }
+}
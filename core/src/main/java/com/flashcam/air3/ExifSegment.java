@@ -0,0 +1,257 @@
+package com.flashcam.air3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Builds the APP1 "Exif" segment for a capture and splices it into a JPEG
+ * stream as it is written, so the file is produced in one pass instead of
+ * being saved and then rewritten by ExifInterface.
+ *
+ * The splice never copies the entropy-coded data: {@link #splice} returns
+ * SOI + APP1 as a small header buffer followed by slices of the original
+ * buffer, minus any APP1 Exif the HAL already put there.
+ */
+final class ExifSegment {
+
+    // IFD0 / IFD1
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_X_RESOLUTION = 0x011A;
+    private static final int TAG_Y_RESOLUTION = 0x011B;
+    private static final int TAG_RESOLUTION_UNIT = 0x0128;
+    private static final int TAG_SOFTWARE = 0x0131;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_JPEG_OFFSET = 0x0201;
+    private static final int TAG_JPEG_LENGTH = 0x0202;
+    private static final int TAG_YCBCR_POSITIONING = 0x0213;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    // Exif IFD
+    private static final int TAG_EXPOSURE_TIME = 0x829A;
+    private static final int TAG_F_NUMBER = 0x829D;
+    private static final int TAG_ISO = 0x8827;
+    private static final int TAG_EXIF_VERSION = 0x9000;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATETIME_DIGITIZED = 0x9004;
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+    private static final int TAG_EXPOSURE_BIAS = 0x9204;
+    private static final int TAG_FOCAL_LENGTH = 0x920A;
+    private static final int TAG_SUBSEC_TIME_ORIGINAL = 0x9291;
+    private static final int TAG_COLOR_SPACE = 0xA001;
+    private static final int TAG_PIXEL_X = 0xA002;
+    private static final int TAG_PIXEL_Y = 0xA003;
+
+    /** APP1 payload limit (16-bit length minus the length field itself). */
+    private static final int MAX_PAYLOAD = 0xFFFF - 2;
+    private static final byte[] EXIF_ID = {'E', 'x', 'i', 'f', 0, 0};
+
+    private final TiffDirectory ifd0 = new TiffDirectory();
+    private final TiffDirectory exif = new TiffDirectory();
+    private byte[] thumbnail;
+
+    ExifSegment() {
+        ifd0.shorts(TAG_ORIENTATION, 1)
+            .rationals(TAG_X_RESOLUTION, 72, 1)
+            .rationals(TAG_Y_RESOLUTION, 72, 1)
+            .shorts(TAG_RESOLUTION_UNIT, 2)
+            .shorts(TAG_YCBCR_POSITIONING, 1);
+        exif.undefined(TAG_EXIF_VERSION, "0232".getBytes(StandardCharsets.US_ASCII))
+            .shorts(TAG_COLOR_SPACE, 1);
+    }
+
+    /** EXIF orientation (1 = pixels already upright). */
+    ExifSegment orientation(int orientation) {
+        ifd0.shorts(TAG_ORIENTATION, orientation);
+        return this;
+    }
+
+    ExifSegment software(String software) {
+        ifd0.ascii(TAG_SOFTWARE, software);
+        return this;
+    }
+
+    ExifSegment device(String make, String model) {
+        if (make != null && !make.isEmpty()) ifd0.ascii(TAG_MAKE, make);
+        if (model != null && !model.isEmpty()) ifd0.ascii(TAG_MODEL, model);
+        return this;
+    }
+
+    /** DateTime, DateTimeOriginal/Digitized, sub-seconds and UTC offset of the exposure. */
+    ExifSegment captureTime(long epochMillis) {
+        TimeZone tz = TimeZone.getDefault();
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+        fmt.setTimeZone(tz);
+        String stamp = fmt.format(new Date(epochMillis));
+        int offMin = tz.getOffset(epochMillis) / 60_000;
+        ifd0.ascii(TAG_DATETIME, stamp);
+        exif.ascii(TAG_DATETIME_ORIGINAL, stamp)
+            .ascii(TAG_DATETIME_DIGITIZED, stamp)
+            .ascii(TAG_SUBSEC_TIME_ORIGINAL, String.format(Locale.US, "%03d", epochMillis % 1000))
+            .ascii(TAG_OFFSET_TIME_ORIGINAL, String.format(Locale.US, "%c%02d:%02d",
+                offMin < 0 ? '-' : '+', Math.abs(offMin) / 60, Math.abs(offMin) % 60));
+        return this;
+    }
+
+    ExifSegment exposureTimeNanos(long nanos) {
+        if (nanos <= 0) return this;
+        // 1/x for short exposures as cameras write it, microseconds otherwise
+        if (nanos < 1_000_000_000L && 1_000_000_000L % nanos == 0) {
+            exif.rationals(TAG_EXPOSURE_TIME, 1, 1_000_000_000L / nanos);
+        } else {
+            exif.rationals(TAG_EXPOSURE_TIME, nanos / 1000, 1_000_000);
+        }
+        return this;
+    }
+
+    ExifSegment iso(int iso) {
+        if (iso > 0) exif.shorts(TAG_ISO, Math.min(iso, 0xFFFF));
+        return this;
+    }
+
+    ExifSegment fNumber(float f) {
+        if (f > 0) exif.rationals(TAG_F_NUMBER, Math.round(f * 100), 100);
+        return this;
+    }
+
+    ExifSegment focalLength(float mm) {
+        if (mm > 0) exif.rationals(TAG_FOCAL_LENGTH, Math.round(mm * 1000), 1000);
+        return this;
+    }
+
+    /** Exposure bias in EV as a signed rational (steps × step size). */
+    ExifSegment exposureBias(int num, int den) {
+        if (den != 0) exif.srationals(TAG_EXPOSURE_BIAS, num, den);
+        return this;
+    }
+
+    ExifSegment pixelSize(int width, int height) {
+        exif.longs(TAG_PIXEL_X, width).longs(TAG_PIXEL_Y, height);
+        return this;
+    }
+
+    /** Small JPEG for IFD1; dropped at build time if the segment would overflow. */
+    ExifSegment thumbnail(byte[] jpeg) {
+        this.thumbnail = jpeg;
+        return this;
+    }
+
+    boolean hasThumbnail() {
+        return thumbnail != null;
+    }
+
+    /** SOI followed by the complete APP1 segment, ready to precede the rest of a JPEG. */
+    ByteBuffer buildHeader() {
+        byte[] thumb = thumbnail;
+        TiffDirectory ifd1 = null;
+        if (thumb != null) {
+            ifd1 = new TiffDirectory()
+                .shorts(TAG_COMPRESSION, 6)
+                .rationals(TAG_X_RESOLUTION, 72, 1)
+                .rationals(TAG_Y_RESOLUTION, 72, 1)
+                .shorts(TAG_RESOLUTION_UNIT, 2)
+                .longs(TAG_JPEG_OFFSET, 0)
+                .longs(TAG_JPEG_LENGTH, thumb.length);
+        }
+        ifd0.longs(TAG_EXIF_IFD, 0);
+
+        int ifd0At = 8;
+        int exifAt = ifd0At + ifd0.size();
+        int ifd1At = exifAt + exif.size();
+        int tiffLen = ifd1At;
+        if (ifd1 != null) {
+            int thumbAt = ifd1At + ifd1.size();
+            if (EXIF_ID.length + thumbAt + thumb.length > MAX_PAYLOAD) {
+                ifd1 = null;
+                thumb = thumbnail = null;
+            } else {
+                ifd1.longs(TAG_JPEG_OFFSET, thumbAt);
+                tiffLen = thumbAt + thumb.length;
+            }
+        }
+        ifd0.longs(TAG_EXIF_IFD, exifAt);
+
+        int payload = EXIF_ID.length + tiffLen;
+        ByteBuffer out = ByteBuffer.allocate(2 + 4 + payload).order(ByteOrder.BIG_ENDIAN);
+        out.put((byte) 0xFF).put((byte) 0xD8);
+        out.put((byte) 0xFF).put((byte) 0xE1).putShort((short) (payload + 2));
+        out.put(EXIF_ID);
+        int tiff = out.position();
+        out.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(ifd0At);
+        ifd0.write(out, tiff, ifd1 != null ? ifd1At : 0);
+        exif.write(out, tiff, 0);
+        if (ifd1 != null) {
+            ifd1.write(out, tiff, 0);
+            out.put(thumb);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Parts to write in order for jpeg (from its position to limit) with
+     * header (from {@link #buildHeader}) in place of its SOI. Existing APP1
+     * Exif segments are dropped; everything else is sliced, not copied.
+     */
+    static ByteBuffer[] splice(ByteBuffer jpeg, ByteBuffer header) {
+        ByteBuffer src = jpeg.duplicate();
+        int p = src.position(), end = src.limit();
+        if (end - p < 4 || (src.get(p) & 0xFF) != 0xFF || (src.get(p + 1) & 0xFF) != 0xD8) {
+            throw new IllegalArgumentException("Not a JPEG stream");
+        }
+        List<ByteBuffer> parts = new ArrayList<>();
+        parts.add(header);
+        int keepFrom = p + 2;
+        p += 2;
+        // Only the APPn run right after SOI can carry Exif; stop at the first other marker
+        while (p + 4 <= end && (src.get(p) & 0xFF) == 0xFF) {
+            int marker = src.get(p + 1) & 0xFF;
+            if (marker < 0xE0 || marker > 0xEF) break;
+            int segEnd = p + 2 + (src.getShort(p + 2) & 0xFFFF);
+            if (segEnd > end) break;
+            if (marker == 0xE1 && isExif(src, p + 4, segEnd)) {
+                if (p > keepFrom) parts.add(slice(src, keepFrom, p));
+                keepFrom = segEnd;
+            }
+            p = segEnd;
+        }
+        parts.add(slice(src, keepFrom, end));
+        return parts.toArray(new ByteBuffer[0]);
+    }
+
+    /** Width and height from the first SOFn marker, or null if none is found. */
+    static int[] frameSize(ByteBuffer jpeg) {
+        int p = jpeg.position() + 2, end = jpeg.limit();
+        while (p + 9 <= end && (jpeg.get(p) & 0xFF) == 0xFF) {
+            int marker = jpeg.get(p + 1) & 0xFF;
+            if (marker == 0xFF) { p++; continue; }
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                return new int[]{jpeg.getShort(p + 7) & 0xFFFF, jpeg.getShort(p + 5) & 0xFFFF};
+            }
+            p += 2 + (jpeg.getShort(p + 2) & 0xFFFF);
+        }
+        return null;
+    }
+
+    private static boolean isExif(ByteBuffer b, int from, int end) {
+        if (end - from < EXIF_ID.length) return false;
+        for (int i = 0; i < 4; i++) {
+            if (b.get(from + i) != EXIF_ID[i]) return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int from, int to) {
+        ByteBuffer s = b.duplicate();
+        s.limit(to).position(from);
+        return s.slice();
+    }
+}
@@ -0,0 +1,130 @@
+package com.flashcam.air3;
+
+/**
+ * Fixed-capacity ring of per-frame preview metadata with one writer (the
+ * camera thread, from the repeating request's callback) and one reader (the
+ * UI thread, once per Choreographer frame). Slots are parallel primitive
+ * arrays and the writer publishes a slot by bumping a volatile count after
+ * filling it, so recording a frame takes no lock and allocates nothing.
+ *
+ * The reader only looks at slots at least {@link #GUARD} frames behind the
+ * writer's lap, so a slot can't be rewritten under it unless the UI thread
+ * stalls for most of a ring's worth of frames; frames it falls that far
+ * behind on are skipped and counted as overrun rather than read torn.
+ * Draining also keeps the dropped-frame and interval-jitter statistics, so
+ * they cost nothing on the camera thread.
+ */
+final class FrameRing {
+
+    /** Value of a field the result didn't carry. */
+    static final int UNKNOWN = -1;
+    private static final int GUARD = 4;
+
+    private final int mask;
+    private final long[] timestamp, exposure, duration;
+    private final int[] af, ae, iso;
+    /** Frames published; slot (n & mask) holds frame n. */
+    private volatile long written;
+
+    // ── Reader side (UI thread, stats readable from any thread) ──
+    private long read;
+    private long lastTimestamp = UNKNOWN;
+    private long avgInterval;
+    /** Latest frame seen by drain(); reader thread only. */
+    int lastAf = UNKNOWN, lastAe = UNKNOWN, lastIso = UNKNOWN;
+    long lastExposure = UNKNOWN, lastDuration = UNKNOWN;
+    private volatile long frames, dropped, overrun, jitterNanos;
+
+    /** capacity is rounded up to a power of two. */
+    FrameRing(int capacity) {
+        int n = Integer.highestOneBit(Math.max(GUARD * 2, capacity) - 1) << 1;
+        mask = n - 1;
+        timestamp = new long[n];
+        exposure = new long[n];
+        duration = new long[n];
+        af = new int[n];
+        ae = new int[n];
+        iso = new int[n];
+    }
+
+    /** Writer thread only. */
+    void write(CameraBackend.Result r) {
+        long n = written;
+        int i = (int) n & mask;
+        Long ts = r.sensorTimestamp();
+        Long exp = r.exposureTime();
+        Long dur = r.frameDuration();
+        Integer a = r.afState(), e = r.aeState(), s = r.iso();
+        timestamp[i] = ts != null ? ts : UNKNOWN;
+        exposure[i] = exp != null ? exp : UNKNOWN;
+        duration[i] = dur != null ? dur : UNKNOWN;
+        af[i] = a != null ? a : UNKNOWN;
+        ae[i] = e != null ? e : UNKNOWN;
+        iso[i] = s != null ? s : UNKNOWN;
+        written = n + 1;
+    }
+
+    /**
+     * Reader thread only. Fold every frame published since the last call
+     * into the statistics and the last* fields; false if there was none.
+     */
+    boolean drain() {
+        long end = written;
+        if (end == read) return false;
+        long oldest = end - (mask + 1) + GUARD;
+        if (read < oldest) {
+            overrun += oldest - read;
+            read = oldest;
+            // The gap is ours, not the camera's
+            lastTimestamp = UNKNOWN;
+        }
+        for (; read < end; read++) {
+            int i = (int) read & mask;
+            interval(timestamp[i], duration[i]);
+            lastAf = af[i];
+            lastAe = ae[i];
+            lastIso = iso[i];
+            lastExposure = exposure[i];
+            lastDuration = duration[i];
+        }
+        return true;
+    }
+
+    /** Preview frames read. */
+    long frames() {
+        return frames;
+    }
+
+    /** Frames the sensor skipped, from gaps in SENSOR_TIMESTAMP. */
+    long dropped() {
+        return dropped;
+    }
+
+    /** Frames the reader fell too far behind to read. */
+    long overrun() {
+        return overrun;
+    }
+
+    /** Smoothed deviation of the frame interval from the frame duration (RFC 3550 style), in nanoseconds. */
+    long jitterNanos() {
+        return jitterNanos;
+    }
+
+    private void interval(long ts, long frameDuration) {
+        frames++;
+        long prev = lastTimestamp;
+        lastTimestamp = ts;
+        if (prev == UNKNOWN || ts == UNKNOWN || ts <= prev) return;
+        long gap = ts - prev;
+        // Expected interval: the reported frame duration, else what the stream has been doing
+        long expected = frameDuration > 0 ? frameDuration : avgInterval;
+        avgInterval = avgInterval == 0 ? gap : avgInterval + (gap - avgInterval) / 16;
+        if (expected <= 0) return;
+        long missed = (gap + expected / 2) / expected - 1;
+        if (missed > 0) {
+            dropped += missed;
+            gap -= missed * expected;
+        }
+        jitterNanos += (Math.abs(gap - expected) - jitterNanos) / 16;
+    }
+}
@@ -0,0 +1,208 @@
+package com.flashcam.air3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * FileChannel that checksums what is written through it on the way out, so
+ * a saved file gets its CRC-32C (and optionally SHA-256) without being read
+ * back. Writes are expected to be sequential from position 0, except that
+ * positional writes may patch the first {@link #HEAD} bytes afterwards (the
+ * tiled DNG writer's header): those bytes are kept aside and hashed last,
+ * joined to the rest with {@link Crc32c#combine}.
+ *
+ * SHA-256 can't be joined that way, so it is only available when nothing
+ * was patched after the head had to be fed to it. Any other out-of-order
+ * write makes the checksum unavailable rather than wrong.
+ */
+final class HashingChannel extends FileChannel {
+
+    static final int HEAD = 64 * 1024;
+
+    private final FileChannel ch;
+    private final MessageDigest sha;
+    private final byte[] head = new byte[HEAD];
+    private int headLen;
+    private int tailCrc;
+    private long tailLen;
+    private boolean shaFedHead, shaBroken, broken, offStream;
+    private long hashNanos;
+
+    /** sha may be null for CRC-32C only. */
+    HashingChannel(FileChannel ch, MessageDigest sha) {
+        this.ch = ch;
+        this.sha = sha;
+    }
+
+    /** False if writes went somewhere the running checksum can't account for. */
+    boolean valid() {
+        return !broken;
+    }
+
+    int crc32c() {
+        long t0 = System.nanoTime();
+        int crc = Crc32c.combine(Crc32c.update(0, head, 0, headLen), tailCrc, tailLen);
+        hashNanos += System.nanoTime() - t0;
+        return crc;
+    }
+
+    /** Digest of the stream, or null if not requested or not computable. Call once. */
+    byte[] sha256() {
+        if (sha == null || shaBroken || broken) return null;
+        if (!shaFedHead) sha.update(head, 0, headLen);
+        return sha.digest();
+    }
+
+    long hashNanos() {
+        return hashNanos;
+    }
+
+    private long streamEnd() {
+        return headLen + tailLen;
+    }
+
+    /** Account for n bytes just written in stream order, starting at view's position. */
+    private void absorb(ByteBuffer view, long n) {
+        long t0 = System.nanoTime();
+        if (offStream) broken = true;
+        if (headLen < HEAD) {
+            int take = (int) Math.min(HEAD - headLen, n);
+            view.get(head, headLen, take);
+            headLen += take;
+            n -= take;
+        }
+        if (n > 0) {
+            ByteBuffer part = view.duplicate();
+            part.limit((int) (part.position() + n));
+            tailCrc = Crc32c.update(tailCrc, part);
+            tailLen += n;
+            if (sha != null && !shaBroken) {
+                if (!shaFedHead) {
+                    sha.update(head, 0, headLen);
+                    shaFedHead = true;
+                }
+                sha.update(part);
+            }
+            view.position(view.position() + (int) n);
+        }
+        hashNanos += System.nanoTime() - t0;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ByteBuffer view = src.duplicate();
+        int n = ch.write(src);
+        absorb(view, n);
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ByteBuffer[] views = new ByteBuffer[length];
+        for (int i = 0; i < length; i++) views[i] = srcs[offset + i].duplicate();
+        long n = ch.write(srcs, offset, length);
+        long left = n;
+        for (int i = 0; i < length && left > 0; i++) {
+            long take = Math.min(left, views[i].remaining());
+            absorb(views[i], take);
+            left -= take;
+        }
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        ByteBuffer view = src.duplicate();
+        int n = ch.write(src, position);
+        if (position + n <= headLen) {
+            view.get(head, (int) position, n);
+            if (shaFedHead) shaBroken = true;
+        } else if (n > 0) {
+            broken = true;
+        }
+        return n;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return ch.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        ch.position(newPosition);
+        offStream = newPosition != streamEnd();
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return ch.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        if (size < streamEnd()) broken = true;
+        ch.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        ch.force(metaData);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return ch.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        return ch.read(dsts, offset, length);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return ch.read(dst, position);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return ch.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        // Bytes that never pass through a buffer here can't be hashed
+        broken = true;
+        return ch.transferFrom(src, position, count);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        if (mode != MapMode.READ_ONLY) broken = true;
+        return ch.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return ch.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return ch.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        ch.close();
+    }
+}
@@ -0,0 +1,182 @@
+package com.flashcam.air3;
+
+/**
+ * One JPEG Huffman table (the BITS/HUFFVAL pair of a DHT segment) together
+ * with the derived decode and encode lookups.
+ *
+ * Decoding uses a 9-bit fast lookup for short codes and the classic
+ * MAXCODE/VALPTR walk (ITU T.81 F.2.2.3) for the rest.
+ */
+final class HuffmanTable {
+
+    private static final int LOOKAHEAD = 9;
+
+    /** bits[l] = number of codes of length l (1..16); bits[0] is unused. */
+    final int[] bits;
+    final int[] vals;
+
+    // ── Decode tables ──
+    final int[] maxcode = new int[18];
+    final int[] valptr = new int[17];
+    final int[] mincode = new int[17];
+    final int[] lookup = new int[1 << LOOKAHEAD];
+
+    // ── Encode tables (indexed by symbol) ──
+    final int[] ehufco = new int[256];
+    final int[] ehufsi = new int[256];
+
+    HuffmanTable(int[] bits, int[] vals) {
+        if (bits.length != 17) throw new IllegalArgumentException("bits must have 17 entries");
+        this.bits = bits.clone();
+        this.vals = vals.clone();
+        build();
+    }
+
+    private void build() {
+        int code = 0;
+        int k = 0;
+        for (int l = 1; l <= 16; l++) {
+            valptr[l] = k;
+            mincode[l] = code;
+            int n = bits[l];
+            for (int i = 0; i < n; i++, k++, code++) {
+                int sym = vals[k] & 0xFF;
+                ehufco[sym] = code;
+                ehufsi[sym] = l;
+                if (l <= LOOKAHEAD) {
+                    int shift = LOOKAHEAD - l;
+                    int base = code << shift;
+                    for (int j = 0; j < (1 << shift); j++) lookup[base + j] = (l << 8) | sym;
+                }
+            }
+            maxcode[l] = n > 0 ? code - 1 : -1;
+            code <<= 1;
+        }
+        maxcode[17] = Integer.MAX_VALUE;
+    }
+
+    /** Total number of symbols in the table. */
+    int symbolCount() {
+        return vals.length;
+    }
+
+    // ================================================================
+    // OPTIMAL TABLES (ITU T.81 Annex K.2, as in libjpeg)
+    // ================================================================
+
+    /**
+     * Build a length-limited optimal table from symbol frequencies. One code
+     * point is reserved so that no real code is all 1-bits. The freq array is
+     * not modified.
+     */
+    static HuffmanTable fromFrequencies(long[] symbolFreq) {
+        long[] freq = new long[257];
+        boolean any = false;
+        for (int i = 0; i < Math.min(256, symbolFreq.length); i++) {
+            freq[i] = symbolFreq[i];
+            any |= freq[i] != 0;
+        }
+        // An unused table still needs one real code to be a valid DHT
+        if (!any) freq[0] = 1;
+        freq[256] = 1;
+        int[] codesize = new int[257];
+        int[] others = new int[257];
+        java.util.Arrays.fill(others, -1);
+
+        while (true) {
+            int c1 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (freq[i] != 0 && freq[i] <= v) { v = freq[i]; c1 = i; }
+            }
+            int c2 = -1;
+            v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (freq[i] != 0 && freq[i] <= v && i != c1) { v = freq[i]; c2 = i; }
+            }
+            if (c2 < 0) break;
+
+            freq[c1] += freq[c2];
+            freq[c2] = 0;
+            codesize[c1]++;
+            while (others[c1] >= 0) { c1 = others[c1]; codesize[c1]++; }
+            others[c1] = c2;
+            codesize[c2]++;
+            while (others[c2] >= 0) { c2 = others[c2]; codesize[c2]++; }
+        }
+
+        int[] count = new int[33];
+        for (int i = 0; i <= 256; i++) {
+            if (codesize[i] > 0) count[Math.min(codesize[i], 32)]++;
+        }
+        // Limit code lengths to 16 bits
+        for (int i = 32; i > 16; i--) {
+            while (count[i] > 0) {
+                int j = i - 2;
+                while (count[j] == 0) j--;
+                count[i] -= 2;
+                count[i - 1]++;
+                count[j + 1] += 2;
+                count[j]--;
+            }
+        }
+        // Drop the reserved code point from the longest length
+        int i = 16;
+        while (count[i] == 0) i--;
+        count[i]--;
+
+        int[] bits = new int[17];
+        System.arraycopy(count, 1, bits, 1, 16);
+        int n = 0;
+        for (int l = 1; l <= 16; l++) n += bits[l];
+        int[] vals = new int[n];
+        int k = 0;
+        for (int len = 1; len <= 32 && k < n; len++) {
+            for (int s = 0; s < 256 && k < n; s++) {
+                if (codesize[s] == len) vals[k++] = s;
+            }
+        }
+        return new HuffmanTable(bits, vals);
+    }
+
+    // ================================================================
+    // STANDARD TABLES (ITU T.81 Annex K.3)
+    // ================================================================
+    static final HuffmanTable STD_DC_LUMA = new HuffmanTable(
+        new int[]{0, 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0},
+        new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+
+    static final HuffmanTable STD_DC_CHROMA = new HuffmanTable(
+        new int[]{0, 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0},
+        new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+
+    static final HuffmanTable STD_AC_LUMA = new HuffmanTable(
+        new int[]{0, 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d},
+        new int[]{
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa});
+
+    static final HuffmanTable STD_AC_CHROMA = new HuffmanTable(
+        new int[]{0, 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77},
+        new int[]{
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa});
+}
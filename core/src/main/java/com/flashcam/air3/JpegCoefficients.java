@@ -0,0 +1,395 @@
+package com.flashcam.air3;
+
+import java.io.IOException;
+
+/**
+ * Quantized DCT coefficients of a baseline JPEG, fully entropy-decoded but
+ * never inverse-transformed. This is the representation used for lossless
+ * transforms: blocks can be moved, transposed and sign-flipped without
+ * touching a single pixel.
+ *
+ * Only baseline / extended sequential Huffman JPEGs with 8-bit samples are
+ * accepted (SOF0/SOF1), which is what the camera HAL produces. Anything else
+ * throws an IOException so callers can fall back to the bitmap path.
+ */
+final class JpegCoefficients {
+
+    /** ZIGZAG[k] = natural (row-major) index of the k-th coefficient in zig-zag order. */
+    static final int[] ZIGZAG = {
+         0,  1,  8, 16,  9,  2,  3, 10,
+        17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    /** One colour component: sampling factors and an MCU-padded grid of 8×8 blocks. */
+    static final class Component {
+        int id;
+        int h, v;
+        int tq;
+        /** Block grid dimensions (padded to whole MCUs). */
+        int blocksW, blocksH;
+        /** 64 coefficients per block, natural order, block (bx,by) at (by*blocksW+bx)*64. */
+        short[] coef;
+
+        /** Blocks that actually cover image pixels (non-interleaved scan extent). */
+        int usedBlocksW(JpegCoefficients img) {
+            return (ceilDiv(img.width * h, img.maxH) + 7) / 8;
+        }
+
+        int usedBlocksH(JpegCoefficients img) {
+            return (ceilDiv(img.height * v, img.maxV) + 7) / 8;
+        }
+    }
+
+    int width, height;
+    int maxH, maxV;
+    int mcusX, mcusY;
+    Component[] components;
+    /** Quantization tables in natural order, indexed by Tq (null when undefined). */
+    final int[][] quant = new int[4][];
+
+    int mcuWidth() { return 8 * maxH; }
+    int mcuHeight() { return 8 * maxV; }
+
+    /** Allocate MCU-padded coefficient storage for the current geometry. */
+    void allocate() {
+        mcusX = ceilDiv(width, mcuWidth());
+        mcusY = ceilDiv(height, mcuHeight());
+        for (Component c : components) {
+            c.blocksW = mcusX * c.h;
+            c.blocksH = mcusY * c.v;
+            c.coef = new short[c.blocksW * c.blocksH * 64];
+        }
+    }
+
+    static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    // ================================================================
+    // DECODE
+    // ================================================================
+
+    /** Parse and entropy-decode a baseline JPEG into coefficients. */
+    static JpegCoefficients decode(byte[] data, int offset, int length) throws IOException {
+        JpegCoefficients img = new JpegCoefficients();
+        HuffmanTable[] dcTables = new HuffmanTable[4];
+        HuffmanTable[] acTables = new HuffmanTable[4];
+        int restartInterval = 0;
+        boolean sawFrame = false;
+        boolean sawScan = false;
+
+        int end = offset + length;
+        int pos = offset;
+        if (length < 4 || (data[pos] & 0xFF) != 0xFF || (data[pos + 1] & 0xFF) != 0xD8) {
+            throw new IOException("Not a JPEG (missing SOI)");
+        }
+        pos += 2;
+
+        while (pos < end) {
+            // Find the next marker, skipping any 0xFF fill bytes
+            if ((data[pos] & 0xFF) != 0xFF) throw new IOException("Marker expected at " + (pos - offset));
+            while (pos < end && (data[pos] & 0xFF) == 0xFF) pos++;
+            if (pos >= end) break;
+            int marker = data[pos++] & 0xFF;
+
+            if (marker == 0xD9) break;                       // EOI
+            if (marker >= 0xD0 && marker <= 0xD7) continue;  // stray RSTn
+            if (marker == 0x01) continue;                    // TEM
+
+            if (pos + 2 > end) throw new IOException("Truncated segment");
+            int segLen = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            int segStart = pos + 2;
+            int segEnd = pos + segLen;
+            if (segLen < 2 || segEnd > end) throw new IOException("Bad segment length");
+
+            switch (marker) {
+                case 0xC0: case 0xC1:
+                    parseFrame(img, data, segStart, segEnd);
+                    sawFrame = true;
+                    break;
+                case 0xC2: case 0xC3: case 0xC5: case 0xC6: case 0xC7:
+                case 0xC9: case 0xCA: case 0xCB: case 0xCD: case 0xCE: case 0xCF:
+                    throw new IOException("Unsupported JPEG process SOF" + (marker - 0xC0));
+                case 0xC4:
+                    parseHuffman(data, segStart, segEnd, dcTables, acTables);
+                    break;
+                case 0xDB:
+                    parseQuant(img, data, segStart, segEnd);
+                    break;
+                case 0xDD:
+                    restartInterval = ((data[segStart] & 0xFF) << 8) | (data[segStart + 1] & 0xFF);
+                    break;
+                case 0xDA:
+                    if (!sawFrame) throw new IOException("SOS before SOF");
+                    pos = decodeScan(img, data, segStart, segEnd, end, dcTables, acTables, restartInterval);
+                    sawScan = true;
+                    continue;
+                default:
+                    // APPn, COM and friends are not carried over
+                    break;
+            }
+            pos = segEnd;
+        }
+
+        if (!sawScan) throw new IOException("No scan data");
+        for (Component c : img.components) {
+            if (img.quant[c.tq] == null) throw new IOException("Missing quant table " + c.tq);
+        }
+        return img;
+    }
+
+    private static void parseFrame(JpegCoefficients img, byte[] d, int p, int end) throws IOException {
+        int precision = d[p] & 0xFF;
+        if (precision != 8) throw new IOException("Unsupported precision " + precision);
+        img.height = ((d[p + 1] & 0xFF) << 8) | (d[p + 2] & 0xFF);
+        img.width = ((d[p + 3] & 0xFF) << 8) | (d[p + 4] & 0xFF);
+        int nc = d[p + 5] & 0xFF;
+        if (img.width == 0 || img.height == 0) throw new IOException("DNL-sized frames not supported");
+        if (nc < 1 || nc > 4 || p + 6 + nc * 3 > end) throw new IOException("Bad component count " + nc);
+
+        img.components = new Component[nc];
+        img.maxH = 1;
+        img.maxV = 1;
+        for (int i = 0; i < nc; i++) {
+            Component c = new Component();
+            int q = p + 6 + i * 3;
+            c.id = d[q] & 0xFF;
+            c.h = (d[q + 1] >> 4) & 0x0F;
+            c.v = d[q + 1] & 0x0F;
+            c.tq = d[q + 2] & 0x03;
+            if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4) throw new IOException("Bad sampling factors");
+            img.maxH = Math.max(img.maxH, c.h);
+            img.maxV = Math.max(img.maxV, c.v);
+            img.components[i] = c;
+        }
+        // A single-component frame always uses one-block MCUs
+        if (nc == 1) {
+            img.components[0].h = 1;
+            img.components[0].v = 1;
+            img.maxH = 1;
+            img.maxV = 1;
+        }
+        img.allocate();
+    }
+
+    private static void parseQuant(JpegCoefficients img, byte[] d, int p, int end) throws IOException {
+        while (p < end) {
+            int pq = (d[p] >> 4) & 0x0F;
+            int tq = d[p] & 0x03;
+            p++;
+            int[] table = new int[64];
+            for (int k = 0; k < 64; k++) {
+                int v;
+                if (pq == 0) { v = d[p++] & 0xFF; }
+                else { v = ((d[p] & 0xFF) << 8) | (d[p + 1] & 0xFF); p += 2; }
+                table[ZIGZAG[k]] = v;
+            }
+            img.quant[tq] = table;
+        }
+        if (p != end) throw new IOException("Bad DQT length");
+    }
+
+    private static void parseHuffman(byte[] d, int p, int end,
+            HuffmanTable[] dcTables, HuffmanTable[] acTables) throws IOException {
+        while (p < end) {
+            int tc = (d[p] >> 4) & 0x0F;
+            int th = d[p] & 0x03;
+            p++;
+            int[] bits = new int[17];
+            int total = 0;
+            for (int l = 1; l <= 16; l++) { bits[l] = d[p++] & 0xFF; total += bits[l]; }
+            if (total > 256 || p + total > end) throw new IOException("Bad DHT");
+            int[] vals = new int[total];
+            for (int i = 0; i < total; i++) vals[i] = d[p++] & 0xFF;
+            HuffmanTable t = new HuffmanTable(bits, vals);
+            if (tc == 0) dcTables[th] = t; else acTables[th] = t;
+        }
+    }
+
+    /** Decode one scan; returns the position just after its entropy-coded data. */
+    private static int decodeScan(JpegCoefficients img, byte[] d, int p, int segEnd, int end,
+            HuffmanTable[] dcTables, HuffmanTable[] acTables, int restartInterval) throws IOException {
+        int ns = d[p] & 0xFF;
+        if (ns < 1 || ns > 4) throw new IOException("Bad scan component count");
+        Component[] scomp = new Component[ns];
+        HuffmanTable[] sdc = new HuffmanTable[ns];
+        HuffmanTable[] sac = new HuffmanTable[ns];
+        for (int i = 0; i < ns; i++) {
+            int cid = d[p + 1 + i * 2] & 0xFF;
+            int td = (d[p + 2 + i * 2] >> 4) & 0x03;
+            int ta = d[p + 2 + i * 2] & 0x03;
+            for (Component c : img.components) if (c.id == cid) scomp[i] = c;
+            if (scomp[i] == null) throw new IOException("Scan references unknown component " + cid);
+            sdc[i] = dcTables[td];
+            sac[i] = acTables[ta];
+            if (sdc[i] == null || sac[i] == null) throw new IOException("Scan references undefined Huffman table");
+        }
+        int q = p + 1 + ns * 2;
+        int ss = d[q] & 0xFF, se = d[q + 1] & 0xFF, ahal = d[q + 2] & 0xFF;
+        if (ss != 0 || se != 63 || ahal != 0) throw new IOException("Not a sequential scan");
+
+        BitReader br = new BitReader(d, segEnd, end);
+        int[] pred = new int[ns];
+        int mcuCount = 0;
+
+        if (ns == 1) {
+            Component c = scomp[0];
+            int bw = c.usedBlocksW(img);
+            int bh = c.usedBlocksH(img);
+            for (int by = 0; by < bh; by++) {
+                for (int bx = 0; bx < bw; bx++) {
+                    if (restartInterval > 0 && mcuCount > 0 && mcuCount % restartInterval == 0) {
+                        br.restart();
+                        pred[0] = 0;
+                    }
+                    pred[0] = decodeBlock(br, c.coef, (by * c.blocksW + bx) * 64, sdc[0], sac[0], pred[0]);
+                    mcuCount++;
+                }
+            }
+        } else {
+            for (int my = 0; my < img.mcusY; my++) {
+                for (int mx = 0; mx < img.mcusX; mx++) {
+                    if (restartInterval > 0 && mcuCount > 0 && mcuCount % restartInterval == 0) {
+                        br.restart();
+                        for (int i = 0; i < ns; i++) pred[i] = 0;
+                    }
+                    for (int i = 0; i < ns; i++) {
+                        Component c = scomp[i];
+                        for (int v = 0; v < c.v; v++) {
+                            int row = my * c.v + v;
+                            for (int h = 0; h < c.h; h++) {
+                                int col = mx * c.h + h;
+                                pred[i] = decodeBlock(br, c.coef, (row * c.blocksW + col) * 64,
+                                    sdc[i], sac[i], pred[i]);
+                            }
+                        }
+                    }
+                    mcuCount++;
+                }
+            }
+        }
+        return br.endOfScan();
+    }
+
+    private static int decodeBlock(BitReader br, short[] coef, int base,
+            HuffmanTable dc, HuffmanTable ac, int pred) throws IOException {
+        int t = br.decode(dc);
+        pred += br.receiveExtend(t);
+        coef[base] = (short) pred;
+        for (int k = 1; k < 64; ) {
+            int rs = br.decode(ac);
+            int r = rs >> 4;
+            int s = rs & 0x0F;
+            if (s == 0) {
+                if (r != 15) break;
+                k += 16;
+                continue;
+            }
+            k += r;
+            if (k > 63) throw new IOException("Coefficient index out of range");
+            coef[base + ZIGZAG[k]] = (short) br.receiveExtend(s);
+            k++;
+        }
+        return pred;
+    }
+
+    // ================================================================
+    // BIT READER
+    // ================================================================
+
+    /** MSB-first bit reader over entropy-coded data with 0xFF00 unstuffing. */
+    private static final class BitReader {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+        private long acc;
+        private int bits;
+        private boolean markerHit;
+
+        BitReader(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        private void fill() {
+            while (bits <= 56) {
+                int b = 0;
+                if (!markerHit && pos < end) {
+                    b = buf[pos] & 0xFF;
+                    if (b == 0xFF) {
+                        int next = pos + 1 < end ? buf[pos + 1] & 0xFF : 0xD9;
+                        if (next == 0x00) {
+                            pos += 2;
+                        } else {
+                            // Marker: stop consuming and feed zeros
+                            markerHit = true;
+                            b = 0;
+                        }
+                    } else {
+                        pos++;
+                    }
+                }
+                acc |= (long) b << (56 - bits);
+                bits += 8;
+            }
+        }
+
+        int decode(HuffmanTable t) throws IOException {
+            if (bits < 32) fill();
+            int e = t.lookup[(int) (acc >>> (64 - 9))];
+            if (e != 0) {
+                int len = e >> 8;
+                acc <<= len;
+                bits -= len;
+                return e & 0xFF;
+            }
+            for (int l = 10; l <= 16; l++) {
+                int code = (int) (acc >>> (64 - l));
+                if (code <= t.maxcode[l]) {
+                    acc <<= l;
+                    bits -= l;
+                    return t.vals[t.valptr[l] + code - t.mincode[l]];
+                }
+            }
+            throw new IOException("Corrupt Huffman code");
+        }
+
+        int receiveExtend(int s) {
+            if (s == 0) return 0;
+            if (bits < 32) fill();
+            int v = (int) (acc >>> (64 - s));
+            acc <<= s;
+            bits -= s;
+            return v < (1 << (s - 1)) ? v - (1 << s) + 1 : v;
+        }
+
+        /** Discard padding bits and consume the expected RSTn marker. */
+        void restart() throws IOException {
+            acc = 0;
+            bits = 0;
+            markerHit = false;
+            while (pos < end && (buf[pos] & 0xFF) != 0xFF) pos++;
+            while (pos < end && (buf[pos] & 0xFF) == 0xFF) pos++;
+            if (pos >= end) throw new IOException("Missing restart marker");
+            int m = buf[pos++] & 0xFF;
+            if (m < 0xD0 || m > 0xD7) throw new IOException("Expected RSTn, got 0x" + Integer.toHexString(m));
+        }
+
+        /** Position of the marker that terminates the scan. */
+        int endOfScan() {
+            int p = pos;
+            while (p + 1 < end && !((buf[p] & 0xFF) == 0xFF && (buf[p + 1] & 0xFF) != 0x00
+                    && ((buf[p + 1] & 0xFF) < 0xD0 || (buf[p + 1] & 0xFF) > 0xD7))) {
+                p++;
+            }
+            return p;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.flashcam.air3;
+
+/**
+ * Progressive JPEG output (SOF2) using spectral selection only: one
+ * interleaved DC scan followed by per-component AC bands. Every scan gets its
+ * own optimal Huffman table, and runs of empty blocks are folded into EOBRUN
+ * codes, which is where most of the size win over baseline comes from.
+ *
+ * Successive approximation is not used, so every coefficient is still sent
+ * exactly once and the result decodes to the same coefficients as the input.
+ */
+final class JpegProgressiveWriter {
+
+    private JpegProgressiveWriter() {}
+
+    /** One scan of the script: component indices and spectral band [ss, se]. */
+    private static final class Scan {
+        final int[] comps;
+        final int ss, se;
+
+        Scan(int[] comps, int ss, int se) {
+            this.comps = comps;
+            this.ss = ss;
+            this.se = se;
+        }
+    }
+
+    static byte[] encode(JpegCoefficients img) {
+        JpegWriter.EntropyEncoder enc = new JpegWriter.EntropyEncoder(JpegWriter.estimateSize(img));
+        JpegWriter.writeFrameHeader(enc, img, 0xC2);
+        for (Scan scan : scanScript(img.components.length)) {
+            if (scan.ss == 0) writeDcScan(enc, img, scan);
+            else writeAcScan(enc, img, scan);
+        }
+        enc.marker(0xD9);
+        return enc.toByteArray();
+    }
+
+    private static Scan[] scanScript(int nc) {
+        int[] all = new int[nc];
+        for (int i = 0; i < nc; i++) all[i] = i;
+        if (nc == 3) {
+            return new Scan[]{
+                new Scan(all, 0, 0),
+                new Scan(new int[]{0}, 1, 5),
+                new Scan(new int[]{1}, 1, 63),
+                new Scan(new int[]{2}, 1, 63),
+                new Scan(new int[]{0}, 6, 63)
+            };
+        }
+        if (nc == 1) {
+            return new Scan[]{
+                new Scan(all, 0, 0),
+                new Scan(all, 1, 5),
+                new Scan(all, 6, 63)
+            };
+        }
+        Scan[] script = new Scan[nc + 1];
+        script[0] = new Scan(all, 0, 0);
+        for (int i = 0; i < nc; i++) script[i + 1] = new Scan(new int[]{i}, 1, 63);
+        return script;
+    }
+
+    // ================================================================
+    // DC SCAN
+    // ================================================================
+    private static void writeDcScan(JpegWriter.EntropyEncoder enc, JpegCoefficients img, Scan scan) {
+        int ns = scan.comps.length;
+        long[][] freq = new long[2][256];
+        codeDcScan(null, img, scan, freq, null);
+
+        HuffmanTable[] tables = new HuffmanTable[2];
+        tables[0] = HuffmanTable.fromFrequencies(freq[0]);
+        JpegWriter.writeHuffman(enc, 0x00, tables[0]);
+        if (ns > 1) {
+            tables[1] = HuffmanTable.fromFrequencies(freq[1]);
+            JpegWriter.writeHuffman(enc, 0x01, tables[1]);
+        }
+
+        writeSos(enc, img, scan, true);
+        codeDcScan(enc, img, scan, null, tables);
+        enc.flushBits();
+    }
+
+    /** Counts into freq when enc is null, otherwise emits with tables. */
+    private static void codeDcScan(JpegWriter.EntropyEncoder enc, JpegCoefficients img, Scan scan,
+            long[][] freq, HuffmanTable[] tables) {
+        int ns = scan.comps.length;
+        int[] pred = new int[ns];
+        if (ns == 1) {
+            JpegCoefficients.Component c = img.components[scan.comps[0]];
+            int bw = c.usedBlocksW(img);
+            int bh = c.usedBlocksH(img);
+            for (int by = 0; by < bh; by++) {
+                for (int bx = 0; bx < bw; bx++) {
+                    int dc = c.coef[(by * c.blocksW + bx) * 64];
+                    codeDc(enc, dc - pred[0], freq, tables, 0);
+                    pred[0] = dc;
+                }
+            }
+            return;
+        }
+        for (int my = 0; my < img.mcusY; my++) {
+            for (int mx = 0; mx < img.mcusX; mx++) {
+                for (int i = 0; i < ns; i++) {
+                    JpegCoefficients.Component c = img.components[scan.comps[i]];
+                    int slot = JpegWriter.tableSlot(scan.comps[i]);
+                    for (int v = 0; v < c.v; v++) {
+                        for (int h = 0; h < c.h; h++) {
+                            int dc = c.coef[((my * c.v + v) * c.blocksW + mx * c.h + h) * 64];
+                            codeDc(enc, dc - pred[i], freq, tables, slot);
+                            pred[i] = dc;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void codeDc(JpegWriter.EntropyEncoder enc, int diff,
+            long[][] freq, HuffmanTable[] tables, int slot) {
+        if (enc == null) freq[slot][JpegWriter.sizeOf(diff)]++;
+        else enc.emitValue(tables[slot], diff);
+    }
+
+    // ================================================================
+    // AC SCAN (single component, EOBRUN coding)
+    // ================================================================
+    private static void writeAcScan(JpegWriter.EntropyEncoder enc, JpegCoefficients img, Scan scan) {
+        long[] freq = new long[256];
+        codeAcScan(null, img, scan, freq, null);
+        HuffmanTable table = HuffmanTable.fromFrequencies(freq);
+        JpegWriter.writeHuffman(enc, 0x10, table);
+        writeSos(enc, img, scan, false);
+        codeAcScan(enc, img, scan, null, table);
+        enc.flushBits();
+    }
+
+    private static void codeAcScan(JpegWriter.EntropyEncoder enc, JpegCoefficients img, Scan scan,
+            long[] freq, HuffmanTable t) {
+        JpegCoefficients.Component c = img.components[scan.comps[0]];
+        int bw = c.usedBlocksW(img);
+        int bh = c.usedBlocksH(img);
+        int eobrun = 0;
+        for (int by = 0; by < bh; by++) {
+            for (int bx = 0; bx < bw; bx++) {
+                int base = (by * c.blocksW + bx) * 64;
+                int run = 0;
+                for (int k = scan.ss; k <= scan.se; k++) {
+                    int v = c.coef[base + JpegCoefficients.ZIGZAG[k]];
+                    if (v == 0) { run++; continue; }
+                    if (eobrun > 0) { codeEobRun(enc, eobrun, freq, t); eobrun = 0; }
+                    while (run > 15) { codeSymbol(enc, 0xF0, freq, t); run -= 16; }
+                    int size = JpegWriter.sizeOf(v);
+                    codeSymbol(enc, (run << 4) | size, freq, t);
+                    if (enc != null) enc.putBits(v < 0 ? v - 1 : v, size);
+                    run = 0;
+                }
+                if (run > 0) {
+                    eobrun++;
+                    if (eobrun == 0x7FFF) { codeEobRun(enc, eobrun, freq, t); eobrun = 0; }
+                }
+            }
+        }
+        if (eobrun > 0) codeEobRun(enc, eobrun, freq, t);
+    }
+
+    private static void codeEobRun(JpegWriter.EntropyEncoder enc, int eobrun, long[] freq, HuffmanTable t) {
+        int nbits = 31 - Integer.numberOfLeadingZeros(eobrun);
+        codeSymbol(enc, nbits << 4, freq, t);
+        if (enc != null && nbits > 0) enc.putBits(eobrun, nbits);
+    }
+
+    private static void codeSymbol(JpegWriter.EntropyEncoder enc, int sym, long[] freq, HuffmanTable t) {
+        if (enc == null) freq[sym]++;
+        else enc.putBits(t.ehufco[sym], t.ehufsi[sym]);
+    }
+
+    // ================================================================
+    // SOS
+    // ================================================================
+    private static void writeSos(JpegWriter.EntropyEncoder enc, JpegCoefficients img, Scan scan, boolean dc) {
+        int ns = scan.comps.length;
+        enc.marker(0xDA);
+        enc.u16(6 + 2 * ns);
+        enc.u8(ns);
+        for (int ci : scan.comps) {
+            enc.u8(img.components[ci].id);
+            // DC scans use slot 0/1 by component; AC scans always load slot 0
+            enc.u8(dc ? JpegWriter.tableSlot(ci) << 4 : 0x00);
+        }
+        enc.u8(scan.ss);
+        enc.u8(scan.se);
+        enc.u8(0);
+    }
+}
@@ -0,0 +1,206 @@
+package com.flashcam.air3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * App-private spool for encoded JPEGs on their way to MediaStore. The
+ * persist stage writes the final bytes (EXIF included) here before it
+ * saves them and deletes the file once the save is published, so a JPEG
+ * whose save never finished (process killed, every MediaStore attempt
+ * failed) is still on disk and {@link #replay} saves it on the next launch.
+ * Like RawSpool, a spooled file survives a process crash as soon as the
+ * write returns, but not power loss.
+ *
+ * File layout: magic, version, complete flag, attempts, header length and
+ * data length, then the header (name, MIME type) and the payload. The
+ * complete flag is set last; files without it were cut short and are
+ * dropped.
+ */
+final class JpegSpool {
+
+    private static final Logger LOG = Logger.getLogger("FlashCam");
+    private static final int MAGIC = 0x4643534A; // "FCSJ"
+    private static final int VERSION = 1;
+    private static final int OFF_COMPLETE = 8;
+    private static final int OFF_ATTEMPTS = 9;
+    private static final int OFF_HEADER_LEN = 12;
+    private static final int OFF_DATA_LEN = 16;
+    private static final int FIXED_HEADER = 24;
+    static final int MAX_ATTEMPTS = 3;
+    static final String SUFFIX = ".jspool";
+
+    /** One spooled payload. */
+    static final class Entry {
+        final File file;
+        final String name, mimeType;
+        final long bytes;
+
+        Entry(File file, String name, String mimeType, long bytes) {
+            this.file = file;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Saves a replayed payload (data from its position); false if it could not. */
+    interface Saver {
+        boolean save(String name, String mimeType, ByteBuffer data) throws Exception;
+    }
+
+    private final File dir;
+    /** Spooled by this process and not yet done; replay leaves them to their persist stage. */
+    private final Set<String> active = new HashSet<>();
+    private int spooled, saved, replayed, dropped, failed;
+    private long spooledBytes;
+
+    JpegSpool(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    /** Write the concatenation of parts (positions untouched) to a new spool file. */
+    Entry spool(String name, String mimeType, ByteBuffer... parts) throws IOException {
+        File f = new File(dir, name + SUFFIX);
+        byte[] header = encodeHeader(name, mimeType);
+        long bytes = 0;
+        ByteBuffer[] views = new ByteBuffer[parts.length + 2];
+        for (int i = 0; i < parts.length; i++) {
+            views[i + 2] = parts[i].duplicate();
+            bytes += views[i + 2].remaining();
+        }
+        ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER);
+        fixed.putInt(0, MAGIC).putInt(4, VERSION).putInt(OFF_HEADER_LEN, header.length).putLong(OFF_DATA_LEN, bytes);
+        views[0] = fixed;
+        views[1] = ByteBuffer.wrap(header);
+        // CREATE_NEW: a file of that name may still be queued for replay; fail rather than truncate it
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        synchronized (this) { active.add(f.getName()); }
+        try (ch) {
+            long remaining = FIXED_HEADER + header.length + bytes;
+            while (remaining > 0) remaining -= ch.write(views);
+            ch.write(ByteBuffer.wrap(new byte[]{1}), OFF_COMPLETE);
+        } catch (IOException | RuntimeException e) {
+            f.delete();
+            synchronized (this) { active.remove(f.getName()); }
+            throw e;
+        }
+        synchronized (this) {
+            spooled++;
+            spooledBytes += bytes;
+        }
+        return new Entry(f, name, mimeType, bytes);
+    }
+
+    /** The payload is saved: drop its spool file. */
+    void done(Entry e) {
+        e.file.delete();
+        synchronized (this) {
+            active.remove(e.file.getName());
+            saved++;
+        }
+    }
+
+    /**
+     * The persist stage gave up on e: leave it for the next launch's
+     * {@link #replay}, which also counts the attempt.
+     */
+    synchronized void keep(Entry e) {
+        active.remove(e.file.getName());
+        failed++;
+    }
+
+    /**
+     * Save every complete file an earlier run left, oldest name first,
+     * deleting each once saver succeeds. Torn files are dropped; a file
+     * that fails MAX_ATTEMPTS replays is parked as .failed so it can't loop.
+     * Runs on the caller's thread.
+     */
+    void replay(Saver saver) {
+        File[] files = dir.listFiles((d, n) -> n.endsWith(SUFFIX));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File f : files) {
+            synchronized (this) {
+                if (active.contains(f.getName())) continue;
+            }
+            boolean ok = false, torn = false;
+            int attempts = MAX_ATTEMPTS;
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Entry e = readHeader(f, ch);
+                if (e == null) {
+                    torn = true;
+                } else {
+                    ByteBuffer b = ByteBuffer.allocate(1);
+                    ch.read(b, OFF_ATTEMPTS);
+                    attempts = b.get(0) + 1;
+                    ch.write(ByteBuffer.wrap(new byte[]{(byte) attempts}), OFF_ATTEMPTS);
+                    ByteBuffer data = ch.map(FileChannel.MapMode.READ_ONLY, ch.size() - e.bytes, e.bytes);
+                    ok = saver.save(e.name, e.mimeType, data);
+                }
+            } catch (Exception err) {
+                LOG.warning("JPEG spool replay failed for " + f.getName() + ": " + err.getMessage());
+            }
+            if (torn) {
+                LOG.warning("Dropping incomplete JPEG spool file " + f.getName());
+                f.delete();
+                synchronized (this) { dropped++; }
+            } else if (ok) {
+                f.delete();
+                synchronized (this) { replayed++; }
+            } else if (attempts >= MAX_ATTEMPTS) {
+                f.renameTo(new File(dir, f.getName() + ".failed"));
+            }
+        }
+    }
+
+    /** Spooled payloads not yet saved by this process. */
+    synchronized int pending() {
+        return active.size();
+    }
+
+    synchronized String stats() {
+        return String.format(Locale.US, "%d spooled (%.1f MB), %d saved, %d pending, %d kept for next launch,"
+                + " %d replayed, %d torn",
+            spooled, spooledBytes / 1048576.0, saved, active.size(), failed, replayed, dropped);
+    }
+
+    // ── Header ──
+
+    private static byte[] encodeHeader(String name, String mimeType) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(name);
+        out.writeUTF(mimeType);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Entry for a complete spool file, or null if it was never finished. */
+    private static Entry readHeader(File f, FileChannel ch) throws IOException {
+        if (ch.size() < FIXED_HEADER) return null;
+        ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER);
+        while (fixed.hasRemaining() && ch.read(fixed, fixed.position()) >= 0) { }
+        if (fixed.getInt(0) != MAGIC || fixed.getInt(4) != VERSION || fixed.get(OFF_COMPLETE) != 1) return null;
+        int headerLen = fixed.getInt(OFF_HEADER_LEN);
+        long dataLen = fixed.getLong(OFF_DATA_LEN);
+        if (headerLen < 0 || ch.size() != FIXED_HEADER + headerLen + dataLen) return null;
+        ByteBuffer hb = ByteBuffer.allocate(headerLen);
+        while (hb.hasRemaining() && ch.read(hb, FIXED_HEADER + hb.position()) >= 0) { }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(hb.array()));
+        return new Entry(f, in.readUTF(), in.readUTF(), dataLen);
+    }
+}
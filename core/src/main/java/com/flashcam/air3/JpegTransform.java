@@ -0,0 +1,143 @@
+package com.flashcam.air3;
+
+import java.io.IOException;
+
+/**
+ * Lossless JPEG rotation in the DCT domain (the jpegtran -rotate -trim
+ * approach). Coefficient blocks are moved to their rotated position and each
+ * block is transposed and/or sign-flipped, so no pixel is ever decoded and
+ * no second round of quantization loss is introduced.
+ *
+ * Rotation is clockwise, matching Matrix.postRotate in the previous bitmap
+ * path. Partial MCUs on an edge that would end up at the top or left of the
+ * rotated image are trimmed (at most 15 px), exactly like jpegtran -trim.
+ */
+final class JpegTransform {
+
+    private JpegTransform() {}
+
+    /** Decode, rotate and re-encode. degrees must be 0, 90, 180 or 270. */
+    static byte[] rotate(byte[] jpeg, int degrees) throws IOException {
+        return rotate(jpeg, degrees, JpegWriter.Mode.STANDARD);
+    }
+
+    static byte[] rotate(byte[] jpeg, int degrees, JpegWriter.Mode mode) throws IOException {
+        if (degrees == 0 && mode == JpegWriter.Mode.STANDARD) return jpeg;
+        JpegCoefficients src = JpegCoefficients.decode(jpeg, 0, jpeg.length);
+        return JpegWriter.encode(degrees == 0 ? src : rotate(src, degrees), mode);
+    }
+
+    /**
+     * Lossless entropy re-optimization: same coefficients, new Huffman tables
+     * (and optionally progressive scans).
+     */
+    static byte[] reencode(byte[] jpeg, JpegWriter.Mode mode) throws IOException {
+        return rotate(jpeg, 0, mode);
+    }
+
+    /**
+     * Rotate coefficients clockwise. src is consumed: each of its components'
+     * coef is set to null as soon as that component is rotated, so peak memory
+     * is one frame of coefficients plus a single rotated component. Don't use
+     * src afterwards; decode again (or rotate a copy) if it is still needed.
+     */
+    static JpegCoefficients rotate(JpegCoefficients src, int degrees) {
+        degrees = ((degrees % 360) + 360) % 360;
+        if (degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90: " + degrees);
+        }
+        boolean transpose = degrees != 180;
+
+        // Trim partial iMCUs on the edges that get mirrored
+        int w = src.width;
+        int h = src.height;
+        if (degrees == 90 || degrees == 180) h = Math.max(src.mcuHeight(), h - h % src.mcuHeight());
+        if (degrees == 270 || degrees == 180) w = Math.max(src.mcuWidth(), w - w % src.mcuWidth());
+
+        JpegCoefficients dst = new JpegCoefficients();
+        dst.width = transpose ? h : w;
+        dst.height = transpose ? w : h;
+        dst.maxH = transpose ? src.maxV : src.maxH;
+        dst.maxV = transpose ? src.maxH : src.maxV;
+        dst.components = new JpegCoefficients.Component[src.components.length];
+        for (int i = 0; i < src.components.length; i++) {
+            JpegCoefficients.Component sc = src.components[i];
+            JpegCoefficients.Component dc = new JpegCoefficients.Component();
+            dc.id = sc.id;
+            dc.tq = sc.tq;
+            dc.h = transpose ? sc.v : sc.h;
+            dc.v = transpose ? sc.h : sc.v;
+            dst.components[i] = dc;
+        }
+        for (int t = 0; t < 4; t++) {
+            if (src.quant[t] != null) dst.quant[t] = transpose ? transposed(src.quant[t]) : src.quant[t].clone();
+        }
+
+        dst.mcusX = JpegCoefficients.ceilDiv(dst.width, dst.mcuWidth());
+        dst.mcusY = JpegCoefficients.ceilDiv(dst.height, dst.mcuHeight());
+
+        for (int i = 0; i < src.components.length; i++) {
+            JpegCoefficients.Component sc = src.components[i];
+            JpegCoefficients.Component dc = dst.components[i];
+            dc.blocksW = dst.mcusX * dc.h;
+            dc.blocksH = dst.mcusY * dc.v;
+            dc.coef = new short[dc.blocksW * dc.blocksH * 64];
+
+            // Source block extent after trimming, in this component's block units
+            int srcBw = JpegCoefficients.ceilDiv(JpegCoefficients.ceilDiv(w * sc.h, src.maxH), 8);
+            int srcBh = JpegCoefficients.ceilDiv(JpegCoefficients.ceilDiv(h * sc.v, src.maxV), 8);
+
+            for (int by = 0; by < dc.blocksH; by++) {
+                for (int bx = 0; bx < dc.blocksW; bx++) {
+                    int sx, sy;
+                    switch (degrees) {
+                        case 90:  sx = by;              sy = srcBh - 1 - bx; break;
+                        case 270: sx = srcBw - 1 - by;  sy = bx;             break;
+                        default:  sx = srcBw - 1 - bx;  sy = srcBh - 1 - by; break;
+                    }
+                    if (sx < 0 || sy < 0 || sx >= sc.blocksW || sy >= sc.blocksH) continue;
+                    transformBlock(sc.coef, (sy * sc.blocksW + sx) * 64,
+                        dc.coef, (by * dc.blocksW + bx) * 64, degrees);
+                }
+            }
+            sc.coef = null;
+        }
+        return dst;
+    }
+
+    /**
+     * Rotate one 8×8 coefficient block. Transposing the spatial block
+     * transposes its DCT; mirroring negates the odd-frequency coefficients
+     * along the mirrored axis.
+     */
+    private static void transformBlock(short[] in, int ib, short[] out, int ob, int degrees) {
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) {
+                int c;
+                switch (degrees) {
+                    case 90:  // transpose, then mirror horizontally
+                        c = in[ib + u * 8 + v];
+                        if ((u & 1) != 0) c = -c;
+                        break;
+                    case 270: // transpose, then mirror vertically
+                        c = in[ib + u * 8 + v];
+                        if ((v & 1) != 0) c = -c;
+                        break;
+                    default:  // mirror both axes
+                        c = in[ib + v * 8 + u];
+                        if (((u + v) & 1) != 0) c = -c;
+                        break;
+                }
+                out[ob + v * 8 + u] = (short) c;
+            }
+        }
+    }
+
+    private static int[] transposed(int[] q) {
+        int[] t = new int[64];
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) t[v * 8 + u] = q[u * 8 + v];
+        }
+        return t;
+    }
+}
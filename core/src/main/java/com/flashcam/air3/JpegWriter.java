@@ -0,0 +1,387 @@
+package com.flashcam.air3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes {@link JpegCoefficients} back out as a baseline JPEG: markers,
+ * quantization tables, Huffman tables and the entropy-coded scan.
+ *
+ * Component 0 uses Huffman table slot 0 (luma), all others slot 1 (chroma),
+ * matching what libjpeg and Bitmap.compress emit.
+ */
+final class JpegWriter {
+
+    /** How the entropy-coded data is produced. The coefficients are never changed. */
+    enum Mode {
+        /** Standard Annex K tables, same as Bitmap.compress. */
+        STANDARD,
+        /** Baseline with per-image optimal Huffman tables (extra statistics pass). */
+        OPTIMIZED,
+        /** Progressive spectral-selection scans with optimal tables per scan. */
+        PROGRESSIVE
+    }
+
+    private JpegWriter() {}
+
+    /** Encode with the standard Annex K tables and no restart markers. */
+    static byte[] encode(JpegCoefficients img) {
+        return encode(img, Mode.STANDARD);
+    }
+
+    static byte[] encode(JpegCoefficients img, Mode mode) {
+        if (mode == Mode.PROGRESSIVE) return JpegProgressiveWriter.encode(img);
+
+        HuffmanTable[] dc = new HuffmanTable[2];
+        HuffmanTable[] ac = new HuffmanTable[2];
+        if (mode == Mode.OPTIMIZED) {
+            long[][] dcFreq = new long[2][256];
+            long[][] acFreq = new long[2][256];
+            gatherScan(img, dcFreq, acFreq);
+            for (int t = 0; t < 2; t++) {
+                dc[t] = HuffmanTable.fromFrequencies(dcFreq[t]);
+                ac[t] = HuffmanTable.fromFrequencies(acFreq[t]);
+            }
+        } else {
+            dc[0] = HuffmanTable.STD_DC_LUMA;
+            ac[0] = HuffmanTable.STD_AC_LUMA;
+            dc[1] = HuffmanTable.STD_DC_CHROMA;
+            ac[1] = HuffmanTable.STD_AC_CHROMA;
+        }
+
+        EntropyEncoder enc = new EntropyEncoder(estimateSize(img));
+        writeHeaders(enc, img, 0, dc, ac);
+        encodeScan(enc, img, 0, 0, img.mcusY, dc, ac);
+        enc.marker(0xD9);
+        return enc.toByteArray();
+    }
+
+    static void write(JpegCoefficients img, OutputStream out) throws IOException {
+        out.write(encode(img));
+    }
+
+    static int estimateSize(JpegCoefficients img) {
+        // Q100 4:2:0 camera output lands around 5 bits per pixel
+        long est = (long) img.width * img.height * 5 / 8 + 4096;
+        return (int) Math.min(est, Integer.MAX_VALUE - 64);
+    }
+
+    /** Huffman table slot used by a component: 0 for luma, 1 for chroma. */
+    static int tableSlot(int compIndex) {
+        return compIndex == 0 ? 0 : 1;
+    }
+
+    // ================================================================
+    // HEADERS
+    // ================================================================
+    static void writeHeaders(EntropyEncoder enc, JpegCoefficients img, int restartInterval,
+            HuffmanTable[] dc, HuffmanTable[] ac) {
+        writeFrameHeader(enc, img, 0xC0);
+
+        int nc = img.components.length;
+        writeHuffman(enc, 0x00, dc[0]);
+        writeHuffman(enc, 0x10, ac[0]);
+        if (nc > 1) {
+            writeHuffman(enc, 0x01, dc[1]);
+            writeHuffman(enc, 0x11, ac[1]);
+        }
+
+        if (restartInterval > 0) {
+            enc.marker(0xDD);
+            enc.u16(4);
+            enc.u16(restartInterval);
+        }
+
+        enc.marker(0xDA);
+        enc.u16(6 + 2 * nc);
+        enc.u8(nc);
+        for (int i = 0; i < nc; i++) {
+            enc.u8(img.components[i].id);
+            enc.u8(tableSlot(i) * 0x11);
+        }
+        enc.u8(0);
+        enc.u8(63);
+        enc.u8(0);
+    }
+
+    /**
+     * SOI, DQT and SOF. sofMarker is 0xC0 or 0xC2; it is promoted to SOF1
+     * for baseline when a quant table needs 16-bit entries.
+     */
+    static void writeFrameHeader(EntropyEncoder enc, JpegCoefficients img, int sofMarker) {
+        enc.marker(0xD8);
+
+        boolean extended = false;
+        boolean[] usedTq = new boolean[4];
+        for (JpegCoefficients.Component c : img.components) usedTq[c.tq] = true;
+        for (int t = 0; t < 4; t++) {
+            if (!usedTq[t]) continue;
+            int[] q = img.quant[t];
+            boolean wide = false;
+            for (int v : q) if (v > 255) wide = true;
+            extended |= wide;
+            enc.marker(0xDB);
+            enc.u16(2 + 1 + (wide ? 128 : 64));
+            enc.u8((wide ? 0x10 : 0x00) | t);
+            for (int k = 0; k < 64; k++) {
+                int v = q[JpegCoefficients.ZIGZAG[k]];
+                if (wide) enc.u16(v); else enc.u8(v);
+            }
+        }
+
+        int nc = img.components.length;
+        enc.marker(extended && sofMarker == 0xC0 ? 0xC1 : sofMarker);
+        enc.u16(8 + 3 * nc);
+        enc.u8(8);
+        enc.u16(img.height);
+        enc.u16(img.width);
+        enc.u8(nc);
+        for (JpegCoefficients.Component c : img.components) {
+            enc.u8(c.id);
+            enc.u8((c.h << 4) | c.v);
+            enc.u8(c.tq);
+        }
+    }
+
+    static void writeHuffman(EntropyEncoder enc, int tcTh, HuffmanTable t) {
+        enc.marker(0xC4);
+        enc.u16(2 + 1 + 16 + t.symbolCount());
+        enc.u8(tcTh);
+        for (int l = 1; l <= 16; l++) enc.u8(t.bits[l]);
+        for (int v : t.vals) enc.u8(v);
+    }
+
+    // ================================================================
+    // SCAN
+    // ================================================================
+
+    /**
+     * Entropy-code MCU rows [fromRow, toRow) of a single interleaved scan.
+     * With restartInterval > 0 an RSTn marker is written every restartInterval
+     * MCUs, numbered from the start of the image.
+     */
+    static void encodeScan(EntropyEncoder enc, JpegCoefficients img, int restartInterval,
+            int fromRow, int toRow, HuffmanTable[] dcSlots, HuffmanTable[] acSlots) {
+        JpegCoefficients.Component[] comps = img.components;
+        int nc = comps.length;
+        HuffmanTable[] dc = new HuffmanTable[nc];
+        HuffmanTable[] ac = new HuffmanTable[nc];
+        for (int i = 0; i < nc; i++) { dc[i] = dcSlots[tableSlot(i)]; ac[i] = acSlots[tableSlot(i)]; }
+        int[] pred = new int[nc];
+
+        if (nc == 1) {
+            // Non-interleaved: only blocks covering the image are coded
+            JpegCoefficients.Component c = comps[0];
+            int bw = c.usedBlocksW(img);
+            int bh = c.usedBlocksH(img);
+            int mcu = fromRow * bw;
+            for (int by = fromRow; by < Math.min(toRow, bh); by++) {
+                for (int bx = 0; bx < bw; bx++) {
+                    if (restartInterval > 0 && mcu % restartInterval == 0 && mcu != fromRow * bw) {
+                        enc.restart((mcu / restartInterval - 1) & 7);
+                        pred[0] = 0;
+                    }
+                    pred[0] = enc.encodeBlock(c.coef, (by * c.blocksW + bx) * 64, pred[0], dc[0], ac[0]);
+                    mcu++;
+                }
+            }
+        } else {
+            int mcu = fromRow * img.mcusX;
+            for (int my = fromRow; my < toRow; my++) {
+                for (int mx = 0; mx < img.mcusX; mx++) {
+                    if (restartInterval > 0 && mcu % restartInterval == 0 && mcu != fromRow * img.mcusX) {
+                        enc.restart((mcu / restartInterval - 1) & 7);
+                        for (int i = 0; i < nc; i++) pred[i] = 0;
+                    }
+                    for (int i = 0; i < nc; i++) {
+                        JpegCoefficients.Component c = comps[i];
+                        for (int v = 0; v < c.v; v++) {
+                            int row = my * c.v + v;
+                            for (int h = 0; h < c.h; h++) {
+                                int col = mx * c.h + h;
+                                pred[i] = enc.encodeBlock(c.coef, (row * c.blocksW + col) * 64,
+                                    pred[i], dc[i], ac[i]);
+                            }
+                        }
+                    }
+                    mcu++;
+                }
+            }
+        }
+        enc.flushBits();
+    }
+
+    /**
+     * Statistics pass for optimal tables: counts the DC size categories and
+     * AC run/size symbols that encodeScan would emit, per table slot.
+     */
+    static void gatherScan(JpegCoefficients img, long[][] dcFreq, long[][] acFreq) {
+        JpegCoefficients.Component[] comps = img.components;
+        int nc = comps.length;
+        if (nc == 1) {
+            JpegCoefficients.Component c = comps[0];
+            int bw = c.usedBlocksW(img);
+            int bh = c.usedBlocksH(img);
+            int pred = 0;
+            for (int by = 0; by < bh; by++) {
+                for (int bx = 0; bx < bw; bx++) {
+                    pred = gatherBlock(c.coef, (by * c.blocksW + bx) * 64, pred, dcFreq[0], acFreq[0]);
+                }
+            }
+            return;
+        }
+        int[] pred = new int[nc];
+        for (int my = 0; my < img.mcusY; my++) {
+            for (int mx = 0; mx < img.mcusX; mx++) {
+                for (int i = 0; i < nc; i++) {
+                    JpegCoefficients.Component c = comps[i];
+                    int slot = tableSlot(i);
+                    for (int v = 0; v < c.v; v++) {
+                        int row = my * c.v + v;
+                        for (int h = 0; h < c.h; h++) {
+                            pred[i] = gatherBlock(c.coef, (row * c.blocksW + mx * c.h + h) * 64,
+                                pred[i], dcFreq[slot], acFreq[slot]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static int gatherBlock(short[] coef, int base, int pred, long[] dcFreq, long[] acFreq) {
+        int dcv = coef[base];
+        dcFreq[sizeOf(dcv - pred)]++;
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int v = coef[base + JpegCoefficients.ZIGZAG[k]];
+            if (v == 0) { run++; continue; }
+            while (run > 15) { acFreq[0xF0]++; run -= 16; }
+            acFreq[(run << 4) | sizeOf(v)]++;
+            run = 0;
+        }
+        if (run > 0) acFreq[0x00]++;
+        return dcv;
+    }
+
+    /** Magnitude category (number of bits) of a coefficient value. */
+    static int sizeOf(int value) {
+        int a = value < 0 ? -value : value;
+        return a == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(a);
+    }
+
+    // ================================================================
+    // ENTROPY ENCODER
+    // ================================================================
+
+    /** Growable byte buffer with an MSB-first bit writer and 0xFF stuffing. */
+    static final class EntropyEncoder {
+        private byte[] buf;
+        private int len;
+        private long acc;
+        private int nbits;
+
+        EntropyEncoder(int capacity) {
+            buf = new byte[Math.max(capacity, 1024)];
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) {
+                long grown = Math.max((long) buf.length * 3 / 2, (long) len + extra);
+                buf = java.util.Arrays.copyOf(buf, (int) Math.min(grown, Integer.MAX_VALUE - 8));
+            }
+        }
+
+        void u8(int v) {
+            ensure(1);
+            buf[len++] = (byte) v;
+        }
+
+        void u16(int v) {
+            ensure(2);
+            buf[len++] = (byte) (v >> 8);
+            buf[len++] = (byte) v;
+        }
+
+        void marker(int m) {
+            u8(0xFF);
+            u8(m);
+        }
+
+        void bytes(byte[] src, int off, int n) {
+            ensure(n);
+            System.arraycopy(src, off, buf, len, n);
+            len += n;
+        }
+
+        void putBits(int value, int size) {
+            acc = (acc << size) | (value & ((1 << size) - 1));
+            nbits += size;
+            if (nbits >= 8) {
+                ensure(8);
+                while (nbits >= 8) {
+                    nbits -= 8;
+                    int b = (int) (acc >>> nbits) & 0xFF;
+                    buf[len++] = (byte) b;
+                    if (b == 0xFF) buf[len++] = 0;
+                }
+            }
+        }
+
+        /** Pad the final partial byte with 1-bits. */
+        void flushBits() {
+            if (nbits > 0) putBits(0x7F, 8 - nbits);
+            acc = 0;
+            nbits = 0;
+        }
+
+        void restart(int n) {
+            flushBits();
+            marker(0xD0 + n);
+        }
+
+        void emitValue(HuffmanTable t, int value) {
+            int size = sizeOf(value);
+            putBits(t.ehufco[size], t.ehufsi[size]);
+            if (size > 0) putBits(value < 0 ? value - 1 : value, size);
+        }
+
+        int encodeBlock(short[] coef, int base, int pred, HuffmanTable dc, HuffmanTable ac) {
+            int dcv = coef[base];
+            emitValue(dc, dcv - pred);
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int v = coef[base + JpegCoefficients.ZIGZAG[k]];
+                if (v == 0) { run++; continue; }
+                while (run > 15) {
+                    putBits(ac.ehufco[0xF0], ac.ehufsi[0xF0]);
+                    run -= 16;
+                }
+                int size = sizeOf(v);
+                int sym = (run << 4) | size;
+                putBits(ac.ehufco[sym], ac.ehufsi[sym]);
+                putBits(v < 0 ? v - 1 : v, size);
+                run = 0;
+            }
+            if (run > 0) putBits(ac.ehufco[0x00], ac.ehufsi[0x00]);
+            return dcv;
+        }
+
+        int size() {
+            return len;
+        }
+
+        /** Copy the encoded bytes into dst at off; returns the position after them. */
+        int copyTo(byte[] dst, int off) {
+            System.arraycopy(buf, 0, dst, off, len);
+            return off + len;
+        }
+
+        byte[] toByteArray() {
+            return java.util.Arrays.copyOf(buf, len);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, len);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.flashcam.air3;
+
+/**
+ * Fixed-size log-linear histogram of durations in microseconds: every power
+ * of two is split into 16 linear sub-buckets, so any recorded value is
+ * reported within ~6% and the whole range (1 us to over an hour) fits in
+ * 480 counters no matter how many samples arrive. Not thread-safe; callers
+ * synchronize.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_MSB = 32;
+    private static final int BUCKETS = (MAX_MSB - SUB_BITS + 2) * SUB;
+
+    private final int[] counts = new int[BUCKETS];
+    private long total;
+    private long maxMicros;
+    private long sumMicros;
+
+    void recordNanos(long nanos) {
+        long us = Math.max(0, nanos / 1000);
+        counts[index(us)]++;
+        total++;
+        sumMicros += us;
+        if (us > maxMicros) maxMicros = us;
+    }
+
+    long count() {
+        return total;
+    }
+
+    long sumMicros() {
+        return sumMicros;
+    }
+
+    /**
+     * Samples in buckets that lie wholly at or below us, so never one above
+     * it. The bucket straddling us is left out, which can undercount by that
+     * bucket's share (values within ~6% below us).
+     */
+    long countAtMost(long us) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS - 1 && lowerBound(i + 1) - 1 <= us; i++) n += counts[i];
+        return n;
+    }
+
+    /** Value at quantile q (0..1) in milliseconds, the midpoint of its bucket; 0 when empty. */
+    double percentileMs(double q) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long lo = lowerBound(i);
+                long width = lowerBound(i + 1) - lo;
+                return Math.min(lo + (width - 1) / 2.0, maxMicros) / 1000.0;
+            }
+        }
+        return maxMicros / 1000.0;
+    }
+
+    private static int index(long us) {
+        if (us < SUB) return (int) us;
+        int msb = 63 - Long.numberOfLeadingZeros(us);
+        if (msb > MAX_MSB) return BUCKETS - 1;
+        int mantissa = (int) (us >>> (msb - SUB_BITS)) & (SUB - 1);
+        return (msb - SUB_BITS + 1) * SUB + mantissa;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB) return index;
+        int msb = index / SUB + SUB_BITS - 1;
+        return (long) (SUB + index % SUB) << (msb - SUB_BITS);
+    }
+}
@@ -0,0 +1,73 @@
+package com.flashcam.air3;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Capture latency per stage, kept for the whole session as one
+ * {@link LatencyHistogram} per (configuration, stage). The configuration is
+ * the MP mode plus DNG setting, since a 16MP+DNG shot and an 8MP JPEG have
+ * little in common. Stages keep the order they were first seen in.
+ */
+final class LatencyStats {
+
+    private final Map<String, Map<String, LatencyHistogram>> byConfig = new LinkedHashMap<>();
+
+    synchronized void record(String config, String stage, long nanos) {
+        Map<String, LatencyHistogram> stages = byConfig.get(config);
+        if (stages == null) byConfig.put(config, stages = new LinkedHashMap<>());
+        LatencyHistogram h = stages.get(stage);
+        if (h == null) stages.put(stage, h = new LatencyHistogram());
+        h.recordNanos(nanos);
+    }
+
+    /**
+     * One line per stage seen for config: this shot's time (from shot, if it
+     * has one) followed by the session's p50 / p95 / p99 and sample count.
+     */
+    synchronized String report(String config, Map<String, Long> shot) {
+        Map<String, LatencyHistogram> stages = byConfig.get(config);
+        if (stages == null) return "";
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> e : stages.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            Long nanos = shot != null ? shot.get(e.getKey()) : null;
+            sb.append(String.format(Locale.US, "%-16s %7s  p50 %.0f / p95 %.0f / p99 %.0f ms (n=%d)\n",
+                e.getKey(), nanos != null ? String.format(Locale.US, "%.0f ms", nanos / 1e6) : "-",
+                h.percentileMs(0.50), h.percentileMs(0.95), h.percentileMs(0.99), h.count()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Every (config, stage) histogram as Prometheus histogram series of
+     * name, with cumulative buckets at le (seconds), _sum and _count. Bucket
+     * counts come from {@link LatencyHistogram#countAtMost}, so a le series
+     * never includes a sample above its bound.
+     */
+    synchronized void renderPrometheus(StringBuilder out, String name, double[] le) {
+        for (Map.Entry<String, Map<String, LatencyHistogram>> c : byConfig.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> e : c.getValue().entrySet()) {
+                LatencyHistogram h = e.getValue();
+                for (double bound : le) {
+                    series(out, name, "_bucket", c.getKey(), e.getKey());
+                    out.append(",le=\"").append(bound).append("\"} ")
+                        .append(h.countAtMost(Math.round(bound * 1e6))).append('\n');
+                }
+                series(out, name, "_bucket", c.getKey(), e.getKey());
+                out.append(",le=\"+Inf\"} ").append(h.count()).append('\n');
+                series(out, name, "_sum", c.getKey(), e.getKey());
+                out.append("} ").append(h.sumMicros() / 1e6).append('\n');
+                series(out, name, "_count", c.getKey(), e.getKey());
+                out.append("} ").append(h.count()).append('\n');
+            }
+        }
+    }
+
+    /** name + suffix + the config/stage labels, left open for more labels or the closing brace. */
+    private static void series(StringBuilder out, String name, String suffix, String config, String stage) {
+        out.append(name).append(suffix).append("{config=\"").append(config)
+            .append("\",stage=\"").append(stage).append('"');
+    }
+}
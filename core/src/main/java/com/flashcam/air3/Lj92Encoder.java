@@ -0,0 +1,112 @@
+package com.flashcam.air3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Lossless JPEG (ITU T.81 process 14, "LJ92") for one DNG tile of 16-bit
+ * Bayer samples. As in Adobe's own DNGs the tile is coded as two
+ * interleaved components of half the width, so predictor 1 (left
+ * neighbour) always predicts from the same CFA color. Each tile gets its
+ * own optimal Huffman table from a first pass over the differences.
+ *
+ * Edge tiles are padded by repeating the last CFA column/row pair; readers
+ * crop to ImageWidth/ImageLength.
+ */
+final class Lj92Encoder {
+
+    private static final int PRECISION = 16;
+
+    private Lj92Encoder() {}
+
+    /**
+     * Encode the tileW x tileH tile at (x0, y0) of a width x height image of
+     * little-endian 16-bit samples with rowStride bytes per row, starting at
+     * raw's position. Image size, tile size and tile origin must be even.
+     */
+    static byte[] encodeTile(ByteBuffer raw, int rowStride, int width, int height,
+            int x0, int y0, int tileW, int tileH) {
+        ByteBuffer src = raw.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int base = src.position();
+        char[] px = new char[tileW * tileH];
+        int cols = Math.min(tileW, width - x0);
+        int rows = Math.min(tileH, height - y0);
+        // Padding repeats the last 2x2 CFA pair, not the last sample, to keep the color phase
+        for (int y = 0; y < tileH; y++) {
+            int sy = y0 + (y < rows ? y : rows - 2 + ((y - rows) & 1));
+            int rowAt = base + sy * rowStride;
+            int o = y * tileW;
+            for (int x = 0; x < cols; x++) px[o + x] = src.getChar(rowAt + (x0 + x) * 2);
+            for (int x = cols; x < tileW; x++) px[o + x] = px[o + x - 2];
+        }
+
+        long[] freq = new long[17];
+        forEachDiff(px, tileW, tileH, (diff) -> freq[category(diff)]++);
+        HuffmanTable table = HuffmanTable.fromFrequencies(freq);
+
+        JpegWriter.EntropyEncoder enc = new JpegWriter.EntropyEncoder(tileW * tileH + 1024);
+        enc.marker(0xD8);
+        JpegWriter.writeHuffman(enc, 0x00, table);
+        enc.marker(0xC3);
+        enc.u16(8 + 3 * 2);
+        enc.u8(PRECISION);
+        enc.u16(tileH);
+        enc.u16(tileW / 2);
+        enc.u8(2);
+        for (int c = 1; c <= 2; c++) {
+            enc.u8(c);
+            enc.u8(0x11);
+            enc.u8(0);
+        }
+        enc.marker(0xDA);
+        enc.u16(6 + 2 * 2);
+        enc.u8(2);
+        for (int c = 1; c <= 2; c++) {
+            enc.u8(c);
+            enc.u8(0x00);
+        }
+        enc.u8(1);  // predictor 1: Ra
+        enc.u8(0);
+        enc.u8(0);
+        forEachDiff(px, tileW, tileH, (diff) -> {
+            int ssss = category(diff);
+            enc.putBits(table.ehufco[ssss], table.ehufsi[ssss]);
+            // Category 16 (difference 32768) carries no extra bits
+            if (ssss > 0 && ssss < 16) enc.putBits(diff < 0 ? diff - 1 : diff, ssss);
+        });
+        enc.flushBits();
+        enc.marker(0xD9);
+        return enc.toByteArray();
+    }
+
+    private interface DiffSink {
+        void accept(int diff);
+    }
+
+    /**
+     * Prediction differences in scan order, reduced modulo 2^16 to
+     * [-32767, 32768]. Component c of a row is samples c, c+2, c+4, ...; the
+     * first sample of each component predicts from the row above (or
+     * 2^(P-1) on the first row), the rest from the left.
+     */
+    private static void forEachDiff(char[] px, int tileW, int tileH, DiffSink sink) {
+        for (int y = 0; y < tileH; y++) {
+            int o = y * tileW;
+            for (int x = 0; x < tileW; x++) {
+                int pred;
+                if (x >= 2) pred = px[o + x - 2];
+                else if (y > 0) pred = px[o - tileW + x];
+                else pred = 1 << (PRECISION - 1);
+                int diff = (px[o + x] - pred) & 0xFFFF;
+                if (diff > 0x8000) diff -= 0x10000;
+                sink.accept(diff);
+            }
+        }
+    }
+
+    private static int category(int diff) {
+        if (diff == 0x8000) return 16;
+        int a = diff < 0 ? -diff : diff;
+        return a == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(a);
+    }
+}
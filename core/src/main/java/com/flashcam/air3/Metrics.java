@@ -0,0 +1,113 @@
+package com.flashcam.air3;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and gauges for {@link MetricsServer}, rendered in the Prometheus
+ * text exposition format (0.0.4). Counting is a LongAdder add, so the
+ * camera and pipeline threads never wait on a scrape; gauges and counters
+ * owned elsewhere are read through suppliers only when scraped. Families
+ * are registered once at startup, series appear on first use.
+ */
+final class Metrics {
+
+    /** Histogram bucket bounds for stage latencies, in seconds. */
+    static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final class Family {
+        final String name, help, type;
+        final LongSupplier value;
+        final Map<String, LongAdder> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final List<Family> families = new CopyOnWriteArrayList<>();
+    private final Map<String, Family> byName = new ConcurrentHashMap<>();
+    private volatile LatencyStats latency;
+    private volatile String latencyName;
+
+    /** Labelled counter, incremented with {@link #inc}. */
+    Metrics counter(String name, String help) {
+        return register(new Family(name, help, "counter", null));
+    }
+
+    /** Counter whose total is kept elsewhere (e.g. bytes written). */
+    Metrics counter(String name, String help, LongSupplier total) {
+        return register(new Family(name, help, "counter", total));
+    }
+
+    Metrics gauge(String name, String help, LongSupplier value) {
+        return register(new Family(name, help, "gauge", value));
+    }
+
+    /** Export every (config, stage) histogram of stats as one histogram family. */
+    Metrics latency(String name, LatencyStats stats) {
+        latencyName = name;
+        latency = stats;
+        return this;
+    }
+
+    private Metrics register(Family f) {
+        byName.put(f.name, f);
+        families.add(f);
+        return this;
+    }
+
+    /** labels is the inside of the braces, e.g. {@code cause="capture"}; "" for none. */
+    void inc(String name, String labels) {
+        Family f = byName.get(name);
+        if (f == null) return;
+        LongAdder a = f.series.get(labels);
+        if (a == null) a = f.series.computeIfAbsent(labels, k -> new LongAdder());
+        a.increment();
+    }
+
+    /** Append every family to out. */
+    void render(StringBuilder out) {
+        for (Family f : families) {
+            header(out, f.name, f.help, f.type);
+            if (f.value != null) {
+                out.append(f.name).append(' ').append(safe(f.value)).append('\n');
+            } else if (f.series.isEmpty()) {
+                out.append(f.name).append(" 0\n");
+            } else {
+                for (Map.Entry<String, LongAdder> e : f.series.entrySet()) {
+                    out.append(f.name);
+                    if (!e.getKey().isEmpty()) out.append('{').append(e.getKey()).append('}');
+                    out.append(' ').append(e.getValue().sum()).append('\n');
+                }
+            }
+        }
+        LatencyStats stats = latency;
+        if (stats != null) {
+            header(out, latencyName,
+                "Stage latency by configuration: MP/DNG for captures, Preview for control updates.", "histogram");
+            stats.renderPrometheus(out, latencyName, LATENCY_BUCKETS);
+        }
+    }
+
+    private static long safe(LongSupplier s) {
+        try {
+            return s.getAsLong();
+        } catch (RuntimeException e) {
+            // A source torn down mid-scrape (activity destroyed) reads as 0
+            return 0;
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
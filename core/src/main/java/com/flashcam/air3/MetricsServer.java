@@ -0,0 +1,123 @@
+package com.flashcam.air3;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP/1.1 server on 127.0.0.1 that answers {@code GET /metrics}
+ * with {@link Metrics#render}. Reach it from a workstation with
+ * {@code adb forward tcp:9464 tcp:9464}. One low-priority thread accepts and
+ * answers scrapes one at a time, reusing its buffers; nothing here runs on
+ * or waits for the camera threads.
+ */
+final class MetricsServer {
+
+    static final int DEFAULT_PORT = 9464;
+    private static final int MAX_LINE = 8192;
+    private static final int TIMEOUT_MS = 2000;
+
+    private final Metrics metrics;
+    private final int port;
+    private final StringBuilder body = new StringBuilder(16 * 1024);
+    private final byte[] line = new byte[MAX_LINE];
+    private volatile ServerSocket server;
+
+    /** port 0 picks a free one (see {@link #port()}). */
+    MetricsServer(Metrics metrics, int port) {
+        this.metrics = metrics;
+        this.port = port;
+    }
+
+    synchronized void start() throws IOException {
+        if (server != null) return;
+        ServerSocket s = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        server = s;
+        Thread t = new Thread(() -> serve(s), "Metrics");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    synchronized void stop() {
+        ServerSocket s = server;
+        server = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    boolean isRunning() {
+        return server != null;
+    }
+
+    /** Bound port, or -1 when stopped. */
+    int port() {
+        ServerSocket s = server;
+        return s != null ? s.getLocalPort() : -1;
+    }
+
+    private void serve(ServerSocket s) {
+        while (!s.isClosed()) {
+            try (Socket client = s.accept()) {
+                client.setSoTimeout(TIMEOUT_MS);
+                handle(client);
+            } catch (IOException e) {
+                // Closed by stop(), or a client that went away mid-request
+            }
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        InputStream in = new BufferedInputStream(client.getInputStream(), 1024);
+        String request = readLine(in);
+        // Headers are read up to the blank line and ignored
+        for (String h = readLine(in); h != null && !h.isEmpty(); h = readLine(in)) { }
+
+        String path = null;
+        if (request != null && request.startsWith("GET ")) {
+            int end = request.indexOf(' ', 4);
+            path = end > 0 ? request.substring(4, end) : request.substring(4);
+        }
+        int status;
+        body.setLength(0);
+        if ("/metrics".equals(path) || "/".equals(path)) {
+            status = 200;
+            metrics.render(body);
+        } else {
+            status = 404;
+            body.append("Not found; try /metrics\n");
+        }
+
+        byte[] payload = body.toString().getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + (status == 200 ? "200 OK" : "404 Not Found") + "\r\n"
+            + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+            + "Content-Length: " + payload.length + "\r\n"
+            + "Connection: close\r\n\r\n";
+        OutputStream out = client.getOutputStream();
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.flush();
+    }
+
+    /** One CRLF- or LF-terminated line, or null at end of stream. Long lines are cut at MAX_LINE. */
+    private String readLine(InputStream in) throws IOException {
+        int n = 0;
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (n < MAX_LINE) line[n++] = (byte) b;
+        }
+        if (b < 0 && n == 0) return null;
+        if (n > 0 && line[n - 1] == '\r') n--;
+        return new String(line, 0, n, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,94 @@
+package com.flashcam.air3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Unpacks the MIPI-packed RAW10 / RAW12 layouts into the 16-bit
+ * little-endian samples RAW_SENSOR uses, so the DNG writers only ever see
+ * one layout.
+ *
+ * RAW10: every 5 bytes hold 4 pixels, the high 8 bits of each in bytes 0-3
+ * and the low 2 bits of pixel i in bits [2i, 2i+1] of byte 4.
+ * RAW12: every 3 bytes hold 2 pixels, high bits in bytes 0-1 and the low
+ * nibbles in byte 2 (pixel 0 in bits 0-3).
+ * A row whose width isn't a whole number of groups still ends in a full
+ * group; the unused pixels in it are ignored.
+ */
+final class RawUnpacker {
+
+    /** Format codes, equal to android.graphics.ImageFormat's so :app can pass those straight through. */
+    static final int RAW_SENSOR = 0x20, RAW10 = 0x25, RAW12 = 0x26;
+
+    private RawUnpacker() {}
+
+    static boolean isPacked(int format) {
+        return format == RAW10 || format == RAW12;
+    }
+
+    /** Significant bits per sample for a RAW format. */
+    static int bitsPerSample(int format) {
+        switch (format) {
+            case RAW10: return 10;
+            case RAW12: return 12;
+            default: return 16;
+        }
+    }
+
+    /** Bytes of pixel data in one row of width pixels (without row padding). */
+    static int rowBytes(int format, int width) {
+        switch (format) {
+            case RAW10: return (width + 3) / 4 * 5;
+            case RAW12: return (width + 1) / 2 * 3;
+            default: return width * 2;
+        }
+    }
+
+    /**
+     * Unpack height rows of rowStride bytes (from packed's position) into a
+     * new direct buffer of width x height 16-bit little-endian samples.
+     */
+    static ByteBuffer unpack(ByteBuffer packed, int format, int width, int height, int rowStride) {
+        ByteBuffer dst = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.LITTLE_ENDIAN);
+        ShortBuffer out = dst.asShortBuffer();
+        ByteBuffer src = packed.duplicate();
+        int base = src.position();
+        byte[] in = new byte[rowBytes(format, width)];
+        short[] row = new short[width];
+        for (int y = 0; y < height; y++) {
+            src.position(base + y * rowStride);
+            src.get(in);
+            if (format == RAW10) unpackRaw10(in, row, width);
+            else if (format == RAW12) unpackRaw12(in, row, width);
+            else throw new IllegalArgumentException("Not a packed RAW format: " + format);
+            out.put(row);
+        }
+        return dst;
+    }
+
+    static void unpackRaw10(byte[] in, short[] out, int width) {
+        int x = 0, i = 0;
+        for (; x + 3 < width; x += 4, i += 5) {
+            int lo = in[i + 4] & 0xFF;
+            out[x]     = (short) (((in[i]     & 0xFF) << 2) | (lo & 3));
+            out[x + 1] = (short) (((in[i + 1] & 0xFF) << 2) | ((lo >> 2) & 3));
+            out[x + 2] = (short) (((in[i + 2] & 0xFF) << 2) | ((lo >> 4) & 3));
+            out[x + 3] = (short) (((in[i + 3] & 0xFF) << 2) | (lo >> 6));
+        }
+        // Partial last group
+        for (int k = 0; x < width; x++, k++) {
+            out[x] = (short) (((in[i + k] & 0xFF) << 2) | ((in[i + 4] >> (2 * k)) & 3));
+        }
+    }
+
+    static void unpackRaw12(byte[] in, short[] out, int width) {
+        int x = 0, i = 0;
+        for (; x + 1 < width; x += 2, i += 3) {
+            int lo = in[i + 2] & 0xFF;
+            out[x]     = (short) (((in[i]     & 0xFF) << 4) | (lo & 0xF));
+            out[x + 1] = (short) (((in[i + 1] & 0xFF) << 4) | (lo >> 4));
+        }
+        if (x < width) out[x] = (short) (((in[i] & 0xFF) << 4) | (in[i + 2] & 0xF));
+    }
+}
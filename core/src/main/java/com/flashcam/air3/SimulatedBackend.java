@@ -0,0 +1,571 @@
+package com.flashcam.air3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link CameraBackend} with no camera behind it: a 16MP sensor made of
+ * timers and synthetic frames, for running the capture path on a plain JVM
+ * (or an emulator) and measuring it. Formats and 3A states are the plain
+ * int values the platform uses, so nothing here needs the framework.
+ *
+ * One scheduler thread plays the HAL. Stills are served in order, each
+ * holding the sensor for {@link Config#stillMs}; frames follow the result
+ * after {@link Config#jpegMs} / {@link Config#rawMs}. A stream that already
+ * has maxImages frames open drops new ones, as an ImageReader stalls. Frame
+ * content is a noisy gradient, built once per (format, size) and shared
+ * read-only, so the JPEG is a real baseline file the pipeline can rotate.
+ */
+final class SimulatedBackend implements CameraBackend {
+
+    /** The simulated device. Change before {@link #open}; times are milliseconds. */
+    static final class Config {
+        int sensorWidth = 4656, sensorHeight = 3496;
+        int sensorOrientation = 270;
+        int rawFormat = FORMAT_RAW10;
+        int whiteLevel = 1023;
+        long openMs = 150;
+        long sessionMs = 120;
+        /** Extra configure time for a session that uses max-res streams. */
+        long maxResSessionMs = 250;
+        /** Preview frame interval, and the exposure of every frame. */
+        long frameMs = 33;
+        /** Request to result for a still; the sensor is busy for this long. */
+        long stillMs = 120;
+        long jpegMs = 180;
+        long rawMs = 60;
+        /** Opens that fail with ERROR_CAMERA_DEVICE before one succeeds. */
+        int openFailures;
+        /** After a failed open or a close, the camera is reported available again after this long. */
+        long availableAfterMs = 50;
+        /** Chance that a still capture fails. */
+        double captureFailureRate;
+        /** HAL without setSensorPixelModeUsed: sessions mixing pixel modes fail to configure. */
+        boolean rejectPixelModeUsed;
+        /** isSessionConfigurationSupported says no to preview + max-res stills. */
+        boolean rejectMixedSessions;
+        /** Bytes after each RAW / YUV row, as real HALs pad to their alignment. */
+        int rowPadding = 64;
+        long seed = 1;
+    }
+
+    // CaptureResult CONTROL_AF_STATE / AE_STATE / AWB_STATE values
+    private static final int AF_STATE_PASSIVE_SCAN = 1, AF_STATE_PASSIVE_FOCUSED = 2,
+        AF_STATE_ACTIVE_SCAN = 3, AF_STATE_FOCUSED_LOCKED = 4;
+    private static final int AE_STATE_SEARCHING = 1, AE_STATE_CONVERGED = 2;
+    private static final int AWB_STATE_CONVERGED = 2;
+
+    private static final Map<String, ByteBuffer[]> FIXTURES = new ConcurrentHashMap<>();
+
+    private final Config config;
+    private final ScheduledExecutorService hal = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "SimCamera");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Random random;
+    private volatile boolean open;
+    private volatile Runnable availability;
+    private SimSession current;
+    private int openFailuresLeft;
+    private long sensorFreeAt;
+    private final AtomicLong opens = new AtomicLong(), sessions = new AtomicLong(),
+        stills = new AtomicLong(), failed = new AtomicLong(), frames = new AtomicLong(),
+        dropped = new AtomicLong();
+
+    SimulatedBackend(Config config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+        this.openFailuresLeft = config.openFailures;
+    }
+
+    @Override
+    public Info select() {
+        Info info = new Info();
+        info.id = "sim0";
+        info.sensorOrientation = config.sensorOrientation;
+        info.realtimeTimestamps = false;
+        info.whiteLevel = config.whiteLevel;
+        info.activeWidth = config.sensorWidth;
+        info.activeHeight = config.sensorHeight;
+        info.evMin = -12;
+        info.evMax = 12;
+        info.evStepNum = 1;
+        info.evStepDen = 6;
+        return info;
+    }
+
+    @Override
+    public int[][] outputSizes(int format, int pixelMode) {
+        int w = config.sensorWidth, h = config.sensorHeight;
+        boolean maxRes = pixelMode == PIXEL_MODE_MAX_RES;
+        switch (format) {
+            case FORMAT_PREVIEW:
+                return maxRes ? null : new int[][]{{1440, 1080}, {1920, 1080}, {640, 480}};
+            case FORMAT_JPEG:
+            case FORMAT_YUV_420_888:
+                return maxRes ? new int[][]{{w, h}, {4000, 3000}, {3264, 2448}}
+                              : new int[][]{{w / 2 & ~1, h / 2 & ~1}, {1920, 1440}, {1440, 1080}, {640, 480}};
+            case FORMAT_RAW_SENSOR:
+                return new int[][]{maxRes ? new int[]{w, h} : new int[]{w / 2 & ~1, h / 2 & ~1}};
+            default:
+                return maxRes && format == config.rawFormat ? new int[][]{{w, h}} : null;
+        }
+    }
+
+    @Override
+    public void open(OpenListener l) {
+        hal.schedule(() -> {
+            opens.incrementAndGet();
+            if (openFailuresLeft > 0) {
+                openFailuresLeft--;
+                l.onClosed(ERROR_CAMERA_DEVICE);
+                announceAvailable();
+                return;
+            }
+            open = true;
+            l.onOpened();
+        }, config.openMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void setAvailabilityListener(Runnable l) {
+        availability = l;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        boolean wasOpen = open;
+        open = false;
+        hal.execute(() -> {
+            if (current != null) current.stop();
+            current = null;
+            if (wasOpen) announceAvailable();
+        });
+    }
+
+    private void announceAvailable() {
+        if (hal.isShutdown()) return;
+        hal.schedule(() -> {
+            Runnable l = availability;
+            if (l != null) l.run();
+        }, config.availableAfterMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop the scheduler thread; the backend can't be reopened. */
+    void shutdown() {
+        close();
+        hal.shutdown();
+    }
+
+    @Override
+    public void setPreviewSize(int width, int height) {
+        // No preview buffers are produced, only preview results
+    }
+
+    @Override
+    public Stream newStream(int width, int height, int format, int pixelMode, int maxImages) {
+        return new SimStream(width, height, format, pixelMode, maxImages, fixture(format, width, height));
+    }
+
+    @Override
+    public boolean isSupported(SessionSpec spec) {
+        return !(config.rejectMixedSessions && spec.preview && spec.mixesPixelModes());
+    }
+
+    @Override
+    public void createSession(SessionSpec spec, SessionListener l) {
+        boolean maxRes = spec.maxResParams;
+        for (Stream s : spec.streams) maxRes |= s.pixelMode() == PIXEL_MODE_MAX_RES;
+        long delay = config.sessionMs + (maxRes ? config.maxResSessionMs : 0);
+        hal.schedule(() -> {
+            if (current != null) current.stop();
+            current = null;
+            if (!open || !isSupported(spec) || config.rejectPixelModeUsed && spec.mixesPixelModes()) {
+                l.onConfigureFailed();
+                return;
+            }
+            sessions.incrementAndGet();
+            current = new SimSession();
+            l.onConfigured(current);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long templateBuilds() {
+        // Requests are read directly; there are no builders to cache
+        return 0;
+    }
+
+    String stats() {
+        return String.format(Locale.US,
+            "%d opens, %d sessions, %d stills (%d failed), %d frames (%d dropped)",
+            opens.get(), sessions.get(), stills.get(), failed.get(), frames.get(), dropped.get());
+    }
+
+    // ── Session ──
+
+    private final class SimSession implements Session {
+        private ScheduledFuture<?> repeating;
+        private boolean closed;
+        private int afFrames, aeFrames;
+        private boolean afLocked;
+
+        @Override
+        public void setRepeating(Request r, CaptureListener l) {
+            hal.execute(() -> {
+                if (closed) return;
+                if (repeating != null) repeating.cancel(false);
+                afLocked = false;
+                aeFrames = 0;
+                repeating = hal.scheduleAtFixedRate(() -> {
+                    if (!closed && l != null) l.onCompleted(previewResult(r));
+                }, config.frameMs, config.frameMs, TimeUnit.MILLISECONDS);
+            });
+        }
+
+        @Override
+        public void capture(Request r, CaptureListener l) {
+            hal.execute(() -> {
+                if (closed) return;
+                if (!r.still) {
+                    // Preview one-shot (AF trigger): answered on the next frame
+                    if (r.afTrigger) {
+                        afFrames = 0;
+                        afLocked = true;
+                    }
+                    hal.schedule(() -> {
+                        if (!closed && l != null) l.onCompleted(previewResult(r));
+                    }, config.frameMs, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                stills.incrementAndGet();
+                long now = System.nanoTime();
+                long start = Math.max(now, sensorFreeAt);
+                sensorFreeAt = start + config.stillMs * 1_000_000L;
+                long resultIn = (sensorFreeAt - now) / 1_000_000L;
+                boolean fail = random.nextDouble() < config.captureFailureRate;
+                long timestamp = start;
+                hal.schedule(() -> {
+                    if (closed) return;
+                    if (fail) {
+                        failed.incrementAndGet();
+                        if (l != null) l.onFailed();
+                        return;
+                    }
+                    if (l != null) l.onCompleted(new SimResult(timestamp, AF_STATE_PASSIVE_FOCUSED,
+                        AE_STATE_CONVERGED, iso(r.ev)));
+                    for (Stream s : r.targets) {
+                        SimStream ss = (SimStream) s;
+                        long after = ss.format == FORMAT_JPEG ? config.jpegMs : config.rawMs;
+                        hal.schedule(() -> ss.produce(timestamp), after, TimeUnit.MILLISECONDS);
+                    }
+                }, resultIn, TimeUnit.MILLISECONDS);
+            });
+        }
+
+        @Override
+        public void prepare(Stream s) {
+            // Fixtures are built when the stream is made
+        }
+
+        @Override
+        public void close() {
+            hal.execute(() -> {
+                stop();
+                if (current == this) current = null;
+            });
+        }
+
+        void stop() {
+            closed = true;
+            if (repeating != null) repeating.cancel(false);
+        }
+
+        /** 3A settles like a HAL: AE searches a few frames, AF scans then reports focus. */
+        private SimResult previewResult(Request r) {
+            afFrames++;
+            aeFrames++;
+            int af;
+            if (afLocked) {
+                af = afFrames < 8 ? AF_STATE_ACTIVE_SCAN
+                                  : AF_STATE_FOCUSED_LOCKED;
+            } else {
+                af = afFrames < 10 ? AF_STATE_PASSIVE_SCAN
+                                   : AF_STATE_PASSIVE_FOCUSED;
+            }
+            int ae = aeFrames < 6 ? AE_STATE_SEARCHING : AE_STATE_CONVERGED;
+            return new SimResult(System.nanoTime(), af, ae, iso(r.ev));
+        }
+    }
+
+    /** Auto-ISO that follows EV compensation (in 1/6 EV steps). */
+    private static int iso(int ev) {
+        return Math.max(50, Math.min(3200, (int) Math.round(100 * Math.pow(2, ev / 6.0))));
+    }
+
+    private final class SimResult implements Result {
+        private final long timestamp;
+        private final int af, ae, iso;
+
+        SimResult(long timestamp, int af, int ae, int iso) {
+            this.timestamp = timestamp;
+            this.af = af;
+            this.ae = ae;
+            this.iso = iso;
+        }
+
+        @Override public Long sensorTimestamp() { return timestamp; }
+        @Override public Integer afState() { return af; }
+        @Override public Integer aeState() { return ae; }
+        @Override public Integer awbState() { return AWB_STATE_CONVERGED; }
+        @Override public Integer iso() { return iso; }
+        @Override public Long exposureTime() { return config.frameMs * 1_000_000L; }
+        @Override public Long frameDuration() { return config.frameMs * 1_000_000L; }
+        @Override public Float focusDistance() { return 0.5f; }
+        @Override public Float aperture() { return 2.2f; }
+        @Override public Float focalLength() { return 3.5f; }
+        @Override public Object platform() { return null; }
+    }
+
+    // ── Streams and frames ──
+
+    private final class SimStream implements Stream {
+        final int width, height, format, pixelMode, maxImages;
+        private final ByteBuffer[] planes;
+        private final ArrayDeque<SimFrame> queued = new ArrayDeque<>();
+        private FrameListener listener;
+        private int held;
+        private boolean closed;
+
+        SimStream(int width, int height, int format, int pixelMode, int maxImages, ByteBuffer[] planes) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.pixelMode = pixelMode;
+            this.maxImages = maxImages;
+            this.planes = planes;
+        }
+
+        @Override public int width() { return width; }
+        @Override public int height() { return height; }
+        @Override public int format() { return format; }
+        @Override public int pixelMode() { return pixelMode; }
+        @Override public int maxImages() { return maxImages; }
+
+        @Override
+        public synchronized void setListener(FrameListener l) {
+            listener = l;
+        }
+
+        void produce(long timestamp) {
+            SimFrame f;
+            FrameListener l;
+            synchronized (this) {
+                if (closed) return;
+                if (held >= maxImages) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                held++;
+                frames.incrementAndGet();
+                f = new SimFrame(this, timestamp);
+                l = listener;
+                if (l == null) {
+                    queued.add(f);
+                    return;
+                }
+                // acquireLatestImage: older undelivered frames are closed
+                for (SimFrame old; (old = queued.poll()) != null; ) old.closeLocked();
+            }
+            l.onFrame(f);
+        }
+
+        @Override
+        public synchronized void drain() {
+            for (SimFrame f; (f = queued.poll()) != null; ) f.closeLocked();
+        }
+
+        @Override
+        public void discardFreeBuffers() {
+            // Fixtures are shared; nothing per stream to free
+        }
+
+        @Override
+        public synchronized void close() {
+            drain();
+            closed = true;
+            listener = null;
+        }
+
+        ByteBuffer plane(int i) {
+            return planes[i].duplicate();
+        }
+
+        int rowStride(int i) {
+            switch (format) {
+                case FORMAT_JPEG: return 0;
+                case FORMAT_YUV_420_888: return width + config.rowPadding;
+                default: return RawUnpacker.rowBytes(format, width) + config.rowPadding;
+            }
+        }
+
+        int pixelStride(int i) {
+            switch (format) {
+                case FORMAT_JPEG: return 0;
+                case FORMAT_YUV_420_888: return i == 0 ? 1 : 2;
+                case FORMAT_RAW_SENSOR: return 2;
+                default: return 0;
+            }
+        }
+    }
+
+    private static final class SimFrame implements Frame {
+        private final SimStream stream;
+        private final long timestamp;
+        private boolean closed;
+
+        SimFrame(SimStream stream, long timestamp) {
+            this.stream = stream;
+            this.timestamp = timestamp;
+        }
+
+        @Override public int format() { return stream.format; }
+        @Override public int width() { return stream.width; }
+        @Override public int height() { return stream.height; }
+        @Override public long timestamp() { return timestamp; }
+        @Override public ByteBuffer buffer(int plane) { return stream.plane(plane); }
+        @Override public int rowStride(int plane) { return stream.rowStride(plane); }
+        @Override public int pixelStride(int plane) { return stream.pixelStride(plane); }
+
+        @Override
+        public void close() {
+            synchronized (stream) {
+                closeLocked();
+            }
+        }
+
+        void closeLocked() {
+            if (closed) return;
+            closed = true;
+            stream.held--;
+        }
+    }
+
+    // ── Fixtures ──
+
+    /** Read-only plane buffers for a (format, size), built on first use. */
+    private ByteBuffer[] fixture(int format, int width, int height) {
+        String key = format + ":" + width + "x" + height + "+" + config.rowPadding;
+        ByteBuffer[] planes = FIXTURES.get(key);
+        if (planes == null) {
+            planes = buildFixture(format, width, height, config.rowPadding);
+            FIXTURES.put(key, planes);
+        }
+        return planes;
+    }
+
+    private static ByteBuffer[] buildFixture(int format, int w, int h, int pad) {
+        Random noise = new Random(w * 31L + h);
+        if (format == FORMAT_JPEG || format == FORMAT_YUV_420_888) {
+            int cw = (w + 1) / 2, ch = (h + 1) / 2;
+            byte[] y = new byte[w * h], cb = new byte[cw * ch], cr = new byte[cw * ch];
+            for (int r = 0; r < h; r++) {
+                for (int c = 0; c < w; c++) {
+                    y[r * w + c] = (byte) Math.max(0, Math.min(255, 16 + (c * 200 / w + r * 20 / h) + noise.nextInt(17) - 8));
+                }
+            }
+            for (int r = 0; r < ch; r++) {
+                for (int c = 0; c < cw; c++) {
+                    cb[r * cw + c] = (byte) (128 + (c * 64 / cw) - 32);
+                    cr[r * cw + c] = (byte) (128 + (r * 64 / ch) - 32);
+                }
+            }
+            if (format == FORMAT_JPEG) {
+                try {
+                    byte[] jpeg = new YuvJpegEncoder(y, cb, cr, w, h, 90, YuvJpegEncoder.Subsampling.YUV420)
+                        .encode(ForkJoinPool.commonPool());
+                    return new ByteBuffer[]{readOnly(jpeg, jpeg.length)};
+                } catch (Exception e) {
+                    throw new IllegalStateException("JPEG fixture: " + e.getMessage(), e);
+                }
+            }
+            // Y plane, then chroma interleaved V/U (NV21-style) with pixel stride 2
+            int stride = w + pad;
+            ByteBuffer yb = ByteBuffer.allocateDirect(stride * h);
+            for (int r = 0; r < h; r++) {
+                yb.position(r * stride);
+                yb.put(y, r * w, w);
+            }
+            ByteBuffer vu = ByteBuffer.allocateDirect(stride * ch);
+            for (int r = 0; r < ch; r++) {
+                for (int c = 0; c < cw; c++) {
+                    vu.put(r * stride + 2 * c, cr[r * cw + c]);
+                    if (2 * c + 1 < stride) vu.put(r * stride + 2 * c + 1, cb[r * cw + c]);
+                }
+            }
+            yb.clear();
+            ByteBuffer v = vu.duplicate();
+            v.position(0).limit(stride * (ch - 1) + 2 * (cw - 1) + 1);
+            ByteBuffer u = vu.duplicate();
+            u.position(1).limit(stride * (ch - 1) + 2 * (cw - 1) + 2);
+            return new ByteBuffer[]{yb.asReadOnlyBuffer(), u.slice().asReadOnlyBuffer(), v.slice().asReadOnlyBuffer()};
+        }
+
+        // RAW: RGGB Bayer over a gradient, 10-bit values, packed as the format says
+        int rowBytes = RawUnpacker.rowBytes(format, w);
+        int stride = rowBytes + pad;
+        ByteBuffer raw = ByteBuffer.allocateDirect(stride * h).order(ByteOrder.LITTLE_ENDIAN);
+        int[] row = new int[w];
+        for (int r = 0; r < h; r++) {
+            for (int c = 0; c < w; c++) {
+                int base = 64 + (c * 700 / w) + (r * 100 / h);
+                int channel = (r & 1) * 2 + (c & 1);
+                row[c] = Math.min(1023, base * (channel == 0 ? 9 : channel == 3 ? 6 : 10) / 10 + noise.nextInt(9) - 4);
+            }
+            int at = r * stride;
+            if (format == FORMAT_RAW10) {
+                for (int c = 0; c + 3 < w; c += 4, at += 5) {
+                    raw.put(at, (byte) (row[c] >> 2));
+                    raw.put(at + 1, (byte) (row[c + 1] >> 2));
+                    raw.put(at + 2, (byte) (row[c + 2] >> 2));
+                    raw.put(at + 3, (byte) (row[c + 3] >> 2));
+                    raw.put(at + 4, (byte) ((row[c] & 3) | (row[c + 1] & 3) << 2
+                        | (row[c + 2] & 3) << 4 | (row[c + 3] & 3) << 6));
+                }
+            } else if (format == FORMAT_RAW12) {
+                for (int c = 0; c + 1 < w; c += 2, at += 3) {
+                    int a = row[c] << 2, b = row[c + 1] << 2;
+                    raw.put(at, (byte) (a >> 4));
+                    raw.put(at + 1, (byte) (b >> 4));
+                    raw.put(at + 2, (byte) ((a & 15) | (b & 15) << 4));
+                }
+            } else {
+                for (int c = 0; c < w; c++) raw.putShort(at + 2 * c, (short) row[c]);
+            }
+        }
+        return new ByteBuffer[]{raw.asReadOnlyBuffer()};
+    }
+
+    private static ByteBuffer readOnly(byte[] data, int length) {
+        ByteBuffer b = ByteBuffer.allocateDirect(length);
+        b.put(data, 0, length).flip();
+        return b.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,57 @@
+package com.flashcam.air3;
+
+/**
+ * Output size choice over {width, height} pairs as the camera backend
+ * reports them. Every method returns an index into sizes, which must not be
+ * empty; ties go to the earlier entry.
+ */
+final class SizeSelector {
+
+    /** Largest preview the 4:3 search will take: 1920×1440. */
+    static final long PREVIEW_MAX_PX = 1920L * 1440;
+
+    private SizeSelector() {}
+
+    static int largest(int[][] sizes) {
+        int best = 0;
+        long bestPx = pixels(sizes[0]);
+        for (int i = 0; i < sizes.length; i++) {
+            long px = pixels(sizes[i]);
+            if (px > bestPx) { best = i; bestPx = px; }
+        }
+        return best;
+    }
+
+    /** The size whose pixel count is nearest targetPx. */
+    static int closestTo(int[][] sizes, long targetPx) {
+        int best = 0;
+        long bestDiff = Math.abs(pixels(sizes[0]) - targetPx);
+        for (int i = 0; i < sizes.length; i++) {
+            long diff = Math.abs(pixels(sizes[i]) - targetPx);
+            if (diff < bestDiff) { best = i; bestDiff = diff; }
+        }
+        return best;
+    }
+
+    /**
+     * Largest 4:3 size up to {@link #PREVIEW_MAX_PX}; failing that the
+     * largest of any aspect under the cap, and failing that the first.
+     */
+    static int preview43(int[][] sizes) {
+        int best43 = -1, bestAny = -1;
+        long best43Px = 0, bestAnyPx = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            int w = sizes[i][0], h = sizes[i][1];
+            long px = (long) w * h;
+            float ratio = (float) w / h;
+            boolean is43 = Math.abs(ratio - 4f / 3f) < 0.02f;
+            if (is43 && px <= PREVIEW_MAX_PX && px > best43Px) { best43 = i; best43Px = px; }
+            if (px <= PREVIEW_MAX_PX && px > bestAnyPx) { bestAny = i; bestAnyPx = px; }
+        }
+        return best43 >= 0 ? best43 : (bestAny >= 0 ? bestAny : 0);
+    }
+
+    private static long pixels(int[] wh) {
+        return (long) wh[0] * wh[1];
+    }
+}
@@ -0,0 +1,113 @@
+package com.flashcam.air3;
+
+/**
+ * Row-streaming JPEG encoder for ARGB pixels: the image is fed top to bottom
+ * in strips of {@link #STRIP_ROWS} rows and only one strip of YCbCr samples
+ * is ever held. Each strip is coded as one restart-aligned stripe of
+ * {@link YuvJpegEncoder}, so the output is a normal baseline JPEG with a
+ * one-MCU-row restart interval.
+ */
+final class StreamingJpegEncoder {
+
+    /** Rows per strip; a multiple of 8 MCU rows of 16 px keeps RSTn numbering aligned. */
+    static final int STRIP_ROWS = 256;
+
+    private final int width, height, quality;
+    private final JpegWriter.EntropyEncoder out;
+    private int rowsWritten;
+    private byte[] y, cb, cr;
+
+    StreamingJpegEncoder(int width, int height, int quality) {
+        this.width = width;
+        this.height = height;
+        this.quality = quality;
+        out = new JpegWriter.EntropyEncoder((int) Math.min((long) width * height * 5 / 8 + 4096,
+            Integer.MAX_VALUE - 64));
+        new YuvJpegEncoder(null, null, null, width, height, quality, YuvJpegEncoder.Subsampling.YUV420)
+            .writeHeaders(out);
+    }
+
+    /**
+     * Append the next strip. rows must be STRIP_ROWS except for the final
+     * strip. argb is row-major with the given stride (in pixels).
+     */
+    void writeStrip(int[] argb, int stride, int rows) {
+        if (rows <= 0 || rowsWritten + rows > height) throw new IllegalArgumentException("Bad strip height " + rows);
+        if (rows != STRIP_ROWS && rowsWritten + rows != height) {
+            throw new IllegalArgumentException("Only the last strip may be short");
+        }
+        int cw = (width + 1) / 2;
+        int ch = (rows + 1) / 2;
+        if (y == null) {
+            y = new byte[width * STRIP_ROWS];
+            cb = new byte[cw * (STRIP_ROWS / 2)];
+            cr = new byte[cw * (STRIP_ROWS / 2)];
+        }
+        toYcbcr(argb, stride, rows, cw, ch);
+
+        if (rowsWritten > 0) out.marker(0xD7);
+        YuvJpegEncoder strip = new YuvJpegEncoder(y, cb, cr, width, rows, quality,
+            YuvJpegEncoder.Subsampling.YUV420);
+        strip.encodeStripe(0, strip.mcuRows(), out);
+        rowsWritten += rows;
+    }
+
+    byte[] finish() {
+        if (rowsWritten != height) throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows written");
+        out.marker(0xD9);
+        return out.toByteArray();
+    }
+
+    /** JFIF full-range RGB → YCbCr, chroma averaged over 2×2. */
+    private void toYcbcr(int[] argb, int stride, int rows, int cw, int ch) {
+        for (int r = 0; r < rows; r++) {
+            int src = r * stride;
+            int dst = r * width;
+            for (int c = 0; c < width; c++) {
+                int p = argb[src + c];
+                int red = (p >> 16) & 0xFF, g = (p >> 8) & 0xFF, b = p & 0xFF;
+                y[dst + c] = (byte) ((19595 * red + 38470 * g + 7471 * b + 32768) >> 16);
+            }
+        }
+        for (int r = 0; r < ch; r++) {
+            int r0 = 2 * r, r1 = Math.min(2 * r + 1, rows - 1);
+            for (int c = 0; c < cw; c++) {
+                int c0 = 2 * c, c1 = Math.min(2 * c + 1, width - 1);
+                int p0 = argb[r0 * stride + c0], p1 = argb[r0 * stride + c1];
+                int p2 = argb[r1 * stride + c0], p3 = argb[r1 * stride + c1];
+                int sr = ((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF);
+                int sg = ((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF);
+                int sb = (p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF);
+                // Sums are 4× the average, so the fixed-point shift grows by 2
+                cb[r * cw + c] = (byte) clamp((-11059 * sr - 21709 * sg + 32768 * sb + (128 << 18) + (1 << 17)) >> 18);
+                cr[r * cw + c] = (byte) clamp((32768 * sr - 27439 * sg - 5329 * sb + (128 << 18) + (1 << 17)) >> 18);
+            }
+        }
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    /** Rotate an ARGB buffer clockwise; dst is (h × w) for 90/270. */
+    static void rotateArgb(int[] src, int w, int h, int degrees, int[] dst) {
+        switch (degrees) {
+            case 90:
+                for (int dy = 0; dy < w; dy++) {
+                    for (int dx = 0; dx < h; dx++) dst[dy * h + dx] = src[(h - 1 - dx) * w + dy];
+                }
+                break;
+            case 270:
+                for (int dy = 0; dy < w; dy++) {
+                    for (int dx = 0; dx < h; dx++) dst[dy * h + dx] = src[dx * w + (w - 1 - dy)];
+                }
+                break;
+            case 180:
+                for (int i = 0, n = w * h; i < n; i++) dst[i] = src[n - 1 - i];
+                break;
+            default:
+                System.arraycopy(src, 0, dst, 0, w * h);
+                break;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.flashcam.air3;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+
+/**
+ * One TIFF IFD: entries kept sorted by tag, serialized in the byte order of
+ * the target buffer. Values that don't fit the 4-byte entry slot go to a
+ * data area right after the IFD, so a directory is one contiguous block of
+ * {@link #size()} bytes. Offsets are relative to the TIFF header, which is
+ * what both EXIF (APP1) and DNG need.
+ */
+final class TiffDirectory {
+
+    static final int BYTE = 1, ASCII = 2, SHORT = 3, LONG = 4, RATIONAL = 5,
+        UNDEFINED = 7, SLONG = 9, SRATIONAL = 10, FLOAT = 11, DOUBLE = 12;
+
+    private static final int[] TYPE_SIZE = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private static final class Entry {
+        final int type, count;
+        final Object value;
+
+        Entry(int type, int count, Object value) {
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+
+        int byteCount() {
+            return count * TYPE_SIZE[type];
+        }
+    }
+
+    private final TreeMap<Integer, Entry> entries = new TreeMap<>();
+
+    TiffDirectory ascii(int tag, String s) {
+        byte[] b = (s + "\0").getBytes(StandardCharsets.US_ASCII);
+        entries.put(tag, new Entry(ASCII, b.length, b));
+        return this;
+    }
+
+    TiffDirectory bytes(int tag, byte... v) {
+        entries.put(tag, new Entry(BYTE, v.length, v));
+        return this;
+    }
+
+    TiffDirectory undefined(int tag, byte... v) {
+        entries.put(tag, new Entry(UNDEFINED, v.length, v));
+        return this;
+    }
+
+    TiffDirectory shorts(int tag, int... v) {
+        entries.put(tag, new Entry(SHORT, v.length, v));
+        return this;
+    }
+
+    /** LONG values; offsets and byte counts are stored as unsigned 32-bit. */
+    TiffDirectory longs(int tag, long... v) {
+        entries.put(tag, new Entry(LONG, v.length, v));
+        return this;
+    }
+
+    /** Rationals as numerator, denominator pairs. */
+    TiffDirectory rationals(int tag, long... numDen) {
+        entries.put(tag, new Entry(RATIONAL, numDen.length / 2, numDen));
+        return this;
+    }
+
+    TiffDirectory srationals(int tag, int... numDen) {
+        entries.put(tag, new Entry(SRATIONAL, numDen.length / 2, numDen));
+        return this;
+    }
+
+    TiffDirectory floats(int tag, float... v) {
+        entries.put(tag, new Entry(FLOAT, v.length, v));
+        return this;
+    }
+
+    TiffDirectory doubles(int tag, double... v) {
+        entries.put(tag, new Entry(DOUBLE, v.length, v));
+        return this;
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /** Bytes taken by the IFD plus its out-of-line values. */
+    int size() {
+        int n = 2 + entries.size() * 12 + 4;
+        for (Entry e : entries.values()) {
+            int bc = e.byteCount();
+            if (bc > 4) n += (bc + 1) & ~1;
+        }
+        return n;
+    }
+
+    /**
+     * Write at out.position(). tiffStart is the buffer position of the TIFF
+     * header; nextIfd is the offset of the following IFD, or 0.
+     */
+    void write(ByteBuffer out, int tiffStart, long nextIfd) {
+        int ifdPos = out.position();
+        int dataPos = ifdPos + 2 + entries.size() * 12 + 4;
+        out.putShort((short) entries.size());
+        for (java.util.Map.Entry<Integer, Entry> me : entries.entrySet()) {
+            Entry e = me.getValue();
+            out.putShort((short) (int) me.getKey());
+            out.putShort((short) e.type);
+            out.putInt(e.count);
+            int bc = e.byteCount();
+            if (bc <= 4) {
+                int slot = out.position();
+                putValue(out, e);
+                while (out.position() < slot + 4) out.put((byte) 0);
+            } else {
+                out.putInt(dataPos - tiffStart);
+                int back = out.position();
+                out.position(dataPos);
+                putValue(out, e);
+                if ((bc & 1) != 0) out.put((byte) 0);
+                dataPos = out.position();
+                out.position(back);
+            }
+        }
+        out.putInt((int) nextIfd);
+        out.position(dataPos);
+    }
+
+    /** Serialize the entries (not a TIFF layout) so a directory can be rebuilt by {@link #load}. */
+    void save(DataOutput out) throws IOException {
+        out.writeInt(entries.size());
+        for (java.util.Map.Entry<Integer, Entry> me : entries.entrySet()) {
+            Entry e = me.getValue();
+            out.writeShort(me.getKey());
+            out.writeByte(e.type);
+            out.writeInt(e.count);
+            switch (e.type) {
+                case BYTE: case ASCII: case UNDEFINED:
+                    out.write((byte[]) e.value);
+                    break;
+                case SHORT: case SLONG: case SRATIONAL:
+                    int[] iv = (int[]) e.value;
+                    out.writeInt(iv.length);
+                    for (int v : iv) out.writeInt(v);
+                    break;
+                case LONG: case RATIONAL:
+                    long[] lv = (long[]) e.value;
+                    out.writeInt(lv.length);
+                    for (long v : lv) out.writeLong(v);
+                    break;
+                case FLOAT:
+                    float[] fv = (float[]) e.value;
+                    out.writeInt(fv.length);
+                    for (float v : fv) out.writeFloat(v);
+                    break;
+                case DOUBLE:
+                    double[] dv = (double[]) e.value;
+                    out.writeInt(dv.length);
+                    for (double v : dv) out.writeDouble(v);
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported TIFF type " + e.type);
+            }
+        }
+    }
+
+    static TiffDirectory load(DataInput in) throws IOException {
+        TiffDirectory d = new TiffDirectory();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            int tag = in.readUnsignedShort();
+            int type = in.readUnsignedByte();
+            int count = in.readInt();
+            Object value;
+            switch (type) {
+                case BYTE: case ASCII: case UNDEFINED: {
+                    byte[] v = new byte[count];
+                    in.readFully(v);
+                    value = v;
+                    break;
+                }
+                case SHORT: case SLONG: case SRATIONAL: {
+                    int[] v = new int[in.readInt()];
+                    for (int k = 0; k < v.length; k++) v[k] = in.readInt();
+                    value = v;
+                    break;
+                }
+                case LONG: case RATIONAL: {
+                    long[] v = new long[in.readInt()];
+                    for (int k = 0; k < v.length; k++) v[k] = in.readLong();
+                    value = v;
+                    break;
+                }
+                case FLOAT: {
+                    float[] v = new float[in.readInt()];
+                    for (int k = 0; k < v.length; k++) v[k] = in.readFloat();
+                    value = v;
+                    break;
+                }
+                case DOUBLE: {
+                    double[] v = new double[in.readInt()];
+                    for (int k = 0; k < v.length; k++) v[k] = in.readDouble();
+                    value = v;
+                    break;
+                }
+                default:
+                    throw new IOException("Unsupported TIFF type " + type);
+            }
+            d.entries.put(tag, new Entry(type, count, value));
+        }
+        return d;
+    }
+
+    private static void putValue(ByteBuffer out, Entry e) {
+        switch (e.type) {
+            case BYTE: case ASCII: case UNDEFINED:
+                out.put((byte[]) e.value);
+                break;
+            case SHORT:
+                for (int v : (int[]) e.value) out.putShort((short) v);
+                break;
+            case LONG: case RATIONAL:
+                for (long v : (long[]) e.value) out.putInt((int) v);
+                break;
+            case SLONG: case SRATIONAL:
+                for (int v : (int[]) e.value) out.putInt(v);
+                break;
+            case FLOAT:
+                for (float v : (float[]) e.value) out.putFloat(v);
+                break;
+            case DOUBLE:
+                for (double v : (double[]) e.value) out.putDouble(v);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported TIFF type " + e.type);
+        }
+    }
+}
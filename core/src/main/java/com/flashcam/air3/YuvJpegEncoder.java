@@ -0,0 +1,283 @@
+package com.flashcam.air3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Baseline JPEG encoder for packed YCbCr planes (full-range BT.601, which is
+ * what the camera delivers in YUV_420_888).
+ *
+ * The image is cut into horizontal stripes of {@link #STRIPE_MCU_ROWS} MCU
+ * rows. Each stripe is DCT'd, quantized and entropy-coded independently on
+ * the executor, and the stripes are joined with RSTn markers. The restart
+ * interval is one MCU row, so a stripe always starts on a restart boundary
+ * and, because stripes are a multiple of 8 rows, its internal RSTn numbering
+ * lines up with the global sequence.
+ */
+final class YuvJpegEncoder {
+
+    /** Chroma layout of the output JPEG. */
+    enum Subsampling { YUV420, YUV444 }
+
+    static final int STRIPE_MCU_ROWS = 8;
+
+    private static final int[] STD_LUMA_QUANT = {
+        16, 11, 10, 16, 24, 40, 51, 61,
+        12, 12, 14, 19, 26, 58, 60, 55,
+        14, 13, 16, 24, 40, 57, 69, 56,
+        14, 17, 22, 29, 51, 87, 80, 62,
+        18, 22, 37, 56, 68, 109, 103, 77,
+        24, 35, 55, 64, 81, 104, 113, 92,
+        49, 64, 78, 87, 103, 121, 120, 101,
+        72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] STD_CHROMA_QUANT = {
+        17, 18, 24, 47, 99, 99, 99, 99,
+        18, 21, 26, 66, 99, 99, 99, 99,
+        24, 26, 56, 99, 99, 99, 99, 99,
+        47, 66, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    private static final float[] AAN_SCALE = {
+        1.0f, 1.387039845f, 1.306562965f, 1.175875602f,
+        1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+    };
+
+    private static final HuffmanTable[] DC_TABLES = { HuffmanTable.STD_DC_LUMA, HuffmanTable.STD_DC_CHROMA };
+    private static final HuffmanTable[] AC_TABLES = { HuffmanTable.STD_AC_LUMA, HuffmanTable.STD_AC_CHROMA };
+
+    private final int width, height;
+    private final byte[] y, cb, cr;
+    private final int chromaW, chromaH;
+    private final Subsampling subsampling;
+    private final JpegCoefficients header;
+    private final float[][] divisors = new float[2][];
+
+    /**
+     * Planes are packed (stride == width). Chroma planes are always the
+     * half-resolution planes of YUV_420_888: ceil(width/2) × ceil(height/2).
+     */
+    YuvJpegEncoder(byte[] y, byte[] cb, byte[] cr, int width, int height,
+            int quality, Subsampling subsampling) {
+        this.y = y;
+        this.cb = cb;
+        this.cr = cr;
+        this.width = width;
+        this.height = height;
+        this.chromaW = (width + 1) / 2;
+        this.chromaH = (height + 1) / 2;
+        this.subsampling = subsampling;
+
+        header = new JpegCoefficients();
+        header.width = width;
+        header.height = height;
+        int lumaFactor = subsampling == Subsampling.YUV420 ? 2 : 1;
+        header.maxH = lumaFactor;
+        header.maxV = lumaFactor;
+        header.components = new JpegCoefficients.Component[3];
+        for (int i = 0; i < 3; i++) {
+            JpegCoefficients.Component c = new JpegCoefficients.Component();
+            c.id = i + 1;
+            c.h = i == 0 ? lumaFactor : 1;
+            c.v = i == 0 ? lumaFactor : 1;
+            c.tq = i == 0 ? 0 : 1;
+            header.components[i] = c;
+        }
+        header.mcusX = JpegCoefficients.ceilDiv(width, header.mcuWidth());
+        header.mcusY = JpegCoefficients.ceilDiv(height, header.mcuHeight());
+        header.quant[0] = scaledQuant(STD_LUMA_QUANT, quality);
+        header.quant[1] = scaledQuant(STD_CHROMA_QUANT, quality);
+        for (int t = 0; t < 2; t++) {
+            float[] d = new float[64];
+            for (int r = 0; r < 8; r++) {
+                for (int c = 0; c < 8; c++) {
+                    d[r * 8 + c] = 1.0f / (header.quant[t][r * 8 + c] * AAN_SCALE[r] * AAN_SCALE[c] * 8.0f);
+                }
+            }
+            divisors[t] = d;
+        }
+    }
+
+    /** libjpeg quality scaling of a base table (quality 1..100). */
+    static int[] scaledQuant(int[] base, int quality) {
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        int[] q = new int[64];
+        for (int i = 0; i < 64; i++) {
+            q[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+        }
+        return q;
+    }
+
+    /** Encode all stripes on the executor and assemble the final JPEG. */
+    byte[] encode(ExecutorService executor) throws Exception {
+        int mcuRows = header.mcusY;
+        List<Future<JpegWriter.EntropyEncoder>> parts = new ArrayList<>();
+        for (int r0 = 0; r0 < mcuRows; r0 += STRIPE_MCU_ROWS) {
+            final int from = r0;
+            final int to = Math.min(mcuRows, r0 + STRIPE_MCU_ROWS);
+            parts.add(executor.submit(() -> encodeStripe(from, to, null)));
+        }
+
+        JpegWriter.EntropyEncoder head = new JpegWriter.EntropyEncoder(1024);
+        writeHeaders(head);
+
+        List<JpegWriter.EntropyEncoder> stripes = new ArrayList<>();
+        int total = head.size() + 2;
+        for (Future<JpegWriter.EntropyEncoder> f : parts) {
+            JpegWriter.EntropyEncoder e = f.get();
+            stripes.add(e);
+            total += e.size() + 2;
+        }
+
+        byte[] out = new byte[total];
+        int pos = head.copyTo(out, 0);
+        for (int i = 0; i < stripes.size(); i++) {
+            if (i > 0) {
+                // Stripes start on multiples of 8 MCU rows, so the marker before one is always RST7
+                out[pos++] = (byte) 0xFF;
+                out[pos++] = (byte) 0xD7;
+            }
+            pos = stripes.get(i).copyTo(out, pos);
+        }
+        out[pos++] = (byte) 0xFF;
+        out[pos++] = (byte) 0xD9;
+        return pos == out.length ? out : java.util.Arrays.copyOf(out, pos);
+    }
+
+    /** SOI through SOS for the full image, with a one-MCU-row restart interval. */
+    void writeHeaders(JpegWriter.EntropyEncoder enc) {
+        JpegWriter.writeHeaders(enc, header, header.mcusX, DC_TABLES, AC_TABLES);
+    }
+
+    int mcuRows() {
+        return header.mcusY;
+    }
+
+    /**
+     * Encode MCU rows [fromRow, toRow) into enc (a new encoder when null).
+     * fromRow must be a multiple of {@link #STRIPE_MCU_ROWS} for the RSTn
+     * numbering to line up.
+     */
+    JpegWriter.EntropyEncoder encodeStripe(int fromRow, int toRow, JpegWriter.EntropyEncoder enc) {
+        JpegCoefficients s = new JpegCoefficients();
+        s.width = width;
+        s.height = Math.min(height, toRow * header.mcuHeight()) - fromRow * header.mcuHeight();
+        s.maxH = header.maxH;
+        s.maxV = header.maxV;
+        s.components = new JpegCoefficients.Component[3];
+        for (int i = 0; i < 3; i++) {
+            JpegCoefficients.Component c = new JpegCoefficients.Component();
+            JpegCoefficients.Component hc = header.components[i];
+            c.id = hc.id;
+            c.h = hc.h;
+            c.v = hc.v;
+            c.tq = hc.tq;
+            s.components[i] = c;
+        }
+        s.allocate();
+
+        float[] block = new float[64];
+        for (int i = 0; i < 3; i++) {
+            JpegCoefficients.Component c = s.components[i];
+            byte[] plane = i == 0 ? y : (i == 1 ? cb : cr);
+            int pw = i == 0 ? width : chromaW;
+            int ph = i == 0 ? height : chromaH;
+            // YUV444 output samples the half-res chroma planes at full resolution
+            int shift = (i > 0 && subsampling == Subsampling.YUV444) ? 1 : 0;
+            int y0 = fromRow * c.v * 8;
+            float[] div = divisors[c.tq];
+            for (int by = 0; by < c.blocksH; by++) {
+                for (int bx = 0; bx < c.blocksW; bx++) {
+                    loadBlock(plane, pw, ph, bx * 8, y0 + by * 8, shift, block);
+                    forwardDct(block);
+                    int base = (by * c.blocksW + bx) * 64;
+                    for (int k = 0; k < 64; k++) {
+                        c.coef[base + k] = (short) Math.round(block[k] * div[k]);
+                    }
+                }
+            }
+        }
+
+        if (enc == null) enc = new JpegWriter.EntropyEncoder(JpegWriter.estimateSize(s));
+        JpegWriter.encodeScan(enc, s, header.mcusX, 0, s.mcusY, DC_TABLES, AC_TABLES);
+        return enc;
+    }
+
+    /** Load a level-shifted 8×8 block, replicating edge samples past the plane. */
+    private static void loadBlock(byte[] plane, int pw, int ph, int x0, int y0, int shift, float[] out) {
+        for (int r = 0; r < 8; r++) {
+            int sy = Math.min((y0 + r) >> shift, ph - 1);
+            int rowBase = sy * pw;
+            for (int c = 0; c < 8; c++) {
+                int sx = Math.min((x0 + c) >> shift, pw - 1);
+                out[r * 8 + c] = (plane[rowBase + sx] & 0xFF) - 128;
+            }
+        }
+    }
+
+    /** AAN float forward DCT (libjpeg jfdctflt); output is scaled, see divisors. */
+    private static void forwardDct(float[] d) {
+        for (int p = 0; p < 64; p += 8) {
+            float tmp0 = d[p] + d[p + 7], tmp7 = d[p] - d[p + 7];
+            float tmp1 = d[p + 1] + d[p + 6], tmp6 = d[p + 1] - d[p + 6];
+            float tmp2 = d[p + 2] + d[p + 5], tmp5 = d[p + 2] - d[p + 5];
+            float tmp3 = d[p + 3] + d[p + 4], tmp4 = d[p + 3] - d[p + 4];
+
+            float tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+            float tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+            d[p] = tmp10 + tmp11;
+            d[p + 4] = tmp10 - tmp11;
+            float z1 = (tmp12 + tmp13) * 0.707106781f;
+            d[p + 2] = tmp13 + z1;
+            d[p + 6] = tmp13 - z1;
+
+            tmp10 = tmp4 + tmp5;
+            tmp11 = tmp5 + tmp6;
+            tmp12 = tmp6 + tmp7;
+            float z5 = (tmp10 - tmp12) * 0.382683433f;
+            float z2 = 0.541196100f * tmp10 + z5;
+            float z4 = 1.306562965f * tmp12 + z5;
+            float z3 = tmp11 * 0.707106781f;
+            float z11 = tmp7 + z3, z13 = tmp7 - z3;
+            d[p + 5] = z13 + z2;
+            d[p + 3] = z13 - z2;
+            d[p + 1] = z11 + z4;
+            d[p + 7] = z11 - z4;
+        }
+        for (int p = 0; p < 8; p++) {
+            float tmp0 = d[p] + d[p + 56], tmp7 = d[p] - d[p + 56];
+            float tmp1 = d[p + 8] + d[p + 48], tmp6 = d[p + 8] - d[p + 48];
+            float tmp2 = d[p + 16] + d[p + 40], tmp5 = d[p + 16] - d[p + 40];
+            float tmp3 = d[p + 24] + d[p + 32], tmp4 = d[p + 24] - d[p + 32];
+
+            float tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+            float tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+            d[p] = tmp10 + tmp11;
+            d[p + 32] = tmp10 - tmp11;
+            float z1 = (tmp12 + tmp13) * 0.707106781f;
+            d[p + 16] = tmp13 + z1;
+            d[p + 48] = tmp13 - z1;
+
+            tmp10 = tmp4 + tmp5;
+            tmp11 = tmp5 + tmp6;
+            tmp12 = tmp6 + tmp7;
+            float z5 = (tmp10 - tmp12) * 0.382683433f;
+            float z2 = 0.541196100f * tmp10 + z5;
+            float z4 = 1.306562965f * tmp12 + z5;
+            float z3 = tmp11 * 0.707106781f;
+            float z11 = tmp7 + z3, z13 = tmp7 - z3;
+            d[p + 40] = z13 + z2;
+            d[p + 24] = z13 - z2;
+            d[p + 8] = z11 + z4;
+            d[p + 56] = z11 - z4;
+        }
+    }
+}
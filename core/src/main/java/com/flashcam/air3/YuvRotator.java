@@ -0,0 +1,78 @@
+package com.flashcam.air3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Clockwise rotation of one YUV_420_888 plane into a tightly packed array.
+ *
+ * Works on square tiles so both the source rows and the destination rows of
+ * a tile stay in cache; a naive per-pixel transpose of a 16MP plane misses
+ * on nearly every destination write. Interleaved chroma (pixelStride 2) is
+ * de-interleaved while the tile is loaded.
+ */
+final class YuvRotator {
+
+    private static final int TILE = 64;
+
+    private YuvRotator() {}
+
+    /**
+     * Rotate a plane of width×height samples. dst must hold width*height
+     * bytes and receives rows of the rotated width (height for 90/270).
+     */
+    static void rotatePlane(ByteBuffer src, int width, int height, int rowStride, int pixelStride,
+            int degrees, byte[] dst) {
+        ByteBuffer in = src.duplicate();
+        int base = in.position();
+        byte[] row = new byte[TILE * pixelStride];
+        byte[] tile = new byte[TILE * TILE];
+
+        for (int ty = 0; ty < height; ty += TILE) {
+            int th = Math.min(TILE, height - ty);
+            for (int tx = 0; tx < width; tx += TILE) {
+                int tw = Math.min(TILE, width - tx);
+
+                // Load the tile, dropping the chroma interleave
+                int rowBytes = (tw - 1) * pixelStride + 1;
+                for (int r = 0; r < th; r++) {
+                    in.position(base + (ty + r) * rowStride + tx * pixelStride);
+                    in.get(row, 0, rowBytes);
+                    if (pixelStride == 1) {
+                        System.arraycopy(row, 0, tile, r * TILE, tw);
+                    } else {
+                        for (int c = 0; c < tw; c++) tile[r * TILE + c] = row[c * pixelStride];
+                    }
+                }
+
+                switch (degrees) {
+                    case 90:
+                        // src (x,y) -> dst (height-1-y, x), dst stride = height
+                        for (int c = 0; c < tw; c++) {
+                            int d = (tx + c) * height + (height - 1 - ty);
+                            for (int r = 0; r < th; r++) dst[d - r] = tile[r * TILE + c];
+                        }
+                        break;
+                    case 270:
+                        // src (x,y) -> dst (y, width-1-x), dst stride = height
+                        for (int c = 0; c < tw; c++) {
+                            int d = (width - 1 - tx - c) * height + ty;
+                            for (int r = 0; r < th; r++) dst[d + r] = tile[r * TILE + c];
+                        }
+                        break;
+                    case 180:
+                        // src (x,y) -> dst (width-1-x, height-1-y), dst stride = width
+                        for (int r = 0; r < th; r++) {
+                            int d = (height - 1 - ty - r) * width + (width - 1 - tx);
+                            for (int c = 0; c < tw; c++) dst[d - c] = tile[r * TILE + c];
+                        }
+                        break;
+                    default:
+                        for (int r = 0; r < th; r++) {
+                            System.arraycopy(tile, r * TILE, dst, (ty + r) * width + tx, tw);
+                        }
+                        break;
+                }
+            }
+        }
+    }
+}
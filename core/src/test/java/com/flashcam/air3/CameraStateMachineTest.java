@@ -0,0 +1,271 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flashcam.air3.CameraStateMachine.CamState;
+
+/**
+ * The state machine on a serial executor the test drains by hand, a
+ * virtual clock for its timeouts and a backend whose callbacks the test
+ * fires, so every race is played in a fixed order.
+ */
+public class CameraStateMachineTest {
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final ManualClock clock = new ManualClock();
+    private final FakeBackend backend = new FakeBackend();
+    private final List<String> states = new ArrayList<>();
+    private int onOpened;
+    private CameraStateMachine camera;
+
+    @Before
+    public void setUp() {
+        camera = new CameraStateMachine(backend, executor, new CameraStateMachine.Listener() {
+            @Override public void onState(CamState state, String detail) {
+                states.add(detail != null ? state + ": " + detail : state.toString());
+            }
+            @Override public void onOpened() {
+                onOpened++;
+            }
+        }, clock);
+    }
+
+    @Test
+    public void closeRacingAnOpenClosesTheLateDevice() {
+        camera.open();
+        executor.runAll();
+        assertEquals(CamState.OPENING, camera.state());
+
+        camera.close();
+        assertEquals(1, backend.closes);
+        // The HAL finishes the open it had already started
+        backend.opened();
+        executor.runAll();
+
+        assertEquals(CamState.INIT, camera.state());
+        assertEquals("late device closed", 2, backend.closes);
+        assertFalse(backend.open);
+        assertEquals(0, onOpened);
+    }
+
+    @Test
+    public void openTimeoutThenLateOpenIsTakenOver() {
+        camera.open();
+        executor.runAll();
+        clock.advance(CameraStateMachine.OPEN_TIMEOUT_MS);
+        assertEquals(CamState.ERROR, camera.state());
+        assertEquals("ERROR: open timed out; waiting for camera", last());
+
+        backend.opened();
+        executor.runAll();
+        assertEquals(CamState.OPENING, camera.state());
+        assertEquals(1, onOpened);
+        assertEquals(0, backend.closes);
+
+        // The fallback reopen finds nothing left to do
+        clock.advance(CameraStateMachine.REOPEN_WAIT_MS);
+        assertEquals(1, backend.opens);
+        assertTrue(camera.moveTo(CamState.PREVIEW));
+    }
+
+    @Test
+    public void lateOpenAfterTheLastTimeoutIsAdopted() {
+        camera.open();
+        executor.runAll();
+        for (int i = 1; i < CameraStateMachine.MAX_OPEN_ATTEMPTS; i++) {
+            clock.advance(CameraStateMachine.OPEN_TIMEOUT_MS);
+            clock.advance(CameraStateMachine.REOPEN_WAIT_MS);
+        }
+        clock.advance(CameraStateMachine.OPEN_TIMEOUT_MS);
+        assertEquals("ERROR: Camera open failed after 3 attempts (open timed out)", last());
+
+        // The last attempt's device turns up after all; it must not be left open and unused
+        backend.opened();
+        executor.runAll();
+        assertEquals(CamState.OPENING, camera.state());
+        assertEquals(1, onOpened);
+        assertEquals(0, backend.closes);
+        assertTrue(camera.moveTo(CamState.PREVIEW));
+    }
+
+    @Test
+    public void availabilityTriggersTheReopen() {
+        camera.open();
+        executor.runAll();
+        backend.closed(1); // ERROR_CAMERA_IN_USE
+        executor.runAll();
+        assertEquals("ERROR: open error 1; waiting for camera", last());
+
+        backend.available();
+        executor.runAll();
+        assertEquals(2, backend.opens);
+        assertEquals("OPENING: attempt 2 of 3", last());
+
+        backend.opened();
+        executor.runAll();
+        assertEquals(1, onOpened);
+        // The timer armed by the failure must not start a third open
+        clock.advance(CameraStateMachine.REOPEN_WAIT_MS);
+        assertEquals(2, backend.opens);
+    }
+
+    @Test
+    public void givesUpAfterMaxOpenAttempts() {
+        camera.open();
+        executor.runAll();
+        for (int i = 1; i < CameraStateMachine.MAX_OPEN_ATTEMPTS; i++) {
+            backend.closed(CameraBackend.ERROR_CAMERA_DEVICE);
+            executor.runAll();
+            // No availability callback: the wait runs out and the next attempt starts
+            clock.advance(CameraStateMachine.REOPEN_WAIT_MS);
+        }
+        assertEquals(CameraStateMachine.MAX_OPEN_ATTEMPTS, backend.opens);
+        backend.closed(CameraBackend.ERROR_CAMERA_DEVICE);
+        executor.runAll();
+
+        assertEquals(CamState.ERROR, camera.state());
+        assertEquals("ERROR: Camera open failed after 3 attempts (open error 4)", last());
+        backend.available();
+        executor.runAll();
+        clock.advance(CameraStateMachine.REOPEN_WAIT_MS);
+        assertEquals("no further attempts", CameraStateMachine.MAX_OPEN_ATTEMPTS, backend.opens);
+
+        // An explicit open starts a fresh cycle
+        camera.open();
+        executor.runAll();
+        assertEquals(CameraStateMachine.MAX_OPEN_ATTEMPTS + 1, backend.opens);
+        assertEquals("OPENING", last());
+    }
+
+    @Test
+    public void deviceLostInPreviewReopensWithFreshAttempts() {
+        camera.open();
+        executor.runAll();
+        backend.opened();
+        executor.runAll();
+        assertTrue(camera.moveTo(CamState.PREVIEW));
+
+        backend.closed(CameraBackend.ERROR_DISCONNECTED);
+        executor.runAll();
+        assertEquals(CamState.ERROR, camera.state());
+        assertEquals("ERROR: camera disconnected; waiting for camera", last());
+        assertFalse(camera.moveTo(CamState.CAPTURING));
+
+        backend.available();
+        executor.runAll();
+        assertEquals(2, backend.opens);
+        assertEquals("first attempt of a new cycle", "OPENING", last());
+        backend.opened();
+        executor.runAll();
+        assertEquals(2, onOpened);
+        assertTrue(camera.moveTo(CamState.PREVIEW));
+    }
+
+    private String last() {
+        return states.get(states.size() - 1);
+    }
+
+    // ── Fakes ──
+
+    /** Serial executor that runs only when the test drains it. */
+    private static final class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable r) {
+            tasks.add(r);
+        }
+
+        void runAll() {
+            for (Runnable r; (r = tasks.poll()) != null; ) r.run();
+        }
+    }
+
+    /** Virtual time: due tasks go to the executor, which is then drained. */
+    private final class ManualClock implements CameraStateMachine.Scheduler {
+        private final List<long[]> due = new ArrayList<>();
+        private final List<Runnable> pending = new ArrayList<>();
+        private long now;
+
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            due.add(new long[]{now + delayMs});
+            pending.add(task);
+        }
+
+        void advance(long ms) {
+            now += ms;
+            Iterator<long[]> d = due.iterator();
+            Iterator<Runnable> p = pending.iterator();
+            List<Runnable> ready = new ArrayList<>();
+            while (d.hasNext()) {
+                long at = d.next()[0];
+                Runnable r = p.next();
+                if (at <= now) {
+                    ready.add(r);
+                    d.remove();
+                    p.remove();
+                }
+            }
+            for (Runnable r : ready) executor.execute(r);
+            executor.runAll();
+        }
+    }
+
+    /** Records opens and closes; the test fires the latest open's callbacks. */
+    private static final class FakeBackend implements CameraBackend {
+        int opens, closes;
+        boolean open;
+        private OpenListener openListener;
+        private Runnable availability;
+
+        void opened() {
+            open = true;
+            openListener.onOpened();
+        }
+
+        void closed(int error) {
+            open = false;
+            openListener.onClosed(error);
+        }
+
+        void available() {
+            availability.run();
+        }
+
+        @Override public Info select() { return new Info(); }
+        @Override public int[][] outputSizes(int format, int pixelMode) { return null; }
+
+        @Override
+        public void open(OpenListener l) {
+            opens++;
+            openListener = l;
+        }
+
+        @Override public void setAvailabilityListener(Runnable l) { availability = l; }
+        @Override public boolean isOpen() { return open; }
+
+        @Override
+        public void close() {
+            closes++;
+            open = false;
+        }
+
+        @Override public void setPreviewSize(int width, int height) { }
+        @Override public Stream newStream(int width, int height, int format, int pixelMode, int maxImages) { return null; }
+        @Override public boolean isSupported(SessionSpec spec) { return true; }
+        @Override public void createSession(SessionSpec spec, SessionListener l) { }
+        @Override public long templateBuilds() { return 0; }
+    }
+}
@@ -0,0 +1,257 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CaptureJournalTest {
+
+    /** Noon local time, so every record lands in captures-20261016. */
+    private static final long NOON = new GregorianCalendar(2026, 9, 16, 12, 0).getTimeInMillis();
+    private static final String DAY = "captures-20261016";
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("journal");
+    }
+
+    @Test
+    public void everyFieldSurvivesEncodeAndDecode() {
+        CaptureJournal.Record r = new CaptureJournal.Record();
+        r.kind = CaptureJournal.KIND_DNG;
+        r.wallMs = NOON + 123;
+        r.mode = "OPTIMIZED";
+        r.maxRes = true;
+        r.dng = true;
+        r.combined = false;
+        r.lossless = true;
+        r.ev = -3;
+        r.rotation = 270;
+        r.jpegW = 3456;
+        r.jpegH = 4608;
+        r.rawW = 4624;
+        r.rawH = 3472;
+        r.jpegBytes = 5_000_000_123L;
+        r.dngBytes = 32_000_000L;
+        r.jpegCrcValid = true;
+        r.jpegCrc = 0xCAFEBABE;
+        r.dngCrcValid = false;
+        r.dngCrc = 7;
+        r.aeState = 2;
+        r.afState = 4;
+        r.awbState = 3;
+        r.iso = 1600;
+        r.exposureNs = 33_333_333L;
+        r.focusDiopters = 2.5f;
+        r.stage("encode", 1_234_000);
+        r.stage("DNG convert", 987_654_000);
+        r.stage("not a stage", 1);
+        r.jpegUri = "content://media/external/images/media/42";
+        r.dngUri = "content://media/external/images/media/43";
+        r.note = "persist error: caf\u00e9";
+
+        CaptureJournal.Record d = roundTrip(r);
+        assertEquals(r.kind, d.kind);
+        assertEquals(r.wallMs, d.wallMs);
+        assertEquals("8 ASCII bytes", "OPTIMIZE", d.mode);
+        assertEquals(r.maxRes, d.maxRes);
+        assertEquals(r.dng, d.dng);
+        assertEquals(r.combined, d.combined);
+        assertEquals(r.lossless, d.lossless);
+        assertEquals(r.ev, d.ev);
+        assertEquals(r.rotation, d.rotation);
+        assertEquals(r.jpegW, d.jpegW);
+        assertEquals(r.jpegH, d.jpegH);
+        assertEquals(r.rawW, d.rawW);
+        assertEquals(r.rawH, d.rawH);
+        assertEquals(r.jpegBytes, d.jpegBytes);
+        assertEquals(r.dngBytes, d.dngBytes);
+        assertEquals(r.jpegCrcValid, d.jpegCrcValid);
+        assertEquals(r.jpegCrc, d.jpegCrc);
+        assertEquals(r.dngCrcValid, d.dngCrcValid);
+        assertEquals(r.dngCrc, d.dngCrc);
+        assertEquals(r.aeState, d.aeState);
+        assertEquals(r.afState, d.afState);
+        assertEquals(r.awbState, d.awbState);
+        assertEquals(r.iso, d.iso);
+        assertEquals(r.exposureNs, d.exposureNs);
+        assertEquals(r.focusDiopters, d.focusDiopters, 0f);
+        assertArrayEquals(r.stageMicros, d.stageMicros);
+        assertEquals(1234, d.stageMicros[Arrays.asList(CaptureJournal.STAGES).indexOf("encode")]);
+        assertEquals(r.jpegUri, d.jpegUri);
+        assertEquals(r.dngUri, d.dngUri);
+        assertEquals(r.note, d.note);
+    }
+
+    @Test
+    public void defaultsSurviveEncodeAndDecode() {
+        CaptureJournal.Record d = roundTrip(new CaptureJournal.Record());
+        assertEquals(CaptureJournal.KIND_CAPTURE, d.kind);
+        assertEquals(-1, d.jpegW);
+        assertEquals(-1L, d.dngBytes);
+        assertEquals(-1f, d.focusDiopters, 0f);
+        assertEquals("", d.mode);
+        assertEquals("", d.note);
+        for (int us : d.stageMicros) assertEquals(-1, us);
+    }
+
+    @Test
+    public void stringsAreCutAtTheByteLimitOnACharacterBoundary() {
+        CaptureJournal.Record r = new CaptureJournal.Record();
+        // 349 ASCII bytes, then a 2-byte character straddling the 350-byte limit
+        r.note = repeat('a', 349) + "\u00e9tag\u00e8re";
+        // 252 ASCII bytes, then a 4-byte character straddling the 254-byte limit
+        r.jpegUri = repeat('u', 252) + "\uD83D\uDCF7";
+        r.dngUri = repeat('d', 300);
+
+        CaptureJournal.Record d = roundTrip(r);
+        assertEquals(repeat('a', 349), d.note);
+        assertEquals(repeat('u', 252), d.jpegUri);
+        assertEquals(repeat('d', 254), d.dngUri);
+    }
+
+    @Test
+    public void tornTailIsIgnoredOnReopenAndOverwritten() throws IOException {
+        CaptureJournal journal = new CaptureJournal(dir);
+        for (int i = 0; i < 3; i++) journal.append(record(NOON + i, "shot " + i));
+        assertEquals(3, journal.size());
+
+        // The process dies between writing the third record and its commit marker
+        File seg = new File(dir, DAY + ".fcj");
+        try (RandomAccessFile f = new RandomAccessFile(seg, "rw")) {
+            f.seek(CaptureJournal.HEADER + 2L * CaptureJournal.RECORD_SIZE);
+            f.writeInt(0);
+        }
+        CaptureJournal reopened = new CaptureJournal(dir);
+        assertEquals(2, reopened.size());
+
+        reopened.append(record(NOON + 10, "after restart"));
+        assertEquals(3, reopened.size());
+        assertEquals(List.of("shot 0", "shot 1", "after restart"), notes(reopened));
+    }
+
+    @Test
+    public void fullSegmentRollsOverToPartOne() throws IOException {
+        CaptureJournal journal = new CaptureJournal(dir);
+        for (int i = 0; i <= CaptureJournal.SEGMENT_RECORDS; i++) journal.append(record(NOON + i, ""));
+        assertEquals(CaptureJournal.SEGMENT_RECORDS + 1, journal.size());
+        assertEquals(List.of(DAY + ".fcj", DAY + "-1.fcj"), names(journal.segments()));
+
+        // A reopened journal finds the full segment and carries on in part 1
+        CaptureJournal reopened = new CaptureJournal(dir);
+        reopened.append(record(NOON + 1, "next"));
+        assertEquals(CaptureJournal.SEGMENT_RECORDS + 2, reopened.size());
+        assertEquals(2, reopened.segments().length);
+    }
+
+    @Test
+    public void segmentsSortByDayThenNumericPart() throws IOException {
+        segment(DAY + "-10.fcj", NOON, "part 10");
+        segment(DAY + "-2.fcj", NOON, "part 2");
+        segment(DAY + ".fcj", NOON, "part 0");
+        segment("captures-20261015-3.fcj", NOON - 86_400_000L, "yesterday");
+
+        CaptureJournal journal = new CaptureJournal(dir);
+        assertEquals(List.of("captures-20261015-3.fcj", DAY + ".fcj", DAY + "-2.fcj", DAY + "-10.fcj"),
+            names(journal.segments()));
+        assertEquals(List.of("yesterday", "part 0", "part 2", "part 10"), notes(journal));
+    }
+
+    @Test
+    public void exportQuotesCsvAndEscapesJson() throws IOException {
+        CaptureJournal journal = new CaptureJournal(dir);
+        CaptureJournal.Record r = record(NOON, "a,\"b\"\nc");
+        r.jpegUri = "plain";
+        r.dngUri = "tab\there \\ \u0001";
+        journal.append(r);
+        File csv = tmp.newFile("captures.csv"), json = tmp.newFile("captures.json");
+        int[] progress = new int[2];
+        journal.export(csv, json, (done, total) -> {
+            progress[0] = done;
+            progress[1] = total;
+        });
+        assertArrayEquals(new int[]{1, 1}, progress);
+
+        String c = new String(Files.readAllBytes(csv.toPath()), StandardCharsets.UTF_8);
+        assertTrue(c.startsWith("kind,time,mode,"));
+        assertTrue(c, c.endsWith(",plain,tab\there \\ \u0001,\"a,\"\"b\"\"\nc\"\n"));
+        assertFalse("unknown stages are empty", c.contains(",-1,jpeg"));
+
+        String j = new String(Files.readAllBytes(json.toPath()), StandardCharsets.UTF_8);
+        assertTrue(j.startsWith("[\n{\"kind\":\"capture\""));
+        assertTrue(j, j.contains("\"uri\":\"tab\\there \\\\ \\u0001\""));
+        assertTrue(j, j.contains("\"note\":\"a,\\\"b\\\"\\nc\"}"));
+        assertTrue(j.endsWith("}\n]\n"));
+    }
+
+    // ── Helpers ──
+
+    private static CaptureJournal.Record roundTrip(CaptureJournal.Record r) {
+        ByteBuffer b = ByteBuffer.allocate(CaptureJournal.RECORD_SIZE);
+        CaptureJournal.encode(b, r);
+        CaptureJournal.Record d = new CaptureJournal.Record();
+        CaptureJournal.decode(b, d);
+        return d;
+    }
+
+    private static CaptureJournal.Record record(long wallMs, String note) {
+        CaptureJournal.Record r = new CaptureJournal.Record();
+        r.wallMs = wallMs;
+        r.note = note;
+        return r;
+    }
+
+    /** A one-record segment written by a scratch journal, moved into dir as name. */
+    private void segment(String name, long wallMs, String note) throws IOException {
+        File scratch = tmp.newFolder();
+        new CaptureJournal(scratch).append(record(wallMs, note));
+        File[] made = scratch.listFiles();
+        assertEquals(1, made.length);
+        Files.copy(made[0].toPath(), new File(dir, name).toPath());
+    }
+
+    private List<String> notes(CaptureJournal journal) throws IOException {
+        File json = new File(tmp.getRoot(), "notes-" + System.nanoTime() + ".json");
+        journal.export(null, json, null);
+        List<String> notes = new ArrayList<>();
+        for (String line : Files.readAllLines(json.toPath(), StandardCharsets.UTF_8)) {
+            int at = line.lastIndexOf("\"note\":\"");
+            if (at >= 0) notes.add(line.substring(at + 8, line.lastIndexOf('"')));
+        }
+        return notes;
+    }
+
+    private static List<String> names(File[] files) {
+        List<String> names = new ArrayList<>();
+        for (File f : files) names.add(f.getName());
+        return names;
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
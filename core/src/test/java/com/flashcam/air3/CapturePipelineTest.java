@@ -0,0 +1,96 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CapturePipelineTest {
+
+    private static final long TIMEOUT_S = 10;
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void errorInAStageStillFreesTheSlot() throws Exception {
+        CountDownLatch done = new CountDownLatch(3);
+        CapturePipeline<Integer> pipeline = new CapturePipeline<>(1, listener(done))
+            .stage("encode", job -> { throw new OutOfMemoryError("16MP"); })
+            .stage("persist", job -> events.add("persist " + job));
+        try {
+            for (int i = 0; i < 3; i++) {
+                // Depth 1: each shot needs the slot the previous one returned
+                assertTrue(awaitSlot(pipeline));
+                pipeline.submit(i);
+            }
+            assertTrue(done.await(TIMEOUT_S, TimeUnit.SECONDS));
+        } finally {
+            pipeline.shutdown();
+        }
+        assertTrue(events.contains("encode error 0: java.lang.OutOfMemoryError: 16MP"));
+        assertTrue("later stages still run", events.contains("persist 2"));
+        assertTrue(pipeline.hasCapacity());
+    }
+
+    @Test
+    public void shutdownDrainsJobsInFlight() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch drained = new CountDownLatch(1);
+        CapturePipeline<Integer> pipeline = new CapturePipeline<>(2, listener(new CountDownLatch(2)))
+            .stage("encode", job -> release.await())
+            .stage("persist", job -> events.add("persist " + job));
+        assertTrue(pipeline.tryReserve());
+        pipeline.submit(1);
+        assertTrue(pipeline.tryReserve());
+        pipeline.submit(2);
+
+        pipeline.shutdown(() -> {
+            events.add("drained");
+            drained.countDown();
+        });
+        assertFalse("no shots after shutdown", pipeline.tryReserve());
+        assertEquals(1, drained.getCount());
+
+        release.countDown();
+        assertTrue(drained.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals("drained", events.get(events.size() - 1));
+        assertTrue(events.contains("persist 1"));
+        assertTrue(events.contains("persist 2"));
+    }
+
+    @Test
+    public void shutdownWhenIdleRunsRightAway() {
+        boolean[] ran = new boolean[1];
+        new CapturePipeline<Integer>(2, listener(new CountDownLatch(0)))
+            .stage("encode", job -> { })
+            .shutdown(() -> ran[0] = true);
+        assertTrue(ran[0]);
+    }
+
+    private CapturePipeline.Listener<Integer> listener(CountDownLatch done) {
+        return new CapturePipeline.Listener<Integer>() {
+            @Override public void onStageError(Integer job, String stage, Throwable e) {
+                events.add(stage + " error " + job + ": " + e);
+            }
+            @Override public void onJobDone(Integer job) {
+                done.countDown();
+            }
+        };
+    }
+
+    private static boolean awaitSlot(CapturePipeline<?> pipeline) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (!pipeline.tryReserve()) {
+            if (System.nanoTime() > deadline) return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,267 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Capture to save on a plain JVM: {@link SimulatedBackend} takes the shots,
+ * the test hands each one off as MainActivity does, and {@link
+ * CapturePipeline} runs the {@link CaptureStages} encode / persist /
+ * metadata stages into files in a temp folder. Checks every shot arrives
+ * upright with its EXIF, that the JPEG spool and journal end up right, and
+ * that capture overlaps the stages (the failure message gives the throughput).
+ */
+public class CaptureThroughputTest {
+
+    private static final int SHOTS = 12;
+    private static final int DEPTH = 3;
+    private static final int W = 1280, H = 960;
+    private static final long TIMEOUT_S = 30;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private SimulatedBackend backend;
+    private CameraBackend.Info info;
+    private ExecutorService encodePool;
+    private CapturePipeline<CaptureJob<File>> pipeline;
+    private JpegSpool spool;
+    private CaptureJournal journal;
+    private File out;
+    private final List<CaptureJob<File>> done = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong stageNanos = new AtomicLong();
+
+    @Before
+    public void setUp() throws IOException {
+        SimulatedBackend.Config c = new SimulatedBackend.Config();
+        c.sensorWidth = W;
+        c.sensorHeight = H;
+        c.sensorOrientation = 90;
+        c.openMs = 5;
+        c.sessionMs = 5;
+        c.maxResSessionMs = 0;
+        c.stillMs = 30;
+        c.jpegMs = 20;
+        c.rawMs = 10;
+        backend = new SimulatedBackend(c);
+        info = backend.select();
+        encodePool = Executors.newFixedThreadPool(2);
+        spool = new JpegSpool(tmp.newFolder("jpeg-spool"));
+        journal = new CaptureJournal(tmp.newFolder("journal"));
+        out = tmp.newFolder("saved");
+    }
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) pipeline.shutdown();
+        encodePool.shutdown();
+        backend.shutdown();
+    }
+
+    @Test
+    public void halJpegAndRawShotsAreSavedUpright() throws Exception {
+        run(CameraBackend.FORMAT_JPEG, true);
+        for (CaptureJob<File> job : done) {
+            assertEquals("lossless (DCT)", job.rotateMethod);
+            assertEquals((long) W * H * 2, job.dngSave.length());
+        }
+        checkSaved();
+    }
+
+    @Test
+    public void yuvShotsAreEncodedAndSavedUpright() throws Exception {
+        run(CameraBackend.FORMAT_YUV_420_888, false);
+        for (CaptureJob<File> job : done) assertEquals("fused YUV plane rotation", job.rotateMethod);
+        checkSaved();
+    }
+
+    /** Take SHOTS stills in format (plus RAW10) and wait for the pipeline. */
+    private void run(int format, boolean withRaw) throws Exception {
+        CaptureStages.Config config = new CaptureStages.Config();
+        config.yuvQuality = 90;
+        CaptureStages<File> stages = new CaptureStages<>(config, new FilePlatform(), encodePool, spool);
+        CountDownLatch finished = new CountDownLatch(SHOTS);
+        pipeline = new CapturePipeline<CaptureJob<File>>(DEPTH, new CapturePipeline.Listener<CaptureJob<File>>() {
+            @Override public void onStageError(CaptureJob<File> job, String stage, Throwable e) {
+                errors.add(stage + ": " + e);
+            }
+            @Override public void onJobDone(CaptureJob<File> job) {
+                done.add(job);
+                finished.countDown();
+            }
+        })
+            .stage("encode", timed(stages::encode))
+            .stage("persist", timed(stages::persist))
+            .stage("metadata", timed(job -> journal.append(CaptureStages.journalRecord(job))));
+
+        CompletableFuture<Void> opened = new CompletableFuture<>();
+        backend.open(new CameraBackend.OpenListener() {
+            @Override public void onOpened() { opened.complete(null); }
+            @Override public void onClosed(int error) { opened.completeExceptionally(new IOException("error " + error)); }
+        });
+        opened.get(TIMEOUT_S, TimeUnit.SECONDS);
+        List<CameraBackend.Stream> streams = new ArrayList<>();
+        streams.add(backend.newStream(W, H, format, CameraBackend.PIXEL_MODE_MAX_RES, 2));
+        if (withRaw) streams.add(backend.newStream(W, H, CameraBackend.FORMAT_RAW10, CameraBackend.PIXEL_MODE_MAX_RES, 2));
+        CompletableFuture<CameraBackend.Session> configured = new CompletableFuture<>();
+        backend.createSession(new CameraBackend.SessionSpec(false, streams, true), new CameraBackend.SessionListener() {
+            @Override public void onConfigured(CameraBackend.Session s) { configured.complete(s); }
+            @Override public void onConfigureFailed() { configured.completeExceptionally(new IOException("configure failed")); }
+        });
+        CameraBackend.Session session = configured.get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        long t0 = System.nanoTime();
+        long captureNanos = 0;
+        for (int i = 0; i < SHOTS; i++) {
+            // The shutter waits for a free slot, as it stays disabled in the app
+            while (!pipeline.tryReserve()) Thread.sleep(1);
+            long c0 = System.nanoTime();
+            CaptureJob<File> job = capture(session, streams, i);
+            captureNanos += System.nanoTime() - c0;
+            pipeline.submit(job);
+        }
+        assertTrue("pipeline finished", finished.await(TIMEOUT_S, TimeUnit.SECONDS));
+        long wallNanos = System.nanoTime() - t0;
+        assertEquals(Collections.emptyList(), errors);
+        // Capture of the next shot overlaps the stages of the previous ones
+        assertTrue(String.format(Locale.US, "%d shots in %.0f ms (%.1f shots/s), capture %.0f ms + stages %.0f ms",
+                SHOTS, wallNanos / 1e6, SHOTS / (wallNanos / 1e9), captureNanos / 1e6, stageNanos.get() / 1e6),
+            wallNanos < captureNanos + stageNanos.get());
+    }
+
+    /** One still: wait for the result and the frames, then hand off as MainActivity.handOff does. */
+    private CaptureJob<File> capture(CameraBackend.Session session, List<CameraBackend.Stream> streams, int n)
+            throws Exception {
+        List<CompletableFuture<CameraBackend.Frame>> frames = new ArrayList<>();
+        for (CameraBackend.Stream s : streams) {
+            CompletableFuture<CameraBackend.Frame> f = new CompletableFuture<>();
+            s.setListener(f::complete);
+            frames.add(f);
+        }
+        CompletableFuture<CameraBackend.Result> result = new CompletableFuture<>();
+        session.capture(CameraBackend.Request.still(streams, 0, CameraBackend.PIXEL_MODE_MAX_RES),
+            new CameraBackend.CaptureListener() {
+                @Override public void onCompleted(CameraBackend.Result r) { result.complete(r); }
+                @Override public void onFailed() { result.completeExceptionally(new IOException("capture failed")); }
+            });
+
+        CaptureJob<File> job = new CaptureJob<>();
+        job.maxRes = true;
+        job.ts = String.format(Locale.US, "%03d", n);
+        job.mpLabel = "16MP";
+        job.rotation = info.sensorOrientation;
+        job.evStepNum = info.evStepNum;
+        job.evStepDen = info.evStepDen;
+        job.entropyMode = JpegWriter.Mode.STANDARD;
+        job.dims = new int[][]{{W, H}, {0, 0}};
+        job.result = result.get(TIMEOUT_S, TimeUnit.SECONDS);
+        job.captureWallMs = System.currentTimeMillis();
+        for (CompletableFuture<CameraBackend.Frame> f : frames) {
+            CameraBackend.Frame frame = f.get(TIMEOUT_S, TimeUnit.SECONDS);
+            if (frame.format() == CameraBackend.FORMAT_JPEG) {
+                ByteBuffer buf = frame.buffer(0);
+                job.halJpeg = new byte[buf.remaining()];
+                buf.get(job.halJpeg);
+                job.halBytes = job.halJpeg.length;
+                frame.close();
+            } else if (frame.format() == CameraBackend.FORMAT_YUV_420_888) {
+                CaptureStages.extractYuv(frame, job.rotation, job);
+            } else {
+                CaptureStages.extractRaw(frame, job);
+            }
+        }
+        return job;
+    }
+
+    private void checkSaved() throws IOException {
+        assertEquals(SHOTS, done.size());
+        for (CaptureJob<File> job : done) {
+            byte[] jpeg = Files.readAllBytes(job.jpegSave.toPath());
+            assertEquals(0xFF, jpeg[0] & 0xFF);
+            assertEquals(0xD8, jpeg[1] & 0xFF);
+            assertEquals("APP1 first", 0xE1, jpeg[3] & 0xFF);
+            assertArrayEquals("Exif\0\0".getBytes("US-ASCII"), Arrays.copyOfRange(jpeg, 6, 12));
+            assertEquals(0xD9, jpeg[jpeg.length - 1] & 0xFF);
+            // Sensor is 90 degrees off, so the saved frame is portrait
+            assertArrayEquals(new int[]{H, W}, ExifSegment.frameSize(ByteBuffer.wrap(jpeg)));
+            assertEquals(H, job.outW);
+            assertTrue(job.exifBytes > 0);
+        }
+        assertEquals("spool emptied", 0, spool.pending());
+        assertEquals(SHOTS, journal.size());
+    }
+
+    private CapturePipeline.Step<CaptureJob<File>> timed(CapturePipeline.Step<CaptureJob<File>> step) {
+        return job -> {
+            long t0 = System.nanoTime();
+            try {
+                step.run(job);
+            } finally {
+                stageNanos.addAndGet(System.nanoTime() - t0);
+            }
+        };
+    }
+
+    /** Saves into {@link #out}: the JPEG as given, RAW unpacked to 16-bit samples. */
+    private final class FilePlatform implements CaptureStages.Platform<File> {
+        @Override public byte[] rotateStrips(byte[] jpeg, int degrees) throws IOException {
+            throw new IOException("no decoder off the device");
+        }
+
+        @Override public byte[] thumbnail(byte[] jpeg) {
+            return null;
+        }
+
+        @Override public void save(CaptureJob<File> job, String jpegName, ByteBuffer[] jpegParts) throws IOException {
+            if (jpegParts != null) job.jpegSave = write(jpegName, jpegParts);
+            if (job.raw != null) {
+                ByteBuffer samples = RawUnpacker.isPacked(job.rawFormat)
+                    ? RawUnpacker.unpack(job.raw, job.rawFormat, job.rawW, job.rawH,
+                        RawUnpacker.rowBytes(job.rawFormat, job.rawW))
+                    : job.raw;
+                job.dngSave = write(jpegName.replace("_full.jpg", ".raw"), samples);
+                job.raw = null;
+            }
+        }
+
+        private File write(String name, ByteBuffer... parts) throws IOException {
+            File f = new File(out, name);
+            ByteBuffer[] views = new ByteBuffer[parts.length];
+            long remaining = 0;
+            for (int i = 0; i < parts.length; i++) {
+                views[i] = parts[i].duplicate();
+                remaining += views[i].remaining();
+            }
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (remaining > 0) remaining -= ch.write(views);
+            }
+            return f;
+        }
+    }
+}
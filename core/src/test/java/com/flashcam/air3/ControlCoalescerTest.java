@@ -0,0 +1,123 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+/** The worker thread is a queue the test drains; onFrame stands in for the camera thread. */
+public class ControlCoalescerTest {
+
+    private final ArrayDeque<Runnable> worker = new ArrayDeque<>();
+    private final Executor executor = worker::add;
+    private final List<CameraBackend.Request[]> applied = new ArrayList<>();
+    private final LatencyStats latency = new LatencyStats();
+    private boolean previewRunning = true;
+    private final ControlCoalescer coalescer = new ControlCoalescer(executor, (repeating, trigger) -> {
+        if (!previewRunning) return false;
+        applied.add(new CameraBackend.Request[]{repeating, trigger});
+        return true;
+    }, latency);
+
+    @Test
+    public void burstCostsAtMostOneUpdatePerFrame() {
+        coalescer.setEv(1);
+        runWorker();
+        assertEquals("first change after a quiet period goes out at once", 1, applied.size());
+        assertEquals(1, applied.get(0)[0].ev);
+
+        // A burst of presses before the next preview frame
+        for (int ev = 2; ev <= 6; ev++) coalescer.setEv(ev);
+        runWorker();
+        assertEquals(1, applied.size());
+
+        coalescer.onFrame();
+        coalescer.onFrame();
+        runWorker();
+        assertEquals("merged into one update on the frame", 2, applied.size());
+        assertEquals(6, applied.get(1)[0].ev);
+        assertNull(applied.get(1)[1]);
+
+        // Nothing pending: frames send nothing
+        for (int i = 0; i < 5; i++) coalescer.onFrame();
+        runWorker();
+        assertEquals(2, applied.size());
+        assertEquals(6, coalescer.changes());
+        assertEquals(2, coalescer.updates());
+        assertTrue(latency.report("Preview", null).startsWith("control update"));
+    }
+
+    @Test
+    public void frameByFrameUpdatesNeverOutrunTheFrames() {
+        coalescer.setEv(0);
+        runWorker();
+        for (int frame = 1; frame <= 10; frame++) {
+            coalescer.setEv(frame);
+            coalescer.focus(new int[]{frame, frame, 10, 10});
+            coalescer.setEv(-frame);
+            runWorker();
+            coalescer.onFrame();
+            runWorker();
+            assertEquals("one update per frame", frame + 1, applied.size());
+        }
+    }
+
+    @Test
+    public void triggerGoesOutWithItsRegion() {
+        coalescer.setEv(1);
+        runWorker();
+        int[] region = {100, 200, 50, 50};
+        coalescer.focus(region);
+        coalescer.setEv(2);
+        runWorker();
+        coalescer.onFrame();
+        runWorker();
+
+        assertEquals(2, applied.size());
+        CameraBackend.Request repeating = applied.get(1)[0], trigger = applied.get(1)[1];
+        assertArrayEquals(region, repeating.region);
+        assertEquals(2, repeating.ev);
+        assertFalse(repeating.afTrigger);
+        assertTrue(trigger.afTrigger);
+        assertArrayEquals(region, trigger.region);
+        assertEquals(2, trigger.ev);
+
+        // The trigger is one-shot; the region stays on later updates
+        coalescer.onFrame();
+        coalescer.setEv(3);
+        runWorker();
+        assertEquals(3, applied.size());
+        assertNull(applied.get(2)[1]);
+        assertArrayEquals(region, applied.get(2)[0].region);
+    }
+
+    @Test
+    public void changesWaitForThePreviewAndRideOnItsStart() {
+        previewRunning = false;
+        coalescer.focus(new int[]{1, 2, 3, 4});
+        runWorker();
+        assertTrue(applied.isEmpty());
+
+        // The next preview start picks the controls up, leaving nothing to send
+        CameraBackend.Request start = coalescer.previewRequest();
+        assertArrayEquals(new int[]{1, 2, 3, 4}, start.region);
+        previewRunning = true;
+        coalescer.onFrame();
+        coalescer.flush();
+        runWorker();
+        assertTrue(applied.isEmpty());
+        assertEquals(0, coalescer.updates());
+    }
+
+    private void runWorker() {
+        for (Runnable r; (r = worker.poll()) != null; ) r.run();
+    }
+}
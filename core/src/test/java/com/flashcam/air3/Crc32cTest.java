@@ -0,0 +1,87 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import org.junit.Test;
+
+/** Checked against the JDK's CRC32C. */
+public class Crc32cTest {
+
+    private final Random random = new Random(17);
+
+    @Test
+    public void checkValue() {
+        byte[] b = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xE3069283, Crc32c.update(0, b, 0, b.length));
+        assertEquals(0, Crc32c.update(0, new byte[0], 0, 0));
+    }
+
+    @Test
+    public void matchesJdkOnHeapAndDirectBuffers() {
+        // Lengths around the 8-byte stride, odd offsets for unaligned reads
+        for (int len : new int[]{1, 7, 8, 9, 15, 16, 17, 63, 64, 1000, 65_537}) {
+            for (int off : new int[]{0, 1, 3}) {
+                byte[] data = bytes(off + len);
+                long expected = jdk(data, off, len);
+
+                ByteBuffer heap = ByteBuffer.wrap(data);
+                heap.position(off);
+                assertEquals("heap " + len + "@" + off, (int) expected, Crc32c.update(0, heap));
+                assertEquals("position untouched", off, heap.position());
+
+                ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data);
+                direct.position(off);
+                assertEquals("direct " + len + "@" + off, (int) expected, Crc32c.update(0, direct));
+                assertEquals(off, direct.position());
+
+                assertEquals((int) expected, Crc32c.update(0, data, off, len));
+            }
+        }
+    }
+
+    @Test
+    public void updateContinuesARunningCrc() {
+        byte[] data = bytes(10_000);
+        int crc = 0;
+        for (int at = 0; at < data.length; ) {
+            int n = Math.min(data.length - at, 1 + random.nextInt(700));
+            crc = Crc32c.update(crc, data, at, n);
+            at += n;
+        }
+        assertEquals((int) jdk(data, 0, data.length), crc);
+    }
+
+    @Test
+    public void combineJoinsAdjacentRangesAtRandomSplits() {
+        byte[] data = bytes(200_000);
+        int whole = (int) jdk(data, 0, data.length);
+        for (int i = 0; i < 50; i++) {
+            int split = random.nextInt(data.length + 1);
+            int a = Crc32c.update(0, data, 0, split);
+            int b = Crc32c.update(0, data, split, data.length - split);
+            assertEquals("split at " + split, whole, Crc32c.combine(a, b, data.length - split));
+        }
+        // A 64 KiB head patched and hashed last, as HashingChannel does
+        int head = Crc32c.update(0, data, 0, HashingChannel.HEAD);
+        int tail = Crc32c.update(0, data, HashingChannel.HEAD, data.length - HashingChannel.HEAD);
+        assertEquals(whole, Crc32c.combine(head, tail, data.length - HashingChannel.HEAD));
+        assertEquals("empty B", head, Crc32c.combine(head, 0, 0));
+    }
+
+    private byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static long jdk(byte[] data, int off, int len) {
+        CRC32C c = new CRC32C();
+        c.update(data, off, len);
+        return c.getValue();
+    }
+}
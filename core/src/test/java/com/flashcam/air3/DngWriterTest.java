@@ -0,0 +1,304 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Golden layout of the strip DNG: which tags IFD0 carries, with what type
+ * and count, in what order, and the values the builder was given. The tag
+ * set mirrors what DngCreator writes for the same frame (the device test
+ * DngWriterDeviceTest compares the two directly).
+ */
+public class DngWriterTest {
+
+    private static final int W = 4096, H = 300;
+    private static final int[] IDENTITY = {1, 1, 0, 1, 0, 1, 0, 1, 1, 1, 0, 1, 0, 1, 0, 1, 1, 1};
+
+    private static final int BYTE = TiffDirectory.BYTE, ASCII = TiffDirectory.ASCII,
+        SHORT = TiffDirectory.SHORT, LONG = TiffDirectory.LONG, RATIONAL = TiffDirectory.RATIONAL,
+        SRATIONAL = TiffDirectory.SRATIONAL, DOUBLE = TiffDirectory.DOUBLE;
+
+    /** {tag, type, count} for every IFD0 entry of {@link #fullWriter}, in file order; -1 is "any count". */
+    private static final int[][] GOLDEN = {
+        {0x00FE, LONG, 1},        // NewSubfileType
+        {0x0100, LONG, 1},        // ImageWidth
+        {0x0101, LONG, 1},        // ImageLength
+        {0x0102, SHORT, 1},       // BitsPerSample
+        {0x0103, SHORT, 1},       // Compression
+        {0x0106, SHORT, 1},       // PhotometricInterpretation
+        {0x010E, ASCII, -1},      // ImageDescription
+        {0x010F, ASCII, -1},      // Make
+        {0x0110, ASCII, -1},      // Model
+        {0x0111, LONG, 3},        // StripOffsets
+        {0x0112, SHORT, 1},       // Orientation
+        {0x0115, SHORT, 1},       // SamplesPerPixel
+        {0x0116, LONG, 1},        // RowsPerStrip
+        {0x0117, LONG, 3},        // StripByteCounts
+        {0x011C, SHORT, 1},       // PlanarConfiguration
+        {0x0131, ASCII, -1},      // Software
+        {0x0132, ASCII, 20},      // DateTime
+        {0x828D, SHORT, 2},       // CFARepeatPatternDim
+        {0x828E, BYTE, 4},        // CFAPattern
+        {0x829A, RATIONAL, 1},    // ExposureTime
+        {0x829D, RATIONAL, 1},    // FNumber
+        {0x8827, SHORT, 1},       // ISOSpeedRatings
+        {0x9003, ASCII, 20},      // DateTimeOriginal
+        {0x920A, RATIONAL, 1},    // FocalLength
+        {0xC612, BYTE, 4},        // DNGVersion
+        {0xC613, BYTE, 4},        // DNGBackwardVersion
+        {0xC614, ASCII, -1},      // UniqueCameraModel
+        {0xC616, BYTE, 3},        // CFAPlaneColor
+        {0xC617, SHORT, 1},       // CFALayout
+        {0xC619, SHORT, 2},       // BlackLevelRepeatDim
+        {0xC61A, RATIONAL, 4},    // BlackLevel
+        {0xC61D, LONG, 1},        // WhiteLevel
+        {0xC61E, RATIONAL, 2},    // DefaultScale
+        {0xC61F, LONG, 2},        // DefaultCropOrigin
+        {0xC620, LONG, 2},        // DefaultCropSize
+        {0xC621, SRATIONAL, 9},   // ColorMatrix1
+        {0xC622, SRATIONAL, 9},   // ColorMatrix2
+        {0xC623, SRATIONAL, 9},   // CameraCalibration1
+        {0xC624, SRATIONAL, 9},   // CameraCalibration2
+        {0xC628, RATIONAL, 3},    // AsShotNeutral
+        {0xC630, RATIONAL, 4},    // LensInfo
+        {0xC65A, SHORT, 1},       // CalibrationIlluminant1
+        {0xC65B, SHORT, 1},       // CalibrationIlluminant2
+        {0xC68D, LONG, 4},        // ActiveArea
+        {0xC714, SRATIONAL, 9},   // ForwardMatrix1
+        {0xC715, SRATIONAL, 9},   // ForwardMatrix2
+        {0xC761, DOUBLE, 6},      // NoiseProfile
+    };
+
+    private static TimeZone zone;
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    @BeforeClass
+    public static void utc() {
+        zone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @AfterClass
+    public static void restoreZone() {
+        TimeZone.setDefault(zone);
+    }
+
+    @Test
+    public void ifdLayoutMatchesGolden() throws IOException {
+        TiffReader t = new TiffReader(write(fullWriter(), samples(W, H, 0), W * 2));
+        assertEquals(ByteOrder.LITTLE_ENDIAN, t.order());
+        assertEquals("IFD right after the header", 8, t.ifdOffset);
+        assertEquals(GOLDEN.length, t.order.size());
+        for (int i = 0; i < GOLDEN.length; i++) {
+            int[] g = GOLDEN[i];
+            String tag = String.format("tag 0x%04X", g[0]);
+            assertEquals("entry " + i, g[0], (int) t.order.get(i));
+            assertEquals(tag + " type", g[1], t.get(g[0]).type);
+            if (g[2] >= 0) assertEquals(tag + " count", g[2], t.get(g[0]).count);
+        }
+    }
+
+    @Test
+    public void tagValuesAreWhatTheBuilderWasGiven() throws IOException {
+        TiffReader t = new TiffReader(write(fullWriter(), samples(W, H, 0), W * 2));
+        assertArrayEquals(new long[]{0}, t.get(0x00FE).longs());
+        assertArrayEquals(new long[]{W}, t.get(0x0100).longs());
+        assertArrayEquals(new long[]{H}, t.get(0x0101).longs());
+        assertArrayEquals(new long[]{16}, t.get(0x0102).longs());
+        assertArrayEquals(new long[]{1}, t.get(0x0103).longs());
+        assertArrayEquals(new long[]{32803}, t.get(0x0106).longs());
+        assertEquals("golden frame", t.get(0x010E).ascii());
+        assertEquals("INMO", t.get(0x010F).ascii());
+        assertEquals("IMA301", t.get(0x0110).ascii());
+        assertEquals("INMO IMA301", t.get(0xC614).ascii());
+        assertArrayEquals(new long[]{6}, t.get(0x0112).longs());
+        assertEquals("FlashCam-Air3 test", t.get(0x0131).ascii());
+        assertEquals("2023:11:14 22:13:20", t.get(0x0132).ascii());
+        assertEquals("2023:11:14 22:13:20", t.get(0x9003).ascii());
+        assertArrayEquals(new long[]{2, 2}, t.get(0x828D).longs());
+        assertArrayEquals(new long[]{0, 1, 1, 2}, t.get(0x828E).longs());
+        assertArrayEquals(new long[]{1, 4, 0, 0}, t.get(0xC612).longs());
+        assertArrayEquals(new long[]{1, 1, 0, 0}, t.get(0xC613).longs());
+        assertArrayEquals(new long[]{0, 1, 2}, t.get(0xC616).longs());
+        assertArrayEquals(new double[]{1 / 60.0}, t.get(0x829A).doubles(), 1e-6);
+        assertArrayEquals(new double[]{2.2}, t.get(0x829D).doubles(), 1e-9);
+        assertArrayEquals(new long[]{400}, t.get(0x8827).longs());
+        assertArrayEquals(new double[]{2.6}, t.get(0x920A).doubles(), 1e-9);
+        assertArrayEquals(new double[]{64, 64.5, 64, 63.75}, t.get(0xC61A).doubles(), 1e-9);
+        assertArrayEquals(new long[]{1023}, t.get(0xC61D).longs());
+        assertArrayEquals(new double[]{1, 1}, t.get(0xC61E).doubles(), 0);
+        assertArrayEquals(new double[]{0.5, 1, 2 / 3.0}, t.get(0xC628).doubles(), 1e-9);
+        assertArrayEquals(new double[]{2.6, 2.6, 2.2, 2.2}, t.get(0xC630).doubles(), 1e-9);
+        assertArrayEquals(new long[]{21}, t.get(0xC65A).longs());
+        assertArrayEquals(new long[]{17}, t.get(0xC65B).longs());
+        assertArrayEquals(new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, t.get(0xC621).doubles(), 0);
+        assertArrayEquals(new double[]{1e-5, 1e-7, 2e-5, 2e-7, 3e-5, 3e-7}, t.get(0xC761).doubles(), 0);
+        // ActiveArea is top, left, bottom, right; the default crop keeps an 8-pixel margin inside it
+        assertArrayEquals(new long[]{20, 24, H - 20, W - 24}, t.get(0xC68D).longs());
+        assertArrayEquals(new long[]{8, 8}, t.get(0xC61F).longs());
+        assertArrayEquals(new long[]{W - 48 - 16, H - 40 - 16}, t.get(0xC620).longs());
+    }
+
+    @Test
+    public void stripsAreAlignedAndHoldEverySample() throws IOException {
+        short[] samples = samples(W, H, 1);
+        DngWriter d = fullWriter();
+        TiffReader t = new TiffReader(write(d, samples, W * 2));
+        long[] offsets = t.get(0x0111).longs();
+        long[] counts = t.get(0x0117).longs();
+        long rows = t.get(0x0116).longs()[0];
+        assertEquals(128, rows);
+        assertEquals(3, d.strips());
+        assertEquals(0, d.headerBytes() % 4096);
+        assertEquals(d.headerBytes(), offsets[0]);
+        for (int s = 0; s < offsets.length; s++) {
+            assertEquals(Math.min(rows, H - s * rows) * W * 2, counts[s]);
+            if (s > 0) assertEquals(offsets[s - 1] + counts[s - 1], offsets[s]);
+        }
+        assertArrayEquals(samples, t.stripSamples());
+    }
+
+    @Test
+    public void paddedRowsAreGatheredWithoutThePadding() throws IOException {
+        short[] samples = samples(W, H, 2);
+        TiffReader t = new TiffReader(write(fullWriter(), samples, W * 2 + 96));
+        assertArrayEquals(samples, t.stripSamples());
+    }
+
+    @Test
+    public void minimalFrameHasOnlyTheBayerTags() throws IOException {
+        int w = 16, h = 8;
+        TiffReader t = new TiffReader(write(DngWriter.bayer(w, h, new byte[]{2, 1, 1, 0}), samples(w, h, 3), w, h, w * 2));
+        assertArrayEquals(new long[]{2, 1, 1, 0}, t.get(0x828E).longs());
+        // Too small for a crop margin
+        assertArrayEquals(new long[]{0, 0}, t.get(0xC61F).longs());
+        assertArrayEquals(new long[]{w, h}, t.get(0xC620).longs());
+        List<Integer> expected = new ArrayList<>();
+        for (int[] g : GOLDEN) {
+            int tag = g[0];
+            boolean optional = tag == 0x010E || tag == 0x010F || tag == 0x0110 || tag == 0x0131
+                || tag == 0x0132 || (tag >= 0x829A && tag <= 0x920A) || tag == 0xC614
+                || (tag >= 0xC619 && tag <= 0xC61D) || (tag >= 0xC621 && tag <= 0xC630)
+                || tag >= 0xC65A;
+            if (!optional) expected.add(tag);
+        }
+        assertEquals(expected, t.order);
+    }
+
+    @Test
+    public void restoredSnapshotWritesTheSameFile() throws IOException {
+        short[] samples = samples(W, H, 4);
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        fullWriter().snapshot(new DataOutputStream(saved));
+        DngWriter restored = DngWriter.restore(new DataInputStream(new ByteArrayInputStream(saved.toByteArray())));
+        byte[] a = Files.readAllBytes(write(fullWriter(), samples, W * 2));
+        byte[] b = Files.readAllBytes(write(restored, samples, W * 2));
+        assertArrayEquals(a, b);
+    }
+
+    @Test
+    public void tiledLayoutPointsAtWholeLosslessJpegTiles() throws IOException {
+        int w = 600, h = 300;
+        Path out = tmp.newFile().toPath();
+        DngWriter d = DngWriter.bayer(w, h, new byte[]{0, 1, 1, 2});
+        try (FileChannel ch = FileChannel.open(out, StandardOpenOption.WRITE)) {
+            d.writeTiledTo(ch, buffer(samples(w, h, 5), w, h, w * 2), w * 2, new ForkJoinPool(2));
+        }
+        byte[] file = Files.readAllBytes(out);
+        TiffReader t = new TiffReader(out);
+        assertArrayEquals(new long[]{7}, t.get(0x0103).longs());
+        assertArrayEquals(new long[]{256}, t.get(0x0142).longs());
+        assertArrayEquals(new long[]{256}, t.get(0x0143).longs());
+        long[] offsets = t.get(0x0144).longs();
+        long[] counts = t.get(0x0145).longs();
+        assertEquals(3 * 2, d.tiles());
+        assertEquals(d.tiles(), offsets.length);
+        assertEquals(d.tiles(), counts.length);
+        assertEquals(8, offsets[0]);
+        for (int i = 0; i < offsets.length; i++) {
+            int start = (int) offsets[i], end = (int) (offsets[i] + counts[i]);
+            assertTrue("tile " + i + " before the IFD", end <= t.ifdOffset);
+            assertEquals("SOI", 0xFFD8, ((file[start] & 0xFF) << 8) | (file[start + 1] & 0xFF));
+            assertEquals("EOI", 0xFFD9, ((file[end - 2] & 0xFF) << 8) | (file[end - 1] & 0xFF));
+        }
+    }
+
+    /** Every optional tag set, roughly what DngTags produces on the Air3. */
+    private static DngWriter fullWriter() {
+        return DngWriter.bayer(W, H, new byte[]{0, 1, 1, 2})
+            .camera("INMO", "IMA301")
+            .blackLevel(64, 1, 129, 2, 64, 1, 255, 4)
+            .whiteLevel(1023)
+            .color(1, IDENTITY, 21, IDENTITY, IDENTITY)
+            .color(2, IDENTITY, 17, IDENTITY, IDENTITY)
+            .asShotNeutral(1, 2, 1, 1, 2, 3)
+            .noiseProfile(1e-5, 1e-7, 2e-5, 2e-7, 3e-5, 3e-7)
+            .exposureTime(16_666_666L)
+            .iso(400)
+            .fNumber(2.2f)
+            .focalLength(2.6f)
+            .lensInfo(2.6f, 2.6f, 2.2f, 2.2f)
+            .activeArea(24, 20, W - 24, H - 20)
+            .orientation(6)
+            .description("golden frame")
+            .software("FlashCam-Air3 test")
+            .captureTime(1_700_000_000_000L);
+    }
+
+    private Path write(DngWriter d, short[] samples, int rowStride) throws IOException {
+        return write(d, samples, W, H, rowStride);
+    }
+
+    private Path write(DngWriter d, short[] samples, int w, int h, int rowStride) throws IOException {
+        Path out = tmp.newFile().toPath();
+        try (FileChannel ch = FileChannel.open(out, StandardOpenOption.WRITE)) {
+            d.writeTo(ch, buffer(samples, w, h, rowStride), rowStride);
+        }
+        return out;
+    }
+
+    /** Little-endian rows of rowStride bytes, the padding filled with 0xEE. */
+    private static ByteBuffer buffer(short[] samples, int w, int h, int rowStride) {
+        ByteBuffer b = ByteBuffer.allocateDirect(rowStride * h).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < h; y++) {
+            b.position(y * rowStride);
+            for (int x = 0; x < w; x++) b.putShort(samples[y * w + x]);
+            while (b.position() < (y + 1) * rowStride) b.put((byte) 0xEE);
+        }
+        b.clear();
+        return b;
+    }
+
+    private static short[] samples(int w, int h, long seed) {
+        Random rnd = new Random(seed);
+        short[] s = new short[w * h];
+        for (int i = 0; i < s.length; i++) s[i] = (short) rnd.nextInt(1024);
+        return s;
+    }
+}
@@ -0,0 +1,117 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrameRingTest {
+
+    /** 30 fps. */
+    private static final long FRAME_NS = 33_333_333L;
+
+    private final FrameRing ring = new FrameRing(8);
+    private long next;
+
+    @Test
+    public void drainReadsEveryPublishedFrame() {
+        assertFalse(ring.drain());
+        for (int i = 0; i < 3; i++) ring.write(frame(FRAME_NS));
+        assertTrue(ring.drain());
+        assertFalse(ring.drain());
+        assertEquals(3, ring.frames());
+        assertEquals(0, ring.dropped());
+        assertEquals(0, ring.overrun());
+        assertEquals(2, ring.lastAf);
+        assertEquals(400, ring.lastIso);
+        assertEquals(FRAME_NS, ring.lastDuration);
+    }
+
+    @Test
+    public void lappedReaderCountsOverrun() {
+        ring.write(frame(FRAME_NS));
+        ring.drain();
+        // The UI thread stalls for 20 frames of an 8-slot ring
+        for (int i = 0; i < 20; i++) ring.write(frame(FRAME_NS));
+        assertTrue(ring.drain());
+        // It may read only frames at least GUARD (4) behind the writer's lap: 21 - 8 + 4 = 17 onwards
+        assertEquals(16, ring.overrun());
+        assertEquals(1 + 4, ring.frames());
+        assertEquals("the gap is the reader's, not the sensor's", 0, ring.dropped());
+    }
+
+    @Test
+    public void timestampGapCountsDroppedFrames() {
+        for (int i = 0; i < 4; i++) write(frame(FRAME_NS));
+        // The sensor skips three frames
+        next += 3 * FRAME_NS;
+        for (int i = 0; i < 3; i++) write(frame(FRAME_NS));
+        assertEquals(7, ring.frames());
+        assertEquals(3, ring.dropped());
+        assertEquals(0, ring.overrun());
+    }
+
+    @Test
+    public void gapWithoutFrameDurationUsesTheAverageInterval() {
+        for (int i = 0; i < 6; i++) write(frame(FrameRing.UNKNOWN));
+        next += 2 * FRAME_NS;
+        write(frame(FrameRing.UNKNOWN));
+        assertEquals(2, ring.dropped());
+    }
+
+    @Test
+    public void jitterFollowsIntervalDeviation() {
+        for (int i = 0; i < 50; i++) write(frame(FRAME_NS));
+        assertEquals(0, ring.jitterNanos());
+        for (int i = 0; i < 100; i++) {
+            // Alternately 2 ms early and 2 ms late
+            next += (i % 2 == 0 ? -2_000_000 : 2_000_000);
+            write(frame(FRAME_NS));
+        }
+        assertEquals(2_000_000, ring.jitterNanos(), 300_000);
+        assertEquals(0, ring.dropped());
+    }
+
+    @Test
+    public void missingFieldsAreUnknown() {
+        ring.write(new Result(null, null));
+        ring.drain();
+        assertEquals(FrameRing.UNKNOWN, ring.lastAf);
+        assertEquals(FrameRing.UNKNOWN, ring.lastExposure);
+        assertEquals(1, ring.frames());
+    }
+
+    /** Publish r and read it, as the UI thread keeping up would. */
+    private void write(Result r) {
+        ring.write(r);
+        ring.drain();
+    }
+
+    /** Next frame, one frame interval after the last; duration may be UNKNOWN. */
+    private Result frame(long duration) {
+        next += FRAME_NS;
+        return new Result(next, duration == FrameRing.UNKNOWN ? null : duration);
+    }
+
+    private static final class Result implements CameraBackend.Result {
+        private final Long timestamp, duration;
+
+        Result(Long timestamp, Long duration) {
+            this.timestamp = timestamp;
+            this.duration = duration;
+        }
+
+        @Override public Long sensorTimestamp() { return timestamp; }
+        @Override public Integer afState() { return timestamp != null ? 2 : null; }
+        @Override public Integer aeState() { return timestamp != null ? 2 : null; }
+        @Override public Integer awbState() { return null; }
+        @Override public Integer iso() { return timestamp != null ? 400 : null; }
+        @Override public Long exposureTime() { return timestamp != null ? 10_000_000L : null; }
+        @Override public Long frameDuration() { return duration; }
+        @Override public Float focusDistance() { return null; }
+        @Override public Float aperture() { return null; }
+        @Override public Float focalLength() { return null; }
+        @Override public Object platform() { return null; }
+    }
+}
@@ -0,0 +1,126 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Checksums taken on the way out must match the bytes that ended up in the file. */
+public class HashingChannelTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Random random = new Random(23);
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = tmp.newFile("out.bin");
+    }
+
+    @Test
+    public void sequentialAndGatheringWrites() throws Exception {
+        HashingChannel hc = open(true);
+        try (hc) {
+            hc.write(ByteBuffer.wrap(bytes(1000)));
+            // A gathering write that crosses the end of HEAD
+            hc.write(new ByteBuffer[]{ByteBuffer.wrap(bytes(40_000)), direct(bytes(50_000)), ByteBuffer.wrap(bytes(3))});
+            hc.write(direct(bytes(120_001)));
+        }
+        assertTrue(hc.valid());
+        byte[] written = Files.readAllBytes(file.toPath());
+        assertEquals(211_004, written.length);
+        assertEquals(crc(written), hc.crc32c());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(written), hc.sha256());
+    }
+
+    @Test
+    public void shortFileStaysInHead() throws Exception {
+        HashingChannel hc = open(true);
+        try (hc) {
+            hc.write(ByteBuffer.wrap(bytes(100)));
+            hc.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), 10);
+        }
+        byte[] written = Files.readAllBytes(file.toPath());
+        assertEquals(crc(written), hc.crc32c());
+        assertArrayEquals("head not yet fed to SHA-256, so a patch is fine",
+            MessageDigest.getInstance("SHA-256").digest(written), hc.sha256());
+    }
+
+    @Test
+    public void headerPatchedAfterTheBody() throws Exception {
+        HashingChannel hc = open(true);
+        try (hc) {
+            hc.write(ByteBuffer.allocate(512));                 // placeholder header
+            hc.write(ByteBuffer.wrap(bytes(HashingChannel.HEAD * 3)));
+            hc.write(ByteBuffer.wrap(bytes(512)), 0);            // the real header
+            hc.write(ByteBuffer.wrap(bytes(8)), HashingChannel.HEAD - 8);
+        }
+        assertTrue(hc.valid());
+        byte[] written = Files.readAllBytes(file.toPath());
+        assertEquals(crc(written), hc.crc32c());
+        assertNull("SHA-256 already saw the old head", hc.sha256());
+    }
+
+    @Test
+    public void positionalWriteOutsideHeadInvalidates() throws Exception {
+        HashingChannel hc = open(false);
+        try (hc) {
+            hc.write(ByteBuffer.wrap(bytes(HashingChannel.HEAD + 1000)));
+            hc.write(ByteBuffer.wrap(bytes(4)), HashingChannel.HEAD + 10);
+        }
+        assertFalse(hc.valid());
+        assertNull(hc.sha256());
+    }
+
+    @Test
+    public void seekAwayFromTheStreamEndInvalidates() throws Exception {
+        HashingChannel hc = open(false);
+        try (hc) {
+            hc.write(ByteBuffer.wrap(bytes(100)));
+            hc.position(50);
+            hc.write(ByteBuffer.wrap(bytes(10)));
+        }
+        assertFalse(hc.valid());
+    }
+
+    private HashingChannel open(boolean withSha) throws Exception {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new HashingChannel(ch, withSha ? MessageDigest.getInstance("SHA-256") : null);
+    }
+
+    private byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static ByteBuffer direct(byte[] b) {
+        ByteBuffer d = ByteBuffer.allocateDirect(b.length).put(b);
+        d.flip();
+        return d;
+    }
+
+    private static int crc(byte[] data) {
+        CRC32C c = new CRC32C();
+        c.update(data);
+        return (int) c.getValue();
+    }
+}
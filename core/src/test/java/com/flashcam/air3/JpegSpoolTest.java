@@ -0,0 +1,186 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JpegSpoolTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> payloads = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("jpeg-spool");
+    }
+
+    @Test
+    public void doneDeletesTheSpoolFile() throws IOException {
+        JpegSpool spool = new JpegSpool(dir);
+        JpegSpool.Entry e = spool.spool("a.jpg", "image/jpeg", bytes(1, 100));
+        assertTrue(e.file.exists());
+        assertEquals(1, spool.pending());
+        spool.done(e);
+        assertFalse(e.file.exists());
+        assertEquals(0, spool.pending());
+    }
+
+    @Test
+    public void nextLaunchReplaysWhatWasNeverSaved() throws Exception {
+        ByteBuffer header = bytes(7, 30), body = bytes(8, 5000);
+        header.position(3);
+        JpegSpool first = new JpegSpool(dir);
+        JpegSpool.Entry e = first.spool("shot.jpg", "image/jpeg", header, body);
+        assertEquals("positions untouched", 3, header.position());
+        assertEquals(27 + 5000, e.bytes);
+        // Process dies before the save; the next launch replays it
+        new JpegSpool(dir).replay(this::record);
+        assertEquals(List.of("shot.jpg"), names);
+        assertArrayEquals(concat(header, body), payloads.get(0));
+        assertFalse(e.file.exists());
+    }
+
+    @Test
+    public void replaySkipsWhatThisProcessIsStillSaving() throws Exception {
+        JpegSpool spool = new JpegSpool(dir);
+        JpegSpool.Entry e = spool.spool("live.jpg", "image/jpeg", bytes(1, 10));
+        spool.replay(this::record);
+        assertTrue(names.isEmpty());
+        assertTrue(e.file.exists());
+    }
+
+    @Test
+    public void keptEntryIsReplayedNextLaunch() throws Exception {
+        JpegSpool spool = new JpegSpool(dir);
+        spool.keep(spool.spool("failed-save.jpg", "image/jpeg", bytes(2, 10)));
+        new JpegSpool(dir).replay(this::record);
+        assertEquals(List.of("failed-save.jpg"), names);
+    }
+
+    @Test
+    public void sameNameNeverTruncatesAQueuedFile() throws Exception {
+        JpegSpool spool = new JpegSpool(dir);
+        spool.keep(spool.spool("dup.jpg", "image/jpeg", bytes(4, 10)));
+        try {
+            spool.spool("dup.jpg", "image/jpeg", bytes(5, 20));
+            fail("second spool of the same name");
+        } catch (FileAlreadyExistsException expected) {
+        }
+        new JpegSpool(dir).replay(this::record);
+        assertEquals(List.of("dup.jpg"), names);
+        assertArrayEquals(concat(bytes(4, 10)), payloads.get(0));
+    }
+
+    @Test
+    public void shotIdsAreUniqueWithinAMillisecond() {
+        long now = System.currentTimeMillis();
+        assertNotEquals(CaptureStages.shotId(now), CaptureStages.shotId(now));
+    }
+
+    @Test
+    public void tornFileIsDropped() throws Exception {
+        JpegSpool.Entry e = new JpegSpool(dir).spool("torn.jpg", "image/jpeg", bytes(3, 4000));
+        try (RandomAccessFile f = new RandomAccessFile(e.file, "rw")) {
+            f.setLength(f.length() - 100);
+        }
+        new JpegSpool(dir).replay(this::record);
+        assertTrue(names.isEmpty());
+        assertFalse(e.file.exists());
+    }
+
+    @Test
+    public void unfinishedWriteIsDropped() throws Exception {
+        JpegSpool.Entry e = new JpegSpool(dir).spool("cut.jpg", "image/jpeg", bytes(3, 40));
+        try (RandomAccessFile f = new RandomAccessFile(e.file, "rw")) {
+            f.seek(8);
+            f.write(0);
+        }
+        new JpegSpool(dir).replay(this::record);
+        assertTrue(names.isEmpty());
+        assertFalse(e.file.exists());
+    }
+
+    @Test
+    public void failingSaveIsParkedAfterMaxAttempts() throws Exception {
+        JpegSpool.Entry e = new JpegSpool(dir).spool("bad.jpg", "image/jpeg", bytes(4, 10));
+        for (int i = 0; i < JpegSpool.MAX_ATTEMPTS; i++) {
+            assertTrue("still spooled before attempt " + (i + 1), e.file.exists());
+            new JpegSpool(dir).replay((n, m, d) -> false);
+        }
+        assertFalse(e.file.exists());
+        assertTrue(new File(dir, e.file.getName() + ".failed").exists());
+        new JpegSpool(dir).replay(this::record);
+        assertTrue(names.isEmpty());
+    }
+
+    @Test
+    public void saverExceptionCountsAsAFailedAttempt() throws Exception {
+        JpegSpool.Entry e = new JpegSpool(dir).spool("boom.jpg", "image/jpeg", bytes(5, 10));
+        new JpegSpool(dir).replay((n, m, d) -> { throw new IOException("MediaStore down"); });
+        assertTrue(e.file.exists());
+        new JpegSpool(dir).replay(this::record);
+        assertEquals(List.of("boom.jpg"), names);
+    }
+
+    @Test
+    public void throwingSaveIsParkedAfterMaxAttempts() throws Exception {
+        JpegSpool.Entry e = new JpegSpool(dir).spool("boom.jpg", "image/jpeg", bytes(6, 10));
+        for (int i = 0; i < JpegSpool.MAX_ATTEMPTS; i++) {
+            new JpegSpool(dir).replay((n, m, d) -> { throw new IOException("MediaStore down"); });
+        }
+        assertFalse(e.file.exists());
+        assertTrue(new File(dir, e.file.getName() + ".failed").exists());
+    }
+
+    @Test
+    public void replaysOldestNameFirst() throws Exception {
+        JpegSpool spool = new JpegSpool(dir);
+        spool.spool("FlashCam_2.jpg", "image/jpeg", bytes(1, 10));
+        spool.spool("FlashCam_1.jpg", "image/jpeg", bytes(1, 10));
+        new JpegSpool(dir).replay(this::record);
+        assertEquals(List.of("FlashCam_1.jpg", "FlashCam_2.jpg"), names);
+    }
+
+    private boolean record(String name, String mimeType, ByteBuffer data) {
+        assertEquals("image/jpeg", mimeType);
+        byte[] b = new byte[data.remaining()];
+        data.get(b);
+        names.add(name);
+        payloads.add(b);
+        return true;
+    }
+
+    private static ByteBuffer bytes(int seed, int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) b[i] = (byte) (seed * 31 + i * 7);
+        return ByteBuffer.wrap(b);
+    }
+
+    private static byte[] concat(ByteBuffer... parts) {
+        int n = 0;
+        for (ByteBuffer p : parts) n += p.remaining();
+        ByteBuffer out = ByteBuffer.allocate(n);
+        for (ByteBuffer p : parts) out.put(p.duplicate());
+        return out.array();
+    }
+}
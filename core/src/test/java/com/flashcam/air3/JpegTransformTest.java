@@ -0,0 +1,163 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Lossless rotation checked on pixels: a small 4:2:0 JPEG from ImageIO is
+ * rotated in the DCT domain in every {@link JpegWriter.Mode}, decoded with
+ * ImageIO again, and compared with an exact rotation of the decoded source.
+ * Only the decoder's IDCT and chroma-upsampling rounding may differ (it
+ * isn't symmetric under rotation), so the tolerance is a few levels;
+ * a misplaced or wrongly flipped block is off by far more.
+ */
+public class JpegTransformTest {
+
+    /** Whole 16x16 MCUs, so nothing is trimmed. */
+    private static final int W = 96, H = 64;
+    private static final int MAX_DIFF = 4;
+    private static final double MAX_MEAN_DIFF = 0.5;
+
+    private static byte[] source;
+    private static BufferedImage decodedSource;
+
+    @BeforeClass
+    public static void encodeSource() throws IOException {
+        source = encode(pattern(W, H));
+        decodedSource = ImageIO.read(new ByteArrayInputStream(source));
+    }
+
+    @Test
+    public void rotationsMatchDecodedSourceInEveryMode() throws IOException {
+        for (JpegWriter.Mode mode : JpegWriter.Mode.values()) {
+            for (int degrees : new int[]{90, 180, 270}) {
+                byte[] rotated = JpegTransform.rotate(source, degrees, mode);
+                BufferedImage out = ImageIO.read(new ByteArrayInputStream(rotated));
+                assertSame(mode + " " + degrees, rotate(decodedSource, degrees), out);
+            }
+        }
+    }
+
+    @Test
+    public void reencodeKeepsThePixels() throws IOException {
+        for (JpegWriter.Mode mode : JpegWriter.Mode.values()) {
+            BufferedImage out = ImageIO.read(new ByteArrayInputStream(JpegTransform.reencode(source, mode)));
+            assertSame(mode.toString(), decodedSource, out);
+        }
+    }
+
+    @Test
+    public void optimizedIsNoLargerThanStandard() throws IOException {
+        for (int degrees : new int[]{0, 90, 180, 270}) {
+            int standard = JpegTransform.rotate(source, degrees, JpegWriter.Mode.STANDARD).length;
+            int optimized = JpegTransform.rotate(source, degrees, JpegWriter.Mode.OPTIMIZED).length;
+            assertTrue(String.format(Locale.US, "%d: optimized %d > standard %d", degrees, optimized, standard),
+                optimized <= standard);
+        }
+    }
+
+    @Test
+    public void partialMcuEdgesAreTrimmed() throws IOException {
+        // 100x70: the bottom 6 rows (a partial MCU) end up on the left after 90 and are dropped
+        byte[] jpeg = encode(pattern(100, 70));
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+        BufferedImage out = ImageIO.read(new ByteArrayInputStream(JpegTransform.rotate(jpeg, 90)));
+        assertEquals(64, out.getWidth());
+        assertEquals(100, out.getHeight());
+        assertSame("trimmed 90", rotate(decoded.getSubimage(0, 0, 100, 64), 90), out);
+    }
+
+    @Test
+    public void coefficientRotationConsumesItsInput() throws IOException {
+        JpegCoefficients src = JpegCoefficients.decode(source, 0, source.length);
+        JpegCoefficients dst = JpegTransform.rotate(src, 90);
+        assertEquals(H, dst.width);
+        assertEquals(W, dst.height);
+        for (JpegCoefficients.Component c : src.components) assertNull(c.coef);
+    }
+
+    // ── Helpers ──
+
+    /** Gradients plus an off-centre block and diagonal, so every rotation and flip looks different. */
+    private static BufferedImage pattern(int w, int h) {
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int r = x * 255 / (w - 1);
+                int g = y * 255 / (h - 1);
+                int b = (x < w / 3 && y < h / 4) ? 230 : (Math.abs(x - 2 * y) < 3 ? 20 : 120);
+                img.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return img;
+    }
+
+    private static byte[] encode(BufferedImage img) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /** Exact clockwise rotation. */
+    private static BufferedImage rotate(BufferedImage src, int degrees) {
+        int w = src.getWidth(), h = src.getHeight();
+        boolean transpose = degrees != 180;
+        BufferedImage dst = new BufferedImage(transpose ? h : w, transpose ? w : h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int rgb = src.getRGB(x, y);
+                switch (degrees) {
+                    case 90:  dst.setRGB(h - 1 - y, x, rgb); break;
+                    case 180: dst.setRGB(w - 1 - x, h - 1 - y, rgb); break;
+                    default:  dst.setRGB(y, w - 1 - x, rgb); break;
+                }
+            }
+        }
+        return dst;
+    }
+
+    private static void assertSame(String what, BufferedImage expected, BufferedImage actual) {
+        assertEquals(what + " width", expected.getWidth(), actual.getWidth());
+        assertEquals(what + " height", expected.getHeight(), actual.getHeight());
+        int max = 0;
+        long sum = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y), a = actual.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int d = Math.abs(((e >> shift) & 0xFF) - ((a >> shift) & 0xFF));
+                    max = Math.max(max, d);
+                    sum += d;
+                }
+            }
+        }
+        double mean = sum / (3.0 * expected.getWidth() * expected.getHeight());
+        assertTrue(String.format(Locale.US, "%s: max diff %d, mean %.2f", what, max, mean),
+            max <= MAX_DIFF && mean <= MAX_MEAN_DIFF);
+    }
+}
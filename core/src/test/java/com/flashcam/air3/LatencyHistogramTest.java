@@ -0,0 +1,102 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    /** Documented bound: 16 sub-buckets per power of two. */
+    private static final double ERROR = 1.0 / 16;
+
+    @Test
+    public void uniformSamplePercentilesWithinBucketError() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++) h.recordNanos(ms * 1_000_000L);
+        assertEquals(1000, h.count());
+        assertEquals(500_500_000L, h.sumMicros());
+        assertNear(500, h.percentileMs(0.50));
+        assertNear(950, h.percentileMs(0.95));
+        assertNear(990, h.percentileMs(0.99));
+        assertNear(1000, h.percentileMs(1.0));
+        assertNear(1, h.percentileMs(0));
+    }
+
+    @Test
+    public void skewedSampleMatchesExactRanks() {
+        Random random = new Random(18);
+        List<Long> micros = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            // Log-normal-ish: mostly tens of ms with a long tail
+            micros.add((long) (20_000 * Math.exp(random.nextGaussian())) + 1);
+        }
+        LatencyHistogram h = new LatencyHistogram();
+        for (long us : micros) h.recordNanos(us * 1000);
+        Collections.sort(micros);
+        for (double q : new double[]{0.5, 0.9, 0.95, 0.99, 0.999}) {
+            long exact = micros.get((int) Math.ceil(q * micros.size()) - 1);
+            assertNear(exact / 1000.0, h.percentileMs(q));
+        }
+    }
+
+    @Test
+    public void subMicrosecondAndZeroLandInTheZeroBucket() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.recordNanos(0);
+        h.recordNanos(999);
+        h.recordNanos(-5);
+        assertEquals(3, h.count());
+        assertEquals(0, h.sumMicros());
+        assertEquals(0, h.percentileMs(0.99), 0);
+        assertEquals(3, h.countAtMost(0));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int us = 1; us <= 15; us++) h.recordNanos(us * 1000L);
+        assertEquals(0.007, h.percentileMs(7 / 15.0), 1e-9);
+        assertEquals(7, h.countAtMost(7));
+    }
+
+    @Test
+    public void overflowBucketTakesAnythingPastTheRange() {
+        LatencyHistogram h = new LatencyHistogram();
+        long threeHoursUs = 3L * 3600 * 1_000_000;
+        h.recordNanos(1_000_000);
+        h.recordNanos(threeHoursUs * 1000);
+        h.recordNanos(Long.MAX_VALUE);
+        assertEquals(3, h.count());
+        // The last bucket starts at 31 << 28 us (~2.3 h); its value is capped at the largest sample
+        double p100 = h.percentileMs(1.0);
+        assertTrue(String.valueOf(p100), p100 >= (31L << 28) / 1000.0 && p100 <= Long.MAX_VALUE / 1e6);
+        assertEquals(1.0, h.percentileMs(0.33), 1.0 * ERROR);
+        // Only +Inf counts the overflow bucket
+        assertEquals(1, h.countAtMost(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentileNeverExceedsTheLargestSample() {
+        LatencyHistogram h = new LatencyHistogram();
+        // 1000 us falls in [992, 1024), whose midpoint is 1007.5 us
+        h.recordNanos(1_000_000);
+        assertEquals(1.0, h.percentileMs(1.0), 0);
+    }
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.percentileMs(0.5), 0);
+        assertEquals(0, h.countAtMost(Long.MAX_VALUE));
+    }
+
+    private static void assertNear(double expectedMs, double actualMs) {
+        assertEquals("expected " + expectedMs + " ms", expectedMs, actualMs, expectedMs * ERROR);
+    }
+}
@@ -0,0 +1,127 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsServerTest {
+
+    private final Metrics metrics = new Metrics();
+    private final LatencyStats latency = new LatencyStats();
+    private MetricsServer server;
+
+    @Before
+    public void start() throws IOException {
+        metrics.counter("flashcam_captures_total", "Captures by mode.")
+            .gauge("flashcam_queue_depth", "Shots waiting.", () -> 2)
+            .latency("flashcam_stage_seconds", latency);
+        metrics.inc("flashcam_captures_total", "mode=\"jpeg\"");
+        metrics.inc("flashcam_captures_total", "mode=\"jpeg\"");
+        server = new MetricsServer(metrics, 0);
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.stop();
+        assertFalse(server.isRunning());
+        assertEquals(-1, server.port());
+    }
+
+    @Test
+    public void metricsAnswersWithExposition() throws IOException {
+        Response r = get("/metrics");
+        assertEquals("HTTP/1.1 200 OK", r.status);
+        assertTrue(r.headers.contains("Content-Type: text/plain; version=0.0.4; charset=utf-8"));
+        assertTrue(r.headers.contains("Content-Length: " + r.body.length));
+        List<String> lines = Arrays.asList(r.text().split("\n"));
+        assertTrue(lines.contains("# HELP flashcam_captures_total Captures by mode."));
+        assertTrue(lines.contains("# TYPE flashcam_captures_total counter"));
+        assertTrue(lines.contains("flashcam_captures_total{mode=\"jpeg\"} 2"));
+        assertTrue(lines.contains("# TYPE flashcam_queue_depth gauge"));
+        assertTrue(lines.contains("flashcam_queue_depth 2"));
+        assertTrue(lines.contains("# TYPE flashcam_stage_seconds histogram"));
+    }
+
+    @Test
+    public void latencyBucketsNeverCountSamplesAboveTheBound() throws IOException {
+        latency.record("16MP", "encode", 4_000_000L);
+        // Shares a histogram bucket with 5 ms but lies above it
+        latency.record("16MP", "encode", 5_100_000L);
+        latency.record("16MP", "encode", 20_000_000L);
+        List<String> lines = Arrays.asList(get("/metrics").text().split("\n"));
+        String series = "flashcam_stage_seconds_bucket{config=\"16MP\",stage=\"encode\",le=";
+        assertTrue(lines.contains(series + "\"0.005\"} 1"));
+        assertTrue(lines.contains(series + "\"0.01\"} 2"));
+        assertTrue(lines.contains(series + "\"0.025\"} 3"));
+        assertTrue(lines.contains(series + "\"+Inf\"} 3"));
+        assertTrue(lines.contains("flashcam_stage_seconds_count{config=\"16MP\",stage=\"encode\"} 3"));
+    }
+
+    @Test
+    public void rootIsAnAliasForMetrics() throws IOException {
+        assertEquals("HTTP/1.1 200 OK", get("/").status);
+    }
+
+    @Test
+    public void unknownPathIsNotFound() throws IOException {
+        Response r = get("/nope");
+        assertEquals("HTTP/1.1 404 Not Found", r.status);
+        assertTrue(r.headers.contains("Content-Length: " + r.body.length));
+        assertEquals("Not found; try /metrics\n", r.text());
+    }
+
+    @Test
+    public void answersScrapesOneAfterAnother() throws IOException {
+        for (int i = 0; i < 3; i++) assertEquals("HTTP/1.1 200 OK", get("/metrics").status);
+    }
+
+    private static final class Response {
+        String status;
+        List<String> headers;
+        byte[] body;
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Raw HTTP/1.1 GET; the server closes the connection after one response. */
+    private Response get(String path) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+            s.setSoTimeout(5000);
+            OutputStream out = s.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = s.getInputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) >= 0; ) raw.write(buf, 0, n);
+        }
+        byte[] all = raw.toByteArray();
+        String text = new String(all, StandardCharsets.ISO_8859_1);
+        int split = text.indexOf("\r\n\r\n");
+        assertTrue("header terminator", split > 0);
+        List<String> head = Arrays.asList(text.substring(0, split).split("\r\n"));
+        Response r = new Response();
+        r.status = head.get(0);
+        r.headers = head.subList(1, head.size());
+        r.body = Arrays.copyOfRange(all, split + 4, all.length);
+        return r;
+    }
+}
@@ -0,0 +1,124 @@
+package com.flashcam.air3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RawUnpackerTest {
+
+    @Test
+    public void raw10LowBitsArePackedLsbFirst() {
+        // Pixel i's low two bits sit in bits [2i, 2i+1] of byte 4
+        byte[] in = {0x01, 0x02, 0x03, 0x04, (byte) 0b11_10_01_00};
+        short[] out = new short[4];
+        RawUnpacker.unpackRaw10(in, out, 4);
+        assertArrayEquals(new short[]{4, 9, 14, 19}, out);
+    }
+
+    @Test
+    public void raw12LowNibblesArePackedLsbFirst() {
+        // Pixel 0's low nibble in bits 0-3 of byte 2, pixel 1's in bits 4-7
+        byte[] in = {(byte) 0xAB, (byte) 0xCD, 0x21};
+        short[] out = new short[2];
+        RawUnpacker.unpackRaw12(in, out, 2);
+        assertArrayEquals(new short[]{0xAB1, 0xCD2}, out);
+    }
+
+    @Test
+    public void rowBytesRoundsUpToWholeGroups() {
+        assertEquals(5, RawUnpacker.rowBytes(RawUnpacker.RAW10, 1));
+        assertEquals(5, RawUnpacker.rowBytes(RawUnpacker.RAW10, 4));
+        assertEquals(10, RawUnpacker.rowBytes(RawUnpacker.RAW10, 5));
+        assertEquals(3, RawUnpacker.rowBytes(RawUnpacker.RAW12, 1));
+        assertEquals(6, RawUnpacker.rowBytes(RawUnpacker.RAW12, 3));
+        assertEquals(8, RawUnpacker.rowBytes(RawUnpacker.RAW_SENSOR, 4));
+    }
+
+    @Test
+    public void raw10RoundTripsWithPaddedStride() {
+        roundTrip(RawUnpacker.RAW10, 4656, 6, 64);
+    }
+
+    @Test
+    public void raw12RoundTripsWithPaddedStride() {
+        roundTrip(RawUnpacker.RAW12, 4656, 6, 64);
+    }
+
+    @Test
+    public void raw10OddWidths() {
+        for (int w = 1; w <= 9; w++) roundTrip(RawUnpacker.RAW10, w, 3, 7);
+    }
+
+    @Test
+    public void raw12OddWidths() {
+        for (int w = 1; w <= 9; w++) roundTrip(RawUnpacker.RAW12, w, 3, 5);
+    }
+
+    @Test
+    public void unpackStartsAtBufferPosition() {
+        int w = 8, h = 2, stride = RawUnpacker.rowBytes(RawUnpacker.RAW10, w);
+        int[] samples = samples(w * h, 10, 7);
+        ByteBuffer packed = pack(RawUnpacker.RAW10, samples, w, h, stride, 3);
+        packed.position(3);
+        assertArrayEquals(samples, read(RawUnpacker.unpack(packed, RawUnpacker.RAW10, w, h, stride), w * h));
+        assertEquals("source position untouched", 3, packed.position());
+    }
+
+    private static void roundTrip(int format, int w, int h, int padding) {
+        int bits = RawUnpacker.bitsPerSample(format);
+        int stride = RawUnpacker.rowBytes(format, w) + padding;
+        int[] samples = samples(w * h, bits, w * 31 + format);
+        ByteBuffer packed = pack(format, samples, w, h, stride, 0);
+        int[] got = read(RawUnpacker.unpack(packed, format, w, h, stride), w * h);
+        assertArrayEquals("format " + format + " width " + w, samples, got);
+    }
+
+    private static int[] samples(int n, int bits, long seed) {
+        Random rnd = new Random(seed);
+        int[] s = new int[n];
+        for (int i = 0; i < n; i++) s[i] = rnd.nextInt(1 << bits);
+        // Keep the extremes in every run
+        s[0] = (1 << bits) - 1;
+        if (n > 1) s[n - 1] = 0;
+        return s;
+    }
+
+    /**
+     * Reference MIPI packer, written from the layout description rather than
+     * from the unpacker. Padding bytes are 0xEE so a read past the row shows.
+     */
+    private static ByteBuffer pack(int format, int[] s, int w, int h, int stride, int offset) {
+        byte[] out = new byte[offset + stride * h];
+        java.util.Arrays.fill(out, (byte) 0xEE);
+        boolean ten = format == RawUnpacker.RAW10;
+        int group = ten ? 4 : 2, groupBytes = ten ? 5 : 3, lowBits = ten ? 2 : 4;
+        for (int y = 0; y < h; y++) {
+            int row = offset + y * stride;
+            for (int g = 0; g * group < w; g++) {
+                int at = row + g * groupBytes;
+                int low = 0;
+                for (int k = 0; k < group; k++) {
+                    int x = g * group + k;
+                    int v = x < w ? s[y * w + x] : 0;
+                    out[at + k] = (byte) (v >> lowBits);
+                    low |= (v & ((1 << lowBits) - 1)) << (k * lowBits);
+                }
+                out[at + group] = (byte) low;
+            }
+        }
+        return ByteBuffer.wrap(out);
+    }
+
+    private static int[] read(ByteBuffer unpacked, int n) {
+        ByteBuffer b = unpacked.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int[] v = new int[n];
+        for (int i = 0; i < n; i++) v[i] = b.getShort() & 0xFFFF;
+        assertEquals("no samples beyond width x height", 0, b.remaining());
+        return v;
+    }
+}
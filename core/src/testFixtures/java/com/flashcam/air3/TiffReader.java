@@ -0,0 +1,158 @@
+package com.flashcam.air3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Just enough of a TIFF parser to check what {@link DngWriter} and
+ * DngCreator produce: IFD0 with its EXIF sub-IFD folded in, entry types
+ * and counts as written, values decoded per type, and strip samples. Both
+ * byte orders are read. Test code only.
+ */
+final class TiffReader {
+
+    private static final int TAG_STRIP_OFFSETS = 0x0111;
+    private static final int TAG_STRIP_BYTE_COUNTS = 0x0117;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int[] TYPE_SIZE = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    /** One IFD entry: its type and count as written, plus the raw value bytes. */
+    static final class Field {
+        final int type, count;
+        private final ByteBuffer value;
+
+        Field(int type, int count, ByteBuffer value) {
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+
+        /** BYTE, SHORT, LONG or SLONG values, widened. */
+        long[] longs() {
+            long[] v = new long[count];
+            ByteBuffer b = value.duplicate().order(value.order());
+            for (int i = 0; i < count; i++) {
+                switch (type) {
+                    case TiffDirectory.BYTE: case TiffDirectory.UNDEFINED: v[i] = b.get() & 0xFF; break;
+                    case TiffDirectory.SHORT: v[i] = b.getShort() & 0xFFFF; break;
+                    case TiffDirectory.LONG: v[i] = b.getInt() & 0xFFFFFFFFL; break;
+                    case TiffDirectory.SLONG: v[i] = b.getInt(); break;
+                    default: throw new IllegalStateException("Not an integer type: " + type);
+                }
+            }
+            return v;
+        }
+
+        /** Every value as a double; rationals are divided out, so 64/1 and 6400/100 compare equal. */
+        double[] doubles() {
+            double[] v = new double[count];
+            ByteBuffer b = value.duplicate().order(value.order());
+            for (int i = 0; i < count; i++) {
+                switch (type) {
+                    case TiffDirectory.RATIONAL:
+                        v[i] = (b.getInt() & 0xFFFFFFFFL) / (double) (b.getInt() & 0xFFFFFFFFL);
+                        break;
+                    case TiffDirectory.SRATIONAL:
+                        v[i] = b.getInt() / (double) b.getInt();
+                        break;
+                    case TiffDirectory.FLOAT: v[i] = b.getFloat(); break;
+                    case TiffDirectory.DOUBLE: v[i] = b.getDouble(); break;
+                    default: return toDoubles(longs());
+                }
+            }
+            return v;
+        }
+
+        /** ASCII value without its terminating NUL. */
+        String ascii() {
+            byte[] v = bytes();
+            int n = v.length;
+            while (n > 0 && v[n - 1] == 0) n--;
+            return new String(v, 0, n, StandardCharsets.US_ASCII);
+        }
+
+        byte[] bytes() {
+            byte[] v = new byte[value.remaining()];
+            value.duplicate().get(v);
+            return v;
+        }
+
+        private static double[] toDoubles(long[] l) {
+            double[] d = new double[l.length];
+            for (int i = 0; i < l.length; i++) d[i] = l[i];
+            return d;
+        }
+    }
+
+    private final ByteBuffer file;
+    /** IFD0 plus the EXIF IFD, by tag; the EXIF pointer itself is left out. */
+    final Map<Integer, Field> fields = new TreeMap<>();
+    /** IFD0 tags in the order they were written. */
+    final List<Integer> order = new ArrayList<>();
+    final int ifdOffset;
+
+    TiffReader(Path path) throws IOException {
+        this(ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+
+    TiffReader(ByteBuffer file) {
+        this.file = file;
+        byte b0 = file.get(0), b1 = file.get(1);
+        if (b0 == 'I' && b1 == 'I') file.order(ByteOrder.LITTLE_ENDIAN);
+        else if (b0 == 'M' && b1 == 'M') file.order(ByteOrder.BIG_ENDIAN);
+        else throw new IllegalArgumentException("Not a TIFF file");
+        if (file.getShort(2) != 42) throw new IllegalArgumentException("Bad TIFF magic");
+        ifdOffset = file.getInt(4);
+        readIfd(ifdOffset, true);
+        Field exif = fields.remove(TAG_EXIF_IFD);
+        if (exif != null) readIfd((int) exif.longs()[0], false);
+    }
+
+    ByteOrder order() {
+        return file.order();
+    }
+
+    Field get(int tag) {
+        return fields.get(tag);
+    }
+
+    /** Every strip of IFD0 concatenated, as 16-bit samples in the file's byte order. */
+    short[] stripSamples() {
+        long[] offsets = fields.get(TAG_STRIP_OFFSETS).longs();
+        long[] counts = fields.get(TAG_STRIP_BYTE_COUNTS).longs();
+        long total = 0;
+        for (long c : counts) total += c;
+        short[] out = new short[(int) (total / 2)];
+        int n = 0;
+        for (int s = 0; s < offsets.length; s++) {
+            ByteBuffer strip = file.duplicate().order(file.order());
+            strip.position((int) offsets[s]).limit((int) (offsets[s] + counts[s]));
+            while (strip.remaining() >= 2) out[n++] = strip.getShort();
+        }
+        return out;
+    }
+
+    private void readIfd(int at, boolean primary) {
+        int n = file.getShort(at) & 0xFFFF;
+        for (int i = 0; i < n; i++) {
+            int e = at + 2 + i * 12;
+            int tag = file.getShort(e) & 0xFFFF;
+            int type = file.getShort(e + 2) & 0xFFFF;
+            int count = file.getInt(e + 4);
+            int bytes = count * (type < TYPE_SIZE.length ? TYPE_SIZE[type] : 1);
+            int valueAt = bytes <= 4 ? e + 8 : file.getInt(e + 8);
+            ByteBuffer value = file.duplicate();
+            value.position(valueAt).limit(valueAt + bytes);
+            fields.put(tag, new Field(type, count, value.slice().order(file.order())));
+            if (primary) order.add(tag);
+        }
+    }
+}